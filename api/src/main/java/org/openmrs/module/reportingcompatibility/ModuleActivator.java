@@ -16,15 +16,29 @@ package org.openmrs.module.reportingcompatibility;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.reportingcompatibility.reporting.ConceptSetCache;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJobManager;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportTemplateCache;
 
 /**
  * This class contains the logic that is run every time this module
  * is either started or shutdown
  */
-public class ModuleActivator extends BaseModuleActivator {
+public class ModuleActivator extends BaseModuleActivator implements DaemonTokenAware {
 
 	private Log log = LogFactory.getLog(this.getClass());
 
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	@Override
+	public void setDaemonToken(DaemonToken token) {
+		// data export jobs run as the daemon
+		DataExportJobManager.setDaemonToken(token);
+	}
+
 	@Override
 	public void started() {
 		log.info("Started Reporting Compatibility Module");
@@ -32,6 +46,11 @@ public class ModuleActivator extends BaseModuleActivator {
 
 	@Override
 	public void stopped() {
+		// running exports stop after their current batch
+		DataExportJobManager.shutdown();
+		// the parsed templates hold on to classes of this module
+		DataExportTemplateCache.clear();
+		ConceptSetCache.clear();
 		log.info("Stopped Reporting Compatibility Module");
 	}
 }
\ No newline at end of file
@@ -30,5 +30,103 @@ public class ReportingCompatibilityConstants {
 	 * Default value if the user hasn't filled in the previous gp
 	 */
 	public static final Integer BATCH_SIZE_GP_DEFAULT = 7500;
+	
+	/**
+	 * GP name for the share of the max heap (in percent) a data export batch may use. The batch
+	 * size is adjusted during the export to stay within it. Zero turns the adjusting off, and it is
+	 * never done for exports running on several threads or shards.
+	 */
+	public static final String MEMORY_BUDGET_GP = "reportingcompatibility.data_export_memory_budget_percent";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final Integer MEMORY_BUDGET_GP_DEFAULT = 0;
+	
+	/**
+	 * GP name for the number of threads a data export runs its batches on
+	 */
+	public static final String THREADS_GP = "reportingcompatibility.data_export_threads";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final Integer THREADS_GP_DEFAULT = 1;
+	
+	/**
+	 * GP name for the number of data exports generated in the background at the same time
+	 */
+	public static final String MAX_JOBS_GP = "reportingcompatibility.data_export_max_jobs";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final Integer MAX_JOBS_GP_DEFAULT = 2;
+	
+	/**
+	 * GP name for the number of bulk queries a data export runs at the same time at the start of
+	 * every batch
+	 */
+	public static final String PREFETCH_THREADS_GP = "reportingcompatibility.data_export_prefetch_threads";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final Integer PREFETCH_THREADS_GP_DEFAULT = 2;
+	
+	/**
+	 * GP name for the megabytes of generated data export files kept to be reused by runs that would
+	 * generate the same file again, 0 to turn the cache off
+	 */
+	public static final String RESULT_CACHE_SIZE_GP = "reportingcompatibility.data_export_result_cache_size";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final Integer RESULT_CACHE_SIZE_GP_DEFAULT = 0;
+	
+	/**
+	 * GP name for the compression of generated data export files, <code>none</code> or
+	 * <code>gzip</code>
+	 */
+	public static final String COMPRESSION_GP = "reportingcompatibility.data_export_compression";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final String COMPRESSION_GP_DEFAULT = "none";
+	
+	/**
+	 * GP name for the directory shared by the OpenMRS instances that generate the shards of a data
+	 * export, empty if exports aren't sharded
+	 */
+	public static final String SHARD_DIR_GP = "reportingcompatibility.data_export_shard_dir";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final String SHARD_DIR_GP_DEFAULT = "";
+	
+	/**
+	 * GP name for the number of shards the patients of a data export are cut into when exports are
+	 * sharded
+	 */
+	public static final String SHARDS_GP = "reportingcompatibility.data_export_shards";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final Integer SHARDS_GP_DEFAULT = 4;
+	
+	/**
+	 * GP name for whether a data export waits at every checkpoint until what it wrote is on disk,
+	 * <code>true</code> or <code>false</code>
+	 */
+	public static final String FORCE_CHECKPOINTS_GP = "reportingcompatibility.data_export_force_checkpoints";
+	
+	/**
+	 * Default value if the user hasn't filled in the previous gp
+	 */
+	public static final String FORCE_CHECKPOINTS_GP_DEFAULT = "true";
 
 }
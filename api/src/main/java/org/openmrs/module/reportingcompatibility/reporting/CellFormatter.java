@@ -0,0 +1,229 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the cells of exported rows straight into a {@link StringBuilder} or {@link Writer}
+ * instead of making a string of every value first. Dates are formatted into a reused buffer with
+ * one formatter per pattern, numbers go through a reused scratch buffer and text is copied (and
+ * escaped) character by character. <br/>
+ * <br/>
+ * The output is the same as appending <code>String.valueOf(value)</code> or
+ * <code>format.format(date)</code>. A formatter keeps its buffers between calls, so it must only
+ * be used by one thread.
+ *
+ * @since 3.0.0
+ */
+public class CellFormatter {
+	
+	private Locale locale;
+	
+	private Map<String, DateFormat> dateFormats = new HashMap<String, DateFormat>();
+	
+	private StringBuffer dateBuffer = new StringBuffer(32);
+	
+	private FieldPosition fieldPosition = new FieldPosition(0);
+	
+	private StringBuilder scratch = new StringBuilder(32);
+	
+	private char[] chars = new char[256];
+	
+	/**
+	 * Creates a formatter for the default locale
+	 */
+	public CellFormatter() {
+		this(Locale.getDefault());
+	}
+	
+	/**
+	 * @param locale the locale of the date patterns
+	 */
+	public CellFormatter(Locale locale) {
+		this.locale = locale;
+	}
+	
+	/**
+	 * @param pattern a {@link SimpleDateFormat} pattern
+	 * @return the formatter of the pattern, made the first time it is asked for
+	 */
+	public DateFormat getDateFormat(String pattern) {
+		DateFormat format = dateFormats.get(pattern);
+		if (format == null) {
+			format = new SimpleDateFormat(pattern, locale);
+			dateFormats.put(pattern, format);
+		}
+		return format;
+	}
+	
+	/**
+	 * Writes the given date in the given format, nothing if the date is null
+	 */
+	public void appendDate(Appendable out, DateFormat format, Date date) throws IOException {
+		if (date == null)
+			return;
+		
+		dateBuffer.setLength(0);
+		fieldPosition.setBeginIndex(0);
+		fieldPosition.setEndIndex(0);
+		format.format(date, dateBuffer, fieldPosition);
+		if (out instanceof StringBuilder)
+			((StringBuilder) out).append(dateBuffer);
+		else
+			write(out, dateBuffer);
+	}
+	
+	/**
+	 * Writes the given date with the formatter of the given pattern
+	 *
+	 * @see #getDateFormat(String)
+	 */
+	public void appendDate(Appendable out, String pattern, Date date) throws IOException {
+		appendDate(out, getDateFormat(pattern), date);
+	}
+	
+	public void appendInt(Appendable out, int value) throws IOException {
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(value);
+		} else {
+			scratch.setLength(0);
+			write(out, scratch.append(value));
+		}
+	}
+	
+	public void appendLong(Appendable out, long value) throws IOException {
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(value);
+		} else {
+			scratch.setLength(0);
+			write(out, scratch.append(value));
+		}
+	}
+	
+	public void appendDouble(Appendable out, double value) throws IOException {
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(value);
+		} else {
+			scratch.setLength(0);
+			write(out, scratch.append(value));
+		}
+	}
+	
+	/**
+	 * Writes the given value like <code>String.valueOf(value)</code> would, nothing if it is null
+	 */
+	public void appendValue(Appendable out, Object value) throws IOException {
+		if (value == null)
+			return;
+		
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			appendInt(out, ((Number) value).intValue());
+		else if (value instanceof Long)
+			appendLong(out, (Long) value);
+		else if (value instanceof Double)
+			appendDouble(out, (Double) value);
+		else
+			appendText(out, value.toString());
+	}
+	
+	/**
+	 * Writes the given text, nothing if it is null
+	 */
+	public void appendText(Appendable out, CharSequence text) throws IOException {
+		if (text == null)
+			return;
+		
+		if (out instanceof Writer && text instanceof String)
+			((Writer) out).write((String) text);
+		else if (out instanceof StringBuilder)
+			((StringBuilder) out).append(text);
+		else
+			write(out, text);
+	}
+	
+	/**
+	 * Writes the given text with every occurrence of a character replaced
+	 *
+	 * @param out
+	 * @param text the text to write, nothing is written if it is null
+	 * @param special the character to replace
+	 * @param replacement what to write instead of it
+	 */
+	public void appendEscaped(Appendable out, CharSequence text, char special, String replacement) throws IOException {
+		if (text == null)
+			return;
+		
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == special) {
+				appendRange(out, text, start, i);
+				appendText(out, replacement);
+				start = i + 1;
+			}
+		}
+		appendRange(out, text, start, text.length());
+	}
+	
+	private void appendRange(Appendable out, CharSequence text, int start, int end) throws IOException {
+		if (start == 0 && end == text.length())
+			appendText(out, text);
+		else if (out instanceof Writer && text instanceof String)
+			((Writer) out).write((String) text, start, end - start);
+		else if (start < end)
+			out.append(text, start, end);
+	}
+	
+	/**
+	 * Copies the given characters to the writer through a reused array, {@link Writer#append}
+	 * would make a string of them first
+	 */
+	private void write(Appendable out, CharSequence text) throws IOException {
+		if (!(out instanceof Writer)) {
+			out.append(text);
+			return;
+		}
+		
+		int length = text.length();
+		if (chars.length < length)
+			chars = new char[Math.max(length, chars.length * 2)];
+		if (text instanceof StringBuilder)
+			((StringBuilder) text).getChars(0, length, chars, 0);
+		else if (text instanceof StringBuffer)
+			((StringBuffer) text).getChars(0, length, chars, 0);
+		else
+			text.toString().getChars(0, length, chars, 0);
+		((Writer) out).write(chars, 0, length);
+	}
+	
+	/**
+	 * Writes everything appended to the given row so far to the writer and empties the row
+	 *
+	 * @param row a row built up with the append methods
+	 * @param out where the row goes
+	 */
+	public void writeRow(StringBuilder row, Writer out) throws IOException {
+		write(out, row);
+		row.setLength(0);
+	}
+
+}
@@ -0,0 +1,261 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes text to a {@link WritableByteChannel}, usually the {@link FileChannel} of an export file.
+ * Characters are collected in a large buffer, encoded in one go into a byte buffer and handed to
+ * the channel only when that is full, so writing a big file takes few system calls. <br/>
+ * <br/>
+ * Both buffers are on the heap, since a writer is made for every batch file of a parallel export.
+ * Direct buffers of that size are only freed once the writers are collected, so they could use up
+ * the direct memory before that. The channel copies the bytes through a direct buffer of its
+ * thread. <br/>
+ * <br/>
+ * The text is always encoded in the given charset, UTF-8 unless told otherwise, never the platform
+ * default. {@link #flush()} hands everything written so far to the channel and flushes the stream
+ * the writer was made for, {@link #force()} also makes sure it is on disk. Like other writers a
+ * channel writer must only be used by one thread.
+ *
+ * @since 3.0.0
+ */
+public class ChannelWriter extends Writer {
+	
+	/**
+	 * The charset of export files
+	 */
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * The size of the byte buffer of writers of export files
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	
+	private WritableByteChannel channel;
+	
+	// the stream under the channel, if the writer was made for one
+	private OutputStream out;
+	
+	private CharsetEncoder encoder;
+	
+	private CharBuffer chars;
+	
+	private ByteBuffer bytes;
+	
+	private boolean closed = false;
+	
+	/**
+	 * @param channel where the encoded text goes, closed when the writer is closed
+	 * @param charset
+	 * @param bufferSize the size of the byte buffer, the char buffer holds as many characters
+	 */
+	public ChannelWriter(WritableByteChannel channel, Charset charset, int bufferSize) {
+		this.channel = channel;
+		// like an OutputStreamWriter, text that can't be encoded doesn't stop the export
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+		    CodingErrorAction.REPLACE);
+		this.chars = CharBuffer.allocate(bufferSize);
+		this.bytes = ByteBuffer.allocate(bufferSize);
+	}
+	
+	/**
+	 * @param out the stream the encoded text goes to, like a gzip stream, closed when the writer is
+	 *            closed
+	 * @param charset
+	 * @param bufferSize see {@link #ChannelWriter(WritableByteChannel, Charset, int)}
+	 */
+	public ChannelWriter(OutputStream out, Charset charset, int bufferSize) {
+		this(out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out),
+		        charset, bufferSize);
+		this.out = out;
+	}
+	
+	/**
+	 * Opens a file for writing in UTF-8 with a {@link #DEFAULT_BUFFER_SIZE} buffer
+	 *
+	 * @param file the file to write
+	 * @param append true to write after the end of the file, false to replace it
+	 * @return the new writer
+	 * @throws IOException
+	 */
+	public static ChannelWriter open(File file, boolean append) throws IOException {
+		return new ChannelWriter(new FileOutputStream(file, append).getChannel(), UTF8, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * @see java.io.Writer#write(char[], int, int)
+	 */
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, chars.remaining());
+			chars.put(cbuf, off, n);
+			off += n;
+			len -= n;
+			if (!chars.hasRemaining())
+				encode(false);
+		}
+	}
+	
+	/**
+	 * Copies the characters of the string straight into the buffer
+	 *
+	 * @see java.io.Writer#write(java.lang.String, int, int)
+	 */
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, chars.remaining());
+			str.getChars(off, off + n, chars.array(), chars.arrayOffset() + chars.position());
+			chars.position(chars.position() + n);
+			off += n;
+			len -= n;
+			if (!chars.hasRemaining())
+				encode(false);
+		}
+	}
+	
+	/**
+	 * @see java.io.Writer#write(int)
+	 */
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		if (!chars.hasRemaining())
+			encode(false);
+		chars.put((char) c);
+	}
+	
+	/**
+	 * @see java.io.Writer#append(java.lang.CharSequence, int, int)
+	 */
+	@Override
+	public Writer append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null)
+			csq = "null";
+		if (csq instanceof String) {
+			write((String) csq, start, end - start);
+		} else {
+			ensureOpen();
+			for (int i = start; i < end; i++) {
+				if (!chars.hasRemaining())
+					encode(false);
+				chars.put(csq.charAt(i));
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Encodes the buffered characters, handing the bytes to the channel whenever the byte buffer
+	 * fills up. A high surrogate at the end stays in the buffer until its low surrogate comes.
+	 */
+	private void encode(boolean endOfInput) throws IOException {
+		chars.flip();
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, endOfInput);
+			if (result.isOverflow())
+				drain();
+			else
+				break;
+		}
+		chars.compact();
+	}
+	
+	/**
+	 * Writes the whole byte buffer to the channel
+	 */
+	private void drain() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining())
+			channel.write(bytes);
+		bytes.clear();
+	}
+	
+	/**
+	 * Hands everything written so far to the channel, and flushes the stream under it
+	 *
+	 * @see java.io.Writer#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		encode(false);
+		drain();
+		if (out != null)
+			out.flush();
+	}
+	
+	/**
+	 * Flushes the writer and, for a file, waits until its content is on disk
+	 *
+	 * @throws IOException
+	 * @see FileChannel#force(boolean)
+	 */
+	public void force() throws IOException {
+		flush();
+		if (channel instanceof FileChannel)
+			((FileChannel) channel).force(false);
+	}
+	
+	/**
+	 * @return the channel the text goes to
+	 */
+	public WritableByteChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * @see java.io.Writer#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		
+		try {
+			encode(true);
+			while (encoder.flush(bytes).isOverflow())
+				drain();
+			drain();
+		}
+		finally {
+			closed = true;
+			channel.close();
+		}
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("The writer is closed");
+	}
+
+}
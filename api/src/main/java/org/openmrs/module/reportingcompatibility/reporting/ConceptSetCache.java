@@ -0,0 +1,202 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.api.APIException;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+
+/**
+ * Remembers the members of concept sets, their names and the drugs of concepts, so export columns
+ * and drug order filters don't expand the same sets every time a template is generated or a filter
+ * is evaluated. Only ids and names are kept, never the concepts or drugs themselves, which belong
+ * to the session that loaded them. <br/>
+ * <br/>
+ * Everything is forgotten as soon as the concept dictionary changes. Whether it did is asked at
+ * most every {@link #CHECK_INTERVAL} milliseconds, so a change made on this or another server
+ * shows up after that long at the latest. Data exports ask with {@link #refresh()} when they start,
+ * so they always see the sets as they are then.
+ *
+ * @see ReportingCompatibilityService#getConceptDictionaryVersion()
+ * @since 3.0.0
+ */
+public class ConceptSetCache {
+	
+	private static final Log log = LogFactory.getLog(ConceptSetCache.class);
+	
+	/**
+	 * How long in milliseconds the cache is used before checking the concept dictionary again
+	 */
+	public static final long CHECK_INTERVAL = 60 * 1000;
+	
+	// stands for the members of concepts that aren't sets, compared by identity
+	private static final List<Integer> NOT_A_SET = Collections.unmodifiableList(new ArrayList<Integer>(0));
+	
+	private static Map<Integer, List<Integer>> setMembers = new ConcurrentHashMap<Integer, List<Integer>>();
+	
+	// keyed by the concept id and the locale
+	private static Map<String, List<String>> setMemberNames = new ConcurrentHashMap<String, List<String>>();
+	
+	private static Map<Integer, List<Integer>> drugs = new ConcurrentHashMap<Integer, List<Integer>>();
+	
+	private static String version = null;
+	
+	private static long lastCheck = 0;
+	
+	/**
+	 * Gets the concepts in a set, as {@link ConceptService#getConceptsByConceptSet(Concept)}
+	 * returns them
+	 *
+	 * @param conceptId
+	 * @return the ids of the members of the set, null if the concept is not a set
+	 * @throws APIException if there is no such concept
+	 */
+	public static List<Integer> getSetMemberIds(Integer conceptId) {
+		checkForChanges();
+		
+		List<Integer> memberIds = setMembers.get(conceptId);
+		if (memberIds == null) {
+			ConceptService cs = Context.getConceptService();
+			Concept concept = cs.getConcept(conceptId);
+			if (concept == null)
+				throw new APIException("No concept with id " + conceptId);
+			
+			if (concept.isSet()) {
+				memberIds = new ArrayList<Integer>();
+				for (Concept member : cs.getConceptsByConceptSet(concept))
+					memberIds.add(member.getConceptId());
+				memberIds = Collections.unmodifiableList(memberIds);
+			} else {
+				memberIds = NOT_A_SET;
+			}
+			setMembers.put(conceptId, memberIds);
+		}
+		
+		return memberIds == NOT_A_SET ? null : memberIds;
+	}
+	
+	/**
+	 * Gets the names of the concepts in a set
+	 *
+	 * @param conceptId
+	 * @param locale
+	 * @return the names of the members of the set in the order of {@link #getSetMemberIds(Integer)},
+	 *         null if the concept is not a set
+	 * @throws APIException if there is no such concept
+	 * @see ReportingCompatibilityService#getNames(Class, java.util.Collection, Locale)
+	 */
+	public static List<String> getSetMemberNames(Integer conceptId, Locale locale) {
+		List<Integer> memberIds = getSetMemberIds(conceptId);
+		if (memberIds == null)
+			return null;
+		
+		String key = conceptId + "|" + locale;
+		List<String> names = setMemberNames.get(key);
+		if (names == null) {
+			Map<Integer, String> found = memberIds.isEmpty() ? Collections.<Integer, String> emptyMap() : Context
+			        .getService(ReportingCompatibilityService.class).getNames(Concept.class, memberIds, locale);
+			names = new ArrayList<String>();
+			for (Integer memberId : memberIds) {
+				String name = found.get(memberId);
+				names.add(name == null ? memberId.toString() : name);
+			}
+			names = Collections.unmodifiableList(names);
+			setMemberNames.put(key, names);
+		}
+		
+		return names;
+	}
+	
+	/**
+	 * Gets the drugs of a concept, as {@link ConceptService#getDrugsByConcept(Concept)} returns
+	 * them
+	 *
+	 * @param conceptId
+	 * @return the ids of the drugs, empty if the concept has none or doesn't exist
+	 */
+	public static List<Integer> getDrugIds(Integer conceptId) {
+		checkForChanges();
+		
+		List<Integer> drugIds = drugs.get(conceptId);
+		if (drugIds == null) {
+			ConceptService cs = Context.getConceptService();
+			Concept concept = cs.getConcept(conceptId);
+			
+			drugIds = new ArrayList<Integer>();
+			if (concept != null) {
+				for (Drug drug : cs.getDrugsByConcept(concept))
+					drugIds.add(drug.getDrugId());
+			}
+			drugIds = Collections.unmodifiableList(drugIds);
+			drugs.put(conceptId, drugIds);
+		}
+		
+		return drugIds;
+	}
+	
+	/**
+	 * Empties the cache if the concept dictionary changed since it was last checked
+	 */
+	private static synchronized void checkForChanges() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < CHECK_INTERVAL)
+			return;
+		
+		String current = Context.getService(ReportingCompatibilityService.class).getConceptDictionaryVersion();
+		if (version != null && !version.equals(current)) {
+			if (log.isDebugEnabled())
+				log.debug("The concept dictionary changed, forgetting " + setMembers.size() + " concept sets");
+			clearMaps();
+		}
+		version = current;
+		lastCheck = now;
+	}
+	
+	/**
+	 * Checks whether the concept dictionary changed right away, without waiting for
+	 * {@link #CHECK_INTERVAL} to pass, and forgets everything if it did
+	 */
+	public static synchronized void refresh() {
+		lastCheck = 0;
+		checkForChanges();
+	}
+	
+	private static void clearMaps() {
+		setMembers.clear();
+		setMemberNames.clear();
+		drugs.clear();
+	}
+	
+	/**
+	 * Forgets everything, the next call asks the concept service again
+	 */
+	public static synchronized void clear() {
+		clearMaps();
+		version = null;
+		lastCheck = 0;
+	}
+
+}
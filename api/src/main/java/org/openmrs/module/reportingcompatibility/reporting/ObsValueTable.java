@@ -0,0 +1,411 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column oriented holder for the obs values of one concept over a set of patients. Every cell is
+ * kept in a primitive array instead of as a boxed object in a list of lists, which keeps the heap
+ * use of a batched data export down to a few bytes per cell. <br/>
+ * <br/>
+ * The rows are grouped by patient in ascending patient id order. The rows of one patient are
+ * <code>getFirstRow(index)</code> up to (but not including) <code>getFirstRow(index + 1)</code>,
+ * where index comes from {@link #getPatientIndex(int)}. <br/>
+ * <br/>
+ * Each column has one of the types {@link #NUMERIC}, {@link #CODED}, {@link #DATETIME},
+ * {@link #TEXT}, {@link #LOCATION} or {@link #PROVIDER}. Text values are dictionary encoded so that
+ * repeated strings (encounter types, comments...) are only stored once. Concepts, drugs, locations
+ * and providers are only stored by id, their names are looked up when the cells are written.
+ *
+ * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getObservationValueTable(org.openmrs.cohort.Cohort,
+ *      org.openmrs.Concept, List, Integer, boolean)
+ * @since 3.0.0
+ */
+public class ObsValueTable {
+	
+	/**
+	 * double values, null is stored as NaN
+	 */
+	public static final byte NUMERIC = 0;
+	
+	/**
+	 * concept ids (and drug ids for drug answers), null is stored as 0
+	 */
+	public static final byte CODED = 1;
+	
+	/**
+	 * dates as milliseconds, null is stored as {@link Long#MIN_VALUE}
+	 */
+	public static final byte DATETIME = 2;
+	
+	/**
+	 * dictionary encoded strings, null is stored as -1
+	 */
+	public static final byte TEXT = 3;
+	
+	/**
+	 * location ids, null is stored as 0
+	 */
+	public static final byte LOCATION = 4;
+	
+	/**
+	 * provider ids, null is stored as 0
+	 */
+	public static final byte PROVIDER = 5;
+	
+	private static final int INITIAL_CAPACITY = 256;
+	
+	private byte[] columnTypes;
+	
+	private double[][] numericValues;
+	
+	private int[][] codedValues;
+	
+	private int[][] drugValues;
+	
+	private long[][] datetimeValues;
+	
+	private int[][] textValues;
+	
+	private int[][] idValues;
+	
+	private int rowCount = 0;
+	
+	private int capacity = INITIAL_CAPACITY;
+	
+	private int[] patientIds = new int[INITIAL_CAPACITY];
+	
+	// patientOffsets[i] is the first row of the i'th patient
+	private int[] patientOffsets = new int[INITIAL_CAPACITY];
+	
+	private int patientCount = 0;
+	
+	private List<String> dictionary = new ArrayList<String>();
+	
+	// only used while the table is being filled
+	private Map<String, Integer> dictionaryCodes = new HashMap<String, Integer>();
+	
+	/**
+	 * @param columnTypes the type of each column, one of {@link #NUMERIC}, {@link #CODED},
+	 *            {@link #DATETIME}, {@link #TEXT}, {@link #LOCATION} or {@link #PROVIDER}
+	 */
+	public ObsValueTable(byte[] columnTypes) {
+		this.columnTypes = columnTypes;
+		
+		int columnCount = columnTypes.length;
+		numericValues = new double[columnCount][];
+		codedValues = new int[columnCount][];
+		drugValues = new int[columnCount][];
+		datetimeValues = new long[columnCount][];
+		textValues = new int[columnCount][];
+		idValues = new int[columnCount][];
+		
+		for (int col = 0; col < columnCount; col++) {
+			switch (columnTypes[col]) {
+				case NUMERIC:
+					numericValues[col] = new double[capacity];
+					break;
+				case CODED:
+					codedValues[col] = new int[capacity];
+					drugValues[col] = new int[capacity];
+					break;
+				case DATETIME:
+					datetimeValues[col] = new long[capacity];
+					break;
+				case TEXT:
+					textValues[col] = new int[capacity];
+					break;
+				case LOCATION:
+				case PROVIDER:
+					idValues[col] = new int[capacity];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown column type: " + columnTypes[col]);
+			}
+		}
+	}
+	
+	// Filling the table
+	
+	/**
+	 * Starts a new row for the given patient. Rows must be added in ascending patient id order.
+	 * All cells of the new row are null until they are set.
+	 *
+	 * @param patientId the patient the row belongs to
+	 * @return the index of the new row
+	 */
+	public int addRow(int patientId) {
+		if (patientCount == 0 || patientIds[patientCount - 1] != patientId) {
+			if (patientCount > 0 && patientIds[patientCount - 1] > patientId)
+				throw new IllegalArgumentException("Rows must be added in ascending patient order, got " + patientId
+				        + " after " + patientIds[patientCount - 1]);
+			
+			if (patientCount == patientIds.length) {
+				patientIds = Arrays.copyOf(patientIds, patientCount * 2);
+				patientOffsets = Arrays.copyOf(patientOffsets, patientCount * 2);
+			}
+			patientIds[patientCount] = patientId;
+			patientOffsets[patientCount] = rowCount;
+			patientCount++;
+		}
+		
+		if (rowCount == capacity)
+			resize(capacity * 2);
+		
+		int row = rowCount++;
+		for (int col = 0; col < columnTypes.length; col++) {
+			switch (columnTypes[col]) {
+				case NUMERIC:
+					numericValues[col][row] = Double.NaN;
+					break;
+				case CODED:
+					codedValues[col][row] = 0;
+					drugValues[col][row] = 0;
+					break;
+				case DATETIME:
+					datetimeValues[col][row] = Long.MIN_VALUE;
+					break;
+				case TEXT:
+					textValues[col][row] = -1;
+					break;
+				case LOCATION:
+				case PROVIDER:
+					idValues[col][row] = 0;
+					break;
+			}
+		}
+		
+		return row;
+	}
+	
+	public void setNumeric(int col, int row, double value) {
+		numericValues[col][row] = value;
+	}
+	
+	public void setCoded(int col, int row, int conceptId) {
+		codedValues[col][row] = conceptId;
+	}
+	
+	public void setDrug(int col, int row, int drugId) {
+		drugValues[col][row] = drugId;
+	}
+	
+	public void setDatetime(int col, int row, long millis) {
+		datetimeValues[col][row] = millis;
+	}
+	
+	/**
+	 * @param col a {@link #LOCATION} or {@link #PROVIDER} column
+	 * @param row
+	 * @param id the id of the location or provider
+	 */
+	public void setId(int col, int row, int id) {
+		idValues[col][row] = id;
+	}
+	
+	public void setText(int col, int row, String value) {
+		textValues[col][row] = value == null ? -1 : getDictionaryCode(value);
+	}
+	
+	/**
+	 * Stores the given string in the dictionary (if it isn't there yet)
+	 *
+	 * @param value the string to encode
+	 * @return the code of the string, for use in {@link #setTextCode(int, int, int)}
+	 */
+	public int getDictionaryCode(String value) {
+		Integer code = dictionaryCodes.get(value);
+		if (code == null) {
+			code = dictionary.size();
+			dictionary.add(value);
+			dictionaryCodes.put(value, code);
+		}
+		return code;
+	}
+	
+	public void setTextCode(int col, int row, int code) {
+		textValues[col][row] = code;
+	}
+	
+	/**
+	 * Trims the arrays down to the number of rows actually used. Should be called once all rows
+	 * have been added.
+	 */
+	public void finish() {
+		resize(rowCount);
+		patientIds = Arrays.copyOf(patientIds, patientCount);
+		patientOffsets = Arrays.copyOf(patientOffsets, patientCount);
+		dictionaryCodes = null;
+	}
+	
+	/**
+	 * Empties the table so it can be filled again, keeping its arrays. Used to pass the obs of a
+	 * long scan on in chunks of the same table instead of keeping all of them.
+	 */
+	public void clear() {
+		rowCount = 0;
+		patientCount = 0;
+		// a finished table may have been trimmed down to nothing
+		if (capacity < INITIAL_CAPACITY)
+			resize(INITIAL_CAPACITY);
+		if (patientIds.length < INITIAL_CAPACITY) {
+			patientIds = new int[INITIAL_CAPACITY];
+			patientOffsets = new int[INITIAL_CAPACITY];
+		}
+		dictionary.clear();
+		if (dictionaryCodes == null)
+			dictionaryCodes = new HashMap<String, Integer>();
+		else
+			dictionaryCodes.clear();
+	}
+	
+	private void resize(int newCapacity) {
+		for (int col = 0; col < columnTypes.length; col++) {
+			switch (columnTypes[col]) {
+				case NUMERIC:
+					numericValues[col] = Arrays.copyOf(numericValues[col], newCapacity);
+					break;
+				case CODED:
+					codedValues[col] = Arrays.copyOf(codedValues[col], newCapacity);
+					drugValues[col] = Arrays.copyOf(drugValues[col], newCapacity);
+					break;
+				case DATETIME:
+					datetimeValues[col] = Arrays.copyOf(datetimeValues[col], newCapacity);
+					break;
+				case TEXT:
+					textValues[col] = Arrays.copyOf(textValues[col], newCapacity);
+					break;
+				case LOCATION:
+				case PROVIDER:
+					idValues[col] = Arrays.copyOf(idValues[col], newCapacity);
+					break;
+			}
+		}
+		capacity = newCapacity;
+	}
+	
+	// Reading the table
+	
+	/**
+	 * @param patientId the patient to look for
+	 * @return the index of this patient in the table or a negative number if the patient has no
+	 *         rows
+	 */
+	public int getPatientIndex(int patientId) {
+		return Arrays.binarySearch(patientIds, 0, patientCount, patientId);
+	}
+	
+	/**
+	 * @param patientIndex a number from 0 up to {@link #getPatientCount()}
+	 * @return the id of the patient with this index
+	 */
+	public int getPatientId(int patientIndex) {
+		return patientIds[patientIndex];
+	}
+	
+	/**
+	 * @param patientIndex index from {@link #getPatientIndex(int)}
+	 * @return the first row of this patient
+	 */
+	public int getFirstRow(int patientIndex) {
+		return patientOffsets[patientIndex];
+	}
+	
+	/**
+	 * @param patientIndex index from {@link #getPatientIndex(int)}
+	 * @return the number of rows this patient has
+	 */
+	public int getRowCount(int patientIndex) {
+		int end = patientIndex + 1 < patientCount ? patientOffsets[patientIndex + 1] : rowCount;
+		return end - patientOffsets[patientIndex];
+	}
+	
+	public int getRowCount() {
+		return rowCount;
+	}
+	
+	public int getPatientCount() {
+		return patientCount;
+	}
+	
+	public int getColumnCount() {
+		return columnTypes.length;
+	}
+	
+	public byte getColumnType(int col) {
+		return columnTypes[col];
+	}
+	
+	/**
+	 * @return true if the given cell has no value
+	 */
+	public boolean isNull(int col, int row) {
+		switch (columnTypes[col]) {
+			case NUMERIC:
+				return Double.isNaN(numericValues[col][row]);
+			case CODED:
+				return codedValues[col][row] == 0 && drugValues[col][row] == 0;
+			case DATETIME:
+				return datetimeValues[col][row] == Long.MIN_VALUE;
+			case LOCATION:
+			case PROVIDER:
+				return idValues[col][row] == 0;
+			default:
+				return textValues[col][row] < 0;
+		}
+	}
+	
+	public double getNumeric(int col, int row) {
+		return numericValues[col][row];
+	}
+	
+	/**
+	 * @return the concept id of the coded answer, or 0 if there is none
+	 */
+	public int getCoded(int col, int row) {
+		return codedValues[col][row];
+	}
+	
+	/**
+	 * @return the drug id of the coded answer, or 0 if the answer is not a drug
+	 */
+	public int getDrug(int col, int row) {
+		return drugValues[col][row];
+	}
+	
+	public long getDatetime(int col, int row) {
+		return datetimeValues[col][row];
+	}
+	
+	/**
+	 * @return the location or provider id, or 0 if the cell is empty
+	 */
+	public int getId(int col, int row) {
+		return idValues[col][row];
+	}
+	
+	/**
+	 * @return the string value, or null if the cell is empty
+	 */
+	public String getText(int col, int row) {
+		int code = textValues[col][row];
+		return code < 0 ? null : dictionary.get(code);
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+/**
+ * Receives the obs of a scan over the obs table one chunk at a time, so the caller never has to
+ * hold more than one chunk in memory.
+ *
+ * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#scrollObservationValues(org.openmrs.cohort.Cohort,
+ *      org.openmrs.Concept, java.util.List, boolean, ObsValueTableHandler)
+ * @since 3.0.0
+ */
+public interface ObsValueTableHandler {
+	
+	/**
+	 * Handles the next rows of the scan. The rows of a patient can be split over two chunks, but
+	 * the chunks come in the order of the scan.
+	 *
+	 * @param chunk the next rows, the table is cleared and reused for the following chunk once
+	 *            this returns
+	 * @return false to stop the scan
+	 * @throws Exception
+	 */
+	public boolean handle(ObsValueTable chunk) throws Exception;
+
+}
@@ -0,0 +1,166 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The relatives of a set of patients in relationships of one type, with the preferred name of each
+ * relative and, for relatives that are patients themselves, their preferred identifier. Everything
+ * is kept in flat arrays, one row per relationship, so the relationship columns of a data export
+ * never have to load a person or patient. <br/>
+ * <br/>
+ * The rows of one patient follow each other, starting at {@link #getFirstRow(Integer)}.
+ *
+ * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getRelativeTable(org.openmrs.cohort.Cohort,
+ *      org.openmrs.RelationshipType)
+ * @since 3.0.0
+ */
+public class RelativeTable {
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private int[] patientIds = new int[INITIAL_CAPACITY];
+	
+	private int[] relativeIds = new int[INITIAL_CAPACITY];
+	
+	private String[] givenNames = new String[INITIAL_CAPACITY];
+	
+	private String[] middleNames = new String[INITIAL_CAPACITY];
+	
+	private String[] familyNames = new String[INITIAL_CAPACITY];
+	
+	private boolean[] relativeIsPatient = new boolean[INITIAL_CAPACITY];
+	
+	private String[] identifiers = new String[INITIAL_CAPACITY];
+	
+	private int rowCount = 0;
+	
+	private Map<Integer, Integer> firstRows = new HashMap<Integer, Integer>();
+	
+	/**
+	 * Adds the relative of a patient. The rows of a patient have to be added one after the other.
+	 *
+	 * @param patientId the patient
+	 * @param relativeId the person the patient is related to
+	 * @param givenName the given name of the relative's preferred name
+	 * @param middleName
+	 * @param familyName
+	 */
+	public void addRow(int patientId, int relativeId, String givenName, String middleName, String familyName) {
+		if (rowCount == patientIds.length) {
+			int capacity = rowCount * 2;
+			patientIds = Arrays.copyOf(patientIds, capacity);
+			relativeIds = Arrays.copyOf(relativeIds, capacity);
+			givenNames = Arrays.copyOf(givenNames, capacity);
+			middleNames = Arrays.copyOf(middleNames, capacity);
+			familyNames = Arrays.copyOf(familyNames, capacity);
+			relativeIsPatient = Arrays.copyOf(relativeIsPatient, capacity);
+			identifiers = Arrays.copyOf(identifiers, capacity);
+		}
+		
+		if (!firstRows.containsKey(patientId))
+			firstRows.put(patientId, rowCount);
+		patientIds[rowCount] = patientId;
+		relativeIds[rowCount] = relativeId;
+		givenNames[rowCount] = givenName;
+		middleNames[rowCount] = middleName;
+		familyNames[rowCount] = familyName;
+		rowCount++;
+	}
+	
+	/**
+	 * Marks the relative of the given row as a patient
+	 *
+	 * @param row
+	 * @param identifier the preferred identifier of the relative, may be null
+	 */
+	public void setPatientIdentifier(int row, String identifier) {
+		relativeIsPatient[row] = true;
+		identifiers[row] = identifier;
+	}
+	
+	/**
+	 * @param patientId
+	 * @return the first row of the given patient, -1 if the patient has no relatives
+	 */
+	public int getFirstRow(Integer patientId) {
+		Integer row = firstRows.get(patientId);
+		return row == null ? -1 : row;
+	}
+	
+	/**
+	 * @param row
+	 * @return the row after the last row of the patient of the given row
+	 */
+	public int getEndRow(int row) {
+		int patientId = patientIds[row];
+		while (row < rowCount && patientIds[row] == patientId)
+			row++;
+		return row;
+	}
+	
+	public int getRowCount() {
+		return rowCount;
+	}
+	
+	public int getRelativeId(int row) {
+		return relativeIds[row];
+	}
+	
+	public String getGivenName(int row) {
+		return givenNames[row];
+	}
+	
+	public String getMiddleName(int row) {
+		return middleNames[row];
+	}
+	
+	public String getFamilyName(int row) {
+		return familyNames[row];
+	}
+	
+	/**
+	 * @return the given, middle and family name of the relative, leaving out the empty ones
+	 */
+	public String getName(int row) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : new String[] { givenNames[row], middleNames[row], familyNames[row] }) {
+			if (part != null && part.trim().length() > 0) {
+				if (sb.length() > 0)
+					sb.append(" ");
+				sb.append(part);
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @return true if the relative is a patient
+	 */
+	public boolean isPatient(int row) {
+		return relativeIsPatient[row];
+	}
+	
+	/**
+	 * @return the preferred identifier of the relative, null if the relative isn't a patient or has
+	 *         no identifier
+	 */
+	public String getIdentifier(int row) {
+		return identifiers[row];
+	}
+
+}
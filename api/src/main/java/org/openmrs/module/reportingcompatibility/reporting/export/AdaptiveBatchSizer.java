@@ -0,0 +1,165 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Picks the size of each batch of a data export so that a batch stays within a memory budget. <br/>
+ * <br/>
+ * What a batch keeps is measured as the growth of the heap that was still in use after the last
+ * garbage collection (the collection usage of the heap pools), between the start and the end of
+ * the batch. Memory that is allocated and dropped again while a batch runs doesn't count. The
+ * next batch is then sized to fill the budget, growing or shrinking by at most a factor of two per
+ * batch. The batch is not grown if the time spent per patient went up noticeably with the last
+ * increase. <br/>
+ * <br/>
+ * No garbage collection is ever forced. A batch during which the heap wasn't collected tells
+ * nothing about what it keeps and leaves the size as it is. The heap is shared by everything
+ * running on the server, so the sizer is only meant for exports whose batches run one after the
+ * other, and it is off unless a memory budget is configured.
+ *
+ * @see DataExportFunctions#setBatchSizer(AdaptiveBatchSizer)
+ * @since 3.0.0
+ */
+public class AdaptiveBatchSizer {
+	
+	private static final Log log = LogFactory.getLog(AdaptiveBatchSizer.class);
+	
+	public static final int MIN_BATCH_SIZE = 100;
+	
+	public static final int MAX_BATCH_SIZE = 100000;
+	
+	private List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+	
+	private List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	
+	private long memoryBudget;
+	
+	private int batchSize;
+	
+	private long batchStartLiveHeap;
+	
+	private long batchStartCollections;
+	
+	private long batchStartTime;
+	
+	// time per patient of the previous batch, in nanoseconds
+	private double lastTimePerPatient = 0;
+	
+	/**
+	 * @param initialBatchSize the size of the first batch
+	 * @param memoryBudgetPercent the share of the max heap a batch may use, in percent
+	 */
+	public AdaptiveBatchSizer(int initialBatchSize, int memoryBudgetPercent) {
+		this.batchSize = Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, initialBatchSize));
+		
+		long maxHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+		if (maxHeap < 0)
+			maxHeap = Runtime.getRuntime().maxMemory();
+		this.memoryBudget = maxHeap / 100 * memoryBudgetPercent;
+		
+		// only pools that report their usage after a collection tell what is kept
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getCollectionUsage() != null)
+				heapPools.add(pool);
+		}
+	}
+	
+	/**
+	 * @return the number of patients to put in the next batch
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Called once the patients of a batch are known, before anything is fetched for them
+	 */
+	public void batchStarted() {
+		batchStartLiveHeap = getLiveHeap();
+		batchStartCollections = getCollectionCount();
+		batchStartTime = System.nanoTime();
+	}
+	
+	/**
+	 * Called once all rows of a batch are written, before the data of the batch is let go of.
+	 * Works out the size of the next batch.
+	 *
+	 * @param patientCount the number of patients in the batch
+	 */
+	public void batchFinished(int patientCount) {
+		if (patientCount <= 0)
+			return;
+		
+		long elapsed = System.nanoTime() - batchStartTime;
+		
+		// without a collection since the start the live heap is still the one of before the batch
+		boolean collected = getCollectionCount() != batchStartCollections;
+		long batchHeap = collected ? getLiveHeap() - batchStartLiveHeap : 0;
+		
+		double timePerPatient = (double) elapsed / patientCount;
+		int previousSize = batchSize;
+		
+		if (batchHeap > 0 && memoryBudget > 0) {
+			long bytesPerPatient = Math.max(1, batchHeap / patientCount);
+			long target = memoryBudget / bytesPerPatient;
+			
+			// move towards the target gradually, one batch can be off
+			target = Math.max(target, batchSize / 2);
+			target = Math.min(target, (long) batchSize * 2);
+			
+			// bigger batches that are slower per patient aren't worth the memory
+			if (target > batchSize && lastTimePerPatient > 0 && timePerPatient > lastTimePerPatient * 1.5)
+				target = batchSize;
+			
+			batchSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, target));
+		}
+		lastTimePerPatient = timePerPatient;
+		
+		if (log.isDebugEnabled())
+			log.debug("Batch of " + patientCount + " patients took " + (elapsed / 1000000) + " ms and "
+			        + (collected ? "kept about " + (batchHeap / 1024) + " KB of heap" : "saw no garbage collection")
+			        + ", batch size " + previousSize + " -> " + batchSize);
+	}
+	
+	/**
+	 * @return the heap in use after the last collection of each heap pool
+	 */
+	private long getLiveHeap() {
+		long live = 0;
+		for (MemoryPoolMXBean pool : heapPools)
+			live += pool.getCollectionUsage().getUsed();
+		return live;
+	}
+	
+	/**
+	 * @return the number of garbage collections so far, of all collectors
+	 */
+	private long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : collectors)
+			count += Math.max(0, collector.getCollectionCount());
+		return count;
+	}
+
+}
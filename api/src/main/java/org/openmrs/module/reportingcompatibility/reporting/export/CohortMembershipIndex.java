@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.report.EvaluationContext;
+import org.openmrs.reporting.PatientFilter;
+import org.openmrs.reporting.PatientSearchReportObject;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.CohortColumn;
+import org.openmrs.util.ReportingcompatibilityUtil;
+
+/**
+ * The members of the cohorts, cohort definitions and patient searches of the cohort columns of a
+ * data export. <br/>
+ * <br/>
+ * Each one is evaluated once for the whole export, against all of its patients, and kept as a
+ * bitmap indexed by patient id, so a row only has to test a bit. All of them are evaluated in the
+ * same {@link EvaluationContext}, so filters that are part of several columns are only run once.
+ * <br/>
+ * <br/>
+ * An index can be shared by the threads of a {@link ParallelDataExportRunner}.
+ *
+ * @see DataExportFunctions#isCohortMember(String)
+ * @since 3.0.0
+ */
+public class CohortMembershipIndex {
+	
+	private static final Log log = LogFactory.getLog(CohortMembershipIndex.class);
+	
+	private Cohort patientSet;
+	
+	private EvaluationContext context = new EvaluationContext();
+	
+	private Map<String, BitSet> members = new ConcurrentHashMap<String, BitSet>();
+	
+	/**
+	 * @param patientSet the patients of the export, null for all patients
+	 */
+	public CohortMembershipIndex(Cohort patientSet) {
+		this.patientSet = patientSet;
+	}
+	
+	/**
+	 * @param column a cohort column
+	 * @return the key of its cohort, like <code>C.1</code>, <code>F.3</code> or <code>S.7</code>
+	 */
+	public static String getKey(CohortColumn column) {
+		if (column.getCohortId() != null)
+			return "C." + column.getCohortId();
+		else if (column.getFilterId() != null)
+			return "F." + column.getFilterId();
+		else
+			return "S." + column.getPatientSearchId();
+	}
+	
+	/**
+	 * @param key see {@link #getKey(CohortColumn)}
+	 * @param patientId
+	 * @return true if the patient is a member of the given cohort
+	 */
+	public boolean contains(String key, Integer patientId) {
+		BitSet bits = members.get(key);
+		if (bits == null) {
+			evaluate(key);
+			bits = members.get(key);
+		}
+		return patientId != null && bits.get(patientId);
+	}
+	
+	/**
+	 * @param key see {@link #getKey(CohortColumn)}
+	 * @return true if the members of the given cohort are known
+	 */
+	public boolean isEvaluated(String key) {
+		return members.containsKey(key);
+	}
+	
+	/**
+	 * Works out the members of the given cohort, unless that was done already
+	 *
+	 * @param key see {@link #getKey(CohortColumn)}
+	 * @return the members, or null if they were already known
+	 */
+	public synchronized BitSet evaluate(String key) {
+		if (members.containsKey(key))
+			return null;
+		
+		log.debug("getting cohort/definition for key: " + key);
+		Cohort cohort = null;
+		if (key.startsWith("C.")) {
+			cohort = ReportingcompatibilityUtil.convert(Context.getCohortService().getCohort(
+			    Integer.valueOf(key.substring(2))));
+		} else if (key.startsWith("F.")) {
+			PatientFilter pf = Context.getService(ReportObjectService.class).getPatientFilterById(
+			    Integer.valueOf(key.substring(2)));
+			cohort = pf.filter(patientSet, context);
+		} else if (key.startsWith("S.")) {
+			PatientSearchReportObject ro = (PatientSearchReportObject) Context.getService(ReportObjectService.class)
+			        .getReportObject(Integer.valueOf(key.substring(2)));
+			PatientFilter pf = ReportingcompatibilityUtil.toPatientFilter(ro.getPatientSearch(), null);
+			cohort = pf.filter(patientSet, context);
+		} else {
+			throw new APIException("Unknown cohort membership key " + key);
+		}
+		
+		BitSet bits = new BitSet();
+		for (Integer patientId : cohort.getMemberIds())
+			bits.set(patientId);
+		members.put(key, bits);
+		return bits;
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.Writer;
+
+/**
+ * Writes the cells of one column of a data export for the current patient. Writers are compiled
+ * once per export from the export's columns by {@link DataExportPipeline}.
+ *
+ * @since 3.0.0
+ */
+public interface ColumnWriter {
+	
+	/**
+	 * Writes the cell(s) of this column for the current patient of <code>fn</code>. Multiple cells
+	 * are separated by the separator of <code>fn</code>, but no separator is written before the
+	 * first or after the last cell.
+	 *
+	 * @param fn the functions class, already set to the patient to write
+	 * @param out where the cells are written to
+	 * @throws Exception
+	 */
+	public void write(DataExportFunctions fn, Writer out) throws Exception;
+
+}
@@ -0,0 +1,32 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown between two batches of a data export when the job generating it was cancelled
+ *
+ * @see DataExportJob#checkCancelled()
+ * @since 3.0.0
+ */
+public class DataExportCancelledException extends APIException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public DataExportCancelledException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,263 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.reporting.ChannelWriter;
+
+/**
+ * How far a run of a data export got writing its generated file, so a run that was stopped by a
+ * restart or a crash can carry on where it was instead of starting over. <br/>
+ * <br/>
+ * After every batch the rows are flushed (and forced to disk unless told otherwise) and the index of the batch, the last patient of
+ * the batch, the length of the file and the fingerprint of the run are saved next to the file. A
+ * later run with the same fingerprint cuts the file back to that length, which drops any rows of
+ * an unfinished batch, and goes on with the patients after the last one. Rows written before the
+ * checkpoint keep the data they were written with, as they would have had the run not been
+ * stopped. <br/>
+ * <br/>
+ * The checkpoint is removed once the run ends, unless it failed.
+ *
+ * @see DataExportResultCache#getRunFingerprint(org.openmrs.reporting.export.DataExportReportObject,
+ *      Cohort, String)
+ * @since 3.0.0
+ */
+public class DataExportCheckpoint {
+	
+	private static final Log log = LogFactory.getLog(DataExportCheckpoint.class);
+	
+	private File exportFile;
+	
+	private String fingerprint;
+	
+	private FileChannel channel;
+	
+	private ChannelWriter writer;
+	
+	private boolean force;
+	
+	private boolean resumed = false;
+	
+	// the last batch written completely, -1 before the first one
+	private int batchIndex = -1;
+	
+	private Integer lastPatientId = null;
+	
+	private int patientsDone = 0;
+	
+	// the length of the file at the checkpoint
+	private long offset = 0;
+	
+	private DataExportCheckpoint(File exportFile, String fingerprint, boolean force) {
+		this.exportFile = exportFile;
+		this.fingerprint = fingerprint;
+		this.force = force;
+	}
+	
+	/**
+	 * @param exportFile the generated export file
+	 * @return the file the checkpoint of the given export file is saved in
+	 */
+	public static File getCheckpointFile(File exportFile) {
+		return new File(exportFile.getParentFile(), exportFile.getName() + ".checkpoint");
+	}
+	
+	/**
+	 * Opens the generated file of a run. If the checkpoint of an earlier run with the same
+	 * fingerprint is there, the file is cut back to the checkpoint and the run is resumed, otherwise
+	 * the file is emptied.
+	 *
+	 * @param exportFile the generated export file
+	 * @param fingerprint the fingerprint of the run
+	 * @param force true to wait at every checkpoint until the rows and the checkpoint are on disk,
+	 *            false to leave that to the operating system, which survives a restart of OpenMRS
+	 *            but not a crash of the server
+	 * @return the checkpoint of the run, see {@link #getWriter()}
+	 * @throws IOException
+	 */
+	public static DataExportCheckpoint open(File exportFile, String fingerprint, boolean force) throws IOException {
+		DataExportCheckpoint checkpoint = new DataExportCheckpoint(exportFile, fingerprint, force);
+		checkpoint.load();
+		
+		checkpoint.channel = new FileOutputStream(exportFile, true).getChannel();
+		checkpoint.channel.truncate(checkpoint.offset);
+		checkpoint.writer = new ChannelWriter(checkpoint.channel, ChannelWriter.UTF8, ChannelWriter.DEFAULT_BUFFER_SIZE);
+		
+		if (checkpoint.resumed)
+			log.info("Resuming data export file " + exportFile + " after batch " + checkpoint.batchIndex + ", "
+			        + checkpoint.patientsDone + " patients were written already");
+		return checkpoint;
+	}
+	
+	/**
+	 * Reads the saved checkpoint, if it belongs to a run like this one and the file still has
+	 * everything up to it
+	 */
+	private void load() {
+		File file = getCheckpointFile(exportFile);
+		if (!file.exists())
+			return;
+		
+		try {
+			Properties saved = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				saved.load(in);
+			}
+			finally {
+				in.close();
+			}
+			
+			long savedOffset = Long.parseLong(saved.getProperty("offset"));
+			if (!fingerprint.equals(saved.getProperty("fingerprint"))) {
+				log.info("The export changed since data export file " + exportFile + " was checkpointed, starting over");
+			} else if (exportFile.length() < savedOffset) {
+				log.warn("Data export file " + exportFile + " is shorter than its checkpoint, starting over");
+			} else {
+				batchIndex = Integer.parseInt(saved.getProperty("batchIndex"));
+				lastPatientId = Integer.valueOf(saved.getProperty("lastPatientId"));
+				patientsDone = Integer.parseInt(saved.getProperty("patientsDone"));
+				offset = savedOffset;
+				resumed = true;
+			}
+		}
+		catch (Exception e) {
+			log.warn("Unable to read data export checkpoint " + file + ", starting over", e);
+		}
+	}
+	
+	/**
+	 * Saves a checkpoint after the rows of a batch were written to {@link #getWriter()}. The rows
+	 * are in the file when this returns.
+	 *
+	 * @param batchIndex the index of the batch
+	 * @param batch the patients of the batch, which come after the patients of the earlier batches
+	 *            in the order of their ids
+	 * @throws IOException
+	 * @see DataExportUtil#getSortedMemberIds(Cohort)
+	 */
+	public void batchWritten(int batchIndex, Cohort batch) throws IOException {
+		if (force)
+			writer.force();
+		else
+			writer.flush();
+		
+		this.batchIndex = batchIndex;
+		this.lastPatientId = Collections.max(batch.getMemberIds());
+		this.patientsDone += batch.getSize();
+		this.offset = channel.position();
+		
+		Properties saved = new Properties();
+		saved.setProperty("fingerprint", fingerprint);
+		saved.setProperty("batchIndex", String.valueOf(batchIndex));
+		saved.setProperty("lastPatientId", lastPatientId.toString());
+		saved.setProperty("patientsDone", String.valueOf(patientsDone));
+		saved.setProperty("offset", String.valueOf(offset));
+		
+		// the old checkpoint stays until the new one is complete
+		File file = getCheckpointFile(exportFile);
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			saved.store(out, "Data export checkpoint");
+			if (force)
+				out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Unable to save data export checkpoint " + file);
+		}
+	}
+	
+	/**
+	 * Empties the file and forgets the checkpoint, for runs that don't write their batches one
+	 * after the other and so can't be resumed
+	 *
+	 * @throws IOException
+	 */
+	public void restart() throws IOException {
+		writer.flush();
+		channel.truncate(0);
+		resumed = false;
+		batchIndex = -1;
+		lastPatientId = null;
+		patientsDone = 0;
+		offset = 0;
+		getCheckpointFile(exportFile).delete();
+	}
+	
+	/**
+	 * Removes the saved checkpoint, the next run starts over
+	 */
+	public void delete() {
+		getCheckpointFile(exportFile).delete();
+	}
+	
+	/**
+	 * @return the writer of the generated file, closing it closes the file
+	 */
+	public Writer getWriter() {
+		return writer;
+	}
+	
+	/**
+	 * @return true if the run carries on from the checkpoint of an earlier run, the header and the
+	 *         rows up to the checkpoint are in the file already
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+	
+	/**
+	 * @return the last batch written completely, -1 if there is none
+	 */
+	public int getBatchIndex() {
+		return batchIndex;
+	}
+	
+	/**
+	 * @return the last patient written, null if there is none
+	 */
+	public Integer getLastPatientId() {
+		return lastPatientId;
+	}
+	
+	/**
+	 * @return the number of patients written up to the checkpoint
+	 */
+	public int getPatientsDone() {
+		return patientsDone;
+	}
+	
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+}
@@ -13,21 +13,28 @@
  */
 package org.openmrs.module.reportingcompatibility.reporting.export;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,12 +45,13 @@ import org.openmrs.DrugOrder;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PatientProgram;
-import org.openmrs.Person;
 import org.openmrs.Program;
+import org.openmrs.Provider;
 import org.openmrs.Relationship;
 import org.openmrs.RelationshipType;
 import org.openmrs.User;
@@ -53,13 +61,14 @@ import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.reporting.CellFormatter;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.RelativeTable;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportPrefetchPlan.Need;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportPrefetchPlan.ObsColumn;
 import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
-import org.openmrs.report.EvaluationContext;
-import org.openmrs.reporting.PatientFilter;
-import org.openmrs.reporting.PatientSearchReportObject;
-import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.ExportColumn;
 import org.openmrs.util.OpenmrsUtil;
-import org.openmrs.util.ReportingcompatibilityUtil;
 
 
 public class DataExportFunctions {
@@ -79,6 +88,29 @@ public class DataExportFunctions {
 	// and it is still large and needs to be batched
 	private List<Integer> overallPatientSetMemberIds;
 	
+	// when batching through all patients, the batch that follows the last one fetched and the 
+	// last patient id of that batch
+	private Integer nextBatchIndex = 0;
+	
+	private Integer lastBatchPatientId = null;
+	
+	// where the next batch of overallPatientSetMemberIds starts, see nextPatientSetBatch()
+	private int nextBatchStart = 0;
+	
+	// picks the size of every batch when going through the patients with nextPatientSetBatch()
+	private AdaptiveBatchSizer batchSizer = null;
+	
+	private boolean batchStarted = false;
+	
+	// the job generating this export, told about every batch
+	private DataExportJob job = null;
+	
+	// where a run writing the generated file records how far it got
+	private DataExportCheckpoint checkpoint = null;
+	
+	// whether setPatientSetFromBatch() has set a batch that wasn't reported to the job yet
+	private boolean batchPending = false;
+	
 	protected String separator = "	";
 	
 	protected DateFormat dateFormatLong = null;
@@ -87,7 +119,8 @@ public class DataExportFunctions {
 	
 	protected DateFormat dateFormatYmd = null;
 	
-	protected Map<String, DateFormat> formats = new HashMap<String, DateFormat>();
+	// writes the cells of the columns that don't go through velocity, and formats other date patterns
+	protected CellFormatter cells = null;
 	
 	public Date currentDate = new Date();
 	
@@ -110,9 +143,41 @@ public class DataExportFunctions {
 	// Map<conceptId + attr, Map<patientId, List<List<Obs values>>>>
 	protected Map<String, Map<Integer, List<List<Object>>>> conceptAttrObsMap = new HashMap<String, Map<Integer, List<List<Object>>>>();
 	
+	// Map<conceptId + attr, column oriented obs values>
+	protected Map<String, ObsValueTable> obsValueTableMap = new HashMap<String, ObsValueTable>();
+	
+	// the names of the concepts, drugs, locations and providers written, kept across batches
+	private DataExportNameDictionary names;
+	
+	// reused for formatting the datetime cells of obs value tables
+	private Date cellDate = new Date();
+	
+	// the bulk queries every batch needs, see planPrefetch(List)
+	private DataExportPrefetchPlan prefetchPlan = new DataExportPrefetchPlan();
+	
+	// the number of bulk queries run at the same time at the start of every batch
+	private int prefetchThreads = 1;
+	
+	private ExecutorService prefetchExecutor = null;
+	
+	// true while the planned queries run, the ones that run otherwise weren't planned
+	private boolean prefetching = false;
+	
+	// how long the planned queries of the current batch took
+	private long prefetchMillis = 0;
+	
+	// where the time of the export goes, see getProfile()
+	private DataExportProfile profile = new DataExportProfile();
+	
+	// the members of the cohort columns of the whole export, see planPrefetch(List)
+	private CohortMembershipIndex cohortMembership = null;
+	
 	// Map<RelationshipType, Map<patientId, List<Relationship>>>
 	protected Map<String, Map<Integer, List<Relationship>>> relationshipMap = new HashMap<String, Map<Integer, List<Relationship>>>();
 	
+	// Map<RelationshipType, RelativeTable>
+	protected Map<String, RelativeTable> relativeTableMap = new HashMap<String, RelativeTable>();
+	
 	// Map<Program.name, Map<patientId, PatientProgram>>
 	protected Map<String, Map<Integer, PatientProgram>> programMap = new HashMap<String, Map<Integer, PatientProgram>>();
 	
@@ -128,9 +193,6 @@ public class DataExportFunctions {
 	// Map<tablename+columnname, Map<personId, columnvalue>>
 	protected Map<String, Map<Integer, Object>> personAttributeMap = new HashMap<String, Map<Integer, Object>>();
 	
-	// Map<key, Collection<personId>>, where key is like "Cohort.1" or "Filter.3"
-	protected Map<String, Collection<Integer>> cohortMap = new HashMap<String, Collection<Integer>>();
-	
 	protected ReportingCompatibilityService rcs;
 	
 	protected PatientService patientService;
@@ -165,30 +227,84 @@ public class DataExportFunctions {
 		dateFormatLong = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG, locale);
 		dateFormatShort = Context.getDateFormat();
 		dateFormatYmd = new SimpleDateFormat("yyyy-MM-dd", locale);
+		cells = new CellFormatter(locale);
+		names = new DataExportNameDictionary(locale);
 	}
 	
 	public void clearAllMaps() {
 		clearMap(patientEncounterMap);
 		clearMap(patientIdentifierMap);
 		clearMap(patientFirstEncounterMap);
-		conceptNameMap.clear();
 		clearMap(conceptAttrObsMap);
+		obsValueTableMap.clear();
 		clearMap(relationshipMap);
+		relativeTableMap.clear();
 		clearMap(programMap);
 		clearMap(drugOrderMap);
 		clearMap(currentDrugOrderMap);
 		clearMap(patientAttributeMap);
 		clearMap(personAttributeMap);
-		cohortMap.clear();
 	}
 		
 	public void clear() {
+		evictBatchEntities();
 		clearAllMaps();
+		conceptNameMap.clear();
 		rcs = null;
 		patientService = null;
 		conceptService = null;
 		encounterService = null;
 		personService = null;
+		cohortMembership = null;
+		if (prefetchExecutor != null) {
+			prefetchExecutor.shutdown();
+			prefetchExecutor = null;
+		}
+	}
+	
+	/**
+	 * Evicts the entities of the previous batch from the hibernate session at a batch boundary:
+	 * the patient and the encounters, programs, drug orders and relationships in the maps, along
+	 * with the collections they cascade to, like the names of a patient or the obs of an
+	 * encounter. Unlike clearing the session this leaves whatever else it holds alone, the session
+	 * may well belong to the caller of the export. The entities the bulk queries return are
+	 * read-only, so there is nothing to flush.
+	 */
+	protected void evictBatchEntities() {
+		if (patient != null)
+			Context.evictFromSession(patient);
+		setPatient(null);
+		evictValues(patientEncounterMap);
+		evictValues(patientFirstEncounterMap);
+		evictValues(relationshipMap);
+		evictValues(programMap);
+		evictValues(drugOrderMap);
+		evictValues(currentDrugOrderMap);
+		evictValues(patientAttributeMap);
+		evictValues(personAttributeMap);
+	}
+	
+	private void evictValues(Map<String, ? extends Map<Integer, ?>> mapOfMaps) {
+		for (Map<Integer, ?> map : mapOfMaps.values()) {
+			for (Object value : map.values())
+				evict(value);
+		}
+	}
+	
+	/**
+	 * Evicts the given value if it is an entity, or the entities in it if it is a list or an array
+	 * of values. Other values, like names and dates, are left alone.
+	 */
+	private void evict(Object value) {
+		if (value instanceof OpenmrsObject) {
+			Context.evictFromSession(value);
+		} else if (value instanceof Collection) {
+			for (Object element : (Collection<?>) value)
+				evict(element);
+		} else if (value instanceof Object[]) {
+			for (Object element : (Object[]) value)
+				evict(element);
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -232,6 +348,9 @@ public class DataExportFunctions {
 	}
 	
 	public void setPatientId(Integer patientId) {
+		// the previous patient isn't needed anymore, so don't let it pile up in the session
+		if (patient != null)
+			Context.evictFromSession(patient);
 		setPatient(null);
 		this.patientId = patientId;
 	}
@@ -295,32 +414,31 @@ public class DataExportFunctions {
 	}
 	
 	protected Boolean getCohortHelper(String key) {
-		if (cohortMap.containsKey(key))
-			return cohortMap.get(key).contains(getPatientId());
-		
-		//TODO try to cache the evaluation context
-		EvaluationContext context = new EvaluationContext();
-		
-		log.debug("getting cohort/definition for key: " + key);
-		//PatientSet ps = null;
-		Cohort ps = null;
-		if (key.startsWith("C.")) {
-			ps = ReportingcompatibilityUtil.convert(Context.getCohortService().getCohort(Integer.valueOf(key.substring(2))));
-		} else if (key.startsWith("F.")) {
-			PatientFilter pf = Context.getService(ReportObjectService.class).getPatientFilterById(Integer.valueOf(key.substring(2)));
-			ps = pf.filter(getPatientSet(), context);
-		} else if (key.startsWith("S.")) {
-			PatientSearchReportObject ro = (PatientSearchReportObject) Context.getService(ReportObjectService.class).getReportObject(
-			    Integer.valueOf(key.substring(2)));
-			PatientFilter pf = ReportingcompatibilityUtil.toPatientFilter(ro.getPatientSearch(), null);
-			ps = pf.filter(getPatientSet(), context);
-		} else {
-			log.error("key = " + key);
-		}
-		Set<Integer> set = new HashSet<Integer>(ps.getMemberIds());
-		cohortMap.put(key, set);
-		
-		return set.contains(getPatientId());
+		return isCohortMember(key);
+	}
+	
+	/**
+	 * @param key the key of a cohort (<code>C.1</code>), cohort definition (<code>F.3</code>) or
+	 *            patient search (<code>S.7</code>)
+	 * @return true if the current patient is a member
+	 * @see CohortMembershipIndex
+	 */
+	public boolean isCohortMember(String key) {
+		// without a plan the members are looked for among all patients
+		if (cohortMembership == null)
+			cohortMembership = new CohortMembershipIndex(null);
+		if (!cohortMembership.isEvaluated(key))
+			evaluateCohort(key);
+		return cohortMembership.contains(key, getPatientId());
+	}
+	
+	private void evaluateCohort(String key) {
+		long start = System.currentTimeMillis();
+		BitSet members = cohortMembership.evaluate(key);
+		// another thread of the export may have evaluated it meanwhile
+		if (members != null)
+			recordQuery(DataExportPrefetchPlan.queryKey("getCohortMembership", key), start, members.cardinality(),
+			    members.size() / 8);
 	}
 	
 	/**
@@ -333,11 +451,13 @@ public class DataExportFunctions {
 		
 		log.debug("getting first encounters for type: " + encounterType);
 		
+		long start = System.currentTimeMillis();
 		EncounterType type = null;
 		if (!encounterType.equals(""))
 			type = encounterService.getEncounterType(encounterType);
 		
 		Map<Integer, ?> encounterMap = rcs.getEncountersByType(getPatientSetIfNotAllPatients(), type);
+		recordQuery(DataExportPrefetchPlan.queryKey("getLastEncounter", encounterType), start, encounterMap);
 		
 		patientEncounterMap.put(encounterType, encounterMap);
 		
@@ -363,6 +483,7 @@ public class DataExportFunctions {
 		
 		log.debug("getting first encounters for type: " + key);
 		
+		long start = System.currentTimeMillis();
 		List<EncounterType> encounterTypes = new Vector<EncounterType>();
 		
 		// find the EncounterType objects for each type passed in
@@ -383,6 +504,7 @@ public class DataExportFunctions {
 		
 		Map<Integer, Object> encounterMap = rcs.getEncounterAttrsByType(getPatientSetIfNotAllPatients(),
 		    encounterTypes, attr);
+		recordQuery(DataExportPrefetchPlan.queryKey("getLastEncounterAttr", types, attr), start, encounterMap);
 		
 		patientEncounterMap.put(key, encounterMap);
 		
@@ -400,12 +522,14 @@ public class DataExportFunctions {
 		
 		log.debug("getting first encounters for type: " + encounterType);
 		
+		long start = System.currentTimeMillis();
 		EncounterType type = null;
 		if (!encounterType.equals(""))
 			type = encounterService.getEncounterType(encounterType);
 		
 		Map<Integer, Encounter> encounterMap = rcs.getFirstEncountersByType(getPatientSetIfNotAllPatients(),
 		    type);
+		recordQuery(DataExportPrefetchPlan.queryKey("getFirstEncounter", encounterType), start, encounterMap);
 		
 		patientFirstEncounterMap.put(encounterType, encounterMap);
 		
@@ -430,6 +554,7 @@ public class DataExportFunctions {
 		
 		log.debug("getting first encounters for type: " + key);
 		
+		long start = System.currentTimeMillis();
 		List<EncounterType> encounterTypes = new Vector<EncounterType>();
 		
 		// find the EncounterType objects for each type passed in
@@ -450,6 +575,7 @@ public class DataExportFunctions {
 		
 		Map<Integer, Object> encounterMap = rcs.getFirstEncounterAttrsByType(getPatientSetIfNotAllPatients(),
 		    encounterTypes, attr);
+		recordQuery(DataExportPrefetchPlan.queryKey("getFirstEncounterAttr", types, attr), start, encounterMap);
 		
 		patientFirstEncounterMap.put(key, encounterMap);
 		
@@ -508,7 +634,8 @@ public class DataExportFunctions {
 		if (attrs == null)
 			attrs = new Vector<String>();
 		
-		String key = c.getConceptId() + "";
+		// the limit and the ordering are applied in the query, so they are part of the key too
+		String key = c.getConceptId() + "|" + attrs + "|" + size + "|" + mostRecentFirst;
 		Map<Integer, List<List<Object>>> patientIdObsMap = conceptAttrObsMap.get(key);
 		if (patientIdObsMap == null) {
 			long start = System.currentTimeMillis();
@@ -526,12 +653,354 @@ public class DataExportFunctions {
 			conceptAttrObsMap.put(key, patientIdObsMap);
 			
 			// some timing testing
-			if (log.isDebugEnabled())
-				log.debug("Time spent in db getting obs/patients for concept: " + key + ": " + (System.currentTimeMillis() - start));
+			recordQuery(DataExportPrefetchPlan.queryKey("getObsWithValues", c.getConceptId()), start,
+			    patientIdObsMap);
 		}
 		return patientIdObsMap.get(patientId);
 	}
 	
+	/**
+	 * Gets the column oriented obs values of the given concept for all patients in the current
+	 * batch. The table is fetched once per batch and then reused for every patient.
+	 * 
+	 * @param c the concept of the obs
+	 * @param attrs extra obs attributes like obsDatetime, location, provider
+	 * @param size the max number of obs per patient, null or -1 for all
+	 * @param mostRecentFirst true to get the most recent obs of each patient first
+	 * @return the obs values of the current batch
+	 * @see ReportingCompatibilityService#getObservationValueTable(Cohort, Concept, List, Integer, boolean)
+	 */
+	public ObsValueTable getObsValueTable(Concept c, List<String> attrs, Integer size, boolean mostRecentFirst) {
+		String key = getObsValueTableKey(c, attrs, size, mostRecentFirst);
+		ObsValueTable table = obsValueTableMap.get(key);
+		if (table == null) {
+			long start = System.currentTimeMillis();
+			
+			table = rcs.getObservationValueTable(getPatientSetIfNotAllPatients(), c, attrs, size, mostRecentFirst);
+			obsValueTableMap.put(key, table);
+			
+			recordQuery(DataExportPrefetchPlan.queryKey("getObservationValueTable", c.getConceptId()), start, table);
+			preloadNames(Collections.singletonList(table));
+		}
+		return table;
+	}
+	
+	private String getObsValueTableKey(Concept c, List<String> attrs, Integer size, boolean mostRecentFirst) {
+		return c.getConceptId() + "|" + attrs + "|" + size + "|" + mostRecentFirst;
+	}
+	
+	/**
+	 * Works out the bulk queries the columns of an export need, so that every batch can run them
+	 * all when it starts instead of one at a time when the first patient of the batch reaches each
+	 * column.
+	 * 
+	 * @param columns the columns of the data export
+	 * @see DataExportPrefetchPlan
+	 * @see #setPatientSetFromBatch(Integer)
+	 */
+	public void planPrefetch(List<ExportColumn> columns) {
+		prefetchPlan = DataExportPrefetchPlan.analyse(columns);
+		// the cohort columns are evaluated for the whole export, not batch by batch
+		cohortMembership = new CohortMembershipIndex(patientSet);
+	}
+	
+	/**
+	 * Runs all bulk queries of the prefetch plan for the current batch. The obs of all concept
+	 * columns that want the same extra attributes in the same order are fetched with a single
+	 * query and split into one table per concept afterwards. <br/>
+	 * <br/>
+	 * The queries that only return values (obs, identifiers, person attributes and relatives) run on the
+	 * prefetch threads, each in a session of its own, while the ones that load encounters,
+	 * programs and the like run on this thread so those end up in its session. A query that
+	 * fails is left for the row that needs it, so it fails in the same place it always did.
+	 */
+	protected void prefetch() {
+		prefetchMillis = 0;
+		if (prefetchPlan.isEmpty())
+			return;
+		
+		long start = System.currentTimeMillis();
+		Cohort patients = getPatientSetIfNotAllPatients();
+		List<PrefetchQuery> valueQueries = new ArrayList<PrefetchQuery>();
+		for (List<ObsColumn> group : groupObsColumns())
+			valueQueries.add(new PrefetchQuery(null, group, patients));
+		for (Need need : prefetchPlan.getNeeds()) {
+			if (need.isValuesOnly())
+				valueQueries.add(new PrefetchQuery(need, null, patients));
+		}
+		
+		// start the value queries first so they overlap with the ones run here
+		List<Future<PrefetchQuery>> futures = new ArrayList<Future<PrefetchQuery>>();
+		if (prefetchThreads > 1 && valueQueries.size() > 1) {
+			DataExportThreadContext threadContext = DataExportThreadContext.getCurrent();
+			for (PrefetchQuery query : valueQueries) {
+				query.threadContext = threadContext;
+				futures.add(getPrefetchExecutor().submit(query));
+			}
+			valueQueries.clear();
+		}
+		
+		prefetching = true;
+		try {
+			// only the first batch has anything to do here
+			for (String key : prefetchPlan.getCohortKeys()) {
+				try {
+					if (cohortMembership != null && !cohortMembership.isEvaluated(key))
+						evaluateCohort(key);
+				}
+				catch (Exception e) {
+					log.warn("Unable to evaluate cohort " + key + ", leaving it for the first row that needs it", e);
+				}
+			}
+			
+			for (Need need : prefetchPlan.getNeeds()) {
+				if (!need.isValuesOnly()) {
+					try {
+						prefetch(need);
+					}
+					catch (Exception e) {
+						log.warn("Unable to prefetch " + need + ", leaving it for the first row that needs it", e);
+					}
+				}
+			}
+			
+			for (PrefetchQuery query : valueQueries) {
+				try {
+					query.call().apply();
+				}
+				catch (Exception e) {
+					log.warn("Unable to prefetch " + query + ", leaving it for the first row that needs it", e);
+				}
+			}
+			
+			for (Future<PrefetchQuery> future : futures) {
+				try {
+					future.get().apply();
+				}
+				catch (ExecutionException e) {
+					log.warn("Unable to prefetch, leaving it for the first row that needs it", e.getCause());
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new APIException("Interrupted while prefetching the data of the batch", e);
+				}
+			}
+			
+			try {
+				preloadNames(obsValueTableMap.values());
+			}
+			catch (Exception e) {
+				log.warn("Unable to prefetch the names of the batch, leaving them for the first row that needs them", e);
+			}
+		}
+		finally {
+			prefetching = false;
+			prefetchMillis = System.currentTimeMillis() - start;
+		}
+	}
+	
+	/**
+	 * Looks up the names of the concepts, drugs, locations and providers in the given tables that
+	 * earlier batches didn't have
+	 */
+	private void preloadNames(Collection<ObsValueTable> tables) {
+		long start = System.currentTimeMillis();
+		int loaded = names.preload(tables);
+		if (loaded > 0)
+			recordQuery(DataExportPrefetchPlan.queryKey("getNames"), start, loaded, 60L * loaded);
+	}
+	
+	/**
+	 * Fills the map of the given need for the current batch by calling its method the way a
+	 * column would
+	 */
+	private void prefetch(Need need) {
+		String method = need.getMethod();
+		if (method.equals("getPatientAttr"))
+			getPatientAttr(need.getString(0), need.getString(1), (Boolean) need.getArgs().get(2));
+		else if (method.equals("getLastEncounter"))
+			getLastEncounter(need.getString(0));
+		else if (method.equals("getFirstEncounter"))
+			getFirstEncounter(need.getString(0));
+		else if (method.equals("getLastEncounterAttr"))
+			getLastEncounterAttr(need.getArgs().get(0), need.getString(1));
+		else if (method.equals("getFirstEncounterAttr"))
+			getFirstEncounterAttr(need.getArgs().get(0), need.getString(1));
+		else if (method.equals("getProgram"))
+			getProgram(need.getString(0));
+		else if (method.equals("getRelationships"))
+			getRelationships(need.getString(0));
+		else if (method.equals("getCurrentDrugOrders"))
+			getCurrentDrugOrders(need.getString(0));
+		else if (method.equals("getDrugOrders"))
+			getDrugOrders(need.getString(0));
+	}
+	
+	/**
+	 * @return the planned obs columns grouped by the shape of the query they need
+	 */
+	private Collection<List<ObsColumn>> groupObsColumns() {
+		Map<String, List<ObsColumn>> groups = new LinkedHashMap<String, List<ObsColumn>>();
+		for (ObsColumn planned : prefetchPlan.getObsColumns()) {
+			String groupKey = planned.getAttrs() + "|" + planned.isMostRecentFirst();
+			List<ObsColumn> group = groups.get(groupKey);
+			if (group == null) {
+				group = new ArrayList<ObsColumn>();
+				groups.put(groupKey, group);
+			}
+			group.add(planned);
+		}
+		return groups.values();
+	}
+	
+	private ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null) {
+			ThreadFactory threadFactory = new ThreadFactory() {
+				
+				private int count = 0;
+				
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DataExportPrefetch-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+			prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, threadFactory);
+		}
+		return prefetchExecutor;
+	}
+	
+	/**
+	 * Adds a bulk query that just ran to the profile of the export
+	 * 
+	 * @param key see {@link DataExportPrefetchPlan#queryKey(String, Object...)}
+	 * @param start when the query started
+	 * @param result what it returned for each patient
+	 */
+	private void recordQuery(String key, long start, Map<Integer, ?> result) {
+		recordQuery(key, start, result.size(), DataExportProfile.estimateBytes(result));
+	}
+	
+	private void recordQuery(String key, long start, ObsValueTable table) {
+		recordQuery(key, start, table.getRowCount(), DataExportProfile.estimateBytes(table));
+	}
+	
+	private void recordQuery(String key, long start, RelativeTable table) {
+		recordQuery(key, start, table.getRowCount(), DataExportProfile.estimateBytes(table));
+	}
+	
+	private void recordQuery(String key, long start, int rows, long bytes) {
+		profile.recordQuery(key, System.currentTimeMillis() - start, rows, bytes);
+		if (!prefetching && log.isDebugEnabled())
+			log.debug("Bulk query " + key + " wasn't planned, it ran while writing the rows of the batch");
+	}
+	
+	/**
+	 * Gets the first or last <code>n</code> obs values (and their extra attributes) of the current
+	 * patient as text, with every cell separated by the separator. If the patient has fewer than
+	 * <code>n</code> obs, the missing ones are written as empty cells so the columns line up. <br/>
+	 * <br/>
+	 * The values are read directly out of an {@link ObsValueTable} so no objects are created for
+	 * the individual cells.
+	 * 
+	 * @param n the number of obs to write. -1 writes all of the patient's obs
+	 * @param conceptId the id or name of the concept
+	 * @param attrs List of extra attributes to write after each value (eg. obsDatetime, location)
+	 * @param mostRecentFirst true for the last n obs, false for the first n obs
+	 * @return the delimited values for this patient
+	 * @throws Exception
+	 */
+	public String getObsValuesAsString(Integer n, String conceptId, Object attrs, boolean mostRecentFirst)
+	        throws Exception {
+		StringBuilder sb = new StringBuilder();
+		appendObsValues(sb, n, conceptId, attrs, mostRecentFirst);
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the same cells as {@link #getObsValuesAsString(Integer, String, Object, boolean)}
+	 * straight to the given output
+	 * 
+	 * @param out where the cells are written
+	 * @see #getObsValuesAsString(Integer, String, Object, boolean)
+	 * @since 3.0.0
+	 */
+	@SuppressWarnings("unchecked")
+	public void appendObsValues(Appendable out, Integer n, String conceptId, Object attrs, boolean mostRecentFirst)
+	        throws Exception {
+		List<String> attrList = attrs == null ? new Vector<String>() : (List<String>) attrs;
+		if (n == null)
+			n = 1;
+		
+		ObsValueTable table = getObsValueTable(getConcept(conceptId), attrList, n, mostRecentFirst);
+		
+		int patientIndex = table.getPatientIndex(patientId);
+		int firstRow = patientIndex < 0 ? 0 : table.getFirstRow(patientIndex);
+		int rowCount = patientIndex < 0 ? 0 : table.getRowCount(patientIndex);
+		int rowsToWrite = n.equals(-1) ? rowCount : n;
+		int columnCount = table.getColumnCount();
+		
+		for (int r = 0; r < rowsToWrite; r++) {
+			for (int col = 0; col < columnCount; col++) {
+				if (r > 0 || col > 0)
+					cells.appendText(out, separator);
+				if (r < rowCount)
+					appendObsValue(out, table, col, firstRow + r);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the cells of one row of an obs value table, the value followed by its extra
+	 * attributes, separated by the separator
+	 * 
+	 * @param out where the cells are written
+	 * @param table the table of the row
+	 * @param row the row to write
+	 * @since 3.0.0
+	 */
+	public void appendObsRow(Appendable out, ObsValueTable table, int row) throws IOException {
+		for (int col = 0; col < table.getColumnCount(); col++) {
+			if (col > 0)
+				cells.appendText(out, separator);
+			appendObsValue(out, table, col, row);
+		}
+	}
+	
+	/**
+	 * Writes one cell of an obs value table the same way {@link #getValueAsString(Object)} would
+	 * have written the equivalent object
+	 */
+	private void appendObsValue(Appendable out, ObsValueTable table, int col, int row) throws IOException {
+		if (table.isNull(col, row))
+			return;
+		
+		switch (table.getColumnType(col)) {
+			case ObsValueTable.NUMERIC:
+				cells.appendDouble(out, table.getNumeric(col, row));
+				break;
+			case ObsValueTable.CODED:
+				int drugId = table.getDrug(col, row);
+				if (drugId != 0)
+					cells.appendText(out, names.getDrugName(drugId));
+				else
+					cells.appendText(out, names.getConceptName(table.getCoded(col, row)));
+				break;
+			case ObsValueTable.LOCATION:
+				cells.appendText(out, names.getLocationName(table.getId(col, row)));
+				break;
+			case ObsValueTable.PROVIDER:
+				cells.appendText(out, names.getProviderName(table.getId(col, row)));
+				break;
+			case ObsValueTable.DATETIME:
+				cellDate.setTime(table.getDatetime(col, row));
+				cells.appendDate(out, dateFormatShort, cellDate);
+				break;
+			default:
+				cells.appendText(out, table.getText(col, row));
+		}
+	}
+	
 	/**
 	 * Gets a patient program given a program ID or program name.
 	 * 
@@ -545,6 +1014,7 @@ public class DataExportFunctions {
 			patientIdProgramMap = programMap.get(programIdOrName);
 		} else {
 			
+			long start = System.currentTimeMillis();
 			Program program = null;
 			
 			//
@@ -560,6 +1030,7 @@ public class DataExportFunctions {
 				program = Context.getProgramWorkflowService().getProgramByName(programIdOrName);
 			}
 			patientIdProgramMap = rcs.getPatientPrograms(getPatientSetIfNotAllPatients(), program);
+			recordQuery(DataExportPrefetchPlan.queryKey("getProgram", programIdOrName), start, patientIdProgramMap);
 			programMap.put(programIdOrName, patientIdProgramMap);
 		}
 		return patientIdProgramMap.get(patientId);
@@ -574,8 +1045,11 @@ public class DataExportFunctions {
 		if (currentDrugOrderMap.containsKey(drugSetName)) {
 			patientIdDrugOrderMap = currentDrugOrderMap.get(drugSetName);
 		} else {
+			long start = System.currentTimeMillis();
 			Concept drugSet = conceptService.getConceptByName(drugSetName);
 			patientIdDrugOrderMap = rcs.getCurrentDrugOrders(getPatientSetIfNotAllPatients(), drugSet);
+			recordQuery(DataExportPrefetchPlan.queryKey("getCurrentDrugOrders", drugSetName), start,
+			    patientIdDrugOrderMap);
 			currentDrugOrderMap.put(drugSetName, patientIdDrugOrderMap);
 		}
 		return patientIdDrugOrderMap.get(patientId);
@@ -622,8 +1096,10 @@ public class DataExportFunctions {
 		if (drugOrderMap.containsKey(drugSetName)) {
 			patientIdDrugOrderMap = drugOrderMap.get(drugSetName);
 		} else {
+			long start = System.currentTimeMillis();
 			Concept drugSet = conceptService.getConceptByName(drugSetName);
 			patientIdDrugOrderMap = rcs.getDrugOrders(getPatientSetIfNotAllPatients(), drugSet);
+			recordQuery(DataExportPrefetchPlan.queryKey("getDrugOrders", drugSetName), start, patientIdDrugOrderMap);
 			drugOrderMap.put(drugSetName, patientIdDrugOrderMap);
 		}
 		return patientIdDrugOrderMap.get(patientId);
@@ -661,71 +1137,89 @@ public class DataExportFunctions {
 			patientIdRelationshipMap = relationshipMap.get(relationshipTypeName);
 		} else {
 			//log.debug("getting relationship list for type: " + relationshipTypeName);
+			long start = System.currentTimeMillis();
 			RelationshipType relType = Context.getPersonService().getRelationshipTypeByName(relationshipTypeName);
 			patientIdRelationshipMap = rcs.getRelationships(getPatientSetIfNotAllPatients(), relType);
+			recordQuery(DataExportPrefetchPlan.queryKey("getRelationships", relationshipTypeName), start,
+			    patientIdRelationshipMap);
 			relationshipMap.put(relationshipTypeName, patientIdRelationshipMap);
 		}
 		return patientIdRelationshipMap.get(patientId);
 	}
 	
+	/**
+	 * Gets the relatives of all patients of the batch in relationships of the given type, with just
+	 * the names and identifiers the relationship columns write, so none of them has to be loaded
+	 * 
+	 * @param relationshipTypeName
+	 * @return the relatives of the patients of the batch
+	 * @since 3.0.0
+	 */
+	public RelativeTable getRelativeTable(String relationshipTypeName) {
+		RelativeTable table = relativeTableMap.get(relationshipTypeName);
+		if (table == null) {
+			long start = System.currentTimeMillis();
+			table = loadRelativeTable(getPatientSetIfNotAllPatients(), relationshipTypeName);
+			recordQuery(DataExportPrefetchPlan.queryKey("getRelativeTable", relationshipTypeName), start, table);
+			relativeTableMap.put(relationshipTypeName, table);
+		}
+		return table;
+	}
+	
+	private RelativeTable loadRelativeTable(Cohort patients, String relationshipTypeName) {
+		RelationshipType relType = Context.getPersonService().getRelationshipTypeByName(relationshipTypeName);
+		return rcs.getRelativeTable(patients, relType);
+	}
+	
 	// TODO: revisit this if we change our terminology for relationships
 	public String getRelationshipNames(String relationshipTypeName) {
-		List<Relationship> rels = getRelationships(relationshipTypeName);
-		if (rels == null || rels.size() == 0) {
+		RelativeTable table = getRelativeTable(relationshipTypeName);
+		int first = table.getFirstRow(patientId);
+		if (first < 0)
 			return "";
-		} else {
-			StringBuilder sb = new StringBuilder();
-			for (Iterator<Relationship> i = rels.iterator(); i.hasNext();) {
-				Relationship r = i.next();
-				Person person = personService.getPerson(r.getPersonA().getPersonId());
-				sb.append(person.getPersonName());
-				if (i.hasNext())
-					sb.append(" ");
-			}
-			return sb.toString();
+		
+		StringBuilder sb = new StringBuilder();
+		int end = table.getEndRow(first);
+		for (int row = first; row < end; row++) {
+			sb.append(table.getName(row));
+			if (row + 1 < end)
+				sb.append(" ");
 		}
+		return sb.toString();
 	}
 	
 	// TODO: revisit this if we change our terminology for relationships
 	public String getRelationshipIds(String relationshipTypeName) {
-		List<Relationship> rels = getRelationships(relationshipTypeName);
-		if (rels == null || rels.size() == 0) {
+		RelativeTable table = getRelativeTable(relationshipTypeName);
+		int first = table.getFirstRow(patientId);
+		if (first < 0)
 			return "";
-		} else {
-			StringBuilder sb = new StringBuilder();
-			for (Iterator<Relationship> i = rels.iterator(); i.hasNext();) {
-				Relationship r = i.next();
-				Person person = personService.getPerson(r.getPersonA().getPersonId());
-				sb.append(person.getGivenName() + " " + person.getFamilyName());
-				if (i.hasNext())
-					sb.append(" ");
-			}
-			return sb.toString();
+		
+		StringBuilder sb = new StringBuilder();
+		int end = table.getEndRow(first);
+		for (int row = first; row < end; row++) {
+			sb.append(table.getGivenName(row) + " " + table.getFamilyName(row));
+			if (row + 1 < end)
+				sb.append(" ");
 		}
+		return sb.toString();
 	}
 	
 	public String getRelationshipIdentifiers(String relationshipTypeName) {
-		List<Relationship> rels = getRelationships(relationshipTypeName);
-		if (rels == null || rels.size() == 0) {
+		RelativeTable table = getRelativeTable(relationshipTypeName);
+		int first = table.getFirstRow(patientId);
+		if (first < 0)
 			return "";
-		} else {
-			StringBuilder sb = new StringBuilder();
-			for (Iterator<Relationship> i = rels.iterator(); i.hasNext();) {
-				Relationship r = i.next();
-				try {
-				    Patient p = patientService.getPatient(r.getPersonA().getPersonId());
-				    if (p != null)
-	                    sb.append("Patient " + p.getPatientIdentifier());
-				} catch (Exception ex) {
-				    
-				}
-				
-				if (i.hasNext())
-					sb.append(" ");
-				
-			}
-			return sb.toString();
+		
+		StringBuilder sb = new StringBuilder();
+		int end = table.getEndRow(first);
+		for (int row = first; row < end; row++) {
+			if (table.isPatient(row))
+				sb.append("Patient " + table.getIdentifier(row));
+			if (row + 1 < end)
+				sb.append(" ");
 		}
+		return sb.toString();
 	}
 	
 	/**
@@ -762,8 +1256,11 @@ public class DataExportFunctions {
 			patientIdAttrMap = patientAttributeMap.get(key);
 		} else {
 			//log.debug("getting patient attrs: " + key);
+			long start = System.currentTimeMillis();
 			patientIdAttrMap = rcs.getPatientAttributes(getPatientSetIfNotAllPatients(), className, property,
 			    returnAll);
+			recordQuery(DataExportPrefetchPlan.queryKey("getPatientAttr", className, property, returnAll), start,
+			    patientIdAttrMap);
 			patientAttributeMap.put(key, patientIdAttrMap);
 		}
 		
@@ -772,23 +1269,32 @@ public class DataExportFunctions {
 	
 	public Object getPersonAttribute(String attributeName, String joinClass, String joinProperty, String outputColumn,
 	                                 boolean returnAll) {
-		String key = attributeName + "." + joinClass + "." + joinProperty;
-		
-		if (returnAll)
-			key += "--all";
+		String key = getPersonAttributeKey(attributeName, joinClass, joinProperty, returnAll);
 		
 		Map<Integer, Object> personIdAttrMap;
 		if (personAttributeMap.containsKey(key)) {
 			personIdAttrMap = personAttributeMap.get(key);
 		} else {
 			//log.debug("getting patient attrs: " + key);
+			long start = System.currentTimeMillis();
 			personIdAttrMap = rcs.getPersonAttributes(getPatientSetIfNotAllPatients(), attributeName,
 			    joinClass, joinProperty, outputColumn, returnAll);
+			recordQuery(DataExportPrefetchPlan.queryKey("getPersonAttribute", attributeName, joinClass, joinProperty,
+			    outputColumn, returnAll), start, personIdAttrMap);
 			personAttributeMap.put(key, personIdAttrMap);
 		}
 		return personIdAttrMap.get(patientId);
 	}
 	
+	private String getPersonAttributeKey(String attributeName, String joinClass, String joinProperty, boolean returnAll) {
+		String key = attributeName + "." + joinClass + "." + joinProperty;
+		
+		if (returnAll)
+			key += "--all";
+		
+		return key;
+	}
+	
 	public Object getPersonAttribute(String attributeName) {
 		return getPersonAttribute(attributeName, null, null, null, false);
 	}
@@ -1072,36 +1578,9 @@ public class DataExportFunctions {
 		if (patientIdentifierMap.containsKey(typeName)) {
 			patientIdentifiers = patientIdentifierMap.get(typeName);
 		} else {
-			PatientIdentifierType type = null;
-			// First try by Integer id
-			try {
-				Integer id = Integer.valueOf(typeName);
-				type = patientService.getPatientIdentifierType(id);
-			}
-			catch (NumberFormatException ex) {}
-			// otherwise get identifier type by the given name
-			if (type == null) {
-				type = patientService.getPatientIdentifierTypeByName(typeName);
-			}
-			
-			// Get identifiers by type 
-			try {
-				// this is a 1.8+ only method.  Uses less memory and cpu than the previous
-				// one that is in the catch block
-				patientIdentifiers = rcs.getPatientIdentifierStringsByType(getPatientSetIfNotAllPatients(), type);
-			}
-			catch (NoSuchMethodError e) {
-				// this catch block is so that the module can still be installed on 1.5/1.6/1.7 and
-				// so that we don't have to bump up the 'required version' in config.xml
-				Map<Integer, PatientIdentifier> patientIdentifierObjects = rcs.getPatientIdentifiersByType(getPatientSetIfNotAllPatients(), type);
-				
-				patientIdentifiers = new HashMap<Integer, String>();
-				for (Map.Entry<Integer, PatientIdentifier> entry : patientIdentifierObjects.entrySet()) {
-					patientIdentifiers.put(entry.getKey(), entry.getValue().getIdentifier());
-				}
-			}
-			
-			log.debug("Found identifiers for patient identifier " + type + " = " + patientIdentifiers);
+			long start = System.currentTimeMillis();
+			patientIdentifiers = loadPatientIdentifiers(getPatientSetIfNotAllPatients(), typeName);
+			recordQuery(DataExportPrefetchPlan.queryKey("getPatientIdentifier", typeName), start, patientIdentifiers);
 			
 			patientIdentifierMap.put(typeName, patientIdentifiers);
 		}
@@ -1110,6 +1589,48 @@ public class DataExportFunctions {
 		
 	}
 	
+	/**
+	 * @param patients the patients to get the identifiers of, null for all
+	 * @param typeName the id or name of the identifier type
+	 * @return the identifiers of the given type by patient id
+	 */
+	private Map<Integer, String> loadPatientIdentifiers(Cohort patients, String typeName) {
+		PatientIdentifierType type = null;
+		// First try by Integer id
+		try {
+			Integer id = Integer.valueOf(typeName);
+			type = patientService.getPatientIdentifierType(id);
+		}
+		catch (NumberFormatException ex) {}
+		// otherwise get identifier type by the given name
+		if (type == null) {
+			type = patientService.getPatientIdentifierTypeByName(typeName);
+		}
+		
+		Map<Integer, String> patientIdentifiers;
+		
+		// Get identifiers by type 
+		try {
+			// this is a 1.8+ only method.  Uses less memory and cpu than the previous
+			// one that is in the catch block
+			patientIdentifiers = rcs.getPatientIdentifierStringsByType(patients, type);
+		}
+		catch (NoSuchMethodError e) {
+			// this catch block is so that the module can still be installed on 1.5/1.6/1.7 and
+			// so that we don't have to bump up the 'required version' in config.xml
+			Map<Integer, PatientIdentifier> patientIdentifierObjects = rcs.getPatientIdentifiersByType(patients, type);
+			
+			patientIdentifiers = new HashMap<Integer, String>();
+			for (Map.Entry<Integer, PatientIdentifier> entry : patientIdentifierObjects.entrySet()) {
+				patientIdentifiers.put(entry.getKey(), entry.getValue().getIdentifier());
+			}
+		}
+		
+		log.debug("Found identifiers for patient identifier " + type + " = " + patientIdentifiers);
+		
+		return patientIdentifiers;
+	}
+	
 	// /**
 	// * Get all obs for the current patient that match this
 	// * <code>obs.concept</code>=<code>concept</code> and
@@ -1174,7 +1695,6 @@ public class DataExportFunctions {
 	 * @return The calculated age
 	 */
 	public int calculateAge(Date birthdate) {
-		log.info("Calculating age " + birthdate);
 		return calculateYearsBetween(birthdate, new Date());
 	}
 	
@@ -1189,21 +1709,42 @@ public class DataExportFunctions {
 		if (d == null)
 			return "";
 		
-		if ("long".equals(type)) {
-			return dateFormatLong.format(d);
-		} else if ("ymd".equals(type))
-			return dateFormatYmd.format(d);
+		return getDateFormat(type).format(d);
+	}
+	
+	/**
+	 * Writes the given date the same way as {@link #formatDate(String, Date)} straight to the given
+	 * output
+	 * 
+	 * @param out where the date is written
+	 * @param type format to use
+	 * @param d Date to format, nothing is written if it is null
+	 * @since 3.0.0
+	 */
+	public void appendDate(Appendable out, String type, Date d) throws IOException {
+		cells.appendDate(out, getDateFormat(type), d);
+	}
+	
+	/**
+	 * @return the formatter of the given type ('short', 'long', 'ymd' or a date pattern)
+	 */
+	private DateFormat getDateFormat(String type) {
+		if ("long".equals(type))
+			return dateFormatLong;
+		else if ("ymd".equals(type))
+			return dateFormatYmd;
 		else if ("short".equals(type) || type == null)
-			return dateFormatShort.format(d);
-		else {
-			if (formats.containsKey(type))
-				return formats.get(type).format(d);
-			else {
-				DateFormat df = new SimpleDateFormat(type, locale);
-				formats.put(type, df);
-				return df.format(d);
-			}
-		}
+			return dateFormatShort;
+		else
+			return cells.getDateFormat(type);
+	}
+	
+	/**
+	 * @return the formatter writing the cells of this export
+	 * @since 3.0.0
+	 */
+	public CellFormatter getCellFormatter() {
+		return cells;
 	}
 	
 	/**
@@ -1246,12 +1787,21 @@ public class DataExportFunctions {
 		if (o == null)
 			return "";
 		
+		// the names come from the dictionary by id, so a proxy isn't loaded just for its name
+		else if (o instanceof Concept && ((Concept) o).getConceptId() != null)
+			return names.getConceptName(((Concept) o).getConceptId());
 		else if (o instanceof Concept)
 			return ((Concept) o).getName().toString();
+		else if (o instanceof Drug && ((Drug) o).getDrugId() != null)
+			return names.getDrugName(((Drug) o).getDrugId());
 		else if (o instanceof Drug)
 			return ((Drug) o).getName();
+		else if (o instanceof Location && ((Location) o).getLocationId() != null)
+			return names.getLocationName(((Location) o).getLocationId());
 		else if (o instanceof Location)
 			return ((Location) o).getName();
+		else if (o instanceof Provider && ((Provider) o).getProviderId() != null)
+			return names.getProviderName(((Provider) o).getProviderId());
 		else if (o instanceof User)
 			return ((User) o).toString();
 		else if (o instanceof EncounterType)
@@ -1282,13 +1832,15 @@ public class DataExportFunctions {
 		if (patientSet == null) {
 			// we're dealing with all patients, so get that count
 			patientCount = rcs.getCountOfPatients();
+			nextBatchIndex = 0;
+			lastBatchPatientId = null;
 		}
 		else {
 			patientCount = patientSet.getSize();
 			
 			// if we need to batch this already-defined patientSet, copy the
 			// var so that we can trim it down and execute it in batches
-			overallPatientSetMemberIds = new ArrayList<Integer>(patientSet.getMemberIds());
+			overallPatientSetMemberIds = DataExportUtil.getSortedMemberIds(patientSet);
 			
 		}
 		
@@ -1314,6 +1866,13 @@ public class DataExportFunctions {
 	 */
 	public void setPatientSetFromBatch(Integer batchIndex) {
 		
+		if (job != null) {
+			if (batchPending)
+				job.batchFinished(patientSet.getSize());
+			job.checkCancelled();
+			batchPending = true;
+		}
+		
 		// if the user defined a patientSet and its larger than BATCH_SIZE
 		if (overallPatientSetMemberIds != null) {
 			// if we're dealing with a small pre-defined patientSet, this does nothing
@@ -1333,13 +1892,169 @@ public class DataExportFunctions {
 			}
 		}
 		else {
-			// if we're dealing with all patients in the db
-			int start = batchIndex * batchSize;
-			patientSet = rcs.getPatients(start, batchSize);
+			// if we're dealing with all patients in the db, carry on after the last patient of the 
+			// previous batch. Only fall back on an offset if the batches are not asked for in order
+			if (batchIndex == 0)
+				patientSet = rcs.getPatientsAfter(null, batchSize);
+			else if (batchIndex.equals(nextBatchIndex))
+				patientSet = rcs.getPatientsAfter(lastBatchPatientId, batchSize);
+			else
+				patientSet = rcs.getPatients(batchIndex * batchSize, batchSize);
+			
+			nextBatchIndex = batchIndex + 1;
+			if (!patientSet.isEmpty())
+				lastBatchPatientId = Collections.max(patientSet.getMemberIds());
 		}
 		
 		// empty the maps so we can reclaim some memory
+		evictBatchEntities();
 		clearAllMaps();
+		
+		prefetch();
+	}
+	
+	/**
+	 * Gets ready to go through the patients with {@link #nextPatientSetBatch()}, in the order of
+	 * their ids. The current patientSet is the set of patients to export, null for all patients.
+	 */
+	public void startBatches() {
+		if (patientSet == null)
+			overallPatientSetMemberIds = null;
+		else
+			overallPatientSetMemberIds = DataExportUtil.getSortedMemberIds(patientSet);
+		
+		nextBatchStart = 0;
+		lastBatchPatientId = null;
+		batchStarted = false;
+	}
+	
+	/**
+	 * Like {@link #startBatches()}, but {@link #nextPatientSetBatch()} starts with the patients
+	 * after the given one. The patients are gone through in the order of their ids.
+	 * 
+	 * @param lastPatientId the last patient written before, null to start with the first
+	 * @see DataExportCheckpoint#getLastPatientId()
+	 */
+	public void startBatchesAfter(Integer lastPatientId) {
+		startBatches();
+		if (lastPatientId == null)
+			return;
+		
+		if (overallPatientSetMemberIds == null) {
+			lastBatchPatientId = lastPatientId;
+		} else {
+			int index = Collections.binarySearch(overallPatientSetMemberIds, lastPatientId);
+			nextBatchStart = index >= 0 ? index + 1 : -index - 1;
+		}
+	}
+	
+	/**
+	 * Sets the patientSet var to the patients following the ones of the previous batch. Unlike
+	 * {@link #setPatientSetFromBatch(Integer)} the batches don't have to be the same size, if there
+	 * is a batch sizer it picks the size of every batch.
+	 * 
+	 * @return false if there are no patients left
+	 * @see #startBatches()
+	 * @see #setBatchSizer(AdaptiveBatchSizer)
+	 */
+	public boolean nextPatientSetBatch() {
+		if (batchSizer != null) {
+			if (batchStarted)
+				batchSizer.batchFinished(patientSet.getSize());
+			batchSize = batchSizer.getBatchSize();
+		}
+		if (job != null) {
+			if (batchStarted)
+				job.batchFinished(patientSet.getSize());
+			job.checkCancelled();
+		}
+		
+		if (overallPatientSetMemberIds != null) {
+			int sizeOfPatients = overallPatientSetMemberIds.size();
+			if (nextBatchStart >= sizeOfPatients) {
+				patientSet = new Cohort();
+			}
+			else {
+				int end = Math.min(nextBatchStart + batchSize, sizeOfPatients);
+				patientSet = new Cohort(overallPatientSetMemberIds.subList(nextBatchStart, end));
+				nextBatchStart = end;
+			}
+		}
+		else {
+			patientSet = rcs.getPatientsAfter(lastBatchPatientId, batchSize);
+			if (!patientSet.isEmpty())
+				lastBatchPatientId = Collections.max(patientSet.getMemberIds());
+		}
+		
+		// empty the maps so we can reclaim some memory
+		evictBatchEntities();
+		clearAllMaps();
+		
+		batchStarted = !patientSet.isEmpty();
+		if (!batchStarted)
+			return false;
+		
+		if (batchSizer != null)
+			batchSizer.batchStarted();
+		prefetch();
+		
+		return true;
+	}
+	
+	/**
+	 * Sets the patientSet var to the given batch of patients, dropping the data of the previous
+	 * batch and fetching what the planned columns need for this one
+	 * 
+	 * @param batch the patients of the batch
+	 * @see #planPrefetch(List)
+	 */
+	public void setPatientSetBatch(Cohort batch) {
+		patientSet = batch;
+		
+		// empty the maps so we can reclaim some memory
+		evictBatchEntities();
+		clearAllMaps();
+		
+		prefetch();
+	}
+	
+	/**
+	 * @return the job generating this export, null if it isn't generated by a job
+	 */
+	public DataExportJob getJob() {
+		return job;
+	}
+	
+	/**
+	 * @param job the job generating this export. The batches set by
+	 *            {@link #nextPatientSetBatch()} and {@link #setPatientSetFromBatch(Integer)} are
+	 *            reported to it and stop the export if it was cancelled.
+	 */
+	public void setJob(DataExportJob job) {
+		this.job = job;
+	}
+	
+	/**
+	 * @return the checkpoint of the run writing the generated file, null if it isn't checkpointed
+	 */
+	public DataExportCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+	
+	/**
+	 * @param checkpoint the checkpoint to save after every batch written by
+	 *            {@link DataExportPipeline#run(DataExportFunctions, java.io.Writer)}
+	 */
+	public void setCheckpoint(DataExportCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * @param batchSizer picks the size of the batches of {@link #nextPatientSetBatch()}, null to
+	 *            always use {@link #batchSize}
+	 */
+	public void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+		this.batchSizer = batchSizer;
 	}
 	
 	/**
@@ -1352,4 +2067,193 @@ public class DataExportFunctions {
 		if (batchSize != null && batchSize > 0)
 			this.batchSize = batchSize;
 	}
+	
+	/**
+	 * @return the bulk queries every batch needs
+	 */
+	public DataExportPrefetchPlan getPrefetchPlan() {
+		return prefetchPlan;
+	}
+	
+	/**
+	 * @return the members of the cohort columns, worked out for the whole export
+	 */
+	public CohortMembershipIndex getCohortMembership() {
+		return cohortMembership;
+	}
+	
+	/**
+	 * @param cohortMembership the index of another functions class generating the same export
+	 */
+	public void setCohortMembership(CohortMembershipIndex cohortMembership) {
+		this.cohortMembership = cohortMembership;
+	}
+	
+	/**
+	 * @return the names of the concepts, drugs, locations and providers written so far
+	 */
+	public DataExportNameDictionary getNameDictionary() {
+		return names;
+	}
+	
+	/**
+	 * @param names the dictionary of another functions class generating the same export
+	 */
+	public void setNameDictionary(DataExportNameDictionary names) {
+		this.names = names;
+	}
+	
+	/**
+	 * @param prefetchPlan the plan worked out by another functions class for the same export
+	 * @see #planPrefetch(List)
+	 */
+	public void setPrefetchPlan(DataExportPrefetchPlan prefetchPlan) {
+		this.prefetchPlan = prefetchPlan;
+	}
+	
+	/**
+	 * @return where the time of the export goes: the bulk queries, the columns and the batches
+	 */
+	public DataExportProfile getProfile() {
+		return profile;
+	}
+	
+	/**
+	 * @param profile the profile of another functions class generating the same export
+	 */
+	public void setProfile(DataExportProfile profile) {
+		this.profile = profile;
+	}
+	
+	/**
+	 * @return how long the queries planned for the current batch took
+	 */
+	public long getPrefetchMillis() {
+		return prefetchMillis;
+	}
+	
+	public int getPrefetchThreads() {
+		return prefetchThreads;
+	}
+	
+	/**
+	 * @param prefetchThreads the number of bulk queries run at the same time at the start of every
+	 *            batch, 1 to run them one after the other on the calling thread
+	 */
+	public void setPrefetchThreads(int prefetchThreads) {
+		this.prefetchThreads = Math.max(1, prefetchThreads);
+	}
+	
+	/**
+	 * One of the prefetch queries that only return values: the obs of a group of concept columns
+	 * or the identifiers, person attributes or relatives of a {@link Need}. It can run on a prefetch thread,
+	 * its result is only put in the maps of the batch by {@link #apply()} on the thread writing
+	 * the rows.
+	 */
+	private class PrefetchQuery implements Callable<PrefetchQuery> {
+		
+		private Need need;
+		
+		private List<ObsColumn> obsColumns;
+		
+		private Cohort patients;
+		
+		// set when the query runs on a prefetch thread, which needs a session of its own
+		private DataExportThreadContext threadContext = null;
+		
+		private Object result;
+		
+		public PrefetchQuery(Need need, List<ObsColumn> obsColumns, Cohort patients) {
+			this.need = need;
+			this.obsColumns = obsColumns;
+			this.patients = patients;
+		}
+		
+		public PrefetchQuery call() throws Exception {
+			if (threadContext != null) {
+				// runs this again in the context of the export, this time as the query itself
+				DataExportThreadContext context = threadContext;
+				threadContext = null;
+				return context.call(this);
+			}
+			
+			long start = System.currentTimeMillis();
+			int rows;
+			long bytes = 0;
+			if (need == null) {
+				// fetch enough obs per patient for the widest column, or all of them if one wants all
+				Integer limit = 0;
+				List<Concept> concepts = new ArrayList<Concept>();
+				for (ObsColumn planned : obsColumns) {
+					if (limit != null)
+						limit = planned.getSize() < 1 ? null : Math.max(limit, planned.getSize());
+					if (!concepts.contains(planned.getConcept()))
+						concepts.add(planned.getConcept());
+				}
+				
+				ObsColumn first = obsColumns.get(0);
+				Map<Integer, ObsValueTable> tables = rcs.getObservationValueTables(patients, concepts,
+				    first.getAttrs(), limit, first.isMostRecentFirst());
+				rows = 0;
+				for (ObsValueTable table : tables.values()) {
+					rows += table.getRowCount();
+					bytes += DataExportProfile.estimateBytes(table);
+				}
+				result = tables;
+			} else if (need.getMethod().equals("getRelativeTable")) {
+				RelativeTable table = loadRelativeTable(patients, need.getString(0));
+				rows = table.getRowCount();
+				bytes = DataExportProfile.estimateBytes(table);
+				result = table;
+			} else if (need.getMethod().equals("getPatientIdentifier")) {
+				Map<Integer, String> identifiers = loadPatientIdentifiers(patients, need.getString(0));
+				rows = identifiers.size();
+				bytes = DataExportProfile.estimateBytes(identifiers);
+				result = identifiers;
+			} else {
+				Map<Integer, Object> attributes = rcs.getPersonAttributes(patients, need.getString(0), need
+				        .getString(1), need.getString(2), need.getString(3), (Boolean) need.getArgs().get(4));
+				rows = attributes.size();
+				bytes = DataExportProfile.estimateBytes(attributes);
+				result = attributes;
+			}
+			profile.recordQuery(toString(), System.currentTimeMillis() - start, rows, bytes);
+			return this;
+		}
+		
+		/**
+		 * Puts the result of the query in the maps of the batch
+		 */
+		@SuppressWarnings("unchecked")
+		public void apply() {
+			if (need == null) {
+				Map<Integer, ObsValueTable> tables = (Map<Integer, ObsValueTable>) result;
+				for (ObsColumn planned : obsColumns) {
+					ObsValueTable table = tables.get(planned.getConcept().getConceptId());
+					if (table != null)
+						obsValueTableMap.put(getObsValueTableKey(planned.getConcept(), planned.getAttrs(), planned
+						        .getSize(), planned.isMostRecentFirst()), table);
+				}
+			} else if (need.getMethod().equals("getRelativeTable")) {
+				relativeTableMap.put(need.getString(0), (RelativeTable) result);
+			} else if (need.getMethod().equals("getPatientIdentifier")) {
+				patientIdentifierMap.put(need.getString(0), (Map<Integer, String>) result);
+			} else {
+				personAttributeMap.put(getPersonAttributeKey(need.getString(0), need.getString(1), need.getString(2),
+				    (Boolean) need.getArgs().get(4)), (Map<Integer, Object>) result);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			if (need != null)
+				return need.toString();
+			
+			List<Integer> conceptIds = new ArrayList<Integer>();
+			for (ObsColumn planned : obsColumns)
+				conceptIds.add(planned.getConcept().getConceptId());
+			return DataExportPrefetchPlan.queryKey("getObservationValueTables", conceptIds, obsColumns.get(0)
+			        .getAttrs(), obsColumns.get(0).isMostRecentFirst());
+		}
+	}
 }
@@ -0,0 +1,316 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One run of a data export queued with the {@link DataExportJobManager}, with its progress. <br/>
+ * <br/>
+ * The export reports every batch of patients it finishes to its job and checks between batches
+ * whether the job was cancelled. Jobs with a higher priority are started first, jobs of the same
+ * priority in the order they were queued.
+ *
+ * @since 3.0.0
+ */
+public class DataExportJob implements Comparable<DataExportJob> {
+	
+	private static final Log log = LogFactory.getLog(DataExportJob.class);
+	
+	public enum Status {
+		QUEUED, RUNNING, FINISHED, FAILED, CANCELLED
+	}
+	
+	private static final AtomicInteger nextJobId = new AtomicInteger(1);
+	
+	private int jobId;
+	
+	private Integer dataExportId;
+	
+	private String dataExportName;
+	
+	private int priority;
+	
+	private boolean incremental;
+	
+	private int fullRegenerationDays;
+	
+	private volatile Status status = Status.QUEUED;
+	
+	private Date queuedDate = new Date();
+	
+	private volatile Date startDate = null;
+	
+	private volatile Date endDate = null;
+	
+	private volatile String error = null;
+	
+	private volatile boolean cancelRequested = false;
+	
+	private AtomicInteger batchesDone = new AtomicInteger(0);
+	
+	private AtomicInteger patientsDone = new AtomicInteger(0);
+	
+	private volatile int patientsTotal = -1;
+	
+	private CountDownLatch done = new CountDownLatch(1);
+	
+	private volatile Writer streamWriter = null;
+	
+	/**
+	 * @param dataExportId the export to generate
+	 * @param dataExportName the name of the export
+	 * @param priority jobs with a higher priority are started first
+	 * @param incremental true to only regenerate the rows of changed patients
+	 * @param fullRegenerationDays see
+	 *            {@link DataExportUtil#generateIncrementalExport(org.openmrs.reporting.export.DataExportReportObject, org.openmrs.report.EvaluationContext, int)}
+	 */
+	public DataExportJob(Integer dataExportId, String dataExportName, int priority, boolean incremental,
+	    int fullRegenerationDays) {
+		this.jobId = nextJobId.getAndIncrement();
+		this.dataExportId = dataExportId;
+		this.dataExportName = dataExportName;
+		this.priority = priority;
+		this.incremental = incremental;
+		this.fullRegenerationDays = fullRegenerationDays;
+	}
+	
+	/**
+	 * Called by the export after every batch of patients
+	 *
+	 * @param patients the number of patients in the batch
+	 */
+	public void batchFinished(int patients) {
+		batchesDone.incrementAndGet();
+		patientsDone.addAndGet(patients);
+		flushStream();
+	}
+	
+	/**
+	 * Writes the given characters to the stream writer, if there is one
+	 *
+	 * @see #getStreamWriter()
+	 */
+	void stream(char[] cbuf, int off, int len) {
+		Writer stream = streamWriter;
+		if (stream == null)
+			return;
+		
+		try {
+			stream.write(cbuf, off, len);
+		}
+		catch (IOException e) {
+			streamFailed(e);
+		}
+	}
+	
+	/**
+	 * Sends what was written to the stream writer on, so a download gets the rows of every batch
+	 * as soon as the batch is done
+	 *
+	 * @see #getStreamWriter()
+	 */
+	void flushStream() {
+		Writer stream = streamWriter;
+		if (stream == null)
+			return;
+		
+		try {
+			stream.flush();
+		}
+		catch (IOException e) {
+			streamFailed(e);
+		}
+	}
+	
+	/**
+	 * Stops writing to the stream writer, like when the client of the download went away. The
+	 * export itself goes on, the generated file is still of use.
+	 */
+	private void streamFailed(IOException e) {
+		streamWriter = null;
+		log.info("Stopped streaming data export " + dataExportId + " of job " + jobId + ": " + e);
+	}
+	
+	/**
+	 * Called by the export before every batch of patients
+	 *
+	 * @throws DataExportCancelledException if the job was cancelled
+	 */
+	public void checkCancelled() throws DataExportCancelledException {
+		if (cancelRequested)
+			throw new DataExportCancelledException("Generating data export " + dataExportId + " was cancelled");
+	}
+	
+	/**
+	 * Asks the export to stop at the end of the current batch
+	 */
+	public void cancel() {
+		cancelRequested = true;
+	}
+	
+	/**
+	 * Waits until the job is finished, failed or cancelled
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+	
+	void started() {
+		startDate = new Date();
+		status = Status.RUNNING;
+	}
+	
+	void ended(Status status, String error) {
+		this.endDate = new Date();
+		this.error = error;
+		this.status = status;
+		done.countDown();
+	}
+	
+	/**
+	 * @return the rows written per second so far, counting one row per patient
+	 */
+	public double getRowsPerSecond() {
+		if (startDate == null)
+			return 0;
+		
+		long elapsed = (endDate == null ? System.currentTimeMillis() : endDate.getTime()) - startDate.getTime();
+		return elapsed <= 0 ? 0 : patientsDone.get() * 1000.0 / elapsed;
+	}
+	
+	/**
+	 * @return the estimated number of seconds until the job is finished, or null if that isn't
+	 *         known yet
+	 */
+	public Long getSecondsRemaining() {
+		double rowsPerSecond = getRowsPerSecond();
+		if (status != Status.RUNNING || patientsTotal < 0 || rowsPerSecond <= 0)
+			return null;
+		
+		return (long) (Math.max(0, patientsTotal - patientsDone.get()) / rowsPerSecond);
+	}
+	
+	/**
+	 * @return true if the job finished, failed or was cancelled
+	 */
+	public boolean isEnded() {
+		return status == Status.FINISHED || status == Status.FAILED || status == Status.CANCELLED;
+	}
+	
+	/**
+	 * Higher priorities first, then the order the jobs were queued in
+	 *
+	 * @see java.lang.Comparable#compareTo(java.lang.Object)
+	 */
+	public int compareTo(DataExportJob other) {
+		if (priority != other.priority)
+			return priority > other.priority ? -1 : 1;
+		return jobId < other.jobId ? -1 : (jobId == other.jobId ? 0 : 1);
+	}
+	
+	public int getJobId() {
+		return jobId;
+	}
+	
+	public Integer getDataExportId() {
+		return dataExportId;
+	}
+	
+	public String getDataExportName() {
+		return dataExportName;
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	public boolean isIncremental() {
+		return incremental;
+	}
+	
+	public int getFullRegenerationDays() {
+		return fullRegenerationDays;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public Date getQueuedDate() {
+		return queuedDate;
+	}
+	
+	public Date getStartDate() {
+		return startDate;
+	}
+	
+	public Date getEndDate() {
+		return endDate;
+	}
+	
+	/**
+	 * @return the message of the error the job failed with
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+	
+	public int getBatchesDone() {
+		return batchesDone.get();
+	}
+	
+	public int getPatientsDone() {
+		return patientsDone.get();
+	}
+	
+	/**
+	 * @return the number of patients in the export, -1 until it is known
+	 */
+	public int getPatientsTotal() {
+		return patientsTotal;
+	}
+	
+	public void setPatientsTotal(int patientsTotal) {
+		this.patientsTotal = patientsTotal;
+	}
+	
+	/**
+	 * @return the writer the export is also written to while it is generated, like the response of
+	 *         a download waiting for it. Null if there is none, or once writing to it failed.
+	 * @see DataExportJobManager#queueStreamed(org.openmrs.reporting.export.DataExportReportObject,
+	 *      org.openmrs.report.EvaluationContext, int, Writer)
+	 */
+	public Writer getStreamWriter() {
+		return streamWriter;
+	}
+	
+	void setStreamWriter(Writer streamWriter) {
+		this.streamWriter = streamWriter;
+	}
+
+}
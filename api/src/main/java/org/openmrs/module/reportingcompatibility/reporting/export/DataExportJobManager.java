@@ -0,0 +1,361 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.report.EvaluationContext;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.DataExportReportObject;
+
+/**
+ * Generates data exports in the background. <br/>
+ * <br/>
+ * Queued exports are run on a pool of at most
+ * {@link ReportingCompatibilityConstants#MAX_JOBS_GP} threads, the jobs with the highest priority
+ * first. An export that is already queued or running isn't queued again, the job already there is
+ * returned instead. Every job runs in a daemon thread of its own, with its own session, in the
+ * locale of the user who queued it. Nothing of the request that queued it is used once it runs.
+ * <br/>
+ * <br/>
+ * The last {@link #MAX_ENDED_JOBS} jobs that ended are kept so their outcome can be shown.
+ *
+ * @see DataExportJob
+ * @since 3.0.0
+ */
+public class DataExportJobManager {
+	
+	private static final Log log = LogFactory.getLog(DataExportJobManager.class);
+	
+	public static final int MAX_ENDED_JOBS = 50;
+	
+	private static ThreadPoolExecutor executor = null;
+	
+	private static DaemonToken daemonToken = null;
+	
+	// most recently queued first
+	private static LinkedList<DataExportJob> jobs = new LinkedList<DataExportJob>();
+	
+	/**
+	 * Queues the given export to be generated in the background
+	 *
+	 * @param dataExport the export to generate
+	 * @param context the context to generate the patients of the export in
+	 * @param priority jobs with a higher priority are started first
+	 * @param incremental true to only regenerate the rows of changed patients
+	 * @param fullRegenerationDays see
+	 *            {@link DataExportUtil#generateIncrementalExport(DataExportReportObject, EvaluationContext, int)}
+	 * @return the new job, or the job of the export that is already queued or running
+	 */
+	public static DataExportJob queue(DataExportReportObject dataExport, EvaluationContext context, int priority,
+	                                  boolean incremental, int fullRegenerationDays) {
+		synchronized (jobs) {
+			DataExportJob active = getActiveJob(dataExport.getReportObjectId());
+			if (active != null)
+				return active;
+			
+			DataExportJob job = new DataExportJob(dataExport.getReportObjectId(), dataExport.getName(), priority,
+			        incremental, fullRegenerationDays);
+			jobs.addFirst(job);
+			removeEndedJobs();
+			
+			getExecutor().execute(new JobRunner(job, context, Context.getLocale()));
+			return job;
+		}
+	}
+	
+	/**
+	 * Queues the given export to be generated in the background like
+	 * {@link #queue(DataExportReportObject, EvaluationContext, int, boolean, int)}, writing it to
+	 * the given writer as well while it is generated. The writer is flushed after every batch and
+	 * left open. If the export is queued already, but not started, that job streams to the writer.
+	 * 
+	 * @param dataExport the export to generate in full
+	 * @param context the context to generate the patients of the export in
+	 * @param priority jobs with a higher priority are started first
+	 * @param out where the export is written to as well, like the response of a download
+	 * @return the job writing to <code>out</code>, or null if the export is running already or
+	 *         another writer waits for it, then nothing is written to <code>out</code>
+	 * @see DataExportJob#getStreamWriter()
+	 */
+	public static DataExportJob queueStreamed(DataExportReportObject dataExport, EvaluationContext context,
+	                                          int priority, Writer out) {
+		synchronized (jobs) {
+			// a job only starts while holding the lock, so a queued job streams from its first row
+			DataExportJob active = getActiveJob(dataExport.getReportObjectId());
+			if (active != null) {
+				if (active.getStatus() != DataExportJob.Status.QUEUED || active.isIncremental()
+				        || active.getStreamWriter() != null)
+					return null;
+				active.setStreamWriter(out);
+				return active;
+			}
+			
+			DataExportJob job = new DataExportJob(dataExport.getReportObjectId(), dataExport.getName(), priority, false,
+			        -1);
+			job.setStreamWriter(out);
+			jobs.addFirst(job);
+			removeEndedJobs();
+			
+			getExecutor().execute(new JobRunner(job, context, Context.getLocale()));
+			return job;
+		}
+	}
+	
+	/**
+	 * @return all queued and running jobs and the last ones that ended, most recently queued first
+	 */
+	public static List<DataExportJob> getJobs() {
+		synchronized (jobs) {
+			return new ArrayList<DataExportJob>(jobs);
+		}
+	}
+	
+	/**
+	 * @param dataExportId
+	 * @return the most recently queued job of the given export, null if there is none
+	 */
+	public static DataExportJob getLatestJob(Integer dataExportId) {
+		synchronized (jobs) {
+			for (DataExportJob job : jobs) {
+				if (job.getDataExportId().equals(dataExportId))
+					return job;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Cancels the given job. A queued job is never started, a running job stops at the end of its
+	 * current batch.
+	 *
+	 * @param jobId
+	 * @return false if there is no such job or it already ended
+	 */
+	public static boolean cancel(int jobId) {
+		synchronized (jobs) {
+			for (DataExportJob job : jobs) {
+				if (job.getJobId() == jobId) {
+					if (job.isEnded())
+						return false;
+					job.cancel();
+					// the job runner skips jobs that were cancelled while queued
+					if (job.getStatus() == DataExportJob.Status.QUEUED)
+						job.ended(DataExportJob.Status.CANCELLED, null);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Cancels all jobs and stops the worker threads
+	 */
+	public static void shutdown() {
+		synchronized (jobs) {
+			for (DataExportJob job : jobs) {
+				if (!job.isEnded())
+					cancel(job.getJobId());
+			}
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+		}
+	}
+	
+	/**
+	 * @param token the token the module was given to run code as the daemon
+	 * @see org.openmrs.module.reportingcompatibility.ModuleActivator#setDaemonToken(DaemonToken)
+	 */
+	public static void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
+	}
+	
+	/**
+	 * @return the token to run code as the daemon with, null until the module is started
+	 */
+	public static DaemonToken getDaemonToken() {
+		return daemonToken;
+	}
+	
+	/**
+	 * @return the job of the given export that is queued or running
+	 */
+	private static DataExportJob getActiveJob(Integer dataExportId) {
+		for (DataExportJob job : jobs) {
+			if (job.getDataExportId().equals(dataExportId) && !job.isEnded())
+				return job;
+		}
+		return null;
+	}
+	
+	/**
+	 * Forgets the oldest jobs that ended once there are more than {@link #MAX_ENDED_JOBS}
+	 */
+	private static void removeEndedJobs() {
+		int ended = 0;
+		for (Iterator<DataExportJob> i = jobs.iterator(); i.hasNext();) {
+			if (i.next().isEnded() && ++ended > MAX_ENDED_JOBS)
+				i.remove();
+		}
+	}
+	
+	/**
+	 * @return the pool running the jobs, sized to the current value of the global property
+	 */
+	static ThreadPoolExecutor getExecutor() {
+		int threads = ReportingCompatibilityConstants.MAX_JOBS_GP_DEFAULT;
+		try {
+			threads = Integer.parseInt(Context.getAdministrationService().getGlobalProperty(
+			    ReportingCompatibilityConstants.MAX_JOBS_GP));
+		}
+		catch (Exception e) {
+			// Do nothing, just use the default
+		}
+		threads = Math.max(1, threads);
+		
+		if (executor == null) {
+			ThreadFactory threadFactory = new ThreadFactory() {
+				
+				private int count = 0;
+				
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DataExportJob-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+			// execute() queues the runners themselves, so the queue can order them by priority
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			        new PriorityBlockingQueue<Runnable>(), threadFactory);
+			executor.allowCoreThreadTimeOut(true);
+		} else if (executor.getMaximumPoolSize() != threads) {
+			// the core size has to stay at or below the max size at every step
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * Generates the export of a job. Ordered like its job so the queue of the pool starts the jobs
+	 * with the highest priority first.
+	 */
+	private static class JobRunner implements Runnable, Comparable<JobRunner> {
+		
+		private DataExportJob job;
+		
+		private EvaluationContext context;
+		
+		private Locale locale;
+		
+		public JobRunner(DataExportJob job, EvaluationContext context, Locale locale) {
+			this.job = job;
+			this.context = context;
+			this.locale = locale;
+		}
+		
+		public int compareTo(JobRunner other) {
+			return job.compareTo(other.job);
+		}
+		
+		public void run() {
+			synchronized (jobs) {
+				// cancelled while it was queued
+				if (job.getStatus() != DataExportJob.Status.QUEUED)
+					return;
+				job.started();
+			}
+			
+			try {
+				new DataExportThreadContext(null, locale).call(new Callable<Object>() {
+					
+					public Object call() throws Exception {
+						generate();
+						return null;
+					}
+				});
+				
+				job.ended(job.isCancelRequested() ? DataExportJob.Status.CANCELLED : DataExportJob.Status.FINISHED, null);
+			}
+			catch (DataExportCancelledException e) {
+				job.ended(DataExportJob.Status.CANCELLED, null);
+			}
+			catch (Throwable t) {
+				log.error("Error while generating data export " + job.getDataExportId(), t);
+				job.ended(DataExportJob.Status.FAILED, t.toString());
+			}
+			
+			if (log.isDebugEnabled())
+				log.debug("Data export job " + job.getJobId() + " of export " + job.getDataExportId() + " "
+				        + job.getStatus() + " after " + job.getPatientsDone() + " patients");
+		}
+		
+		/**
+		 * Generates the export of the job
+		 * 
+		 * @throws APIException if the export failed
+		 */
+		private void generate() throws Exception {
+			ReportObjectService rs = Context.getService(ReportObjectService.class);
+			DataExportReportObject dataExport = (DataExportReportObject) rs.getReportObject(job.getDataExportId());
+			
+			if (job.isIncremental()) {
+				DataExportUtil.generateIncrementalExport(dataExport, context, job.getFullRegenerationDays(), job);
+				return;
+			}
+			
+			DataExportFunctions functions = new DataExportFunctions();
+			functions.setJob(job);
+			DataExportUtil.generateExport(dataExport, null, functions, context);
+			
+			// errors in the rows, like the job being cancelled, are written to the file
+			// rather than thrown. A partial file is no use to anyone.
+			if (job.isCancelRequested()) {
+				File file = DataExportUtil.getGeneratedFile(dataExport);
+				file.delete();
+				DataExportRowStore.getStoreFile(file).delete();
+				DataExportProfile.getProfileFile(file).delete();
+			} else if (functions.getProfile().getError() != null) {
+				// the file is kept, it shows the error and a checkpoint may resume from it
+				throw new APIException(functions.getProfile().getError());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Location;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+
+/**
+ * The names of the concepts, drugs, locations and providers written by one data export. The obs
+ * value tables only hold their ids, so before the rows of a batch are written all ids of its
+ * tables that aren't known yet are looked up with one query per type. The names are kept for the
+ * rest of the export. <br/>
+ * <br/>
+ * A dictionary can be shared by the threads of a {@link ParallelDataExportRunner}.
+ *
+ * @see ReportingCompatibilityService#getNames(Class, Collection, Locale)
+ * @since 3.0.0
+ */
+public class DataExportNameDictionary {
+	
+	private Locale locale;
+	
+	// the names of unknown ids are kept as empty strings so they aren't looked up again
+	private Map<Integer, String> conceptNames = new ConcurrentHashMap<Integer, String>();
+	
+	private Map<Integer, String> drugNames = new ConcurrentHashMap<Integer, String>();
+	
+	private Map<Integer, String> locationNames = new ConcurrentHashMap<Integer, String>();
+	
+	private Map<Integer, String> providerNames = new ConcurrentHashMap<Integer, String>();
+	
+	/**
+	 * @param locale the locale to prefer the concept names of
+	 */
+	public DataExportNameDictionary(Locale locale) {
+		this.locale = locale;
+	}
+	
+	/**
+	 * Looks up the names of all ids in the given tables that aren't known yet
+	 *
+	 * @param tables the obs value tables of a batch
+	 * @return the number of names looked up
+	 */
+	public int preload(Collection<ObsValueTable> tables) {
+		Set<Integer> conceptIds = new HashSet<Integer>();
+		Set<Integer> drugIds = new HashSet<Integer>();
+		Set<Integer> locationIds = new HashSet<Integer>();
+		Set<Integer> providerIds = new HashSet<Integer>();
+		
+		for (ObsValueTable table : tables) {
+			for (int col = 0; col < table.getColumnCount(); col++) {
+				byte type = table.getColumnType(col);
+				for (int row = 0; row < table.getRowCount(); row++) {
+					if (type == ObsValueTable.CODED) {
+						int drugId = table.getDrug(col, row);
+						if (drugId != 0)
+							addUnknown(drugIds, drugNames, drugId);
+						else
+							addUnknown(conceptIds, conceptNames, table.getCoded(col, row));
+					} else if (type == ObsValueTable.LOCATION) {
+						addUnknown(locationIds, locationNames, table.getId(col, row));
+					} else if (type == ObsValueTable.PROVIDER) {
+						addUnknown(providerIds, providerNames, table.getId(col, row));
+					} else {
+						break;
+					}
+				}
+			}
+		}
+		
+		load(Concept.class, conceptIds, conceptNames);
+		load(Drug.class, drugIds, drugNames);
+		load(Location.class, locationIds, locationNames);
+		load(Provider.class, providerIds, providerNames);
+		return conceptIds.size() + drugIds.size() + locationIds.size() + providerIds.size();
+	}
+	
+	private void addUnknown(Set<Integer> ids, Map<Integer, String> names, int id) {
+		if (id != 0 && !names.containsKey(id))
+			ids.add(id);
+	}
+	
+	/**
+	 * @return the name of the concept in the locale of the export, empty if there is no such concept
+	 */
+	public String getConceptName(Integer conceptId) {
+		return getName(Concept.class, conceptId, conceptNames);
+	}
+	
+	/**
+	 * @return the name of the drug, empty if there is no such drug
+	 */
+	public String getDrugName(Integer drugId) {
+		return getName(Drug.class, drugId, drugNames);
+	}
+	
+	/**
+	 * @return the name of the location, empty if there is no such location
+	 */
+	public String getLocationName(Integer locationId) {
+		return getName(Location.class, locationId, locationNames);
+	}
+	
+	/**
+	 * @return the name of the provider, empty if there is no such provider or it has no name
+	 */
+	public String getProviderName(Integer providerId) {
+		return getName(Provider.class, providerId, providerNames);
+	}
+	
+	private String getName(Class<?> type, Integer id, Map<Integer, String> names) {
+		if (id == null)
+			return "";
+		
+		String name = names.get(id);
+		if (name == null) {
+			// not in any table of a batch, a column got it some other way
+			load(type, Collections.singleton(id), names);
+			name = names.get(id);
+		}
+		return name;
+	}
+	
+	private void load(Class<?> type, Set<Integer> ids, Map<Integer, String> names) {
+		if (ids.isEmpty())
+			return;
+		
+		Map<Integer, String> loaded = Context.getService(ReportingCompatibilityService.class).getNames(type, ids,
+		    locale);
+		for (Integer id : ids) {
+			String name = loaded.get(id);
+			names.put(id, name == null ? "" : name);
+		}
+	}
+
+}
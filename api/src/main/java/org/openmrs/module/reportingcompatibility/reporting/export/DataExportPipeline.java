@@ -0,0 +1,470 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.openmrs.reporting.export.CalculatedColumn;
+import org.openmrs.reporting.export.CohortColumn;
+import org.openmrs.reporting.export.ConceptColumn;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.reporting.export.ExportColumn;
+import org.openmrs.reporting.export.SimpleColumn;
+
+/**
+ * Runs a {@link DataExportReportObject} without interpreting its velocity template for every
+ * patient. The columns are compiled once into a list of {@link ColumnWriter}s that call the
+ * {@link DataExportFunctions} directly and write their cells through its
+ * {@link DataExportFunctions#getCellFormatter() cell formatter}. <br/>
+ * <br/>
+ * Velocity is still used for the header line, for calculated columns and for any simple column
+ * expression that isn't one of the common ones recognized here. Those expressions are parsed once
+ * by the {@link DataExportTemplateCache} and then merged for each patient. <br/>
+ * <br/>
+ * The time spent in each column and the characters it writes are added to the
+ * {@link DataExportProfile} of the functions class at the end of every batch.
+ *
+ * @see DataExportReportObject#generateTemplate()
+ * @since 3.0.0
+ */
+public class DataExportPipeline {
+	
+	private static final Log log = LogFactory.getLog(DataExportPipeline.class);
+	
+	// $!{fn.patientId}
+	private static final Pattern PATIENT_ID = Pattern.compile("\\$!\\{fn\\.patientId\\}");
+	
+	// $!{fn.getPatientAttr('Person', 'gender')}
+	private static final Pattern PATIENT_ATTR = Pattern
+	        .compile("\\$!\\{fn\\.getPatientAttr\\('(\\w+)', ?'(\\w+)'\\)\\}");
+	
+	// $!{fn.formatDate('short', $fn.getPatientAttr('Person', 'birthdate'))}
+	private static final Pattern FORMATTED_PATIENT_ATTR = Pattern
+	        .compile("\\$!\\{fn\\.formatDate\\('([^']*)', ?\\$fn\\.getPatientAttr\\('(\\w+)', ?'(\\w+)'\\)\\)\\}");
+	
+	// $!{fn.calculateAge($fn.getPatientAttr('Person', 'birthdate'))}
+	private static final Pattern AGE = Pattern
+	        .compile("\\$!\\{fn\\.calculateAge\\(\\$fn\\.getPatientAttr\\('Person', ?'birthdate'\\)\\)\\}");
+	
+	// $!{fn.getPatientIdentifier('Old Identification Number')} and the like
+	private static final Pattern SINGLE_ARGUMENT = Pattern
+	        .compile("\\$!\\{fn\\.(getPatientIdentifier|getPersonAttribute|getRelationshipNames|getRelationshipIds|getRelationshipIdentifiers|getCurrentDrugNames|getCurrentFullDrugOrders)\\(['\"]([^'\"$#]*)['\"]\\)\\}");
+	
+	private VelocityContext velocityContext;
+	
+	private Template headerTemplate;
+	
+	private List<ColumnWriter> writers = new ArrayList<ColumnWriter>();
+	
+	private List<String> columnNames = new ArrayList<String>();
+	
+	// the time spent in and the characters written by each column since the last batch ended
+	private long[] columnNanos;
+	
+	private long[] columnChars;
+	
+	private int rows = 0;
+	
+	private CountingWriter counter = new CountingWriter();
+	
+	/**
+	 * Compiles the columns of the given export
+	 *
+	 * @param dataExport the export to compile
+	 * @param velocityContext the context the velocity parts are evaluated in, holding at least
+	 *            <code>fn</code>
+	 * @throws Exception if a column can't be compiled
+	 */
+	public DataExportPipeline(DataExportReportObject dataExport, VelocityContext velocityContext) throws Exception {
+		this.velocityContext = velocityContext;
+		
+		Integer exportId = dataExport.getReportObjectId();
+		this.headerTemplate = DataExportTemplateCache.getTemplate(exportId, "header", dataExport.generateHeaderTemplate());
+		
+		List<ExportColumn> columns = dataExport.getColumns();
+		for (int i = 0; i < columns.size(); i++) {
+			writers.add(compile(columns.get(i), exportId, "column_" + i));
+			columnNames.add(columns.get(i).getColumnName());
+		}
+		columnNanos = new long[writers.size()];
+		columnChars = new long[writers.size()];
+		
+		if (log.isDebugEnabled())
+			log.debug("Compiled " + writers.size() + " columns of data export: " + dataExport.getName());
+	}
+	
+	/**
+	 * Writes the header line and a line for every patient of <code>fn</code>, going through the
+	 * patients batch by batch. If <code>fn</code> has a checkpoint it is saved after every batch, and
+	 * a resumed run goes on with the patients after the checkpoint.
+	 *
+	 * @param fn the functions class to get the data from
+	 * @param out where the export is written to
+	 * @throws Exception
+	 * @see DataExportFunctions#getCheckpoint()
+	 */
+	public void run(DataExportFunctions fn, Writer out) throws Exception {
+		DataExportCheckpoint checkpoint = fn.getCheckpoint();
+		
+		int batchIndex = 0;
+		if (checkpoint != null && checkpoint.isResumed()) {
+			// the header and the rows up to the checkpoint are in the file already
+			batchIndex = checkpoint.getBatchIndex() + 1;
+			fn.startBatchesAfter(checkpoint.getLastPatientId());
+			if (fn.getJob() != null)
+				fn.getJob().batchFinished(checkpoint.getPatientsDone());
+		} else {
+			writeHeader(out);
+			fn.startBatches();
+		}
+		
+		while (fn.nextPatientSetBatch()) {
+			writeRows(fn, batchIndex, out);
+			if (checkpoint != null)
+				checkpoint.batchWritten(batchIndex, fn.getPatientSet());
+			batchIndex++;
+		}
+	}
+	
+	/**
+	 * Writes the line with the column names
+	 * 
+	 * @param out where the header is written to
+	 * @throws Exception
+	 */
+	public void writeHeader(Writer out) throws Exception {
+		headerTemplate.merge(velocityContext, out);
+	}
+	
+	/**
+	 * Writes a line for every patient in the current batch of <code>fn</code>
+	 * 
+	 * @param fn the functions class, already set to the batch to write
+	 * @param batchIndex the index of the batch, available to velocity as <code>$batchIndex</code>
+	 * @param out where the lines are written to
+	 * @throws Exception
+	 */
+	public void writeRows(DataExportFunctions fn, int batchIndex, Writer out) throws Exception {
+		velocityContext.put("batchIndex", batchIndex);
+		
+		long start = System.currentTimeMillis();
+		for (Integer patientId : fn.getPatientSet().getMemberIds())
+			writeRow(fn, patientId, out);
+		endBatch(fn, batchIndex, fn.getPatientSet().getSize(), System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Adds the time spent in each column since the previous batch and the times of the batch to
+	 * the profile of <code>fn</code>
+	 * 
+	 * @param fn the functions class, still set to the batch
+	 * @param batchIndex the index of the batch
+	 * @param patients the number of patients in the batch
+	 * @param writeMillis how long writing the rows of the batch took
+	 * @see DataExportFunctions#getProfile()
+	 */
+	public void endBatch(DataExportFunctions fn, int batchIndex, int patients, long writeMillis) {
+		DataExportProfile profile = fn.getProfile();
+		profile.recordColumns(columnNames, columnNanos, columnChars, rows);
+		profile.recordBatch(batchIndex, patients, fn.getPrefetchMillis(), writeMillis);
+		
+		Arrays.fill(columnNanos, 0);
+		Arrays.fill(columnChars, 0);
+		rows = 0;
+	}
+	
+	/**
+	 * Writes the line of one patient of the current batch of <code>fn</code>
+	 * 
+	 * @param fn the functions class, already set to the batch of the patient
+	 * @param patientId the patient to write
+	 * @param out where the line is written to
+	 * @throws Exception
+	 */
+	public void writeRow(DataExportFunctions fn, Integer patientId, Writer out) throws Exception {
+		writeCells(fn, patientId, out);
+		out.write("\n");
+	}
+	
+	/**
+	 * Writes the cells of one patient of the current batch of <code>fn</code>, without ending the
+	 * line
+	 * 
+	 * @param fn the functions class, already set to the batch of the patient
+	 * @param patientId the patient to write
+	 * @param out where the cells are written to
+	 * @throws Exception
+	 * @see #writeRow(DataExportFunctions, Integer, Writer)
+	 */
+	public void writeCells(DataExportFunctions fn, Integer patientId, Writer out) throws Exception {
+		fn.setPatientId(patientId);
+		velocityContext.put("patientId", patientId);
+		
+		// every cell is timed and counted for the profile
+		counter.out = out;
+		for (int i = 0; i < writers.size(); i++) {
+			if (i > 0)
+				out.write(fn.getSeparator());
+			long start = System.nanoTime();
+			long count = counter.count;
+			writers.get(i).write(fn, counter);
+			columnNanos[i] += System.nanoTime() - start;
+			columnChars[i] += counter.count - count;
+		}
+		rows++;
+	}
+	
+	/**
+	 * @return the writer for the given column
+	 */
+	private ColumnWriter compile(ExportColumn column, Integer exportId, String name) throws Exception {
+		if (column instanceof CalculatedColumn)
+			return new VelocityWriter(exportId, name, column.toTemplateString());
+		else if (column instanceof SimpleColumn)
+			return compileExpression(((SimpleColumn) column).getReturnValue(), exportId, name);
+		else if (column instanceof ConceptColumn && ((ConceptColumn) column).getConceptId() != null)
+			return new ConceptWriter((ConceptColumn) column);
+		else if (column instanceof CohortColumn)
+			return new CohortWriter((CohortColumn) column);
+		
+		return new VelocityWriter(exportId, name, column.toTemplateString());
+	}
+	
+	/**
+	 * @return a writer calling the functions class directly if the expression is one of the
+	 *         common simple column expressions, otherwise a velocity writer
+	 */
+	private ColumnWriter compileExpression(String expression, Integer exportId, String name) throws Exception {
+		if (expression == null)
+			expression = "";
+		
+		if (expression.indexOf('$') < 0 && expression.indexOf('#') < 0)
+			return new ConstantWriter(expression);
+		
+		if (PATIENT_ID.matcher(expression).matches()) {
+			return new ColumnWriter() {
+				
+				public void write(DataExportFunctions fn, Writer out) throws Exception {
+					writeValue(fn, out, fn.getPatientId());
+				}
+			};
+		}
+		
+		Matcher matcher = PATIENT_ATTR.matcher(expression);
+		if (matcher.matches()) {
+			final String className = matcher.group(1);
+			final String property = matcher.group(2);
+			return new ColumnWriter() {
+				
+				public void write(DataExportFunctions fn, Writer out) throws Exception {
+					writeValue(fn, out, fn.getPatientAttr(className, property));
+				}
+			};
+		}
+		
+		matcher = FORMATTED_PATIENT_ATTR.matcher(expression);
+		if (matcher.matches()) {
+			final String format = matcher.group(1);
+			final String className = matcher.group(2);
+			final String property = matcher.group(3);
+			return new ColumnWriter() {
+				
+				public void write(DataExportFunctions fn, Writer out) throws Exception {
+					Object value = fn.getPatientAttr(className, property);
+					if (value == null || value instanceof Date)
+						fn.appendDate(out, format, (Date) value);
+				}
+			};
+		}
+		
+		if (AGE.matcher(expression).matches()) {
+			return new ColumnWriter() {
+				
+				public void write(DataExportFunctions fn, Writer out) throws Exception {
+					Object birthdate = fn.getPatientAttr("Person", "birthdate");
+					if (birthdate == null || birthdate instanceof Date)
+						fn.getCellFormatter().appendInt(out, fn.calculateAge((Date) birthdate));
+				}
+			};
+		}
+		
+		matcher = SINGLE_ARGUMENT.matcher(expression);
+		if (matcher.matches()) {
+			final String method = matcher.group(1);
+			final String argument = matcher.group(2);
+			return new ColumnWriter() {
+				
+				public void write(DataExportFunctions fn, Writer out) throws Exception {
+					if ("getPatientIdentifier".equals(method))
+						writeValue(fn, out, fn.getPatientIdentifier(argument));
+					else if ("getPersonAttribute".equals(method))
+						writeValue(fn, out, fn.getPersonAttribute(argument));
+					else if ("getRelationshipNames".equals(method))
+						writeValue(fn, out, fn.getRelationshipNames(argument));
+					else if ("getRelationshipIds".equals(method))
+						writeValue(fn, out, fn.getRelationshipIds(argument));
+					else if ("getRelationshipIdentifiers".equals(method))
+						writeValue(fn, out, fn.getRelationshipIdentifiers(argument));
+					else if ("getCurrentDrugNames".equals(method))
+						writeValue(fn, out, fn.getCurrentDrugNames(argument));
+					else
+						writeValue(fn, out, fn.getCurrentFullDrugOrders(argument));
+				}
+			};
+		}
+		
+		return new VelocityWriter(exportId, name, expression);
+	}
+	
+	/**
+	 * Writes the value the same way a <code>$!{...}</code> reference would
+	 */
+	private static void writeValue(DataExportFunctions fn, Writer out, Object value) throws Exception {
+		fn.getCellFormatter().appendValue(out, value);
+	}
+	
+	/**
+	 * Passes everything on to another writer, counting the characters
+	 */
+	private static class CountingWriter extends Writer {
+		
+		private Writer out;
+		
+		private long count = 0;
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			count += len;
+		}
+		
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			count += len;
+		}
+		
+		@Override
+		public void write(int c) throws IOException {
+			out.write(c);
+			count++;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		/**
+		 * Leaves the writer passed on to open, it belongs to the caller
+		 */
+		@Override
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Writes the same text for every patient
+	 */
+	private static class ConstantWriter implements ColumnWriter {
+		
+		private String text;
+		
+		public ConstantWriter(String text) {
+			this.text = text;
+		}
+		
+		public void write(DataExportFunctions fn, Writer out) throws Exception {
+			out.write(text);
+		}
+	}
+	
+	/**
+	 * Writes the obs cells of a concept column, one group of cells per concept (or set member)
+	 */
+	private static class ConceptWriter implements ColumnWriter {
+		
+		private List<String> conceptIds = new ArrayList<String>();
+		
+		private List<String> attrs = new ArrayList<String>();
+		
+		private Integer numberOfObs;
+		
+		private boolean mostRecentFirst;
+		
+		public ConceptWriter(ConceptColumn column) {
+			for (Integer conceptId : column.getConceptIdsToExport())
+				conceptIds.add(conceptId.toString());
+			if (column.getExtras() != null)
+				attrs.addAll(Arrays.asList(column.getExtras()));
+			numberOfObs = column.getNumberOfObs();
+			mostRecentFirst = column.isMostRecentFirst();
+		}
+		
+		public void write(DataExportFunctions fn, Writer out) throws Exception {
+			for (int i = 0; i < conceptIds.size(); i++) {
+				if (i > 0)
+					out.write(fn.getSeparator());
+				fn.appendObsValues(out, numberOfObs, conceptIds.get(i), attrs, mostRecentFirst);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the "yes" or "no" value of a cohort, cohort definition or patient search column
+	 */
+	private static class CohortWriter implements ColumnWriter {
+		
+		private CohortColumn column;
+		
+		private String key;
+		
+		public CohortWriter(CohortColumn column) {
+			this.column = column;
+			this.key = CohortMembershipIndex.getKey(column);
+		}
+		
+		public void write(DataExportFunctions fn, Writer out) throws Exception {
+			writeValue(fn, out, fn.isCohortMember(key) ? column.getValueIfTrue() : column.getValueIfFalse());
+		}
+	}
+	
+	/**
+	 * Merges a velocity template fragment for every patient. The fragment is parsed only once.
+	 */
+	private class VelocityWriter implements ColumnWriter {
+		
+		private Template template;
+		
+		public VelocityWriter(Integer exportId, String name, String fragment) throws Exception {
+			template = DataExportTemplateCache.getTemplate(exportId, name, fragment);
+		}
+		
+		public void write(DataExportFunctions fn, Writer out) throws Exception {
+			template.merge(velocityContext, out);
+		}
+	}
+
+}
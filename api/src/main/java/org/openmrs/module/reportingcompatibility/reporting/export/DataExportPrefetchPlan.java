@@ -0,0 +1,382 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.reporting.export.CohortColumn;
+import org.openmrs.reporting.export.ConceptColumn;
+import org.openmrs.reporting.export.ExportColumn;
+
+/**
+ * Everything the columns of a data export need fetched for every batch of patients, worked out
+ * once before the first batch. <br/>
+ * <br/>
+ * The obs of concept columns are read off the columns themselves. The other columns are velocity
+ * snippets, so their templates are searched for calls like
+ * <code>$!{fn.getPatientAttr('Person', 'gender')}</code> whose arguments are all literals. Calls
+ * with velocity references as arguments can't be known up front and are still fetched when the
+ * first patient of a batch reaches them. The cohorts of cohort columns are evaluated once for the
+ * whole export, when the first batch starts. <br/>
+ * <br/>
+ * A plan can be shared by the threads of a {@link ParallelDataExportRunner}.
+ *
+ * @see DataExportFunctions#planPrefetch(List)
+ * @since 3.0.0
+ */
+public class DataExportPrefetchPlan {
+	
+	private static final Log log = LogFactory.getLog(DataExportPrefetchPlan.class);
+	
+	// the method names of the functions class that fill a map for the whole batch
+	private static final Pattern CALL = Pattern.compile("\\bfn\\.(getPatientAttr|getPersonAttribute|getPatientIdentifier"
+	        + "|getLastEncounter|getFirstEncounter|getLastEncounterAttr|getFirstEncounterAttr|getProgram"
+	        + "|getRelationships|getRelationshipNames|getRelationshipIds|getRelationshipIdentifiers"
+	        + "|getCurrentDrugOrders|getCurrentDrugNames|getCurrentFullDrugOrders"
+	        + "|getDrugOrders|getEarliestDrugStart|getLastDrugStart)\\(([^()$]*)\\)");
+	
+	private List<ObsColumn> obsColumns = new ArrayList<ObsColumn>();
+	
+	private List<Need> needs = new ArrayList<Need>();
+	
+	private List<String> cohortKeys = new ArrayList<String>();
+	
+	/**
+	 * Works out what the given columns need for every batch
+	 *
+	 * @param columns the columns of the data export, may be null
+	 * @return the plan
+	 */
+	public static DataExportPrefetchPlan analyse(List<ExportColumn> columns) {
+		DataExportPrefetchPlan plan = new DataExportPrefetchPlan();
+		if (columns == null)
+			return plan;
+		
+		Set<Need> needs = new LinkedHashSet<Need>();
+		Set<String> cohortKeys = new LinkedHashSet<String>();
+		for (ExportColumn column : columns) {
+			if (column instanceof ConceptColumn)
+				plan.addObsColumns((ConceptColumn) column);
+			else if (column instanceof CohortColumn)
+				cohortKeys.add(CohortMembershipIndex.getKey((CohortColumn) column));
+			else if (column != null)
+				needs.addAll(findNeeds(column.toTemplateString()));
+		}
+		plan.needs.addAll(needs);
+		plan.cohortKeys.addAll(cohortKeys);
+		
+		if (log.isDebugEnabled())
+			log.debug("Planned " + plan.obsColumns.size() + " obs columns, " + plan.cohortKeys.size()
+			        + " cohorts and " + plan.needs.size() + " other bulk queries for prefetching: " + plan.needs);
+		
+		return plan;
+	}
+	
+	/**
+	 * Finds the calls of the functions class with literal arguments in a velocity template
+	 *
+	 * @param template
+	 * @return the distinct needs of the template, in the order they come up
+	 */
+	public static List<Need> findNeeds(String template) {
+		Set<Need> needs = new LinkedHashSet<Need>();
+		if (template == null)
+			return new ArrayList<Need>();
+		
+		Matcher m = CALL.matcher(template);
+		while (m.find()) {
+			List<Object> args = parseArguments(m.group(2));
+			Need need = args == null ? null : Need.create(m.group(1), args);
+			if (need != null)
+				needs.add(need);
+		}
+		return new ArrayList<Need>(needs);
+	}
+	
+	/**
+	 * @param s the arguments of a velocity method call, without the parentheses
+	 * @return the strings, booleans and lists of strings, or null if any argument isn't a literal
+	 */
+	private static List<Object> parseArguments(String s) {
+		List<Object> args = new ArrayList<Object>();
+		if (s.trim().length() == 0)
+			return args;
+		
+		for (String token : split(s)) {
+			token = token.trim();
+			if (token.startsWith("[") && token.endsWith("]")) {
+				List<String> list = new ArrayList<String>();
+				String inner = token.substring(1, token.length() - 1);
+				if (inner.trim().length() > 0) {
+					for (String element : split(inner)) {
+						String value = unquote(element.trim());
+						if (value == null)
+							return null;
+						list.add(value);
+					}
+				}
+				args.add(list);
+			} else if (token.equals("true") || token.equals("false")) {
+				args.add(Boolean.valueOf(token));
+			} else {
+				String value = unquote(token);
+				if (value == null)
+					return null;
+				args.add(value);
+			}
+		}
+		return args;
+	}
+	
+	/**
+	 * Splits on the commas that aren't inside quotes or brackets
+	 */
+	private static List<String> split(String s) {
+		List<String> tokens = new ArrayList<String>();
+		char quote = 0;
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '[') {
+				depth++;
+			} else if (c == ']') {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				tokens.add(s.substring(start, i));
+				start = i + 1;
+			}
+		}
+		tokens.add(s.substring(start));
+		return tokens;
+	}
+	
+	/**
+	 * @return the text of a quoted string literal, null if it isn't one
+	 */
+	private static String unquote(String token) {
+		if (token.length() >= 2) {
+			char quote = token.charAt(0);
+			if ((quote == '\'' || quote == '"') && token.charAt(token.length() - 1) == quote)
+				return token.substring(1, token.length() - 1);
+		}
+		return null;
+	}
+	
+	private void addObsColumns(ConceptColumn conceptColumn) {
+		if (conceptColumn.getConceptId() == null)
+			return;
+		
+		String[] extras = conceptColumn.getExtras();
+		List<String> attrs = new ArrayList<String>();
+		if (extras != null)
+			attrs.addAll(Arrays.asList(extras));
+		
+		for (Concept concept : conceptColumn.getConceptsToExport()) {
+			// the obs queries look at the datatype, load it while the concept's session is at hand
+			// in case they run on another thread
+			if (concept.getDatatype() != null)
+				concept.getDatatype().getHl7Abbreviation();
+			
+			ObsColumn planned = new ObsColumn();
+			planned.concept = concept;
+			planned.attrs = attrs;
+			planned.size = conceptColumn.getNumberOfObs();
+			planned.mostRecentFirst = conceptColumn.isMostRecentFirst();
+			obsColumns.add(planned);
+		}
+	}
+	
+	/**
+	 * @return true if there is nothing to prefetch
+	 */
+	public boolean isEmpty() {
+		return obsColumns.isEmpty() && needs.isEmpty() && cohortKeys.isEmpty();
+	}
+	
+	/**
+	 * @return one entry for every concept of every concept column
+	 */
+	public List<ObsColumn> getObsColumns() {
+		return Collections.unmodifiableList(obsColumns);
+	}
+	
+	/**
+	 * @return the other bulk queries the columns need
+	 */
+	public List<Need> getNeeds() {
+		return Collections.unmodifiableList(needs);
+	}
+	
+	/**
+	 * @return the keys of the cohorts of the cohort columns
+	 * @see CohortMembershipIndex#getKey(CohortColumn)
+	 */
+	public List<String> getCohortKeys() {
+		return Collections.unmodifiableList(cohortKeys);
+	}
+	
+	/**
+	 * @param method the method of the functions class that runs the query
+	 * @param args the arguments of the method
+	 * @return the key the query is recorded under in the {@link DataExportProfile}, like
+	 *         <code>getPatientIdentifier:Old ID</code>
+	 */
+	public static String queryKey(String method, Object... args) {
+		StringBuilder sb = new StringBuilder(method).append(":");
+		for (int i = 0; i < args.length; i++) {
+			if (i > 0)
+				sb.append(",");
+			sb.append(args[i]);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * One concept of a concept column
+	 */
+	public static class ObsColumn {
+		
+		private Concept concept;
+		
+		private List<String> attrs;
+		
+		private Integer size;
+		
+		private boolean mostRecentFirst;
+		
+		public Concept getConcept() {
+			return concept;
+		}
+		
+		public List<String> getAttrs() {
+			return attrs;
+		}
+		
+		public Integer getSize() {
+			return size;
+		}
+		
+		public boolean isMostRecentFirst() {
+			return mostRecentFirst;
+		}
+	}
+	
+	/**
+	 * One bulk query of the functions class, named after the method that fills its map and with
+	 * the arguments of that method. The methods that only format what another one fetched are
+	 * folded into it, for example <code>getRelationshipNames</code> into
+	 * <code>getRelativeTable</code>.
+	 */
+	public static class Need {
+		
+		private String method;
+		
+		private List<Object> args;
+		
+		private Need(String method, Object... args) {
+			this.method = method;
+			this.args = Arrays.asList(args);
+		}
+		
+		/**
+		 * @return the need of the given call, null if the arguments don't fit the method
+		 */
+		private static Need create(String method, List<Object> args) {
+			int n = args.size();
+			if (method.equals("getPatientAttr")) {
+				if ((n == 2 || n == 3) && isString(args, 0) && isString(args, 1))
+					return new Need(method, args.get(0), args.get(1), n == 3 && Boolean.TRUE.equals(args.get(2)));
+			} else if (method.equals("getPersonAttribute")) {
+				if (n == 1 && isString(args, 0))
+					return new Need(method, args.get(0), null, null, null, false);
+				if (n == 5 && isString(args, 0) && isString(args, 1) && isString(args, 2) && isString(args, 3)
+				        && args.get(4) instanceof Boolean)
+					return new Need(method, args.toArray());
+			} else if (method.equals("getLastEncounterAttr") || method.equals("getFirstEncounterAttr")) {
+				if (n == 2 && args.get(0) instanceof List && isString(args, 1))
+					return new Need(method, args.toArray());
+			} else if (n == 1 && isString(args, 0)) {
+				if (method.equals("getRelationshipNames") || method.equals("getRelationshipIds")
+				        || method.equals("getRelationshipIdentifiers"))
+					return new Need("getRelativeTable", args.get(0));
+				if (method.startsWith("getCurrent"))
+					return new Need("getCurrentDrugOrders", args.get(0));
+				if (method.equals("getEarliestDrugStart") || method.equals("getLastDrugStart"))
+					return new Need("getDrugOrders", args.get(0));
+				return new Need(method, args.get(0));
+			}
+			return null;
+		}
+		
+		private static boolean isString(List<Object> args, int i) {
+			return args.get(i) instanceof String;
+		}
+		
+		public String getMethod() {
+			return method;
+		}
+		
+		public List<Object> getArgs() {
+			return args;
+		}
+		
+		/**
+		 * @return the string argument at the given index
+		 */
+		public String getString(int i) {
+			return (String) args.get(i);
+		}
+		
+		/**
+		 * @return true if the query only returns plain values, no hibernate objects, so it can run
+		 *         on a thread with a session of its own
+		 */
+		public boolean isValuesOnly() {
+			return method.equals("getPatientIdentifier") || method.equals("getPersonAttribute")
+			        || method.equals("getRelativeTable");
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Need && ((Need) o).method.equals(method) && ((Need) o).args.equals(args);
+		}
+		
+		@Override
+		public int hashCode() {
+			return method.hashCode() * 31 + args.hashCode();
+		}
+		
+		@Override
+		public String toString() {
+			return queryKey(method, args.toArray());
+		}
+	}
+
+}
@@ -0,0 +1,501 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.RelativeTable;
+
+/**
+ * Where the time of a data export run went. <br/>
+ * <br/>
+ * For every bulk query it has the number of times it ran, the milliseconds it took, the rows it
+ * returned and a rough estimate of the bytes the result took in memory, keyed by the method of
+ * the functions class and its arguments (like <code>getObsWithValues:5089</code>). For every
+ * column it has the time spent writing its cells and the number of characters written, and for
+ * every batch the time spent fetching its data up front and writing its rows. Column times
+ * include the queries a column had to run itself because they couldn't be prefetched. <br/>
+ * <br/>
+ * A profile can be shared by the threads of a {@link ParallelDataExportRunner}. It is saved as a
+ * tab separated text file next to the generated export.
+ *
+ * @see DataExportFunctions#getProfile()
+ * @since 3.0.0
+ */
+public class DataExportProfile {
+	
+	private static final Log log = LogFactory.getLog(DataExportProfile.class);
+	
+	private static final String FORMAT_HEADER = "# data export profile 1";
+	
+	// the number of values of a query result looked at when estimating its size
+	private static final int SAMPLE_SIZE = 100;
+	
+	private long startTime = System.currentTimeMillis();
+	
+	private long endTime = -1;
+	
+	private volatile String error = null;
+	
+	private Map<String, Entry> queries = new LinkedHashMap<String, Entry>();
+	
+	private List<Entry> columns = new ArrayList<Entry>();
+	
+	private List<Batch> batches = new ArrayList<Batch>();
+	
+	/**
+	 * @param exportFile the generated export file
+	 * @return the file the profile of the given export file is saved in
+	 */
+	public static File getProfileFile(File exportFile) {
+		return new File(exportFile.getParentFile(), exportFile.getName() + ".profile");
+	}
+	
+	/**
+	 * Adds a bulk query to the totals
+	 *
+	 * @param key see {@link DataExportPrefetchPlan#queryKey(String, Object...)}
+	 * @param millis how long the query took
+	 * @param rows the number of patients (or obs) it returned
+	 * @param bytes the estimated size of the result
+	 */
+	public synchronized void recordQuery(String key, long millis, int rows, long bytes) {
+		Entry entry = queries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			queries.put(key, entry);
+		}
+		entry.count++;
+		entry.millis += millis;
+		entry.rows += rows;
+		entry.bytes += bytes;
+	}
+	
+	/**
+	 * Adds the time spent in the columns of some rows to the totals
+	 *
+	 * @param names the names of the columns
+	 * @param nanos the nanoseconds spent writing the cells of each column
+	 * @param chars the characters written for each column
+	 * @param rows the number of rows
+	 */
+	public synchronized void recordColumns(List<String> names, long[] nanos, long[] chars, int rows) {
+		if (columns.isEmpty()) {
+			for (String name : names)
+				columns.add(new Entry(name));
+		}
+		for (int i = 0; i < nanos.length && i < columns.size(); i++) {
+			Entry column = columns.get(i);
+			column.count += rows;
+			column.nanos += nanos[i];
+			column.millis = column.nanos / 1000000;
+			column.bytes += chars[i];
+		}
+	}
+	
+	/**
+	 * Adds a batch that was written
+	 *
+	 * @param index the index of the batch
+	 * @param patients the number of patients in it
+	 * @param prefetchMillis the time spent in the queries run before writing the rows
+	 * @param writeMillis the time spent writing the rows
+	 */
+	public synchronized void recordBatch(int index, int patients, long prefetchMillis, long writeMillis) {
+		batches.add(new Batch(index, patients, prefetchMillis, writeMillis));
+	}
+	
+	/**
+	 * Marks the end of the run
+	 */
+	public void finish() {
+		endTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Marks the run as failed. The error isn't saved with the profile.
+	 * 
+	 * @param error the error the run ended with
+	 */
+	public void setError(String error) {
+		this.error = error;
+	}
+	
+	/**
+	 * @return the error the run ended with, null if it ended normally
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	/**
+	 * Roughly estimates the memory taken by the values of a bulk query result. Only a sample of
+	 * the values is looked at and hibernate objects are counted without the objects they refer
+	 * to, so this is only good for comparing queries with each other.
+	 *
+	 * @param result a map of patient ids to values
+	 * @return the estimated bytes
+	 */
+	public static long estimateBytes(Map<Integer, ?> result) {
+		if (result == null || result.isEmpty())
+			return 0;
+		
+		long sampled = 0;
+		int n = 0;
+		for (Object value : result.values()) {
+			sampled += estimateBytes(value, 0);
+			if (++n == SAMPLE_SIZE)
+				break;
+		}
+		// every map entry and its key take about 48 bytes more
+		return sampled * result.size() / n + 48L * result.size();
+	}
+	
+	/**
+	 * @param table an obs value table
+	 * @return the estimated bytes of the table
+	 */
+	public static long estimateBytes(ObsValueTable table) {
+		return table.getRowCount() * (8L * table.getColumnCount() + 4);
+	}
+	
+	/**
+	 * @param table a relative table
+	 * @return the estimated bytes of the table
+	 */
+	public static long estimateBytes(RelativeTable table) {
+		// the ids and flag, and the three name parts and identifier at about 10 characters each
+		return table.getRowCount() * (9L + 4 * 8 + 4 * 60);
+	}
+	
+	private static long estimateBytes(Object value, int depth) {
+		if (value == null)
+			return 0;
+		if (value instanceof String)
+			return 40 + 2L * ((String) value).length();
+		if (value instanceof Number || value instanceof Boolean || value instanceof Date)
+			return 24;
+		if (depth < 3 && value instanceof Collection) {
+			long bytes = 32;
+			for (Object o : (Collection<?>) value)
+				bytes += 8 + estimateBytes(o, depth + 1);
+			return bytes;
+		}
+		if (depth < 3 && value instanceof Object[]) {
+			long bytes = 16;
+			for (Object o : (Object[]) value)
+				bytes += 8 + estimateBytes(o, depth + 1);
+			return bytes;
+		}
+		// an encounter, program or some other hibernate object
+		return 128;
+	}
+	
+	/**
+	 * Writes this profile to the given file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void save(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.println(FORMAT_HEADER);
+			out.println("run\t" + startTime + "\t" + endTime);
+			for (Entry query : queries.values())
+				out.println("query\t" + clean(query.name) + "\t" + query.count + "\t" + query.millis + "\t" + query.rows
+				        + "\t" + query.bytes);
+			for (Entry column : columns)
+				out.println("column\t" + clean(column.name) + "\t" + column.count + "\t" + column.nanos + "\t"
+				        + column.bytes);
+			for (Batch batch : batches)
+				out.println("batch\t" + batch.index + "\t" + batch.patients + "\t" + batch.prefetchMillis + "\t"
+				        + batch.writeMillis);
+		}
+		finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Unable to write data export profile " + file);
+	}
+	
+	/**
+	 * Reads a profile saved earlier
+	 *
+	 * @param file the file the profile was saved to
+	 * @return the profile, or null if there is none or it can't be read
+	 */
+	public static DataExportProfile load(File file) {
+		if (!file.exists())
+			return null;
+		
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				if (!FORMAT_HEADER.equals(in.readLine()))
+					return null;
+				
+				DataExportProfile profile = new DataExportProfile();
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields[0].equals("run")) {
+						profile.startTime = Long.parseLong(fields[1]);
+						profile.endTime = Long.parseLong(fields[2]);
+					} else if (fields[0].equals("query")) {
+						Entry query = new Entry(fields[1]);
+						query.count = Long.parseLong(fields[2]);
+						query.millis = Long.parseLong(fields[3]);
+						query.rows = Long.parseLong(fields[4]);
+						query.bytes = Long.parseLong(fields[5]);
+						profile.queries.put(query.name, query);
+					} else if (fields[0].equals("column")) {
+						Entry column = new Entry(fields[1]);
+						column.count = Long.parseLong(fields[2]);
+						column.nanos = Long.parseLong(fields[3]);
+						column.millis = column.nanos / 1000000;
+						column.bytes = Long.parseLong(fields[4]);
+						profile.columns.add(column);
+					} else if (fields[0].equals("batch")) {
+						profile.batches.add(new Batch(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Long
+						        .parseLong(fields[3]), Long.parseLong(fields[4])));
+					}
+				}
+				return profile;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (Exception e) {
+			log.warn("Unable to read data export profile " + file, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Keeps names with tabs or line breaks on one field
+	 */
+	private static String clean(String name) {
+		return name.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+	
+	/**
+	 * Logs the totals at info level and every query and column at debug level
+	 *
+	 * @param exportName shown in the log lines
+	 */
+	public void logSummary(String exportName) {
+		if (!log.isInfoEnabled())
+			return;
+		
+		if (log.isDebugEnabled()) {
+			for (Entry query : getQueries())
+				log.debug("Data export '" + exportName + "' query " + query.name + ": " + query.count + " times, "
+				        + query.millis + " ms, " + query.rows + " rows, about " + query.bytes + " bytes");
+			for (Entry column : getColumns())
+				log.debug("Data export '" + exportName + "' column " + column.name + ": " + column.millis + " ms, "
+				        + column.bytes + " characters");
+		}
+		log.info("Data export '" + exportName + "' took " + getTotalMillis() + " ms for " + getPatients()
+		        + " patients in " + batches.size() + " batches, " + getQueryMillis() + " ms of it in bulk queries");
+	}
+	
+	/**
+	 * @return the bulk queries, the slowest first
+	 */
+	public synchronized List<Entry> getQueries() {
+		return sortByTime(queries.values());
+	}
+	
+	/**
+	 * @return the columns, the slowest first
+	 */
+	public synchronized List<Entry> getColumns() {
+		return sortByTime(columns);
+	}
+	
+	/**
+	 * @return the batches in the order they were written
+	 */
+	public synchronized List<Batch> getBatches() {
+		return new ArrayList<Batch>(batches);
+	}
+	
+	private static List<Entry> sortByTime(Collection<Entry> entries) {
+		List<Entry> sorted = new ArrayList<Entry>();
+		for (Entry entry : entries)
+			sorted.add(entry.copy());
+		Collections.sort(sorted, new Comparator<Entry>() {
+			
+			public int compare(Entry a, Entry b) {
+				return a.nanos != b.nanos ? (a.nanos > b.nanos ? -1 : 1) : (a.millis > b.millis ? -1
+				        : (a.millis == b.millis ? 0 : 1));
+			}
+		});
+		return sorted;
+	}
+	
+	public Date getStartDate() {
+		return new Date(startTime);
+	}
+	
+	/**
+	 * @return the milliseconds from the start to the end of the run, or until now if it hasn't
+	 *         ended yet
+	 */
+	public long getTotalMillis() {
+		return (endTime < 0 ? System.currentTimeMillis() : endTime) - startTime;
+	}
+	
+	/**
+	 * @return the milliseconds spent in bulk queries, adding up those of all threads
+	 */
+	public synchronized long getQueryMillis() {
+		long millis = 0;
+		for (Entry query : queries.values())
+			millis += query.millis;
+		return millis;
+	}
+	
+	/**
+	 * @return the number of patients in the batches written
+	 */
+	public synchronized long getPatients() {
+		long patients = 0;
+		for (Batch batch : batches)
+			patients += batch.patients;
+		return patients;
+	}
+	
+	/**
+	 * The totals of one bulk query or one column
+	 */
+	public static class Entry {
+		
+		private String name;
+		
+		private long count;
+		
+		private long millis;
+		
+		private long nanos;
+		
+		private long rows;
+		
+		private long bytes;
+		
+		private Entry(String name) {
+			this.name = name;
+		}
+		
+		private Entry copy() {
+			Entry copy = new Entry(name);
+			copy.count = count;
+			copy.millis = millis;
+			copy.nanos = nanos;
+			copy.rows = rows;
+			copy.bytes = bytes;
+			return copy;
+		}
+		
+		/**
+		 * @return the query key or the column name
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return the number of times the query ran, or the number of cells of the column
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+		public long getMillis() {
+			return millis;
+		}
+		
+		/**
+		 * @return the rows the query returned, 0 for columns
+		 */
+		public long getRows() {
+			return rows;
+		}
+		
+		/**
+		 * @return the estimated size of the query results, or the characters written for a column
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+	}
+	
+	/**
+	 * The times of one batch
+	 */
+	public static class Batch {
+		
+		private int index;
+		
+		private int patients;
+		
+		private long prefetchMillis;
+		
+		private long writeMillis;
+		
+		private Batch(int index, int patients, long prefetchMillis, long writeMillis) {
+			this.index = index;
+			this.patients = patients;
+			this.prefetchMillis = prefetchMillis;
+			this.writeMillis = writeMillis;
+		}
+		
+		public int getIndex() {
+			return index;
+		}
+		
+		public int getPatients() {
+			return patients;
+		}
+		
+		public long getPrefetchMillis() {
+			return prefetchMillis;
+		}
+		
+		public long getWriteMillis() {
+			return writeMillis;
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.reporting.AbstractReportObject;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.ReportObjectXMLEncoder;
+import org.openmrs.reporting.export.CohortColumn;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.reporting.export.ExportColumn;
+import org.openmrs.util.ReportingcompatibilityUtil;
+
+/**
+ * Keeps copies of generated data export files so a run that would produce the same file again
+ * can copy it instead. <br/>
+ * <br/>
+ * A result is keyed by the fingerprint of its run: the definition of the export as it is saved,
+ * the definitions of the filters and patient searches and the members of the cohorts it refers
+ * to, the separator and locale, the patients it was run for, the last time any patient data
+ * changed and the day of the run. The day is part of it because columns like ages and current drug
+ * orders change with the date alone. <br/>
+ * <br/>
+ * Finding the last data change means reading the date columns of all patient data, so it is only
+ * looked up every {@link #DATA_CHANGE_CHECK_INTERVAL} milliseconds. A change shows up in the
+ * fingerprints after that long at the latest. <br/>
+ * <br/>
+ * The results are kept in the <code>cache</code> folder next to the generated files, with an
+ * index that survives restarts. The least recently used results are removed once they take more
+ * than {@link ReportingCompatibilityConstants#RESULT_CACHE_SIZE_GP} megabytes together. The cache
+ * is off unless that is set.
+ *
+ * @see ReportingCompatibilityService#getLastDataChange()
+ * @since 3.0.0
+ */
+public class DataExportResultCache {
+	
+	private static final Log log = LogFactory.getLog(DataExportResultCache.class);
+	
+	private static final String INDEX_HEADER = "# data export result cache 1";
+	
+	/**
+	 * How long in milliseconds the last data change is used before it is looked up again
+	 */
+	public static final long DATA_CHANGE_CHECK_INTERVAL = 60 * 1000;
+	
+	private static Date lastDataChange = null;
+	
+	private static long lastDataChangeCheck = 0;
+	
+	// fingerprint to the size of the result, least recently used first
+	private static Map<String, Long> index = null;
+	
+	private static long totalBytes = 0;
+	
+	/**
+	 * @param dataExport the export being run
+	 * @param patientSet the patients it is run for, null for all patients
+	 * @param separator the separator of its columns
+	 * @return the fingerprint of the run, or null if the cache is turned off or the run can't be
+	 *         fingerprinted
+	 */
+	public static String getFingerprint(DataExportReportObject dataExport, Cohort patientSet, String separator) {
+		if (getMaxBytes() <= 0)
+			return null;
+		
+		try {
+			return fingerprint(dataExport, patientSet, separator, true);
+		}
+		catch (Exception e) {
+			log.warn("Unable to fingerprint data export " + dataExport.getReportObjectId() + ", it won't be cached", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Like {@link #getFingerprint(DataExportReportObject, Cohort, String)} but without the last
+	 * data change and the day, so it stays the same while the run goes on
+	 * 
+	 * @param dataExport the export being run
+	 * @param patientSet the patients it is run for, null for all patients
+	 * @param separator the separator of its columns
+	 * @return the fingerprint of the definition, separator, locale and patients of the run, or null
+	 *         if the run can't be fingerprinted
+	 * @see DataExportCheckpoint
+	 */
+	public static String getRunFingerprint(DataExportReportObject dataExport, Cohort patientSet, String separator) {
+		try {
+			return fingerprint(dataExport, patientSet, separator, false);
+		}
+		catch (Exception e) {
+			log.warn("Unable to fingerprint data export " + dataExport.getReportObjectId(), e);
+			return null;
+		}
+	}
+	
+	private static String fingerprint(DataExportReportObject dataExport, Cohort patientSet, String separator,
+	                                  boolean withData) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(new ReportObjectXMLEncoder(dataExport).toXmlString().getBytes("UTF-8"));
+		
+		// the export only refers to its cohorts, filters and searches by id
+		updateReportObject(digest, dataExport.getCohortDefinitionId());
+		updateReportObject(digest, dataExport.getPatientSearchId());
+		updateCohort(digest, dataExport.getCohortId());
+		for (ExportColumn column : dataExport.getColumns()) {
+			if (column instanceof CohortColumn) {
+				CohortColumn cohortColumn = (CohortColumn) column;
+				updateReportObject(digest, cohortColumn.getFilterId());
+				updateReportObject(digest, cohortColumn.getPatientSearchId());
+				updateCohort(digest, cohortColumn.getCohortId());
+			}
+		}
+		
+		digest.update(("\n" + separator + "\n" + Context.getLocale() + "\n").getBytes("UTF-8"));
+		if (withData) {
+			Date lastDataChange = getLastDataChange();
+			digest.update((new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + "\n"
+			        + (lastDataChange == null ? "" : lastDataChange.getTime()) + "\n").getBytes("UTF-8"));
+		}
+		if (patientSet == null)
+			digest.update("all patients".getBytes("UTF-8"));
+		else
+			updateIds(digest, patientSet);
+		return new BigInteger(1, digest.digest()).toString(16);
+	}
+	
+	/**
+	 * Adds the saved definition of the given report object, like a filter or a patient search
+	 */
+	private static void updateReportObject(MessageDigest digest, Integer reportObjectId) throws Exception {
+		if (reportObjectId == null)
+			return;
+		
+		AbstractReportObject reportObject = Context.getService(ReportObjectService.class).getReportObject(
+		    reportObjectId);
+		digest.update(("\nreport object " + reportObjectId + "\n").getBytes("UTF-8"));
+		if (reportObject != null)
+			digest.update(new ReportObjectXMLEncoder(reportObject).toXmlString().getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Adds the members of the given cohort, which aren't part of the patient data that is checked
+	 * for changes
+	 */
+	private static void updateCohort(MessageDigest digest, Integer cohortId) throws Exception {
+		if (cohortId == null)
+			return;
+		
+		Cohort cohort = ReportingcompatibilityUtil.convert(Context.getCohortService().getCohort(cohortId));
+		digest.update(("\ncohort " + cohortId + "\n").getBytes("UTF-8"));
+		if (cohort != null)
+			updateIds(digest, cohort);
+	}
+	
+	/**
+	 * Adds the members of the given cohort in ascending order, so the same members always give
+	 * the same bytes whatever set the cohort keeps them in
+	 */
+	private static void updateIds(MessageDigest digest, Cohort cohort) {
+		byte[] id = new byte[4];
+		for (Integer memberId : DataExportUtil.getSortedMemberIds(cohort)) {
+			int value = memberId;
+			id[0] = (byte) (value >>> 24);
+			id[1] = (byte) (value >>> 16);
+			id[2] = (byte) (value >>> 8);
+			id[3] = (byte) value;
+			digest.update(id);
+		}
+	}
+	
+	/**
+	 * @return the last time patient data changed, as last looked up
+	 * @see #DATA_CHANGE_CHECK_INTERVAL
+	 */
+	private static synchronized Date getLastDataChange() {
+		long now = System.currentTimeMillis();
+		if (lastDataChangeCheck == 0 || now - lastDataChangeCheck >= DATA_CHANGE_CHECK_INTERVAL) {
+			lastDataChange = Context.getService(ReportingCompatibilityService.class).getLastDataChange();
+			lastDataChangeCheck = now;
+		}
+		return lastDataChange;
+	}
+	
+	/**
+	 * Copies the result of an earlier run with the given fingerprint to the given file
+	 *
+	 * @param fingerprint see {@link #getFingerprint(DataExportReportObject, Cohort, String)}
+	 * @param file the generated export file
+	 * @return true if there was such a result
+	 */
+	public static synchronized boolean get(String fingerprint, File file) {
+		if (fingerprint == null || !getIndex().containsKey(fingerprint))
+			return false;
+		
+		File result = new File(getCacheDir(), fingerprint);
+		try {
+			Files.copy(result.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			log.warn("Unable to copy the cached data export result " + result, e);
+			remove(fingerprint);
+			saveIndex();
+			return false;
+		}
+		
+		// moves it to the most recently used end
+		index.put(fingerprint, index.remove(fingerprint));
+		saveIndex();
+		return true;
+	}
+	
+	/**
+	 * Keeps a copy of the given generated file, removing the least recently used results if the
+	 * cache grows too big
+	 *
+	 * @param fingerprint see {@link #getFingerprint(DataExportReportObject, Cohort, String)}
+	 * @param file the generated export file
+	 */
+	public static void put(String fingerprint, File file) {
+		long maxBytes = getMaxBytes();
+		if (fingerprint == null || maxBytes <= 0 || file.length() > maxBytes)
+			return;
+		
+		// the copy is made before taking the lock so other runs can read the cache meanwhile
+		File temp = null;
+		try {
+			temp = File.createTempFile("dataExport", ".cache", getCacheDir());
+			Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			
+			synchronized (DataExportResultCache.class) {
+				remove(fingerprint);
+				Files.move(temp.toPath(), new File(getCacheDir(), fingerprint).toPath(),
+				    StandardCopyOption.REPLACE_EXISTING);
+				getIndex().put(fingerprint, file.length());
+				totalBytes += file.length();
+				
+				for (Iterator<String> i = index.keySet().iterator(); i.hasNext() && totalBytes > maxBytes;) {
+					String eldest = i.next();
+					new File(getCacheDir(), eldest).delete();
+					totalBytes -= index.get(eldest);
+					i.remove();
+				}
+				saveIndex();
+			}
+		}
+		catch (IOException e) {
+			log.warn("Unable to cache the data export result " + file, e);
+		}
+		finally {
+			if (temp != null)
+				temp.delete();
+		}
+	}
+	
+	/**
+	 * Removes all results and forgets the last data change
+	 */
+	public static synchronized void clear() {
+		for (String fingerprint : getIndex().keySet())
+			new File(getCacheDir(), fingerprint).delete();
+		index.clear();
+		totalBytes = 0;
+		saveIndex();
+		lastDataChange = null;
+		lastDataChangeCheck = 0;
+	}
+	
+	private static void remove(String fingerprint) {
+		Long bytes = getIndex().remove(fingerprint);
+		if (bytes != null) {
+			new File(getCacheDir(), fingerprint).delete();
+			totalBytes -= bytes;
+		}
+	}
+	
+	/**
+	 * @return the index, read from its file the first time it is asked for
+	 */
+	private static Map<String, Long> getIndex() {
+		if (index != null)
+			return index;
+		
+		index = new LinkedHashMap<String, Long>();
+		totalBytes = 0;
+		File file = getIndexFile();
+		if (!file.exists())
+			return index;
+		
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				if (!INDEX_HEADER.equals(in.readLine()))
+					return index;
+				
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t");
+					File result = new File(getCacheDir(), fields[0]);
+					// results deleted by hand are simply forgotten
+					if (fields.length == 2 && result.length() == Long.parseLong(fields[1])) {
+						index.put(fields[0], result.length());
+						totalBytes += result.length();
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (Exception e) {
+			log.warn("Unable to read the data export result cache index " + file + ", starting with an empty cache", e);
+		}
+		return index;
+	}
+	
+	private static void saveIndex() {
+		File file = getIndexFile();
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			try {
+				out.println(INDEX_HEADER);
+				for (Map.Entry<String, Long> entry : index.entrySet())
+					out.println(entry.getKey() + "\t" + entry.getValue());
+			}
+			finally {
+				out.close();
+			}
+			if (out.checkError())
+				throw new IOException("Unable to write " + file);
+		}
+		catch (IOException e) {
+			log.warn("Unable to save the data export result cache index " + file, e);
+		}
+	}
+	
+	private static File getCacheDir() {
+		File dir = new File(DataExportUtil.getGeneratedFileDirectory(), "cache");
+		dir.mkdirs();
+		return dir;
+	}
+	
+	private static File getIndexFile() {
+		return new File(getCacheDir(), "index");
+	}
+	
+	/**
+	 * @return the size the cache may grow to, 0 or less if it is turned off
+	 */
+	private static long getMaxBytes() {
+		int megabytes = ReportingCompatibilityConstants.RESULT_CACHE_SIZE_GP_DEFAULT;
+		try {
+			megabytes = Integer.parseInt(Context.getAdministrationService().getGlobalProperty(
+			    ReportingCompatibilityConstants.RESULT_CACHE_SIZE_GP));
+		}
+		catch (Exception e) {
+			// Do nothing, just use the default
+		}
+		return megabytes * 1024L * 1024L;
+	}
+
+}
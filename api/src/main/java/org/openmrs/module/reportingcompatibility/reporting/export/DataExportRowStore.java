@@ -0,0 +1,252 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Knows which patient each row of a generated data export file belongs to, so that the rows of
+ * single patients can be replaced without evaluating the whole export again. <br/>
+ * <br/>
+ * The rows of the file are kept in patient id order. For every row the store has the patient id
+ * and the length of the row in characters, the row itself is only in the export file. The store
+ * also records what the file was generated from (the fingerprint of the export's definition), up
+ * to when the data in it is known to be current (the watermark) and the length and modification
+ * date of the file, so that a file written by anything else isn't mistaken for it. It is saved
+ * next to the export file.
+ *
+ * @see IncrementalDataExportRunner
+ * @since 3.0.0
+ */
+public class DataExportRowStore {
+	
+	private static final Log log = LogFactory.getLog(DataExportRowStore.class);
+	
+	private static final int FORMAT_VERSION = 1;
+	
+	private String fingerprint;
+	
+	private long watermark;
+	
+	private long fullRunDate;
+	
+	private int headerLength = 0;
+	
+	private long fileLength = -1;
+	
+	private long fileModified = -1;
+	
+	private int[] patientIds = new int[1024];
+	
+	private int[] rowLengths = new int[1024];
+	
+	private int rowCount = 0;
+	
+	/**
+	 * @param fingerprint identifies the definition the rows were generated from
+	 * @param watermark the time up to which the rows reflect the data
+	 * @param fullRunDate when all rows were last generated from scratch
+	 */
+	public DataExportRowStore(String fingerprint, long watermark, long fullRunDate) {
+		this.fingerprint = fingerprint;
+		this.watermark = watermark;
+		this.fullRunDate = fullRunDate;
+	}
+	
+	/**
+	 * @param exportFile the generated export file
+	 * @return the file the row store of the given export file is saved in
+	 */
+	public static File getStoreFile(File exportFile) {
+		return new File(exportFile.getParentFile(), exportFile.getName() + ".rows");
+	}
+	
+	/**
+	 * Reads a row store saved earlier
+	 *
+	 * @param file the file the store was saved to
+	 * @return the store, or null if there is none or it can't be read
+	 */
+	public static DataExportRowStore load(File file) {
+		if (!file.exists())
+			return null;
+		
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FORMAT_VERSION)
+					return null;
+				
+				DataExportRowStore store = new DataExportRowStore(in.readUTF(), in.readLong(), in.readLong());
+				store.setFile(in.readLong(), in.readLong());
+				store.setHeaderLength(in.readInt());
+				int count = in.readInt();
+				for (int i = 0; i < count; i++)
+					store.addRow(in.readInt(), in.readInt());
+				return store;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (Exception e) {
+			log.warn("Unable to read data export row store " + file + ", the export will be generated from scratch", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes this store to the given file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(fingerprint);
+			out.writeLong(watermark);
+			out.writeLong(fullRunDate);
+			out.writeLong(fileLength);
+			out.writeLong(fileModified);
+			out.writeInt(headerLength);
+			out.writeInt(rowCount);
+			for (int i = 0; i < rowCount; i++) {
+				out.writeInt(patientIds[i]);
+				out.writeInt(rowLengths[i]);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Adds the next row of the file
+	 *
+	 * @param patientId the patient of the row, greater than that of the previous row
+	 * @param length the length of the row in characters, including the line break
+	 */
+	public void addRow(int patientId, int length) {
+		if (rowCount > 0 && patientIds[rowCount - 1] >= patientId)
+			throw new IllegalArgumentException("Rows must be added in patient id order, " + patientId + " came after "
+			        + patientIds[rowCount - 1]);
+		
+		if (rowCount == patientIds.length) {
+			patientIds = Arrays.copyOf(patientIds, rowCount * 2);
+			rowLengths = Arrays.copyOf(rowLengths, rowCount * 2);
+		}
+		patientIds[rowCount] = patientId;
+		rowLengths[rowCount] = length;
+		rowCount++;
+	}
+	
+	/**
+	 * @param patientId
+	 * @return true if the file has a row for the given patient
+	 */
+	public boolean contains(int patientId) {
+		return Arrays.binarySearch(patientIds, 0, rowCount, patientId) >= 0;
+	}
+	
+	/**
+	 * @return the number of rows, not counting the header
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+	
+	/**
+	 * @param row the index of the row
+	 * @return the patient of the row
+	 */
+	public int getPatientId(int row) {
+		return patientIds[row];
+	}
+	
+	/**
+	 * @param row the index of the row
+	 * @return the length of the row in characters
+	 */
+	public int getRowLength(int row) {
+		return rowLengths[row];
+	}
+	
+	/**
+	 * @param exportFile the generated export file
+	 * @return true if the file is still the one the rows of this store were written to
+	 */
+	public boolean matches(File exportFile) {
+		return exportFile.exists() && exportFile.length() == fileLength && exportFile.lastModified() == fileModified;
+	}
+	
+	/**
+	 * Records the file the rows of this store were written to
+	 *
+	 * @param length the length of the file in bytes
+	 * @param modified when the file was last modified
+	 */
+	public void setFile(long length, long modified) {
+		this.fileLength = length;
+		this.fileModified = modified;
+	}
+	
+	/**
+	 * @return the length of the header in characters
+	 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+	
+	/**
+	 * @param headerLength the length of the header in characters
+	 */
+	public void setHeaderLength(int headerLength) {
+		this.headerLength = headerLength;
+	}
+	
+	/**
+	 * @return identifies the definition the rows were generated from
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * @return the time up to which the rows reflect the data
+	 */
+	public long getWatermark() {
+		return watermark;
+	}
+	
+	/**
+	 * @return when all rows were last generated from scratch
+	 */
+	public long getFullRunDate() {
+		return fullRunDate;
+	}
+
+}
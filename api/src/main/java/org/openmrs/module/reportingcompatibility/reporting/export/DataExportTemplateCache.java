@@ -0,0 +1,137 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.log.CommonsLogLogChute;
+import org.apache.velocity.runtime.parser.ParseException;
+
+/**
+ * Holds the velocity runtime shared by all data exports and the templates it has parsed. An
+ * export's templates are parsed the first time the export is run and reused by every batch and
+ * every later run, in any locale, until the export's columns change. <br/>
+ * <br/>
+ * Templates are keyed by the export id, a name for the part of the export and the hash of the
+ * template text, so a changed export simply gets new entries. The least recently used templates
+ * are dropped once there are more than {@link #MAX_TEMPLATES}.
+ *
+ * @since 3.0.0
+ */
+public class DataExportTemplateCache {
+	
+	private static final Log log = LogFactory.getLog(DataExportTemplateCache.class);
+	
+	public static final int MAX_TEMPLATES = 500;
+	
+	private static RuntimeInstance runtime = null;
+	
+	private static Map<String, CachedTemplate> templates = new LinkedHashMap<String, CachedTemplate>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedTemplate> eldest) {
+			return size() > MAX_TEMPLATES;
+		}
+	};
+	
+	/**
+	 * @return the velocity runtime used for data exports, initialized the first time it is asked
+	 *         for
+	 */
+	public static synchronized RuntimeInstance getRuntime() {
+		if (runtime == null) {
+			RuntimeInstance newRuntime = new RuntimeInstance();
+			newRuntime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+			    "org.apache.velocity.runtime.log.CommonsLogLogChute");
+			newRuntime.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "dataexport_velocity");
+			newRuntime.init();
+			runtime = newRuntime;
+		}
+		return runtime;
+	}
+	
+	/**
+	 * Gets the parsed template for the given text, parsing it if it isn't cached yet
+	 *
+	 * @param exportId the id of the export the template belongs to, may be null for unsaved exports
+	 * @param name the part of the export the template is for, like "header" or "column_3"
+	 * @param text the template itself
+	 * @return the parsed template, ready to be merged
+	 * @throws ParseException if the text is not a valid velocity template
+	 */
+	public static Template getTemplate(Integer exportId, String name, String text) throws ParseException {
+		String key = exportId + "|" + name + "|" + text.hashCode();
+		
+		synchronized (templates) {
+			CachedTemplate cached = templates.get(key);
+			// the text is compared too, a hash alone could collide
+			if (cached != null && cached.text.equals(text))
+				return cached.template;
+		}
+		
+		long start = System.currentTimeMillis();
+		RuntimeInstance ri = getRuntime();
+		String templateName = "dataExport_" + exportId + "_" + name;
+		
+		Template template = new Template();
+		template.setName(templateName);
+		template.setRuntimeServices(ri);
+		template.setData(ri.parse(new StringReader(text), templateName));
+		template.initDocument();
+		
+		if (log.isDebugEnabled())
+			log.debug("Parsed template " + key + " in " + (System.currentTimeMillis() - start) + " ms");
+		
+		synchronized (templates) {
+			templates.put(key, new CachedTemplate(text, template));
+		}
+		
+		return template;
+	}
+	
+	/**
+	 * Forgets all parsed templates and the runtime
+	 */
+	public static synchronized void clear() {
+		synchronized (templates) {
+			templates.clear();
+		}
+		runtime = null;
+	}
+	
+	/**
+	 * A parsed template along with the text it was parsed from
+	 */
+	private static class CachedTemplate {
+		
+		private String text;
+		
+		private Template template;
+		
+		public CachedTemplate(String text, Template template) {
+			this.text = text;
+			this.template = template;
+		}
+	}
+
+}
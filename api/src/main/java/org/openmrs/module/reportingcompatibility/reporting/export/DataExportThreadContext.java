@@ -0,0 +1,109 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.DaemonToken;
+
+/**
+ * Who the threads of a data export run as. Every thread gets a session of its own. Code run for a
+ * background job or a scheduled task runs as the daemon, in a daemon thread of its own, since the
+ * daemon's privileges belong to the daemon threads rather than to a user context that could be
+ * handed on. Code run for a user runs in that user's context.
+ *
+ * @see DataExportJobManager#setDaemonToken(DaemonToken)
+ * @since 3.0.0
+ */
+class DataExportThreadContext {
+	
+	// null to run as the daemon
+	private UserContext userContext;
+	
+	private Locale locale;
+	
+	/**
+	 * @param userContext the context to run in, null to run as the daemon
+	 * @param locale the locale to run in as the daemon
+	 */
+	DataExportThreadContext(UserContext userContext, Locale locale) {
+		this.userContext = userContext;
+		this.locale = locale;
+	}
+	
+	/**
+	 * @return the context of the current thread, to run more threads of the same export in
+	 */
+	static DataExportThreadContext getCurrent() {
+		return new DataExportThreadContext(Daemon.isDaemonThread() ? null : Context.getUserContext(), Context
+		        .getLocale());
+	}
+	
+	/**
+	 * Runs the given code in this context, in a new session, and waits for it
+	 *
+	 * @param callable
+	 * @return what the code returned
+	 * @throws Exception whatever the code threw
+	 * @throws APIException if the code has to run as the daemon and the module wasn't given a
+	 *             daemon token
+	 */
+	<T> T call(final Callable<T> callable) throws Exception {
+		if (userContext != null) {
+			Context.openSession();
+			try {
+				Context.setUserContext(userContext);
+				return callable.call();
+			}
+			finally {
+				Context.closeSession();
+			}
+		}
+		
+		DaemonToken token = DataExportJobManager.getDaemonToken();
+		if (token == null)
+			throw new APIException("Data exports can only run in the background once the module is started");
+		
+		final Object[] result = new Object[1];
+		final Throwable[] failure = new Throwable[1];
+		Daemon.runInDaemonThreadAndWait(new Runnable() {
+			
+			public void run() {
+				try {
+					Context.setLocale(locale);
+					result[0] = callable.call();
+				}
+				catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		}, token);
+		
+		if (failure[0] instanceof Exception)
+			throw (Exception) failure[0];
+		if (failure[0] instanceof Error)
+			throw (Error) failure[0];
+		if (failure[0] != null)
+			throw new APIException("Error while running as the daemon", failure[0]);
+		
+		@SuppressWarnings("unchecked")
+		T value = (T) result[0];
+		return value;
+	}
+}
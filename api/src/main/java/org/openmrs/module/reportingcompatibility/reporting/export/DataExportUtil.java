@@ -13,34 +13,56 @@
  */
 package org.openmrs.module.reportingcompatibility.reporting.export;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.app.event.MethodExceptionEventHandler;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.log.CommonsLogLogChute;
 import org.openmrs.cohort.Cohort;
 import org.openmrs.GlobalProperty;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.module.reportingcompatibility.reporting.ChannelWriter;
+import org.openmrs.module.reportingcompatibility.reporting.ConceptSetCache;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
 import org.openmrs.report.EvaluationContext;
 import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.reporting.export.ExportColumn;
+import org.openmrs.reporting.export.RowPerObsDataExportReportObject;
+import org.openmrs.reporting.export.SimpleColumn;
 import org.openmrs.util.OpenmrsUtil;
 
 public class DataExportUtil {
 	
 	private static Map<String, Object> dataExportKeys = new WeakHashMap<String, Object>();
 	
+	// the files being generated right now, no two runs may write the same file
+	private static Set<String> filesBeingGenerated = new HashSet<String>();
+	
 	/**
 	 * Allows a module or some other service to add things to the available keys in the velocity
 	 * context
@@ -93,6 +115,113 @@ public class DataExportUtil {
 		
 	}
 	
+	/**
+	 * Brings the generated files of the given exports up to date, regenerating only the rows of
+	 * patients that changed where possible
+	 * 
+	 * @param exports
+	 * @param context
+	 * @param fullRegenerationDays the number of days after which all rows are generated again,
+	 *            negative to never do that
+	 * @see #generateIncrementalExport(DataExportReportObject, EvaluationContext, int)
+	 * @since 3.0.0
+	 */
+	public static void generateIncrementalExports(List<DataExportReportObject> exports, EvaluationContext context,
+	                                              int fullRegenerationDays) {
+		
+		Log log = LogFactory.getLog(DataExportUtil.class);
+		
+		for (DataExportReportObject dataExport : exports) {
+			try {
+				generateIncrementalExport(dataExport, context, fullRegenerationDays);
+			}
+			catch (Exception e) {
+				log.warn("Error while generating export: " + dataExport, e);
+			}
+		}
+	}
+	
+	/**
+	 * Brings the generated file of the export up to date. Only the rows of patients whose data
+	 * changed since the last run, and of patients new to the export, are evaluated. Exports that
+	 * aren't compiled (like row per obs exports) are always generated in full.
+	 * 
+	 * @param dataExport
+	 * @param context
+	 * @param fullRegenerationDays the number of days after which all rows are generated again,
+	 *            negative to never do that
+	 * @return true if only the rows of changed patients were generated
+	 * @throws Exception
+	 * @see IncrementalDataExportRunner
+	 * @since 3.0.0
+	 */
+	public static boolean generateIncrementalExport(DataExportReportObject dataExport, EvaluationContext context,
+	                                                int fullRegenerationDays) throws Exception {
+		return generateIncrementalExport(dataExport, context, fullRegenerationDays, null);
+	}
+	
+	/**
+	 * @param dataExport
+	 * @param context
+	 * @param fullRegenerationDays
+	 * @param job the job generating the export, told about every batch, may be null
+	 * @return true if only the rows of changed patients were generated
+	 * @throws APIException if an export that isn't compiled failed, with the error written to its
+	 *             file
+	 * @throws Exception
+	 * @see #generateIncrementalExport(DataExportReportObject, EvaluationContext, int)
+	 * @since 3.0.0
+	 */
+	public static boolean generateIncrementalExport(DataExportReportObject dataExport, EvaluationContext context,
+	                                                int fullRegenerationDays, DataExportJob job) throws Exception {
+		if (!DataExportReportObject.class.equals(dataExport.getClass())) {
+			DataExportFunctions functions = new DataExportFunctions();
+			functions.setJob(job);
+			generateExport(dataExport, null, functions, context);
+			if (functions.getProfile().getError() != null && (job == null || !job.isCancelRequested()))
+				throw new APIException(functions.getProfile().getError());
+			return false;
+		}
+		
+		if (containsTemplateText(dataExport, null, "fn.getPatientAttr('Patient', 'tribe')")) {
+			throw new APIException(
+			        "Unable to generate export: "
+			                + dataExport.getName()
+			                + " because it contains a reference to an outdated 'tribe' column.  You must install the 'Tribe Module' into OpenMRS to continue to reference tribes in OpenMRS.");
+		}
+		
+		// the rows are merged by patient, so the patients have to be known up front
+		Cohort patientSet = dataExport.generatePatientSet(context);
+		if (patientSet == null)
+			patientSet = Context.getService(ReportingCompatibilityService.class).getPatientsAfter(null, null);
+		
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setPatientSet(patientSet);
+		functions.setJob(job);
+		functions.setBatchSize(getIntegerGlobalProperty(ReportingCompatibilityConstants.BATCH_SIZE_GP,
+		    ReportingCompatibilityConstants.BATCH_SIZE_GP_DEFAULT));
+		functions.planPrefetch(dataExport.getColumns());
+		functions.setPrefetchThreads(getIntegerGlobalProperty(ReportingCompatibilityConstants.PREFETCH_THREADS_GP,
+		    ReportingCompatibilityConstants.PREFETCH_THREADS_GP_DEFAULT));
+		
+		File file = getGeneratedFile(dataExport);
+		startGenerating(dataExport, file);
+		VelocityContext velocityContext = createVelocityContext(functions, patientSet);
+		try {
+			return new IncrementalDataExportRunner(dataExport, functions, velocityContext, file).run(patientSet,
+			    fullRegenerationDays);
+		}
+		finally {
+			velocityContext.remove("fn");
+			velocityContext.remove("patientSet");
+			functions.getProfile().finish();
+			functions.getProfile().logSummary(dataExport.getName());
+			saveProfile(functions.getProfile(), file);
+			functions.clear();
+			stopGenerating(file);
+		}
+	}
+	
 	/**
 	 * Generates a data export file given a data export (columns) and patient set (rows).
 	 * 
@@ -132,28 +261,157 @@ public class DataExportUtil {
 	 */
 	public static void generateExport(DataExportReportObject dataExport, Cohort patientSet, DataExportFunctions functions,
 	                                  EvaluationContext context) throws Exception {
+		File file = getGeneratedFile(dataExport);
+		startGenerating(dataExport, file);
+		try {
+			// the patients are part of the fingerprint, so they have to be known up front
+			if (patientSet == null) {
+				patientSet = dataExport.generatePatientSet(context);
+				functions.setPatientSet(patientSet);
+			}
+			
+			// an earlier run with the same definition, patients and data wrote the same file
+			String fingerprint = DataExportResultCache.getFingerprint(dataExport, patientSet, functions.getSeparator());
+			if (DataExportResultCache.get(fingerprint, file)) {
+				LogFactory.getLog(DataExportUtil.class).info(
+				    "Data export " + dataExport.getReportObjectId() + ": reused the file of an earlier run");
+				// the profile was of the run that generated the file, which is no longer the case
+				DataExportProfile.getProfileFile(file).delete();
+				if (functions.getJob() != null) {
+					streamGeneratedFile(file, functions.getJob());
+					int patients = patientSet != null ? patientSet.getSize() : Context.getService(
+					    ReportingCompatibilityService.class).getCountOfPatients();
+					functions.getJob().setPatientsTotal(patients);
+					functions.getJob().batchFinished(patients);
+				}
+				return;
+			}
+			
+			// compiled exports written to a plain file can be resumed after a restart
+			DataExportCheckpoint checkpoint = null;
+			if (DataExportReportObject.class.equals(dataExport.getClass()) && !isCompressing()) {
+				String runFingerprint = DataExportResultCache.getRunFingerprint(dataExport, patientSet, functions
+				        .getSeparator());
+				if (runFingerprint != null)
+					checkpoint = DataExportCheckpoint.open(file, runFingerprint, isForcingCheckpoints());
+			}
+			functions.setCheckpoint(checkpoint);
+			
+			Writer out = checkpoint != null ? checkpoint.getWriter() : newGeneratedFileWriter(file);
+			if (functions.getJob() != null && functions.getJob().getStreamWriter() != null) {
+				// the header and the rows up to the checkpoint of a resumed run are only in the file
+				if (checkpoint != null && checkpoint.isResumed())
+					streamGeneratedFile(file, functions.getJob());
+				out = new JobStreamWriter(out, functions.getJob());
+			}
+			try {
+				generateExport(dataExport, patientSet, functions, context, out);
+			}
+			finally {
+				out.close();
+			}
+			saveProfile(functions.getProfile(), file);
+			
+			// a failed run is resumed from its last checkpoint, a cancelled one starts over
+			if (checkpoint != null
+			        && (functions.getProfile().getError() == null || (functions.getJob() != null && functions.getJob()
+			                .isCancelRequested())))
+				checkpoint.delete();
+			
+			// files of failed or cancelled runs are only partly written
+			if (functions.getProfile().getError() == null
+			        && (functions.getJob() == null || !functions.getJob().isCancelRequested()))
+				DataExportResultCache.put(fingerprint, file);
+		}
+		finally {
+			stopGenerating(file);
+		}
+	}
+	
+	/**
+	 * Writes what the generated file holds so far to the stream writer of the given job, if it has
+	 * one
+	 * 
+	 * @see DataExportJob#getStreamWriter()
+	 */
+	private static void streamGeneratedFile(File file, DataExportJob job) throws IOException {
+		if (job.getStreamWriter() == null)
+			return;
 		
-		// defining log file here to attempt to reduce memory consumption
-		Log log = LogFactory.getLog(DataExportUtil.class);
-		
-		VelocityEngine velocityEngine = new VelocityEngine();
-
-        velocityEngine.setProperty( RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-                    "org.apache.velocity.runtime.log.CommonsLogLogChute" );
-        velocityEngine.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME,
-                        "dataexport_velocity");
-		
+		Reader in = newGeneratedFileReader(file);
 		try {
-			velocityEngine.init();
+			char[] buffer = new char[64 * 1024];
+			for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+				job.stream(buffer, 0, read);
 		}
-		catch (Exception e) {
-			log.error("Error initializing Velocity engine", e);
+		finally {
+			in.close();
+		}
+		job.flushStream();
+	}
+	
+	/**
+	 * Saves the profile of a run next to the generated file. A profile that can't be saved is
+	 * only logged, the export itself is fine.
+	 * 
+	 * @see DataExportProfile#getProfileFile(File)
+	 */
+	private static void saveProfile(DataExportProfile profile, File file) {
+		try {
+			profile.save(DataExportProfile.getProfileFile(file));
+		}
+		catch (IOException e) {
+			LogFactory.getLog(DataExportUtil.class).warn("Unable to save the profile of data export file " + file, e);
+		}
+	}
+	
+	/**
+	 * Claims the given file for a run of the export
+	 * 
+	 * @throws APIException if another run is writing the file already
+	 */
+	private static void startGenerating(DataExportReportObject dataExport, File file) {
+		synchronized (filesBeingGenerated) {
+			if (!filesBeingGenerated.add(file.getAbsolutePath()))
+				throw new APIException("The data export " + dataExport.getName() + " is already being generated");
 		}
+	}
+	
+	/**
+	 * Lets other runs write the given file again
+	 */
+	private static void stopGenerating(File file) {
+		synchronized (filesBeingGenerated) {
+			filesBeingGenerated.remove(file.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Generates a data export into the given writer instead of the generated file. The rows are
+	 * written batch by batch as they are evaluated, so the writer can be the output of an http
+	 * response. The writer is flushed but not closed.
+	 * 
+	 * @param dataExport
+	 * @param patientSet the patients to export or null for the patient set of the export
+	 * @param functions
+	 * @param context
+	 * @param out where the export is written to
+	 * @throws Exception
+	 * @since 3.0.0
+	 */
+	public static void generateExport(DataExportReportObject dataExport, Cohort patientSet, DataExportFunctions functions,
+	                                  EvaluationContext context, Writer out) throws Exception {
 		
-		File file = getGeneratedFile(dataExport);
-		PrintWriter report = new PrintWriter(file);
+		// defining log file here to attempt to reduce memory consumption
+		Log log = LogFactory.getLog(DataExportUtil.class);
 		
-		VelocityContext velocityContext = new VelocityContext();
+		// only used for reporting errors, the rows are written to the writer directly so that 
+		// a failing writer (like a closed http connection) stops the export
+		PrintWriter report = new PrintWriter(out);
+		
+		// the concept sets of the columns are expanded as they are now, not as they were up to 
+		// a minute ago
+		ConceptSetCache.refresh();
 		
 		// Set up list of patients if one wasn't passed into this method
 		if (patientSet == null) {
@@ -161,96 +419,181 @@ public class DataExportUtil {
 			functions.setPatientSet(patientSet);
 		}
 		
-		String sizeGp =Context.getAdministrationService().getGlobalProperty(ReportingCompatibilityConstants.BATCH_SIZE_GP);
-		Integer batchSize = ReportingCompatibilityConstants.BATCH_SIZE_GP_DEFAULT;
-		try {
-			batchSize = Integer.parseInt(sizeGp);
-		}
-		catch (Exception e) {
-			// Do nothing, just use the default
-		}
+		if (functions.getJob() != null)
+			functions.getJob().setPatientsTotal(patientSet != null ? patientSet.getSize() : Context.getService(
+			    ReportingCompatibilityService.class).getCountOfPatients());
+		
+		Integer batchSize = getIntegerGlobalProperty(ReportingCompatibilityConstants.BATCH_SIZE_GP,
+		    ReportingCompatibilityConstants.BATCH_SIZE_GP_DEFAULT);
 		functions.setBatchSize(batchSize);
 		
-		// add the error handler
-		EventCartridge ec = new EventCartridge();
-		ec.addEventHandler(new VelocityExceptionHandler());
-		velocityContext.attachEventCartridge(ec);
+		Integer threads = getIntegerGlobalProperty(ReportingCompatibilityConstants.THREADS_GP,
+		    ReportingCompatibilityConstants.THREADS_GP_DEFAULT);
 		
-		// Set up velocity utils
-		Locale locale = Context.getLocale();
-		velocityContext.put("locale", locale);
-		velocityContext.put("fn", functions);
+		// with a shared directory the other instances help generate compiled exports
+		File shardDir = ShardedDataExportRunner.getSharedDirectory();
+		Integer shards = getIntegerGlobalProperty(ReportingCompatibilityConstants.SHARDS_GP,
+		    ReportingCompatibilityConstants.SHARDS_GP_DEFAULT);
 		
-		/*
-		 * If we have any additional velocity objects that need to 
-		 * be added, do so here.
-		 */
-		if (dataExportKeys != null && dataExportKeys.size() != 0) {
-			for (Map.Entry<String, Object> entry : dataExportKeys.entrySet()) {
-				velocityContext.put(entry.getKey(), entry.getValue());
-			}
-		}
+		// with a memory budget the batch size is only a starting point, it is then adjusted to the 
+		// memory the batches turn out to keep. batches running side by side share the heap and 
+		// can't be told apart, so those keep the configured size
+		Integer memoryBudget = getIntegerGlobalProperty(ReportingCompatibilityConstants.MEMORY_BUDGET_GP,
+		    ReportingCompatibilityConstants.MEMORY_BUDGET_GP_DEFAULT);
+		if (memoryBudget > 0 && threads <= 1 && (shardDir == null || shards <= 1))
+			functions.setBatchSizer(new AdaptiveBatchSizer(batchSize, memoryBudget));
 		
-		velocityContext.put("patientSet", patientSet);
+		// work out what the columns need so every batch can fetch it up front
+		functions.planPrefetch(dataExport.getColumns());
+		functions.setPrefetchThreads(getIntegerGlobalProperty(ReportingCompatibilityConstants.PREFETCH_THREADS_GP,
+		    ReportingCompatibilityConstants.PREFETCH_THREADS_GP_DEFAULT));
 		
-		String template = dataExport.generateTemplate();
+		VelocityContext velocityContext = createVelocityContext(functions, patientSet);
+		
+		// plain exports are compiled into column writers and row per obs exports stream their 
+		// obs past compiled columns, other subclasses with their own template still go through velocity
+		boolean compiled = DataExportReportObject.class.equals(dataExport.getClass());
+		boolean rowPerObs = RowPerObsDataExportReportObject.class.equals(dataExport.getClass());
+		String template = compiled || rowPerObs ? null : dataExport.generateTemplate();
+		
+		// only batches written one after the other can be resumed
+		if (functions.getCheckpoint() != null && (!compiled || (shardDir != null && shards > 1) || threads > 1)) {
+			functions.getCheckpoint().restart();
+			functions.setCheckpoint(null);
+		}
 		
 		// check if some deprecated columns are being used in this export
 		// warning: hacky.
-		if (template.contains("fn.getPatientAttr('Patient', 'tribe')")) {
+		if (containsTemplateText(dataExport, template, "fn.getPatientAttr('Patient', 'tribe')")) {
 			throw new APIException(
 			        "Unable to generate export: "
 			                + dataExport.getName()
 			                + " because it contains a reference to an outdated 'tribe' column.  You must install the 'Tribe Module' into OpenMRS to continue to reference tribes in OpenMRS.");
 		}
 		
-		if (log.isDebugEnabled())
+		if (log.isDebugEnabled() && template != null)
 			log.debug("Template: " + template.substring(0, template.length() < 3500 ? template.length() : 3500) + "...");
 		
 		try {
-			velocityEngine.evaluate(velocityContext, report, DataExportUtil.class.getName(), template);
+			// the velocity runtime and the parsed templates are shared by all runs of all exports
+			if (compiled && shardDir != null && shards > 1)
+				new ShardedDataExportRunner(dataExport, functions, velocityContext, shards, shardDir).run(out);
+			else if (compiled && threads > 1)
+				new ParallelDataExportRunner(dataExport, functions, velocityContext, threads, getGeneratedFile(
+				    dataExport).getParentFile()).run(out);
+			else if (compiled)
+				new DataExportPipeline(dataExport, velocityContext).run(functions, out);
+			else if (rowPerObs)
+				new RowPerObsDataExportRunner((RowPerObsDataExportReportObject) dataExport, functions, velocityContext).run(
+				    patientSet, out);
+			else
+				DataExportTemplateCache.getTemplate(dataExport.getReportObjectId(), "template", template).merge(
+				    velocityContext, out);
 		}
 		catch (Exception e) {
+			functions.getProfile().setError(e.toString());
 			log.error("Error evaluating data export " + dataExport.getReportObjectId(), e);
-			log.error("Template: " + template.substring(0, template.length() < 3500 ? template.length() : 3500) + "...");
+			if (template != null)
+				log.error("Template: " + template.substring(0, template.length() < 3500 ? template.length() : 3500) + "...");
 			report.print("\n\nError: \n" + e.toString() + "\n Stacktrace: \n");
 			e.printStackTrace(report);
 		}
 		finally {
-			report.close();
+			report.flush();
 			velocityContext.remove("fn");
 			velocityContext.remove("patientSet");
 			velocityContext = null;
 			
-			// reset the ParserPool to something else now?
-			// using this to get to RuntimeInstance.init();
-			velocityEngine.init();
-			
-			velocityEngine = null;
-			
+			functions.getProfile().finish();
+			functions.getProfile().logSummary(dataExport.getName());
 			patientSet = null;
+			// also evicts the entities of the last batch from the hibernate session
 			functions.clear();
 			functions = null;
 			template = null;
 			dataExport = null;
-			log.debug("Clearing hibernate session");
-			Context.clearSession();
-			
-			// clear out the excess objects
-			System.gc();
-			System.gc();
 		}
 		
 	}
 	
+	/**
+	 * Sets up a velocity context for evaluating the templates of a data export
+	 * 
+	 * @param functions the functions class, available as <code>$fn</code>
+	 * @param patientSet the patients of the export, available as <code>$patientSet</code>
+	 * @return the new context, with the error handler and any added data export keys
+	 */
+	public static VelocityContext createVelocityContext(DataExportFunctions functions, Cohort patientSet) {
+		VelocityContext velocityContext = new VelocityContext();
+		
+		// add the error handler
+		EventCartridge ec = new EventCartridge();
+		ec.addEventHandler(new VelocityExceptionHandler());
+		velocityContext.attachEventCartridge(ec);
+		
+		// Set up velocity utils
+		Locale locale = Context.getLocale();
+		velocityContext.put("locale", locale);
+		velocityContext.put("fn", functions);
+		
+		/*
+		 * If we have any additional velocity objects that need to 
+		 * be added, do so here.
+		 */
+		if (dataExportKeys != null && dataExportKeys.size() != 0) {
+			for (Map.Entry<String, Object> entry : dataExportKeys.entrySet()) {
+				velocityContext.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		velocityContext.put("patientSet", patientSet);
+		
+		return velocityContext;
+	}
+	
+	/**
+	 * @return the value of the given global property as a number, or the default if it isn't set
+	 *         or isn't a number
+	 */
+	static Integer getIntegerGlobalProperty(String property, Integer defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(property);
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (Exception e) {
+			// Do nothing, just use the default
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Checks the template of the export for the given text. If the template wasn't generated, only
+	 * the expressions of the simple and calculated columns are checked.
+	 * 
+	 * @param dataExport the export to check
+	 * @param template the template of the export or null
+	 * @param text the text to look for
+	 * @return true if the text was found
+	 */
+	private static boolean containsTemplateText(DataExportReportObject dataExport, String template, String text) {
+		if (template != null)
+			return template.contains(text);
+		
+		for (ExportColumn column : dataExport.getColumns()) {
+			if (column instanceof SimpleColumn && column.toTemplateString() != null
+			        && column.toTemplateString().contains(text))
+				return true;
+		}
+		return false;
+	}
+	
 	/**
 	 * Returns the path and name of the generated file
 	 * 
 	 * @param dataExport
 	 */
 	public static File getGeneratedFile(DataExportReportObject dataExport) {
-		File dir = new File(OpenmrsUtil.getApplicationDataDirectory(), "dataExports");
-		dir.mkdirs();
+		File dir = getGeneratedFileDirectory();
 		
 		String filename = dataExport.getName().replace(" ", "_");
 		filename = filename.replace("/", "_");
@@ -262,6 +605,122 @@ public class DataExportUtil {
 		return file;
 	}
 	
+	/**
+	 * @return the directory the generated files are written to
+	 * @since 3.0.0
+	 */
+	public static File getGeneratedFileDirectory() {
+		File dir = new File(OpenmrsUtil.getApplicationDataDirectory(), "dataExports");
+		dir.mkdirs();
+		return dir;
+	}
+	
+	/**
+	 * Gets the patients of a cohort in the order of their ids. Cohorts made by filters can keep
+	 * their members in a hash set, but batches, checkpoints, row stores and fingerprints all rely
+	 * on the ids going up.
+	 * 
+	 * @param patientSet
+	 * @return a new list of the member ids in ascending order
+	 * @since 3.0.0
+	 */
+	public static List<Integer> getSortedMemberIds(Cohort patientSet) {
+		List<Integer> patientIds = new ArrayList<Integer>(patientSet.getMemberIds());
+		Collections.sort(patientIds);
+		return patientIds;
+	}
+	
+	/**
+	 * Opens a generated file for writing, gzipped if the compression global property asks for it
+	 * 
+	 * @param file the file to write, replaced if it exists
+	 * @return a buffered writer, closing it finishes the file
+	 * @throws IOException
+	 * @see ReportingCompatibilityConstants#COMPRESSION_GP
+	 * @since 3.0.0
+	 */
+	public static Writer newGeneratedFileWriter(File file) throws IOException {
+		return newGeneratedFileWriter(file, isCompressing());
+	}
+	
+	/**
+	 * @return true unless the force checkpoints global property is false
+	 */
+	private static boolean isForcingCheckpoints() {
+		String force = Context.getAdministrationService().getGlobalProperty(
+		    ReportingCompatibilityConstants.FORCE_CHECKPOINTS_GP, ReportingCompatibilityConstants.FORCE_CHECKPOINTS_GP_DEFAULT);
+		return !"false".equalsIgnoreCase(force.trim());
+	}
+	
+	/**
+	 * @return true if the compression global property asks for gzipped files
+	 */
+	private static boolean isCompressing() {
+		String compression = Context.getAdministrationService().getGlobalProperty(
+		    ReportingCompatibilityConstants.COMPRESSION_GP, ReportingCompatibilityConstants.COMPRESSION_GP_DEFAULT);
+		return "gzip".equalsIgnoreCase(compression.trim());
+	}
+	
+	/**
+	 * @param file the file to write, replaced if it exists
+	 * @param compress true to gzip the file
+	 * @return a buffered writer of UTF-8 text, closing it finishes the file
+	 * @throws IOException
+	 * @see ChannelWriter
+	 * @since 3.0.0
+	 */
+	public static Writer newGeneratedFileWriter(File file, boolean compress) throws IOException {
+		if (!compress)
+			return ChannelWriter.open(file, false);
+		
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(file), 64 * 1024);
+		return new ChannelWriter(out, ChannelWriter.UTF8, ChannelWriter.DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Opens a generated file for reading, unzipping it if it was gzipped. Files are recognized by
+	 * their content, so files written before the compression was changed can still be read.
+	 * 
+	 * @param file a file written by {@link #newGeneratedFileWriter(File)}
+	 * @return a buffered reader of the text of the file
+	 * @throws IOException
+	 * @since 3.0.0
+	 */
+	public static Reader newGeneratedFileReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(openGeneratedFile(file), ChannelWriter.UTF8), 64 * 1024);
+	}
+	
+	/**
+	 * @param file a file written by {@link #newGeneratedFileWriter(File)}
+	 * @return the uncompressed bytes of the file
+	 * @throws IOException
+	 * @since 3.0.0
+	 */
+	public static InputStream openGeneratedFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (isCompressed(file))
+			return new GZIPInputStream(in, 64 * 1024);
+		return new BufferedInputStream(in, 64 * 1024);
+	}
+	
+	/**
+	 * @param file a generated file
+	 * @return true if the file is gzipped. A data export never starts with the gzip magic bytes.
+	 * @throws IOException
+	 * @since 3.0.0
+	 */
+	public static boolean isCompressed(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int b1 = in.read();
+			int b2 = in.read();
+			return b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
 	/**
 	 * Private class used for velocity error masking
 	 */
@@ -0,0 +1,290 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.VelocityContext;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.reporting.export.DataExportReportObject;
+
+/**
+ * Regenerates only the rows of a compiled data export whose patients changed since the last run.
+ * <br/>
+ * <br/>
+ * The {@link DataExportRowStore} saved next to the export file says which patient each row belongs
+ * to and up to when the rows are current. A run evaluates the rows of the patients that changed
+ * since then and of the patients new to the export, and merges them with the unchanged rows of the
+ * previous file into a new file. Rows of patients no longer in the export are dropped. <br/>
+ * <br/>
+ * All rows are generated from scratch when there is no usable row store, when the export's columns
+ * changed, or when the last full run is older than the given number of days. The latter matters
+ * for columns that change with time alone, like ages or current drug orders, and for cohort
+ * membership columns, which the change detection doesn't see.
+ *
+ * @see ReportingCompatibilityService#getPatientsChangedSince(Date)
+ * @since 3.0.0
+ */
+public class IncrementalDataExportRunner {
+	
+	private static final Log log = LogFactory.getLog(IncrementalDataExportRunner.class);
+	
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	
+	private DataExportReportObject dataExport;
+	
+	private DataExportFunctions functions;
+	
+	private VelocityContext velocityContext;
+	
+	private File file;
+	
+	/**
+	 * @param dataExport the export to run, a plain data export
+	 * @param functions the functions class, with the batch size and the separator set and the
+	 *            prefetch planned
+	 * @param velocityContext the context for the velocity columns
+	 * @param file the generated export file
+	 */
+	public IncrementalDataExportRunner(DataExportReportObject dataExport, DataExportFunctions functions,
+	    VelocityContext velocityContext, File file) {
+		this.dataExport = dataExport;
+		this.functions = functions;
+		this.velocityContext = velocityContext;
+		this.file = file;
+	}
+	
+	/**
+	 * Brings the export file up to date
+	 *
+	 * @param patientSet all patients of the export
+	 * @param fullRegenerationDays the number of days after which all rows are generated from
+	 *            scratch again, negative to never do that
+	 * @return true if only the rows of changed patients were generated, false if all were
+	 * @throws Exception
+	 */
+	public boolean run(Cohort patientSet, int fullRegenerationDays) throws Exception {
+		// anything changed from now on is picked up by the next run
+		long runStart = System.currentTimeMillis();
+		String fingerprint = getFingerprint();
+		File storeFile = DataExportRowStore.getStoreFile(file);
+		
+		// the file may have been generated in full since, without a row store
+		DataExportRowStore oldStore = DataExportRowStore.load(storeFile);
+		if (oldStore != null && !oldStore.matches(file))
+			oldStore = null;
+		if (oldStore != null && !fingerprint.equals(oldStore.getFingerprint())) {
+			log.debug("The columns of data export " + dataExport.getReportObjectId() + " changed");
+			oldStore = null;
+		}
+		if (oldStore != null && fullRegenerationDays >= 0
+		        && runStart - oldStore.getFullRunDate() >= fullRegenerationDays * DAY)
+			oldStore = null;
+		
+		// the row stores and the merge need the rows in ascending patient id order, which a cohort
+		// built by a filter doesn't keep
+		List<Integer> patientIds = DataExportUtil.getSortedMemberIds(patientSet);
+		List<Integer> changedPatientIds = new ArrayList<Integer>();
+		if (oldStore == null) {
+			changedPatientIds.addAll(patientIds);
+		} else {
+			Cohort changed = Context.getService(ReportingCompatibilityService.class).getPatientsChangedSince(
+			    new Date(oldStore.getWatermark()));
+			for (Integer patientId : patientIds) {
+				if (changed.contains(patientId) || !oldStore.contains(patientId))
+					changedPatientIds.add(patientId);
+			}
+		}
+		
+		if (functions.getJob() != null)
+			functions.getJob().setPatientsTotal(changedPatientIds.size());
+		
+		DataExportRowStore newStore = new DataExportRowStore(fingerprint, runStart, oldStore == null ? runStart
+		        : oldStore.getFullRunDate());
+		File rowsFile = File.createTempFile("dataExport", ".part", file.getParentFile());
+		File mergedFile = File.createTempFile("dataExport", ".merge", file.getParentFile());
+		try {
+			DataExportPipeline pipeline = new DataExportPipeline(dataExport, velocityContext);
+			StringWriter header = new StringWriter();
+			pipeline.writeHeader(header);
+			
+			DataExportRowStore changedRows = writeRows(pipeline, changedPatientIds, rowsFile);
+			merge(header.toString(), oldStore, changedRows, rowsFile, patientSet, mergedFile, newStore);
+			
+			// without a row store the next run starts from scratch, so a failure from here on
+			// can't mix up the rows of two runs
+			storeFile.delete();
+			Files.move(mergedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			newStore.setFile(file.length(), file.lastModified());
+			newStore.save(storeFile);
+		}
+		finally {
+			rowsFile.delete();
+			mergedFile.delete();
+		}
+		
+		log.info("Data export " + dataExport.getReportObjectId() + ": generated " + changedPatientIds.size() + " of "
+		        + newStore.getRowCount() + " rows in " + (System.currentTimeMillis() - runStart) + " ms"
+		        + (oldStore == null ? " from scratch" : ""));
+		
+		return oldStore != null;
+	}
+	
+	/**
+	 * Writes the rows of the given patients to the given file, batch by batch
+	 *
+	 * @param patientIds the patients, in ascending order
+	 * @return which patient each written row belongs to
+	 */
+	private DataExportRowStore writeRows(DataExportPipeline pipeline, List<Integer> patientIds, File rowsFile)
+	        throws Exception {
+		DataExportRowStore rows = new DataExportRowStore("", 0, 0);
+		StringWriter row = new StringWriter();
+		
+		Writer out = DataExportUtil.newGeneratedFileWriter(rowsFile, false);
+		try {
+			int batchIndex = 0;
+			for (int start = 0; start < patientIds.size(); start += functions.batchSize, batchIndex++) {
+				if (functions.getJob() != null)
+					functions.getJob().checkCancelled();
+				
+				List<Integer> batch = patientIds.subList(start, Math.min(start + functions.batchSize, patientIds.size()));
+				functions.setPatientSetBatch(new Cohort(batch));
+				velocityContext.put("batchIndex", batchIndex);
+				
+				long batchStart = System.currentTimeMillis();
+				for (Integer patientId : batch) {
+					row.getBuffer().setLength(0);
+					pipeline.writeRow(functions, patientId, row);
+					out.write(row.toString());
+					rows.addRow(patientId, row.getBuffer().length());
+				}
+				pipeline.endBatch(functions, batchIndex, batch.size(), System.currentTimeMillis() - batchStart);
+				
+				if (functions.getJob() != null)
+					functions.getJob().batchFinished(batch.size());
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Writes the new export file: the header, then the changed rows and the unchanged rows of the
+	 * previous file in patient id order
+	 *
+	 * @param header the header line
+	 * @param oldStore the rows of the previous file, null if there are none to keep
+	 * @param changedRows the rows of the changed patients
+	 * @param rowsFile the file holding the changed rows
+	 * @param patientSet all patients of the export
+	 * @param mergedFile the file to write
+	 * @param merged where the rows of the new file are recorded
+	 */
+	private void merge(String header, DataExportRowStore oldStore, DataExportRowStore changedRows, File rowsFile,
+	                   Cohort patientSet, File mergedFile, DataExportRowStore merged) throws IOException {
+		char[] buffer = new char[64 * 1024];
+		// the rows are counted in characters, so they line up in the compressed files too
+		Writer out = DataExportUtil.newGeneratedFileWriter(mergedFile);
+		Reader changedIn = DataExportUtil.newGeneratedFileReader(rowsFile);
+		Reader oldIn = oldStore == null ? null : DataExportUtil.newGeneratedFileReader(file);
+		try {
+			out.write(header);
+			merged.setHeaderLength(header.length());
+			
+			int oldCount = 0;
+			if (oldStore != null) {
+				copy(oldIn, null, oldStore.getHeaderLength(), buffer);
+				oldCount = oldStore.getRowCount();
+			}
+			
+			int i = 0;
+			int j = 0;
+			while (i < oldCount || j < changedRows.getRowCount()) {
+				long oldId = i < oldCount ? oldStore.getPatientId(i) : Long.MAX_VALUE;
+				long changedId = j < changedRows.getRowCount() ? changedRows.getPatientId(j) : Long.MAX_VALUE;
+				
+				if (changedId <= oldId) {
+					copy(changedIn, out, changedRows.getRowLength(j), buffer);
+					merged.addRow(changedRows.getPatientId(j), changedRows.getRowLength(j));
+					j++;
+					
+					// the previous row of a changed patient is replaced
+					if (changedId == oldId)
+						copy(oldIn, null, oldStore.getRowLength(i++), buffer);
+				} else {
+					// patients no longer in the export lose their row
+					if (patientSet.contains(oldStore.getPatientId(i))) {
+						copy(oldIn, out, oldStore.getRowLength(i), buffer);
+						merged.addRow(oldStore.getPatientId(i), oldStore.getRowLength(i));
+					} else {
+						copy(oldIn, null, oldStore.getRowLength(i), buffer);
+					}
+					i++;
+				}
+			}
+		}
+		finally {
+			out.close();
+			changedIn.close();
+			if (oldIn != null)
+				oldIn.close();
+		}
+	}
+	
+	/**
+	 * Copies the given number of characters, or skips them if <code>out</code> is null
+	 */
+	private static void copy(Reader in, Writer out, int count, char[] buffer) throws IOException {
+		while (count > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, count));
+			if (read == -1)
+				throw new IOException("The data export file is shorter than its row store says");
+			if (out != null)
+				out.write(buffer, 0, read);
+			count -= read;
+		}
+	}
+	
+	/**
+	 * @return a hash of everything that decides what the rows look like, the locale included since
+	 *         it decides the names and formats written
+	 */
+	private String getFingerprint() throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(dataExport.generateTemplate().getBytes("UTF-8"));
+		digest.update(String.valueOf(functions.getSeparator()).getBytes("UTF-8"));
+		digest.update(String.valueOf(Context.getLocale()).getBytes("UTF-8"));
+		return new BigInteger(1, digest.digest()).toString(16);
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the generated file of a job and passes everything written on to the stream writer of
+ * the job as well. The file comes first: writing to the stream writer never fails the export, the
+ * job just stops streaming.
+ * 
+ * @see DataExportJob#getStreamWriter()
+ * @since 3.0.0
+ */
+class JobStreamWriter extends Writer {
+	
+	private Writer out;
+	
+	private DataExportJob job;
+	
+	/**
+	 * @param out the writer of the generated file
+	 * @param job the job generating the file
+	 */
+	public JobStreamWriter(Writer out, DataExportJob job) {
+		this.out = out;
+		this.job = job;
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		out.write(cbuf, off, len);
+		job.stream(cbuf, off, len);
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		job.flushStream();
+	}
+	
+	/**
+	 * Closes the file, the stream writer belongs to whoever gave it to the job
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			out.close();
+		}
+		finally {
+			job.flushStream();
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.VelocityContext;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.reporting.export.DataExportReportObject;
+
+/**
+ * Runs the batches of a compiled data export on several threads at once. <br/>
+ * <br/>
+ * The calling thread splits the patients into batches and queues them. Every worker thread has its
+ * own hibernate session, {@link DataExportFunctions} and {@link DataExportPipeline}, and writes the
+ * rows of each batch it takes to a temporary file. The calling thread appends those files to the
+ * export in batch order, so the result is the same as running the batches one after the other.
+ * Only a few batches are queued or waiting to be appended at any time. The calling thread never
+ * waits on the workers without checking every few seconds that some of them are still running.
+ *
+ * @see DataExportPipeline
+ * @since 3.0.0
+ */
+public class ParallelDataExportRunner {
+	
+	private static final Log log = LogFactory.getLog(ParallelDataExportRunner.class);
+	
+	// tells a worker there are no more batches
+	private static final BatchJob END = new BatchJob(-1, null, null);
+	
+	// how often the calling thread checks on the workers while waiting for them
+	private static final long WAIT_SECONDS = 5;
+	
+	private DataExportReportObject dataExport;
+	
+	private DataExportFunctions functions;
+	
+	private VelocityContext velocityContext;
+	
+	private int threads;
+	
+	private File tempDir;
+	
+	// counted down by every worker thread that stops, for whatever reason
+	private CountDownLatch workersStopped;
+	
+	// what made a worker stop other than running out of batches
+	private volatile Throwable workerFailure = null;
+	
+	// set once the calling thread is done with the workers, whether they finished or not
+	private volatile boolean stopped = false;
+	
+	/**
+	 * @param dataExport the export to run
+	 * @param functions the functions class of the calling thread, holding the patients to export
+	 *            (null for all), the batch size and the separator
+	 * @param velocityContext the context of the calling thread, used for the header
+	 * @param threads the number of worker threads
+	 * @param tempDir where the rows of each batch are kept until they are appended
+	 */
+	public ParallelDataExportRunner(DataExportReportObject dataExport, DataExportFunctions functions,
+	    VelocityContext velocityContext, int threads, File tempDir) {
+		this.dataExport = dataExport;
+		this.functions = functions;
+		this.velocityContext = velocityContext;
+		this.threads = threads;
+		this.tempDir = tempDir;
+	}
+	
+	/**
+	 * Writes the header and all rows of the export
+	 *
+	 * @param out where the export is written to
+	 * @throws Exception the first error of any of the batches
+	 */
+	public void run(Writer out) throws Exception {
+		new DataExportPipeline(dataExport, velocityContext).writeHeader(out);
+		
+		BlockingQueue<BatchJob> queue = new ArrayBlockingQueue<BatchJob>(threads);
+		LinkedList<BatchJob> pending = new LinkedList<BatchJob>();
+		
+		final String threadName = "DataExport-" + dataExport.getReportObjectId() + "-";
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			
+			private int count = 0;
+			
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadName + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		try {
+			DataExportThreadContext threadContext = DataExportThreadContext.getCurrent();
+			workersStopped = new CountDownLatch(threads);
+			for (int i = 0; i < threads; i++)
+				executor.execute(new Worker(queue, threadContext));
+			
+			BatchSplitter splitter = new BatchSplitter(functions.getPatientSet(), functions.batchSize);
+			int batchIndex = 0;
+			Cohort batch;
+			while (!(batch = splitter.next()).isEmpty()) {
+				if (functions.getJob() != null)
+					functions.getJob().checkCancelled();
+				
+				BatchJob job = new BatchJob(batchIndex++, batch, File.createTempFile("dataExport", ".part", tempDir));
+				pending.add(job);
+				enqueue(queue, job);
+				
+				// don't let finished batches pile up on disk
+				while (pending.size() > threads * 2)
+					append(pending.removeFirst(), out);
+			}
+			
+			for (int i = 0; i < threads; i++)
+				enqueue(queue, END);
+			
+			while (!pending.isEmpty())
+				append(pending.removeFirst(), out);
+		}
+		finally {
+			stopped = true;
+			executor.shutdownNow();
+			for (BatchJob job : pending)
+				job.file.delete();
+		}
+	}
+	
+	/**
+	 * Queues the given batch, waiting for room on the queue as long as there are workers to take it
+	 */
+	private void enqueue(BlockingQueue<BatchJob> queue, BatchJob job) throws Exception {
+		while (!queue.offer(job, WAIT_SECONDS, TimeUnit.SECONDS))
+			checkWorkers();
+	}
+	
+	/**
+	 * @throws APIException if all workers have stopped, so nothing queued will ever be done
+	 */
+	private void checkWorkers() {
+		if (functions.getJob() != null)
+			functions.getJob().checkCancelled();
+		if (workersStopped.getCount() == 0)
+			throw new APIException("All worker threads of data export " + dataExport.getReportObjectId()
+			        + " have stopped", workerFailure);
+	}
+	
+	/**
+	 * Waits for the given batch and appends its rows to the export
+	 */
+	private void append(BatchJob job, Writer out) throws Exception {
+		try {
+			while (!job.done.await(WAIT_SECONDS, TimeUnit.SECONDS))
+				checkWorkers();
+			if (job.error instanceof Exception)
+				throw (Exception) job.error;
+			if (job.error != null)
+				throw new APIException("Batch " + job.index + " of data export " + dataExport.getReportObjectId()
+				        + " failed", job.error);
+			
+			Reader reader = DataExportUtil.newGeneratedFileReader(job.file);
+			try {
+				char[] buffer = new char[64 * 1024];
+				int read;
+				while ((read = reader.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			job.file.delete();
+		}
+		
+		if (functions.getJob() != null)
+			functions.getJob().batchFinished(job.patients.getSize());
+		
+		if (log.isDebugEnabled())
+			log.debug("Appended batch " + job.index + " with " + job.patients.getSize() + " patients");
+	}
+	
+	/**
+	 * One batch of patients and the file its rows go to
+	 */
+	private static class BatchJob {
+		
+		private int index;
+		
+		private Cohort patients;
+		
+		private File file;
+		
+		private CountDownLatch done = new CountDownLatch(1);
+		
+		private Throwable error = null;
+		
+		public BatchJob(int index, Cohort patients, File file) {
+			this.index = index;
+			this.patients = patients;
+			this.file = file;
+		}
+	}
+	
+	/**
+	 * Cuts the patients of the export into batches, in patient order when exporting all patients
+	 */
+	private static class BatchSplitter {
+		
+		private List<Integer> patientIds = null;
+		
+		private int nextStart = 0;
+		
+		private Integer lastPatientId = null;
+		
+		private int batchSize;
+		
+		public BatchSplitter(Cohort patientSet, int batchSize) {
+			if (patientSet != null)
+				patientIds = DataExportUtil.getSortedMemberIds(patientSet);
+			this.batchSize = batchSize;
+		}
+		
+		/**
+		 * @return the next batch, empty once all patients have been handed out
+		 */
+		public Cohort next() {
+			if (patientIds != null) {
+				int end = Math.min(nextStart + batchSize, patientIds.size());
+				Cohort batch = nextStart >= end ? new Cohort() : new Cohort(patientIds.subList(nextStart, end));
+				nextStart = end;
+				return batch;
+			}
+			
+			Cohort batch = Context.getService(ReportingCompatibilityService.class).getPatientsAfter(lastPatientId,
+			    batchSize);
+			if (!batch.isEmpty())
+				lastPatientId = Collections.max(batch.getMemberIds());
+			return batch;
+		}
+	}
+	
+	/**
+	 * Takes batches off the queue until it gets {@link ParallelDataExportRunner#END} or the export
+	 * stops
+	 */
+	private class Worker implements Runnable {
+		
+		private BlockingQueue<BatchJob> queue;
+		
+		private DataExportThreadContext threadContext;
+		
+		public Worker(BlockingQueue<BatchJob> queue, DataExportThreadContext threadContext) {
+			this.queue = queue;
+			this.threadContext = threadContext;
+		}
+		
+		public void run() {
+			try {
+				threadContext.call(new Callable<Object>() {
+					
+					public Object call() throws Exception {
+						work();
+						return null;
+					}
+				});
+			}
+			catch (InterruptedException e) {
+				// the export was stopped
+			}
+			catch (Throwable t) {
+				log.error("A worker thread of data export " + dataExport.getReportObjectId() + " failed", t);
+				workerFailure = t;
+			}
+			finally {
+				workersStopped.countDown();
+			}
+		}
+		
+		private void work() throws InterruptedException {
+			DataExportFunctions fn = null;
+			DataExportPipeline pipeline = null;
+			Throwable setupError = null;
+			try {
+				fn = new DataExportFunctions();
+				fn.setSeparator(functions.getSeparator());
+				// the plan and the profile are shared so the time spent by all threads adds up, the
+				// cohort members and names so they are only looked up once
+				fn.setPrefetchPlan(functions.getPrefetchPlan());
+				fn.setProfile(functions.getProfile());
+				fn.setCohortMembership(functions.getCohortMembership());
+				fn.setNameDictionary(functions.getNameDictionary());
+				fn.setPrefetchThreads(functions.getPrefetchThreads());
+				pipeline = new DataExportPipeline(dataExport, DataExportUtil.createVelocityContext(fn, functions
+				        .getPatientSet()));
+			}
+			catch (Throwable t) {
+				setupError = t;
+			}
+			
+			while (true) {
+				// a daemon thread isn't interrupted when the export stops, so it looks for itself
+				BatchJob job = queue.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+				if (job == null && stopped)
+					break;
+				if (job == null)
+					continue;
+				if (job == END)
+					break;
+				
+				try {
+					if (setupError != null)
+						throw setupError;
+					
+					Writer out = DataExportUtil.newGeneratedFileWriter(job.file, false);
+					try {
+						fn.setPatientSetBatch(job.patients);
+						pipeline.writeRows(fn, job.index, out);
+					}
+					finally {
+						out.close();
+					}
+				}
+				catch (Throwable t) {
+					log.error("Error while writing batch " + job.index + " of data export "
+					        + dataExport.getReportObjectId(), t);
+					job.error = t;
+				}
+				finally {
+					job.done.countDown();
+				}
+			}
+			
+			if (fn != null)
+				fn.clear();
+		}
+	}
+
+}
@@ -0,0 +1,244 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.VelocityContext;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTableHandler;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.reporting.export.RowPerObsColumn;
+import org.openmrs.reporting.export.RowPerObsDataExportReportObject;
+
+/**
+ * Runs a {@link RowPerObsDataExportReportObject} over a single forward-only cursor on the obs of
+ * its row per obs column, ordered by patient and obs datetime, instead of loading every obs of a
+ * patient set into lists first. <br/>
+ * <br/>
+ * The simple, calculated and cohort columns are compiled by a {@link DataExportPipeline} and fed
+ * from the maps the functions class prefetches batch by batch. They are written once per patient
+ * and repeated in front of every obs of that patient as the obs stream past, so the memory used
+ * doesn't depend on the number of obs. The batches are moved along with the cursor, and patients
+ * without obs still get a line of their own, as they did with the velocity template.
+ *
+ * @see ReportingCompatibilityService#scrollObservationValues(Cohort, Concept, List, boolean,
+ *      ObsValueTableHandler)
+ * @see RowPerObsDataExportReportObject#generateTemplate()
+ * @since 3.0.0
+ */
+public class RowPerObsDataExportRunner implements ObsValueTableHandler {
+	
+	private static final Log log = LogFactory.getLog(RowPerObsDataExportRunner.class);
+	
+	private RowPerObsDataExportReportObject dataExport;
+	
+	private DataExportFunctions functions;
+	
+	private DataExportPipeline pipeline;
+	
+	private Writer out;
+	
+	// the cells of the simple columns of a patient, written in front of each of its obs
+	private StringWriter patientCells = new StringWriter();
+	
+	private Integer cellsPatientId = null;
+	
+	private List<Integer> batch = Collections.emptyList();
+	
+	// the patient of the batch the cursor is at
+	private int position = 0;
+	
+	private int batchIndex = -1;
+	
+	private long batchStart;
+	
+	private boolean batchesLeft = true;
+	
+	private long handlerNanos = 0;
+	
+	private int obsCount = 0;
+	
+	/**
+	 * @param dataExport the export to run
+	 * @param functions the functions class, with the batch size and the separator set and the
+	 *            prefetch planned
+	 * @param velocityContext the context for the velocity columns
+	 * @throws Exception if a column can't be compiled
+	 */
+	public RowPerObsDataExportRunner(RowPerObsDataExportReportObject dataExport, DataExportFunctions functions,
+	    VelocityContext velocityContext) throws Exception {
+		this.dataExport = dataExport;
+		this.functions = functions;
+		this.pipeline = new DataExportPipeline(dataExport, velocityContext);
+	}
+	
+	/**
+	 * Writes the header line and the lines of all patients
+	 *
+	 * @param patientSet the patients of the export
+	 * @param out where the export is written to
+	 * @throws Exception
+	 */
+	public void run(Cohort patientSet, Writer out) throws Exception {
+		this.out = out;
+		pipeline.writeHeader(out);
+		
+		RowPerObsColumn column = dataExport.getRowPerObsColumn();
+		Concept concept = functions.getConcept(column.getConceptIdOrName());
+		List<String> attrs = new ArrayList<String>();
+		if (column.getExtras() != null)
+			attrs.addAll(Arrays.asList(column.getExtras()));
+		
+		functions.setPatientSet(patientSet);
+		functions.startBatches();
+		nextBatch();
+		
+		// small patient sets are restricted in the query, the obs of patients outside of larger
+		// ones are skipped as they go past so the query doesn't get an enormous in list
+		Cohort restriction = patientSet != null && patientSet.getSize() <= functions.batchSize ? patientSet : null;
+		
+		if (concept != null && batchesLeft) {
+			long start = System.nanoTime();
+			Context.getService(ReportingCompatibilityService.class).scrollObservationValues(restriction, concept, attrs,
+			    true, this);
+			// the time spent writing the lines isn't part of the query
+			long scanMillis = (System.nanoTime() - start - handlerNanos) / 1000000;
+			functions.getProfile().recordQuery(
+			    DataExportPrefetchPlan.queryKey("scrollObservationValues", concept.getConceptId()), scanMillis,
+			    obsCount, 0);
+		}
+		
+		// the patients after the last obs
+		while (batchesLeft) {
+			writePatientsBefore(Integer.MAX_VALUE);
+			endBatch();
+			nextBatch();
+		}
+		
+		if (log.isDebugEnabled())
+			log.debug("Wrote " + obsCount + " obs of data export: " + dataExport.getName());
+	}
+	
+	/**
+	 * Writes a line for every obs of the chunk, moving the batches along with it
+	 *
+	 * @see ObsValueTableHandler#handle(ObsValueTable)
+	 */
+	public boolean handle(ObsValueTable chunk) throws Exception {
+		long start = System.nanoTime();
+		try {
+			// every name in the chunk is looked up at once instead of obs by obs
+			long namesStart = System.currentTimeMillis();
+			int loaded = functions.getNameDictionary().preload(Collections.singletonList(chunk));
+			if (loaded > 0)
+				functions.getProfile().recordQuery(DataExportPrefetchPlan.queryKey("getNames"),
+				    System.currentTimeMillis() - namesStart, loaded, 60L * loaded);
+			
+			for (int p = 0; p < chunk.getPatientCount(); p++) {
+				int patientId = chunk.getPatientId(p);
+				while (batchesLeft && !writePatientsBefore(patientId)) {
+					endBatch();
+					nextBatch();
+				}
+				if (!batchesLeft)
+					return false;
+				
+				// the obs of patients that aren't part of the export
+				if (batch.get(position) != patientId)
+					continue;
+				
+				if (cellsPatientId == null || cellsPatientId != patientId)
+					writePatientCells(patientId);
+				
+				int firstRow = chunk.getFirstRow(p);
+				for (int row = firstRow; row < firstRow + chunk.getRowCount(p); row++) {
+					writeLine(chunk, row);
+					obsCount++;
+				}
+			}
+			return true;
+		}
+		finally {
+			handlerNanos += System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * Writes the patients of the current batch that come before the given one. The ones that had
+	 * obs are done already, the others get a line without obs.
+	 *
+	 * @param patientId the patient the cursor is at
+	 * @return true if the batch has a patient that isn't before the given one
+	 */
+	private boolean writePatientsBefore(int patientId) throws Exception {
+		while (position < batch.size() && batch.get(position) < patientId) {
+			Integer current = batch.get(position);
+			if (!current.equals(cellsPatientId)) {
+				writePatientCells(current);
+				writeLine(null, -1);
+			}
+			position++;
+		}
+		return position < batch.size();
+	}
+	
+	/**
+	 * Works out the cells of the simple columns of the given patient
+	 */
+	private void writePatientCells(Integer patientId) throws Exception {
+		patientCells.getBuffer().setLength(0);
+		pipeline.writeCells(functions, patientId, patientCells);
+		if (!dataExport.getColumns().isEmpty())
+			patientCells.write(functions.getSeparator());
+		cellsPatientId = patientId;
+	}
+	
+	/**
+	 * Writes the cells of the current patient followed by the cells of the given obs, or by nothing
+	 * if the row is negative
+	 */
+	private void writeLine(ObsValueTable chunk, int row) throws Exception {
+		StringBuffer cells = patientCells.getBuffer();
+		functions.getCellFormatter().appendText(out, cells);
+		if (row >= 0)
+			functions.appendObsRow(out, chunk, row);
+		out.write("\n");
+	}
+	
+	private void nextBatch() {
+		batchesLeft = functions.nextPatientSetBatch();
+		if (batchesLeft) {
+			batchIndex++;
+			batch = new ArrayList<Integer>(functions.getPatientSet().getMemberIds());
+			position = 0;
+			batchStart = System.currentTimeMillis();
+		}
+	}
+	
+	private void endBatch() {
+		pipeline.endBatch(functions, batchIndex, batch.size(), System.currentTimeMillis() - batchStart);
+	}
+
+}
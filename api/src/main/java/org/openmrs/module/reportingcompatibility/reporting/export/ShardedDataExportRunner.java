@@ -0,0 +1,523 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.VelocityContext;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.util.LocaleUtility;
+
+/**
+ * Runs a compiled data export on several OpenMRS instances at once, coordinated through a
+ * directory they all share. <br/>
+ * <br/>
+ * The instance generating the export (the coordinator) sorts the patients by id and cuts them into
+ * shards of consecutive ids. It writes the patients of every shard and a description of the run to
+ * a run directory in the shared directory. Every instance, the coordinator included, claims a shard
+ * by creating its lock file, writes its rows with the normal batch pipeline to a shard file and
+ * renames that file once it is complete. All files are written in UTF-8. The coordinator writes the
+ * header and appends the shard files in order, so the result is the same as running the export on
+ * one instance. <br/>
+ * <br/>
+ * The other instances pick up shards with {@link #workOnPendingShards()}, usually from the
+ * {@link org.openmrs.scheduler.tasks.ProcessDataExportShardsTask}. The holder of a lock touches it
+ * after every batch, a lock that wasn't touched for {@link #STALE_MILLIS} belongs to an instance
+ * that went away. It is taken over by renaming it, which only one instance can do. The shared
+ * directory has to support atomic file creation and renames, like a local disk or NFS v3 and later.
+ *
+ * @see ReportingCompatibilityConstants#SHARD_DIR_GP
+ * @see ReportingCompatibilityConstants#SHARDS_GP
+ * @since 3.0.0
+ */
+public class ShardedDataExportRunner {
+	
+	private static final Log log = LogFactory.getLog(ShardedDataExportRunner.class);
+	
+	/**
+	 * Locks and runs that weren't touched for this long are considered abandoned
+	 */
+	public static final long STALE_MILLIS = 15 * 60 * 1000;
+	
+	// how often the coordinator looks for finished shards
+	private static final long POLL_MILLIS = 1000;
+	
+	private static final String RUN_FILE = "run.properties";
+	
+	// tells the temporary shard files of the instances apart
+	private static final String INSTANCE_ID = UUID.randomUUID().toString();
+	
+	private DataExportReportObject dataExport;
+	
+	private DataExportFunctions functions;
+	
+	private VelocityContext velocityContext;
+	
+	private int shards;
+	
+	private File sharedDir;
+	
+	// all patients of the export, and how many of them are in each shard
+	private Cohort patientSet;
+	
+	private int[] shardSizes;
+	
+	/**
+	 * @param dataExport the export to run
+	 * @param functions the functions class of the calling thread, holding the patients to export
+	 *            (null for all), the batch size and the separator
+	 * @param velocityContext the context of the calling thread, used for the header
+	 * @param shards the number of shards to cut the patients into
+	 * @param sharedDir the directory shared by all instances
+	 */
+	public ShardedDataExportRunner(DataExportReportObject dataExport, DataExportFunctions functions,
+	    VelocityContext velocityContext, int shards, File sharedDir) {
+		this.dataExport = dataExport;
+		this.functions = functions;
+		this.velocityContext = velocityContext;
+		this.shards = shards;
+		this.sharedDir = sharedDir;
+	}
+	
+	/**
+	 * Writes the header and all rows of the export, working on shards until every one of them is
+	 * done by this or another instance
+	 *
+	 * @param out where the export is written to
+	 * @throws Exception the error of the first failed shard
+	 */
+	public void run(Writer out) throws Exception {
+		File runDir = startRun();
+		try {
+			finishRun(runDir, out);
+		}
+		finally {
+			delete(runDir);
+		}
+	}
+	
+	/**
+	 * Cuts the patients into shards and writes them to a new run directory, where the other
+	 * instances can pick them up
+	 *
+	 * @return the run directory
+	 */
+	File startRun() throws Exception {
+		patientSet = functions.getPatientSet();
+		if (patientSet == null)
+			patientSet = Context.getService(ReportingCompatibilityService.class).getPatientsAfter(null, null);
+		List<Integer> patientIds = DataExportUtil.getSortedMemberIds(patientSet);
+		
+		File runDir = new File(sharedDir, dataExport.getReportObjectId() + "-" + UUID.randomUUID());
+		if (!runDir.mkdirs())
+			throw new IOException("Unable to create the shard directory " + runDir);
+		
+		try {
+			int shardCount = Math.max(1, Math.min(shards, patientIds.size()));
+			shardSizes = new int[shardCount];
+			for (int i = 0; i < shardCount; i++) {
+				// in longs, the patient count times the shard count can be more than an int holds
+				List<Integer> shard = patientIds.subList((int) ((long) i * patientIds.size() / shardCount),
+				    (int) ((long) (i + 1) * patientIds.size() / shardCount));
+				writePatients(shard, getShardFile(runDir, i, "patients"));
+				shardSizes[i] = shard.size();
+			}
+			
+			// written last, the other instances only look at runs that have it
+			Properties run = new Properties();
+			run.setProperty("dataExportId", dataExport.getReportObjectId().toString());
+			run.setProperty("locale", Context.getLocale().toString());
+			run.setProperty("separator", functions.getSeparator());
+			run.setProperty("shards", String.valueOf(shardCount));
+			File runFile = new File(runDir, RUN_FILE);
+			File tmp = new File(runDir, RUN_FILE + ".tmp");
+			OutputStream runOut = new FileOutputStream(tmp);
+			try {
+				run.store(runOut, "Data export " + dataExport.getName());
+			}
+			finally {
+				runOut.close();
+			}
+			if (!tmp.renameTo(runFile))
+				throw new IOException("Unable to create " + runFile);
+			
+			log.info("Data export " + dataExport.getReportObjectId() + ": " + patientIds.size() + " patients in "
+			        + shardCount + " shards in " + runDir);
+			return runDir;
+		}
+		catch (Exception e) {
+			delete(runDir);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Writes the header and the shards of a started run, working on shards until every one of them
+	 * is done by this or another instance
+	 *
+	 * @param runDir see {@link #startRun()}
+	 * @param out where the export is written to
+	 */
+	void finishRun(File runDir, Writer out) throws Exception {
+		File runFile = new File(runDir, RUN_FILE);
+		new DataExportPipeline(dataExport, velocityContext).writeHeader(out);
+		
+		for (int i = 0; i < shardSizes.length; i++) {
+			File done = getShardFile(runDir, i, "done");
+			while (!done.exists()) {
+				checkError(runDir, i);
+				if (functions.getJob() != null)
+					functions.getJob().checkCancelled();
+				
+				// this shard, or else any later one, that no one else is working on
+				int claimed = -1;
+				for (int j = i; j < shardSizes.length && claimed < 0; j++) {
+					if (claim(runDir, j))
+						claimed = j;
+				}
+				
+				if (claimed >= 0) {
+					writeShard(runDir, claimed, dataExport, functions, patientSet);
+				} else {
+					runFile.setLastModified(System.currentTimeMillis());
+					Thread.sleep(POLL_MILLIS);
+				}
+			}
+			
+			append(done, out);
+			if (functions.getJob() != null)
+				functions.getJob().batchFinished(shardSizes[i]);
+		}
+	}
+	
+	/**
+	 * Works on the shards of the runs in the shared directory that no instance is working on,
+	 * until there are none left
+	 *
+	 * @return the number of shards written
+	 * @see ReportingCompatibilityConstants#SHARD_DIR_GP
+	 */
+	public static int workOnPendingShards() {
+		File sharedDir = getSharedDirectory();
+		if (sharedDir == null)
+			return 0;
+		
+		int written = 0;
+		File[] runDirs = sharedDir.listFiles();
+		if (runDirs == null)
+			return 0;
+		
+		for (File runDir : runDirs) {
+			File runFile = new File(runDir, RUN_FILE);
+			if (!runFile.isFile())
+				continue;
+			if (System.currentTimeMillis() - runFile.lastModified() > STALE_MILLIS) {
+				log.info("Deleting the abandoned data export shards in " + runDir);
+				delete(runDir);
+				continue;
+			}
+			
+			try {
+				written += workOnRun(runDir, runFile);
+			}
+			catch (Exception e) {
+				log.error("Error while working on the data export shards in " + runDir, e);
+			}
+		}
+		return written;
+	}
+	
+	/**
+	 * Works on the unclaimed shards of one run, in the locale of the run
+	 *
+	 * @return the number of shards written
+	 */
+	static int workOnRun(File runDir, File runFile) throws Exception {
+		Properties run = new Properties();
+		InputStream in = new FileInputStream(runFile);
+		try {
+			run.load(in);
+		}
+		finally {
+			in.close();
+		}
+		int shardCount = Integer.parseInt(run.getProperty("shards"));
+		
+		DataExportReportObject dataExport = null;
+		DataExportFunctions functions = null;
+		Cohort patientSet = null;
+		int written = 0;
+		Locale locale = Context.getLocale();
+		try {
+			for (int i = 0; i < shardCount; i++) {
+				if (!claim(runDir, i))
+					continue;
+				
+				if (dataExport == null) {
+					Context.setLocale(LocaleUtility.fromSpecification(run.getProperty("locale")));
+					dataExport = (DataExportReportObject) Context.getService(ReportObjectService.class)
+					        .getReportObject(Integer.valueOf(run.getProperty("dataExportId")));
+					
+					// the velocity templates see the patients of the whole export
+					List<Integer> patientIds = new ArrayList<Integer>();
+					for (int j = 0; j < shardCount; j++)
+						patientIds.addAll(readPatients(getShardFile(runDir, j, "patients")));
+					patientSet = new Cohort(patientIds);
+					
+					functions = new DataExportFunctions();
+					functions.setSeparator(run.getProperty("separator"));
+					functions.setPatientSet(patientSet);
+					functions.setBatchSize(DataExportUtil.getIntegerGlobalProperty(
+					    ReportingCompatibilityConstants.BATCH_SIZE_GP, ReportingCompatibilityConstants.BATCH_SIZE_GP_DEFAULT));
+					functions.planPrefetch(dataExport.getColumns());
+					functions.setPrefetchThreads(DataExportUtil.getIntegerGlobalProperty(
+					    ReportingCompatibilityConstants.PREFETCH_THREADS_GP,
+					    ReportingCompatibilityConstants.PREFETCH_THREADS_GP_DEFAULT));
+				}
+				
+				writeShard(runDir, i, dataExport, functions, patientSet);
+				written++;
+			}
+		}
+		finally {
+			if (functions != null) {
+				functions.getProfile().finish();
+				if (written > 0)
+					functions.getProfile().logSummary(dataExport.getName() + " (" + written + " shards)");
+				functions.clear();
+			}
+			Context.setLocale(locale);
+		}
+		return written;
+	}
+	
+	/**
+	 * Writes the rows of a claimed shard to its shard file. An error is left in the run directory
+	 * for the coordinator.
+	 *
+	 * @param runDir
+	 * @param shard the index of the shard
+	 * @param dataExport
+	 * @param functions the functions class of the run on this instance, its plan, profile, cohort
+	 *            members and names are shared by the shards
+	 * @param patientSet all patients of the export
+	 */
+	private static void writeShard(File runDir, int shard, DataExportReportObject dataExport,
+	                               DataExportFunctions functions, Cohort patientSet) throws Exception {
+		File lock = getShardFile(runDir, shard, "lock");
+		File tmp = getShardFile(runDir, shard, INSTANCE_ID + ".tmp");
+		try {
+			DataExportFunctions fn = new DataExportFunctions();
+			fn.setSeparator(functions.getSeparator());
+			fn.setBatchSize(functions.batchSize);
+			fn.setPrefetchPlan(functions.getPrefetchPlan());
+			fn.setProfile(functions.getProfile());
+			fn.setCohortMembership(functions.getCohortMembership());
+			fn.setNameDictionary(functions.getNameDictionary());
+			fn.setPrefetchThreads(functions.getPrefetchThreads());
+			DataExportPipeline pipeline = new DataExportPipeline(dataExport, DataExportUtil.createVelocityContext(fn,
+			    patientSet));
+			
+			Writer out = DataExportUtil.newGeneratedFileWriter(tmp, false);
+			try {
+				fn.setPatientSet(new Cohort(readPatients(getShardFile(runDir, shard, "patients"))));
+				fn.startBatches();
+				int batchIndex = 0;
+				while (fn.nextPatientSetBatch()) {
+					if (functions.getJob() != null)
+						functions.getJob().checkCancelled();
+					pipeline.writeRows(fn, batchIndex++, out);
+					
+					// still working on it
+					long now = System.currentTimeMillis();
+					lock.setLastModified(now);
+					new File(runDir, RUN_FILE).setLastModified(now);
+				}
+			}
+			finally {
+				out.close();
+				fn.clear();
+			}
+			
+			// another instance may have taken over a lock it thought abandoned and be done already
+			File done = getShardFile(runDir, shard, "done");
+			if (!done.exists() && !tmp.renameTo(done) && !done.exists())
+				throw new IOException("Unable to rename " + tmp + " to " + done);
+			
+			if (log.isDebugEnabled())
+				log.debug("Wrote data export shard " + shard + " in " + runDir);
+		}
+		catch (Exception e) {
+			log.error("Error while writing shard " + shard + " of data export " + dataExport.getReportObjectId(), e);
+			Writer error = new OutputStreamWriter(new FileOutputStream(getShardFile(runDir, shard, "error")), "UTF-8");
+			try {
+				error.write(e.toString());
+			}
+			finally {
+				error.close();
+			}
+			throw e;
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Claims a shard that isn't done, by creating its lock or by taking over an abandoned one. An
+	 * abandoned lock is first renamed to a name of this claim alone. Only one instance can rename
+	 * it, the others find it gone, and the lock is then created again like a new one.
+	 *
+	 * @return true if this instance has to write the shard now
+	 */
+	static boolean claim(File runDir, int shard) throws IOException {
+		if (getShardFile(runDir, shard, "done").exists() || getShardFile(runDir, shard, "error").exists())
+			return false;
+		
+		File lock = getShardFile(runDir, shard, "lock");
+		if (lock.createNewFile())
+			return true;
+		
+		if (System.currentTimeMillis() - lock.lastModified() <= STALE_MILLIS)
+			return false;
+		
+		File abandoned = getShardFile(runDir, shard, "lock." + UUID.randomUUID());
+		if (!lock.renameTo(abandoned))
+			return false;
+		
+		if (System.currentTimeMillis() - abandoned.lastModified() <= STALE_MILLIS) {
+			// another instance took it over in between and this renamed its new lock, so it is
+			// given back
+			abandoned.renameTo(lock);
+			return false;
+		}
+		
+		log.warn("Taking over the abandoned data export shard " + lock);
+		abandoned.delete();
+		return lock.createNewFile();
+	}
+	
+	/**
+	 * @throws APIException if the given shard failed on any instance
+	 */
+	private static void checkError(File runDir, int shard) throws IOException {
+		File error = getShardFile(runDir, shard, "error");
+		if (!error.exists())
+			return;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(error), "UTF-8"));
+		try {
+			throw new APIException("Shard " + shard + " of the data export failed: " + reader.readLine());
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Appends the rows of a finished shard to the export
+	 */
+	private void append(File done, Writer out) throws IOException {
+		Reader reader = DataExportUtil.newGeneratedFileReader(done);
+		try {
+			char[] buffer = new char[64 * 1024];
+			int read;
+			while ((read = reader.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		}
+		finally {
+			reader.close();
+		}
+		done.delete();
+	}
+	
+	/**
+	 * @return the directory shared by the instances, null if exports aren't sharded
+	 * @see ReportingCompatibilityConstants#SHARD_DIR_GP
+	 */
+	public static File getSharedDirectory() {
+		String dir = Context.getAdministrationService().getGlobalProperty(ReportingCompatibilityConstants.SHARD_DIR_GP,
+		    ReportingCompatibilityConstants.SHARD_DIR_GP_DEFAULT);
+		if (dir == null || dir.trim().length() == 0)
+			return null;
+		return new File(dir.trim());
+	}
+	
+	static File getShardFile(File runDir, int shard, String suffix) {
+		return new File(runDir, "shard-" + shard + "." + suffix);
+	}
+	
+	private static void writePatients(List<Integer> patientIds, File file) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+		try {
+			for (Integer patientId : patientIds) {
+				out.write(patientId.toString());
+				out.write('\n');
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static List<Integer> readPatients(File file) throws IOException {
+		List<Integer> patientIds = new ArrayList<Integer>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 64 * 1024);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0)
+					patientIds.add(Integer.valueOf(line));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return patientIds;
+	}
+	
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		dir.delete();
+	}
+
+}
@@ -13,9 +13,11 @@
  */
 package org.openmrs.module.reportingcompatibility.service;
 
+import java.io.Writer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.openmrs.cohort.Cohort;
@@ -43,13 +45,20 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTableHandler;
+import org.openmrs.module.reportingcompatibility.reporting.RelativeTable;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJob;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJobManager;
 import org.openmrs.module.reportingcompatibility.service.ReportService.GroupMethod;
 import org.openmrs.module.reportingcompatibility.service.ReportService.Modifier;
 import org.openmrs.module.reportingcompatibility.service.ReportService.PatientLocationMethod;
 import org.openmrs.module.reportingcompatibility.service.ReportService.TimeModifier;
 import org.openmrs.module.reportingcompatibility.service.db.ReportingCompatibilityDAO;
+import org.openmrs.report.EvaluationContext;
 import org.openmrs.reporting.AbstractReportObject;
 import org.openmrs.reporting.Report;
+import org.openmrs.reporting.export.DataExportReportObject;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -331,8 +340,9 @@ public interface ReportingCompatibilityService extends OpenmrsService {
 	 * @param patients the cohort to restrict to. if null, then all patients are fetched
 	 * @param c the concept to look for in obs.concept_id
 	 * @param attributes list of attributes
-	 * @param limit the number of patients to limit the results to. If null or less than zero,
-	 *            return all
+	 * @param limit the max number of obs to return for each patient. If null or less than one,
+	 *            return all. Where the database supports it the cut-off is done in the query
+	 *            itself
 	 * @param showMostRecentFirst if true, obs with the highest obsDatetime will be first in the
 	 *            List<List<Object>>
 	 * @return <code>Map<patientId, List<List< attribute value >>></code>
@@ -341,6 +351,66 @@ public interface ReportingCompatibilityService extends OpenmrsService {
 	public Map<Integer, List<List<Object>>> getObservationsValues(Cohort patients, Concept c, List<String> attributes,
 	                                                              Integer limit, boolean showMostRecentFirst);
 	
+	/**
+	 * Same as {@link #getObservationsValues(Cohort, Concept, List, Integer, boolean)} but the values
+	 * are returned in a column oriented table backed by primitive arrays instead of a list of
+	 * objects per row. Column 0 is always the obs value, followed by one column per attribute.
+	 * Coded values are returned as concept/drug ids and providers, locations and encounter types
+	 * by name.
+	 * 
+	 * @param patients the cohort to restrict to. if null, then all patients are fetched
+	 * @param c the concept to look for in obs.concept_id
+	 * @param attributes list of attributes like obsDatetime, location, provider...
+	 * @param limit the max number of obs to return for each patient. If null or less than one,
+	 *            return all
+	 * @param showMostRecentFirst if true, the rows of each patient are ordered with the highest
+	 *            obsDatetime first
+	 * @return the obs values
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public ObsValueTable getObservationValueTable(Cohort patients, Concept c, List<String> attributes, Integer limit,
+	                                              boolean showMostRecentFirst);
+	
+	/**
+	 * Fetches the obs values of several concepts in one ordered scan of the obs table and splits
+	 * them into one {@link ObsValueTable} per concept. Each table is laid out the same as the one
+	 * returned by {@link #getObservationValueTable(Cohort, Concept, List, Integer, boolean)}.
+	 * 
+	 * @param patients the cohort to restrict to. if null, then all patients are fetched
+	 * @param concepts the concepts to look for in obs.concept_id
+	 * @param attributes list of attributes like obsDatetime, location, provider...
+	 * @param limit the max number of obs to return for each patient and concept. If null or less
+	 *            than one, return all
+	 * @param showMostRecentFirst if true, the rows of each patient are ordered with the highest
+	 *            obsDatetime first
+	 * @return <code>Map<conceptId, ObsValueTable></code> with a table for every given concept
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, ObsValueTable> getObservationValueTables(Cohort patients, List<Concept> concepts,
+	                                                             List<String> attributes, Integer limit,
+	                                                             boolean showMostRecentFirst);
+	
+	/**
+	 * Goes over all obs of a concept with one forward-only cursor, ordered by patient and obs
+	 * datetime, and passes them on to the handler in chunks of the same {@link ObsValueTable}. The
+	 * chunks are laid out like the table returned by
+	 * {@link #getObservationValueTable(Cohort, Concept, List, Integer, boolean)}, but only one is
+	 * ever held in memory, however many obs there are.
+	 * 
+	 * @param patients the cohort to restrict to. if null, then all patients are scanned
+	 * @param c the concept to look for in obs.concept_id
+	 * @param attributes list of attributes like obsDatetime, location, provider...
+	 * @param showMostRecentFirst if true, the obs of each patient come with the highest
+	 *            obsDatetime first
+	 * @param handler gets the chunks in order, can stop the scan
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public void scrollObservationValues(Cohort patients, Concept c, List<String> attributes, boolean showMostRecentFirst,
+	                                    ObsValueTableHandler handler);
+	
 	/**
 	 * TODO write something here
 	 * 
@@ -524,6 +594,18 @@ public interface ReportingCompatibilityService extends OpenmrsService {
 	@Transactional(readOnly = true)
 	public Map<Integer, List<Relationship>> getRelationships(Cohort ps, RelationshipType relType);
 	
+	/**
+	 * Gets the same relatives as {@link #getRelationships(Cohort, RelationshipType)}, but only their
+	 * ids, preferred names and preferred identifiers instead of the relationships themselves
+	 * 
+	 * @param ps the cohort to get data for, null for all patients
+	 * @param relType the type of the relationships, null for all types
+	 * @return the relatives of the patients
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public RelativeTable getRelativeTable(Cohort ps, RelationshipType relType);
+	
 	@Transactional(readOnly = true)
 	public Map<Integer, List<Person>> getRelatives(Cohort ps, RelationshipType relType, boolean forwards);
 	
@@ -615,6 +697,134 @@ public interface ReportingCompatibilityService extends OpenmrsService {
 	@Transactional(readOnly = true)
 	public Cohort getPatients(Integer start, Integer size);
 	
+	/**
+	 * Get the next batch of patients that are not voided in the database, in patient id order.
+	 * Unlike {@link #getPatients(Integer, Integer)} the cost of a batch doesn't grow with its
+	 * position, so this should be used to walk through all patients one batch after the other.
+	 * 
+	 * @param lastPatientId the last patient id of the previous batch, null for the first batch
+	 * @param size the number of patients to get in this batch
+	 * @return a Cohort with the ids of the patients following <code>lastPatientId</code>
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public Cohort getPatientsAfter(Integer lastPatientId, Integer size);
+	
+	/**
+	 * Gets the patients with data that was created, changed or voided since the given date. This
+	 * covers the patient and person records themselves, names, addresses, identifiers, person
+	 * attributes, relationships and the names and identifiers of relatives, obs, encounters and
+	 * their providers, orders, program enrollments and their states. <br/>
+	 * <br/>
+	 * Changes to shared data, like locations, concepts or the names of providers, and anything that
+	 * changes with time alone, like ages, aren't seen here and need a full run.
+	 * 
+	 * @param since the date to look from, inclusive
+	 * @return a Cohort with the ids of the changed patients
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public Cohort getPatientsChangedSince(Date since);
+	
+	/**
+	 * Gets the last time patient data was created, changed or voided, looking at the same data as
+	 * {@link #getPatientsChangedSince(Date)}
+	 * 
+	 * @return the date of the last change, null if there is no data
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public Date getLastDataChange();
+	
+	/**
+	 * Gets a value that changes whenever concepts, their names, set members or drugs are added,
+	 * changed, retired or removed, or set members are reordered, made of the last change dates, the
+	 * number of names, set members and drugs and the sort weights of the set members
+	 * 
+	 * @return the version of the concept dictionary, only to be compared to an earlier one
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public String getConceptDictionaryVersion();
+	
+	/**
+	 * Gets the names of the given concepts, drugs, locations or providers with one query, without
+	 * loading any of them
+	 * 
+	 * @param type {@link Concept}, {@link Drug}, {@link Location} or {@link org.openmrs.Provider}
+	 * @param ids the ids of the objects
+	 * @param locale the locale to prefer the concept names of, ignored for other types
+	 * @return map from the id to the name, missing ids are left out. Providers without a name of
+	 *         their own get the name of their person.
+	 * @throws IllegalArgumentException if the type has no name lookup
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, String> getNames(Class<?> type, Collection<Integer> ids, Locale locale);
+	
+	/**
+	 * Queues a data export to be generated in the background. An export that is already queued or
+	 * being generated isn't queued again.
+	 * 
+	 * @param dataExport the export to generate
+	 * @param context the context to generate the patients of the export in
+	 * @param priority exports with a higher priority are started first
+	 * @param incremental true to only regenerate the rows of patients that changed since the last
+	 *            run
+	 * @param fullRegenerationDays when incremental, the number of days after which all rows are
+	 *            generated again
+	 * @return the job generating the export
+	 * @see DataExportJobManager
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public DataExportJob queueDataExport(DataExportReportObject dataExport, EvaluationContext context, int priority,
+	                                     boolean incremental, int fullRegenerationDays);
+	
+	/**
+	 * Queues a data export to be generated in full in the background and written to the given
+	 * writer as well, batch by batch, while it is generated
+	 * 
+	 * @param dataExport the export to generate
+	 * @param context the context to generate the patients of the export in
+	 * @param priority exports with a higher priority are started first
+	 * @param out where the export is written to as well, flushed after every batch and left open
+	 * @return the job generating the export, or null if the export is being generated already so
+	 *         it can't be written to <code>out</code> from the start
+	 * @see DataExportJobManager#queueStreamed(DataExportReportObject, EvaluationContext, int, Writer)
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public DataExportJob queueStreamedDataExport(DataExportReportObject dataExport, EvaluationContext context,
+	                                             int priority, Writer out);
+	
+	/**
+	 * @return the data export jobs that are queued or running and the last ones that ended, most
+	 *         recently queued first
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public List<DataExportJob> getDataExportJobs();
+	
+	/**
+	 * @param dataExportId
+	 * @return the most recently queued job of the given export, null if there is none
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public DataExportJob getLatestDataExportJob(Integer dataExportId);
+	
+	/**
+	 * Cancels a data export job. A queued job is never started, a running job stops after its
+	 * current batch of patients.
+	 * 
+	 * @param jobId
+	 * @return false if there is no such job or it already ended
+	 * @since 3.0.0
+	 */
+	@Transactional(readOnly = true)
+	public boolean cancelDataExportJob(Integer jobId);
+	
 	/**
 	 * Create a new Report
 	 *
@@ -13,6 +13,7 @@
  */
 package org.openmrs.module.reportingcompatibility.service;
 
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -20,6 +21,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
@@ -53,14 +55,21 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTableHandler;
+import org.openmrs.module.reportingcompatibility.reporting.RelativeTable;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJob;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJobManager;
 import org.openmrs.module.reportingcompatibility.service.ReportService.GroupMethod;
 import org.openmrs.module.reportingcompatibility.service.ReportService.Modifier;
 import org.openmrs.module.reportingcompatibility.service.ReportService.PatientLocationMethod;
 import org.openmrs.module.reportingcompatibility.service.ReportService.TimeModifier;
 import org.openmrs.module.reportingcompatibility.service.db.ReportingCompatibilityDAO;
+import org.openmrs.report.EvaluationContext;
 import org.openmrs.report.ReportConstants;
 import org.openmrs.reporting.AbstractReportObject;
 import org.openmrs.reporting.Report;
+import org.openmrs.reporting.export.DataExportReportObject;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.util.PrivilegeConstants;
 
@@ -324,6 +333,31 @@ public class ReportingCompatibilityServiceImpl extends BaseOpenmrsService implem
 		return getDao().getObservationsValues(patients, c, attributes, limit, showMostRecentFirst);
 	}
 	
+	public ObsValueTable getObservationValueTable(Cohort patients, Concept c, List<String> attributes, Integer limit,
+	                                              boolean showMostRecentFirst) {
+		if (attributes == null)
+			attributes = new Vector<String>();
+		
+		return getDao().getObservationValueTable(patients, c, attributes, limit, showMostRecentFirst);
+	}
+	
+	public Map<Integer, ObsValueTable> getObservationValueTables(Cohort patients, List<Concept> concepts,
+	                                                             List<String> attributes, Integer limit,
+	                                                             boolean showMostRecentFirst) {
+		if (attributes == null)
+			attributes = new Vector<String>();
+		
+		return getDao().getObservationValueTables(patients, concepts, attributes, limit, showMostRecentFirst);
+	}
+	
+	public void scrollObservationValues(Cohort patients, Concept c, List<String> attributes, boolean showMostRecentFirst,
+	                                    ObsValueTableHandler handler) {
+		if (attributes == null)
+			attributes = new Vector<String>();
+		
+		getDao().scrollObservationValues(patients, c, attributes, showMostRecentFirst, handler);
+	}
+	
 	public Map<Integer, Encounter> getEncountersByType(Cohort patients, EncounterType encType) {
 		List<EncounterType> types = new Vector<EncounterType>();
 		if (encType != null)
@@ -423,6 +457,10 @@ public class ReportingCompatibilityServiceImpl extends BaseOpenmrsService implem
 		return getDao().getRelationships(ps, relType);
 	}
 	
+	public RelativeTable getRelativeTable(Cohort ps, RelationshipType relType) {
+		return getDao().getRelativeTable(ps, relType);
+	}
+	
 	public Map<Integer, List<Person>> getRelatives(Cohort ps, RelationshipType relType, boolean forwards) {
 		return getDao().getRelatives(ps, relType, forwards);
 	}
@@ -489,6 +527,48 @@ public class ReportingCompatibilityServiceImpl extends BaseOpenmrsService implem
 	public Cohort getPatients(Integer start, Integer size) {
 		return getDao().getPatients(start, size);
 	}
+	
+	public Cohort getPatientsAfter(Integer lastPatientId, Integer size) {
+		return getDao().getPatientsAfter(lastPatientId, size);
+	}
+	
+	public Cohort getPatientsChangedSince(Date since) {
+		return getDao().getPatientsChangedSince(since);
+	}
+	
+	public Date getLastDataChange() {
+		return getDao().getLastDataChange();
+	}
+	
+	public String getConceptDictionaryVersion() {
+		return getDao().getConceptDictionaryVersion();
+	}
+	
+	public Map<Integer, String> getNames(Class<?> type, Collection<Integer> ids, Locale locale) {
+		return getDao().getNames(type, ids, locale);
+	}
+	
+	public DataExportJob queueDataExport(DataExportReportObject dataExport, EvaluationContext context, int priority,
+	                                     boolean incremental, int fullRegenerationDays) {
+		return DataExportJobManager.queue(dataExport, context, priority, incremental, fullRegenerationDays);
+	}
+	
+	public DataExportJob queueStreamedDataExport(DataExportReportObject dataExport, EvaluationContext context,
+	                                             int priority, Writer out) {
+		return DataExportJobManager.queueStreamed(dataExport, context, priority, out);
+	}
+	
+	public List<DataExportJob> getDataExportJobs() {
+		return DataExportJobManager.getJobs();
+	}
+	
+	public DataExportJob getLatestDataExportJob(Integer dataExportId) {
+		return DataExportJobManager.getLatestJob(dataExportId);
+	}
+	
+	public boolean cancelDataExportJob(Integer jobId) {
+		return DataExportJobManager.cancel(jobId);
+	}
 
 	/**
 	 * Create a new Report
@@ -14,34 +14,50 @@
 package org.openmrs.module.reportingcompatibility.service.db;
 
 import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.FetchMode;
+import org.hibernate.FlushMode;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.ProjectionList;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.type.IntegerType;
 import org.hibernate.type.StringType;
+import org.hibernate.type.Type;
 import org.openmrs.cohort.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Drug;
@@ -67,6 +83,9 @@ import org.openmrs.RelationshipType;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTableHandler;
+import org.openmrs.module.reportingcompatibility.reporting.RelativeTable;
 import org.openmrs.module.reportingcompatibility.service.ReportService.Modifier;
 import org.openmrs.module.reportingcompatibility.service.ReportService.PatientLocationMethod;
 import org.openmrs.module.reportingcompatibility.service.ReportService.TimeModifier;
@@ -95,6 +114,69 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 	 */
 	private SessionFactory sessionFactory;
 	
+	/**
+	 * Lazily filled by {@link #supportsWindowFunctions()}
+	 */
+	private Boolean supportsWindowFunctions = null;
+	
+	/**
+	 * Number of rows the jdbc driver is asked to fetch at a time for the bulk export queries
+	 */
+	private static final int BULK_FETCH_SIZE = 1000;
+	
+	/**
+	 * Number of obs passed on at a time by {@link #scrollObservationValues}
+	 */
+	private static final int OBS_VALUE_CHUNK_SIZE = 1000;
+	
+	/**
+	 * The tables checked by {@link #getPatientsChangedSince(Date)}: the table as t (joined to
+	 * whatever leads to the patient), the patient column and the date columns of t that record a
+	 * change
+	 */
+	private static final String[][] CHANGE_TRACKED_TABLES = {
+	        { "patient t", "t.patient_id", "date_created", "date_changed", "date_voided" },
+	        { "person t", "t.person_id", "date_created", "date_changed", "date_voided" },
+	        { "person_name t", "t.person_id", "date_created", "date_changed", "date_voided" },
+	        { "person_address t", "t.person_id", "date_created", "date_changed", "date_voided" },
+	        { "person_attribute t", "t.person_id", "date_created", "date_changed", "date_voided" },
+	        { "patient_identifier t", "t.patient_id", "date_created", "date_changed", "date_voided" },
+	        { "relationship t", "t.person_a", "date_created", "date_changed", "date_voided" },
+	        { "relationship t", "t.person_b", "date_created", "date_changed", "date_voided" },
+	        // relationship columns write the names and identifiers of the relatives
+	        { "person_name t inner join relationship r on r.person_b = t.person_id", "r.person_a", "date_created",
+	                "date_changed", "date_voided" },
+	        { "person_name t inner join relationship r on r.person_a = t.person_id", "r.person_b", "date_created",
+	                "date_changed", "date_voided" },
+	        { "patient_identifier t inner join relationship r on r.person_b = t.patient_id", "r.person_a",
+	                "date_created", "date_changed", "date_voided" },
+	        { "patient_identifier t inner join relationship r on r.person_a = t.patient_id", "r.person_b",
+	                "date_created", "date_changed", "date_voided" },
+	        { "encounter t", "t.patient_id", "date_created", "date_changed", "date_voided" },
+	        { "encounter_provider t inner join encounter e on e.encounter_id = t.encounter_id", "e.patient_id",
+	                "date_created", "date_changed", "date_voided" },
+	        // obs and orders are never edited, only voided, created or stopped
+	        { "obs t", "t.person_id", "date_created", "date_voided" },
+	        { "orders t", "t.patient_id", "date_created", "date_voided", "date_stopped" },
+	        { "patient_program t", "t.patient_id", "date_created", "date_changed", "date_voided" },
+	        { "patient_state t inner join patient_program pp on pp.patient_program_id = t.patient_program_id",
+	                "pp.patient_id", "date_created", "date_changed", "date_voided" } };
+	
+	/**
+	 * The values that make up {@link #getConceptDictionaryVersion()}. Rows of concept_set and
+	 * concept_name are deleted rather than retired, so they are counted too. Set members are
+	 * reordered without a date changing, the sort weights are summed weighted by the row ids so
+	 * swapping two of them changes the sum.
+	 */
+	private static final String[] CONCEPT_DICTIONARY_VERSION = { "select max(date_created) from concept",
+	        "select max(date_changed) from concept", "select max(date_retired) from concept",
+	        "select max(date_created) from concept_name", "select max(date_changed) from concept_name",
+	        "select max(date_voided) from concept_name", "select count(*) from concept_name",
+	        "select max(date_created) from concept_set", "select count(*) from concept_set",
+	        "select sum(sort_weight * concept_set_id) from concept_set",
+	        "select max(date_created) from drug", "select max(date_changed) from drug",
+	        "select max(date_retired) from drug", "select count(*) from drug" };
+	
 	/**
 	 * Set sessionFactory.getCurrentSession() factory
 	 * 
@@ -104,6 +186,68 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		this.sessionFactory = sessionFactory;
 	}
 	
+	/**
+	 * Creates a criteria for the bulk queries the data exports run. The entities it loads are
+	 * read-only, so hibernate keeps no snapshot of them for dirty checking and never flushes them,
+	 * and the second level cache is bypassed.
+	 * 
+	 * @param persistentClass the entity to query
+	 * @param alias the alias of the root entity, may be null
+	 * @return a new criteria on the current session
+	 */
+	private Criteria createBulkCriteria(Class<?> persistentClass, String alias) {
+		return createBulkCriteria(persistentClass.getName(), alias);
+	}
+	
+	/**
+	 * @see #createBulkCriteria(Class, String)
+	 */
+	private Criteria createBulkCriteria(String entityName, String alias) {
+		Criteria criteria;
+		if (alias == null)
+			criteria = sessionFactory.getCurrentSession().createCriteria(entityName);
+		else
+			criteria = sessionFactory.getCurrentSession().createCriteria(entityName, alias);
+		
+		criteria.setCacheMode(CacheMode.IGNORE);
+		criteria.setReadOnly(true);
+		criteria.setFlushMode(FlushMode.MANUAL);
+		criteria.setFetchSize(BULK_FETCH_SIZE);
+		return criteria;
+	}
+	
+	/**
+	 * Creates an hql query for the bulk queries the data exports run, with the same settings as
+	 * {@link #createBulkCriteria(Class, String)}
+	 * 
+	 * @param hql the query
+	 * @return a new query on the current session
+	 */
+	private Query createBulkQuery(String hql) {
+		Query query = sessionFactory.getCurrentSession().createQuery(hql);
+		query.setCacheMode(CacheMode.IGNORE);
+		query.setReadOnly(true);
+		query.setFlushMode(FlushMode.MANUAL);
+		query.setFetchSize(BULK_FETCH_SIZE);
+		return query;
+	}
+	
+	/**
+	 * Opens a stateless session on the connection of the current session. Queries run through it
+	 * see the same transaction but don't put anything into the persistence context, so the
+	 * (possibly huge) result of a bulk query never needs to be cleared out of the session
+	 * afterwards. The caller must close the returned session. <br/>
+	 * <br/>
+	 * Only use this for queries returning scalar values, lazy associations of entities loaded
+	 * through a stateless session can't be initialized.
+	 * 
+	 * @return a new stateless session
+	 */
+	private StatelessSession openBulkSession() {
+		Connection connection = ((SessionImplementor) sessionFactory.getCurrentSession()).connection();
+		return sessionFactory.openStatelessSession(connection);
+	}
+	
 	private String formatUserName(User u) {
 		return u.getPersonName().toString();
 	}
@@ -808,8 +952,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 			forPatient.add(obs);
 		}
 		 */
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Obs.class, null);
 		
 		criteria.add(Restrictions.eq("concept", concept));
 		
@@ -841,8 +984,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		List<String> aliases = new Vector<String>();
 		Boolean conditional = false;
 		
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria("org.openmrs.Obs", "obs");
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria("org.openmrs.Obs", "obs");
 		
 		List<String> columns = new Vector<String>();
 		
@@ -872,6 +1014,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 				classNames.add("obs.encounter");
 				classNames.add("encounter.encounterProviders");
 				attribute = "encounterProviders.provider";
+				criteria.add(Restrictions.eq("encounterProviders.voided", false));
 			} else {
 				throw new DAOException("Attribute: " + attribute + " is not recognized. Please add reference in "
 				        + this.getClass());
@@ -898,6 +1041,8 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 			else
 				projections.add(Projections.property(aliasName + "." + col));
 		}
+		// an encounter with several providers gives one row per provider, only the first is kept
+		projections.add(Projections.property(aliasName + ".obsId"));
 		criteria.setProjection(projections);
 		
 		// only restrict on patient ids if some were passed in
@@ -907,66 +1052,524 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		criteria.add(Expression.eq("obs.concept", c));
 		criteria.add(Expression.eq("obs.voided", false));
 		
-		if (showMostRecentFirst)
+		// if only the first/last n obs per patient are wanted, let the database do the cutting
+		// instead of transferring every obs of the concept and dropping the extras here
+		boolean limitPerPatient = limit != null && limit > 0;
+		boolean rankedInDatabase = limitPerPatient && supportsWindowFunctions();
+		if (rankedInDatabase) {
+			// the ids are bound, one placeholder each like the restriction on obs.personId above
+			List<Object> values = new ArrayList<Object>();
+			List<Type> types = new ArrayList<Type>();
+			values.add(c.getConceptId());
+			types.add(IntegerType.INSTANCE);
+			StringBuilder patientIds = null;
+			if (patients != null) {
+				patientIds = new StringBuilder(patients.isEmpty() ? "null" : "");
+				for (Integer patientId : patients.getMemberIds()) {
+					patientIds.append(patientIds.length() == 0 ? "?" : ",?");
+					values.add(patientId);
+					types.add(IntegerType.INSTANCE);
+				}
+			}
+			criteria.add(Restrictions.sqlRestriction(getTopObsPerPatientRestriction("{alias}", "?",
+			    patientIds == null ? null : patientIds.toString(), attributes, limit, showMostRecentFirst), values
+			        .toArray(), types.toArray(new Type[types.size()])));
+		}
+		
+		if (showMostRecentFirst) {
 			criteria.addOrder(org.hibernate.criterion.Order.desc("obs.obsDatetime"));
-		else
+			criteria.addOrder(org.hibernate.criterion.Order.desc("obs.obsId"));
+		} else {
 			criteria.addOrder(org.hibernate.criterion.Order.asc("obs.obsDatetime"));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("obs.obsId"));
+		}
 		
 		long start = System.currentTimeMillis();
-		List<Object[]> rows = criteria.list();
+		if (limitPerPatient && !rankedInDatabase) {
+			// no window functions available, so stream the ordered rows and only keep 
+			// the first n per patient instead of loading the whole result list into memory
+			ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				Object lastObsId = null;
+				while (results.next()) {
+					Object[] rowArray = results.get();
+					Object obsId = rowArray[rowArray.length - 1];
+					if (!obsId.equals(lastObsId))
+						addObservationValuesRow(ret, Arrays.copyOf(rowArray, rowArray.length - 1), limit, conditional);
+					lastObsId = obsId;
+				}
+			}
+			finally {
+				results.close();
+			}
+		} else {
+			List<Object[]> rows = criteria.list();
+			Object lastObsId = null;
+			for (Object[] rowArray : rows) {
+				// the rows of an obs are next to each other, they are ordered by obs id after the date
+				Object obsId = rowArray[rowArray.length - 1];
+				if (!obsId.equals(lastObsId))
+					addObservationValuesRow(ret, Arrays.copyOf(rowArray, rowArray.length - 1), limit, conditional);
+				lastObsId = obsId;
+			}
+		}
 		log.debug("Took: " + (System.currentTimeMillis() - start) + " ms to run the patient/obs query");
 		
-		// set up the return map
-		for (Object[] rowArray : rows) {
-			//log.debug("row[0]: " + row[0] + " row[1]: " + row[1] + (row.length > 2 ? " row[2]: " + row[2] : ""));
-			Integer ptId = (Integer) rowArray[0];
-			
-			List<List<Object>> oldArr = ret.get(ptId);
+		return ret;
+		
+	}
+	
+	/**
+	 * Adds one projected obs row (patientId, value columns..., attribute columns...) to the given
+	 * map of patientId to obs rows
+	 * 
+	 * @param ret the map being built up by {@link #getObservationsValues(Cohort, Concept, List, Integer, boolean)}
+	 * @param rowArray the projected row from the database
+	 * @param limit the max number of rows to keep per patient. If null or less than one, all are kept
+	 * @param conditional true if the first two value columns are valueDrug and valueCoded
+	 */
+	private void addObservationValuesRow(Map<Integer, List<List<Object>>> ret, Object[] rowArray, Integer limit,
+	                                     boolean conditional) {
+		Integer ptId = (Integer) rowArray[0];
+		
+		List<List<Object>> oldArr = ret.get(ptId);
+		
+		// if we have already fetched all of the results the user wants 
+		if (limit != null && limit > 0 && oldArr != null && oldArr.size() >= limit) {
+			// the user provided a limit value and this patient already has more than
+			// that number of values.
+			// do nothing with this row
+			return;
+		}
+		
+		boolean tmpConditional = conditional;
+		
+		// get all columns
+		int index = 1;
+		List<Object> row = new Vector<Object>();
+		while (index < rowArray.length) {
+			Object value = rowArray[index++];
+			if (value instanceof Provider) {
+				value = ((Provider)value).getName();
+			}
+			if (tmpConditional) {
+				if (index == 2 && value != null) // skip null first value if we must
+					row.add(value);
+				else
+					row.add(rowArray[index]);
+				tmpConditional = false;
+				index++; // increment counter for next column.  (Skips over value_concept)
+			} else
+				row.add(value == null ? "" : value);
+		}
+		
+		// if we haven't seen a different row for this patient already:
+		if (oldArr == null) {
+			oldArr = new Vector<List<Object>>();
+			ret.put(ptId, oldArr);
+		}
+		oldArr.add(row);
+	}
+	
+	public ObsValueTable getObservationValueTable(Cohort patients, Concept c, List<String> attributes, Integer limit,
+	                                              boolean showMostRecentFirst) {
+		List<Concept> concepts = new Vector<Concept>();
+		concepts.add(c);
+		return getObservationValueTables(patients, concepts, attributes, limit, showMostRecentFirst).get(c.getConceptId());
+	}
+	
+	public Map<Integer, ObsValueTable> getObservationValueTables(Cohort patients, List<Concept> concepts,
+	                                                             List<String> attributes, Integer limit,
+	                                                             boolean showMostRecentFirst) {
+		List<String> attrs = getObsValueAttributes(attributes);
+		byte[] attributeTypes = new byte[attrs.size()];
+		String obsValuesSql = getObsValuesSql(attrs, attributeTypes, patients != null);
+		
+		Map<Integer, ObsValueTable> tables = new HashMap<Integer, ObsValueTable>();
+		for (Concept c : concepts)
+			tables.put(c.getConceptId(), new ObsValueTable(getObsValueColumnTypes(c, attributeTypes)));
+		
+		if (concepts.isEmpty() || (patients != null && patients.isEmpty())) {
+			for (ObsValueTable table : tables.values())
+				table.finish();
+			return tables;
+		}
+		
+		String direction = showMostRecentFirst ? "desc" : "asc";
+		StringBuilder sql = new StringBuilder(obsValuesSql);
+		
+		boolean limitPerPatient = limit != null && limit > 0;
+		if (limitPerPatient && supportsWindowFunctions())
+			sql.append(" and ").append(
+			    getTopObsPerPatientRestriction("o", ":conceptIds", patients == null ? null : ":patientIds", attrs,
+			        limit, showMostRecentFirst));
+		
+		// rows must come back grouped by patient for the tables
+		sql.append(" order by o.person_id asc, o.concept_id asc, o.obs_datetime ").append(direction);
+		sql.append(", o.obs_id ").append(direction);
+		log.debug("query: " + sql);
+		
+		List<Integer> conceptIds = new Vector<Integer>();
+		conceptIds.addAll(tables.keySet());
+		
+		long start = System.currentTimeMillis();
+		StatelessSession session = openBulkSession();
+		try {
+			// only scalars are read, so the rows never go through the session's persistence context
+			Query query = session.createSQLQuery(sql.toString());
+			query.setFetchSize(BULK_FETCH_SIZE);
+			query.setParameterList("conceptIds", conceptIds);
+			if (patients != null)
+				query.setParameterList("patientIds", patients.getMemberIds());
 			
-			// if we have already fetched all of the results the user wants 
-			if (limit != null && limit > 0 && oldArr != null && oldArr.size() >= limit) {
-				// the user provided a limit value and this patient already has more than
-				// that number of values.
-				// do nothing with this row
+			ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				int currentPatientId = -1;
+				int currentConceptId = -1;
+				int currentRows = 0;
+				while (results.next()) {
+					Object[] rowArray = results.get();
+					int ptId = ((Number) rowArray[0]).intValue();
+					int conceptId = ((Number) rowArray[1]).intValue();
+					
+					if (ptId != currentPatientId || conceptId != currentConceptId) {
+						currentPatientId = ptId;
+						currentConceptId = conceptId;
+						currentRows = 0;
+					}
+					if (limitPerPatient && currentRows >= limit)
+						continue;
+					currentRows++;
+					
+					ObsValueTable table = tables.get(conceptId);
+					setObsValues(table, table.addRow(ptId), rowArray, attributeTypes);
+				}
 			}
-			else {
-				Boolean tmpConditional = conditional.booleanValue();
-				
-				// get all columns
-				int index = 1;
-				List<Object> row = new Vector<Object>();
-				while (index < rowArray.length) {
-					Object value = rowArray[index++];
-					if (value instanceof Provider) {
-						value = ((Provider)value).getName();
+			finally {
+				results.close();
+			}
+		}
+		finally {
+			session.close();
+		}
+		
+		int rowCount = 0;
+		for (ObsValueTable table : tables.values()) {
+			table.finish();
+			rowCount += table.getRowCount();
+		}
+		log.debug("Took: " + (System.currentTimeMillis() - start) + " ms to fill the obs value tables for "
+		        + conceptIds.size() + " concepts with " + rowCount + " rows");
+		
+		return tables;
+	}
+	
+	public void scrollObservationValues(Cohort patients, Concept c, List<String> attributes, boolean showMostRecentFirst,
+	                                    ObsValueTableHandler handler) {
+		List<String> attrs = getObsValueAttributes(attributes);
+		byte[] attributeTypes = new byte[attrs.size()];
+		String obsValuesSql = getObsValuesSql(attrs, attributeTypes, patients != null);
+		if (patients != null && patients.isEmpty())
+			return;
+		
+		String direction = showMostRecentFirst ? "desc" : "asc";
+		StringBuilder sql = new StringBuilder(obsValuesSql);
+		sql.append(" order by o.person_id asc, o.obs_datetime ").append(direction);
+		sql.append(", o.obs_id ").append(direction);
+		log.debug("query: " + sql);
+		
+		// the same table is filled again for every chunk
+		ObsValueTable chunk = new ObsValueTable(getObsValueColumnTypes(c, attributeTypes));
+		
+		long start = System.currentTimeMillis();
+		int rowCount = 0;
+		StatelessSession session = openBulkSession();
+		try {
+			Query query = session.createSQLQuery(sql.toString());
+			query.setFetchSize(BULK_FETCH_SIZE);
+			query.setParameterList("conceptIds", Collections.singletonList(c.getConceptId()));
+			if (patients != null)
+				query.setParameterList("patientIds", patients.getMemberIds());
+			
+			ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				boolean more = true;
+				while (more && results.next()) {
+					Object[] rowArray = results.get();
+					setObsValues(chunk, chunk.addRow(((Number) rowArray[0]).intValue()), rowArray, attributeTypes);
+					rowCount++;
+					
+					if (chunk.getRowCount() == OBS_VALUE_CHUNK_SIZE) {
+						more = handler.handle(chunk);
+						chunk.clear();
 					}
-					if (tmpConditional) {
-						if (index == 2 && value != null) // skip null first value if we must
-							row.add(value);
-						else
-							row.add(rowArray[index]);
-						tmpConditional = false;
-						index++; // increment counter for next column.  (Skips over value_concept)
-					} else
-						row.add(value == null ? "" : value);
 				}
-				
-				// if we haven't seen a different row for this patient already:
-				if (oldArr == null) {
-					List<List<Object>> arr = new Vector<List<Object>>();
-					arr.add(row);
-					ret.put(ptId, arr);
+				if (more && chunk.getRowCount() > 0)
+					handler.handle(chunk);
+			}
+			finally {
+				results.close();
+			}
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new DAOException("Unable to handle the obs of concept " + c.getConceptId(), e);
+		}
+		finally {
+			session.close();
+		}
+		
+		log.debug("Took: " + (System.currentTimeMillis() - start) + " ms to scroll over " + rowCount
+		        + " obs of concept " + c.getConceptId());
+	}
+	
+	/**
+	 * @param attributes the extra attributes of obs value rows
+	 * @return the attributes without the nulls, which stand for the obs value itself (always
+	 *         column 0 here)
+	 */
+	private static List<String> getObsValueAttributes(List<String> attributes) {
+		List<String> attrs = new Vector<String>();
+		for (String attribute : attributes) {
+			if (attribute != null)
+				attrs.add(attribute);
+		}
+		return attrs;
+	}
+	
+	/**
+	 * @param c the concept of the obs
+	 * @param attributeTypes the column types of the extra attributes
+	 * @return the column types of an {@link ObsValueTable} of the concept
+	 */
+	private static byte[] getObsValueColumnTypes(Concept c, byte[] attributeTypes) {
+		byte[] columnTypes = new byte[attributeTypes.length + 1];
+		columnTypes[0] = getObsValueType(c);
+		System.arraycopy(attributeTypes, 0, columnTypes, 1, attributeTypes.length);
+		return columnTypes;
+	}
+	
+	/**
+	 * Builds the query of the obs values of <code>:conceptIds</code> (and
+	 * <code>:patientIds</code>) with the given extra attributes, up to the order by clause. All
+	 * value columns are selected, a concept's table only keeps the one matching its datatype.
+	 * Locations and providers are only selected by id, their names are looked up when written.
+	 * 
+	 * @param attrs the extra attributes, without nulls
+	 * @param attributeTypes filled in with the {@link ObsValueTable} column type of each attribute
+	 * @param restrictPatients true to restrict the obs to <code>:patientIds</code>
+	 * @return the sql, the rows of which can be passed on to
+	 *         {@link #setObsValues(ObsValueTable, int, Object[], byte[])}
+	 */
+	private String getObsValuesSql(List<String> attrs, byte[] attributeTypes, boolean restrictPatients) {
+		StringBuilder select = new StringBuilder(
+		        "select o.person_id, o.concept_id, o.value_numeric, o.value_coded, o.value_drug, o.value_datetime, o.value_text");
+		StringBuilder from = new StringBuilder(" from obs o");
+		StringBuilder where = new StringBuilder();
+		boolean joinedEncounter = false;
+		
+		for (int i = 0; i < attrs.size(); i++) {
+			String attribute = attrs.get(i);
+			if (attribute.equals("valueDatetime")) {
+				attributeTypes[i] = ObsValueTable.DATETIME;
+				select.append(", o.value_datetime");
+			} else if (attribute.equals("obsDatetime")) {
+				attributeTypes[i] = ObsValueTable.DATETIME;
+				select.append(", o.obs_datetime");
+			} else if (attribute.equals("location")) {
+				attributeTypes[i] = ObsValueTable.LOCATION;
+				select.append(", o.location_id");
+				// the obs without a location are left out, as they were when the location was joined
+				where.append(" and o.location_id is not null");
+			} else if (attribute.equals("comment")) {
+				attributeTypes[i] = ObsValueTable.TEXT;
+				select.append(", o.comments");
+			} else if (attribute.equals("encounterType") || attribute.equals("provider")) {
+				if (!joinedEncounter) {
+					from.append(" inner join encounter e on e.encounter_id = o.encounter_id");
+					joinedEncounter = true;
 				}
-				// if we have seen a row for this patient already
-				else {
-					oldArr.add(row);
-					ret.put(ptId, oldArr);
+				if (attribute.equals("encounterType")) {
+					attributeTypes[i] = ObsValueTable.TEXT;
+					select.append(", et.name");
+					from.append(" inner join encounter_type et on et.encounter_type_id = e.encounter_type");
+				} else {
+					attributeTypes[i] = ObsValueTable.PROVIDER;
+					select.append(", ep.provider_id");
+					// one provider per encounter, so an obs never comes back twice
+					from.append(" inner join (select encounter_id, min(provider_id) as provider_id from encounter_provider");
+					from.append(" where voided = false group by encounter_id) ep on ep.encounter_id = e.encounter_id");
 				}
+			} else {
+				throw new DAOException("Attribute: " + attribute + " is not recognized. Please add reference in "
+				        + this.getClass());
 			}
 		}
 		
-		return ret;
+		StringBuilder sql = new StringBuilder();
+		sql.append(select).append(from);
+		sql.append(" where o.concept_id in (:conceptIds) and o.voided = false").append(where);
+		if (restrictPatients)
+			sql.append(" and o.person_id in (:patientIds)");
+		return sql.toString();
+	}
+	
+	/**
+	 * Copies the value and the extra attributes of an obs value row into a row of the table
+	 * 
+	 * @param table the table of the row's concept
+	 * @param row the row of the table to fill
+	 * @param rowArray the row of the query from {@link #getObsValuesSql(List, byte[], boolean)}
+	 * @param attributeTypes the column types of the extra attributes
+	 */
+	private static void setObsValues(ObsValueTable table, int row, Object[] rowArray, byte[] attributeTypes) {
+		switch (table.getColumnType(0)) {
+			case ObsValueTable.NUMERIC:
+				if (rowArray[2] != null)
+					table.setNumeric(0, row, ((Number) rowArray[2]).doubleValue());
+				break;
+			case ObsValueTable.CODED:
+				if (rowArray[3] != null)
+					table.setCoded(0, row, ((Number) rowArray[3]).intValue());
+				if (rowArray[4] != null)
+					table.setDrug(0, row, ((Number) rowArray[4]).intValue());
+				break;
+			case ObsValueTable.DATETIME:
+				if (rowArray[5] != null)
+					table.setDatetime(0, row, ((Date) rowArray[5]).getTime());
+				break;
+			default:
+				if (rowArray[6] != null)
+					table.setText(0, row, rowArray[6].toString());
+		}
+		
+		for (int i = 0; i < attributeTypes.length; i++) {
+			Object value = rowArray[i + 7];
+			if (value == null)
+				continue;
+			
+			if (attributeTypes[i] == ObsValueTable.DATETIME)
+				table.setDatetime(i + 1, row, ((Date) value).getTime());
+			else if (attributeTypes[i] == ObsValueTable.LOCATION || attributeTypes[i] == ObsValueTable.PROVIDER)
+				table.setId(i + 1, row, ((Number) value).intValue());
+			else
+				table.setText(i + 1, row, value.toString());
+		}
+	}
+	
+	/**
+	 * @param c the concept of the obs
+	 * @return the {@link ObsValueTable} column type that holds the value of obs with this concept
+	 * @see #findObsValueColumnName(Concept)
+	 */
+	private static byte getObsValueType(Concept c) {
+		List<String> valueColumns = findObsValueColumnName(c);
+		if (valueColumns.contains("valueNumeric"))
+			return ObsValueTable.NUMERIC;
+		else if (valueColumns.contains("valueCoded"))
+			return ObsValueTable.CODED;
+		else if (valueColumns.contains("valueDatetime"))
+			return ObsValueTable.DATETIME;
+		else
+			return ObsValueTable.TEXT;
+	}
+	
+	/**
+	 * Builds a sql restriction on the given obs alias that only lets through the first (or last)
+	 * <code>limit</code> obs of each of the given concepts for each patient. The ranking is done
+	 * with a row_number() window function so the database only sends back the rows that are wanted.
+	 * Only the obs that the joins of the given attributes let through are ranked, so a patient
+	 * still gets <code>limit</code> rows when some of the obs have no location or provider.
+	 * 
+	 * @param obsAlias the sql alias of the obs table being restricted
+	 * @param conceptIds the sql list of the concept ids of the obs, a bound parameter like
+	 *            <code>:conceptIds</code>
+	 * @param patientIds the sql list of the ids of the patients to rank obs for, a bound parameter
+	 *            like <code>:patientIds</code>. If null, all patients are ranked
+	 * @param attributes the extra attributes of the rows, nulls are ignored
+	 * @param limit number of obs per patient and concept to keep
+	 * @param showMostRecentFirst if true, the most recent obs are kept, otherwise the oldest
+	 * @return sql snippet for use in {@link Restrictions#sqlRestriction(String, Object[], Type[])}
+	 *         or a where clause
+	 */
+	private String getTopObsPerPatientRestriction(String obsAlias, String conceptIds, String patientIds,
+	                                              List<String> attributes, Integer limit, boolean showMostRecentFirst) {
+		String direction = showMostRecentFirst ? "desc" : "asc";
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append(obsAlias).append(".obs_id in (select ranked.obs_id from (");
+		sb.append(" select ro.obs_id, row_number() over (partition by ro.person_id, ro.concept_id order by ro.obs_datetime ");
+		sb.append(direction).append(", ro.obs_id ").append(direction).append(") as obs_rank");
+		sb.append(" from obs ro where ro.concept_id in (").append(conceptIds).append(") and ro.voided = false");
+		if (patientIds != null)
+			sb.append(" and ro.person_id in (").append(patientIds).append(")");
+		if (attributes.contains("location"))
+			sb.append(" and ro.location_id is not null");
+		if (attributes.contains("encounterType") || attributes.contains("provider"))
+			sb.append(" and ro.encounter_id is not null");
+		if (attributes.contains("provider"))
+			sb.append(" and exists (select 1 from encounter_provider rep where rep.encounter_id = ro.encounter_id")
+			        .append(" and rep.voided = false)");
+		sb.append(") ranked where ranked.obs_rank <= ").append(limit).append(")");
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Checks (once) whether the connected database understands the
+	 * <code>row_number() over (partition by ...)</code> window function. PostgreSQL, MySQL 8+,
+	 * MariaDB 10.2+ and H2 1.4.198+ do.
+	 * 
+	 * @return true if window functions can be used in queries
+	 */
+	private boolean supportsWindowFunctions() {
+		if (supportsWindowFunctions == null) {
+			supportsWindowFunctions = sessionFactory.getCurrentSession().doReturningWork(new ReturningWork<Boolean>() {
+				
+				public Boolean execute(Connection connection) throws SQLException {
+					DatabaseMetaData metaData = connection.getMetaData();
+					String product = metaData.getDatabaseProductName().toLowerCase();
+					String version = metaData.getDatabaseProductVersion();
+					
+					if (product.contains("postgres"))
+						return true;
+					else if (product.contains("mariadb") || version.contains("MariaDB"))
+						// mysql drivers report mariadb versions as "5.5.5-10.x.y-MariaDB"
+						return isVersionAtLeast(version.replaceFirst("^5\\.5\\.5-", ""), 10, 2, 0);
+					else if (product.contains("mysql"))
+						return isVersionAtLeast(version, 8, 0, 0);
+					else if (product.contains("h2"))
+						return isVersionAtLeast(version, 1, 4, 198);
+					
+					return false;
+				}
+			});
+			log.debug("Database supports window functions: " + supportsWindowFunctions);
+		}
 		
+		return supportsWindowFunctions;
+	}
+	
+	/**
+	 * @param version a database version string like "8.0.32" or "1.4.200 (2019-10-14)"
+	 * @param required the minimum major, minor, patch numbers
+	 * @return true if the version is the same or newer than the required one
+	 */
+	private static boolean isVersionAtLeast(String version, int... required) {
+		Matcher matcher = Pattern.compile("(\\d+)(?:\\.(\\d+))?(?:\\.(\\d+))?").matcher(version);
+		if (!matcher.find())
+			return false;
+		
+		for (int i = 0; i < required.length; i++) {
+			String part = matcher.group(i + 1);
+			int actual = part == null ? 0 : Integer.parseInt(part);
+			if (actual != required[i])
+				return actual > required[i];
+		}
+		
+		return true;
 	}
 	
 	// TODO this should be in some sort of central place...but where?
@@ -994,8 +1597,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		Map<Integer, Encounter> ret = new HashMap<Integer, Encounter>();
 		
 		// default query
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Encounter.class, null);
 		
 		// this "where clause" is only necessary if patients were passed in
 		if (patients != null && patients.size() > 0)
@@ -1031,8 +1633,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 	public List<Encounter> getEncountersByForm(Cohort patients, List<Form> forms) {
 		
 		// default query
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Encounter.class, null);
 		
 		// this "where clause" is only necessary if patients were passed in
 		if (patients != null && patients.size() > 0)
@@ -1056,8 +1657,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		Map<Integer, Object> ret = new HashMap<Integer, Object>();
 		
 		// default query
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Encounter.class, null);
 		
 		criteria.createAlias("encounterProviders", "encounterProvider");
 		criteria.createAlias("encounterProvider.provider", "provider");
@@ -1098,8 +1698,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		Map<Integer, Encounter> ret = new HashMap<Integer, Encounter>();
 		
 		// default query
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Encounter.class, null);
 		
 		// only include this where clause if patients were passed in
 		if (patients != null)
@@ -1127,8 +1726,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		Map<Integer, Encounter> ret = new HashMap<Integer, Encounter>();
 		
 		// default query
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Encounter.class, null);
 		
 		// this "where clause" is only needed if patients were specified
 		if (patients != null)
@@ -1167,13 +1765,11 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		
 		// make 'patient.**' reference 'patient' like alias instead of object
 		if (className.equals("org.openmrs.Patient"))
-			criteria = sessionFactory.getCurrentSession().createCriteria("org.openmrs.Patient", "patient");
+			criteria = createBulkCriteria("org.openmrs.Patient", "patient");
 		else if (className.equals("org.openmrs.Person"))
-			criteria = sessionFactory.getCurrentSession().createCriteria("org.openmrs.Person", "person");
+			criteria = createBulkCriteria("org.openmrs.Person", "person");
 		else
-			criteria = sessionFactory.getCurrentSession().createCriteria(className);
-		
-		criteria.setCacheMode(CacheMode.IGNORE);
+			criteria = createBulkCriteria(className, null);
 		
 		// set up the query
 		ProjectionList projectionList = Projections.projectionList();
@@ -1282,7 +1878,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		queryString.append("and t.name = :typeName ");
 		queryString.append("order by attr.voided asc, attr.dateCreated desc");
 		
-		Query query = sessionFactory.getCurrentSession().createQuery(queryString.toString());	
+		Query query = createBulkQuery(queryString.toString());
 		query.setString("typeName", attributeTypeName);
 		
 		log.debug("query: " + queryString);
@@ -1545,40 +2141,38 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 	public Map<Integer, PatientProgram> getPatientPrograms(Cohort ps, Program program, boolean includeVoided,
 	                                                       boolean includePast) throws DAOException {
 		Map<Integer, PatientProgram> ret = new HashMap<Integer, PatientProgram>();
+		if (ps != null && ps.size() == 0) {
+			return ret;
+		}
 		
 		Date now = new Date();
 		
-		// First get Map of patientId to patientProgramId for efficiency
-		Map<Integer, Integer> programIdToPatient = new HashMap<Integer, Integer>();
-		String sql = "select patient_program_id, patient_id from patient_program";
-		Query q = sessionFactory.getCurrentSession().createSQLQuery(sql);
-		q.setCacheMode(CacheMode.IGNORE);
-		List<Object[]> l = q.list();
-		for (Object[] row : l) {
-			programIdToPatient.put((Integer)row[0], (Integer)row[1]);
-		}
-		
-		// Next get all PatientPrograms from the DB
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientProgram.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
-		criteria.add(Restrictions.eq("program", program));
+		// the patient id is projected next to the program so the patient never has to be loaded, 
+		// and only the programs of the given cohort are fetched 
+		StringBuilder hql = new StringBuilder();
+		hql.append("select pp, pp.patient.personId from PatientProgram pp where pp.program = :program ");
 		if (!includeVoided) {
-			criteria.add(Restrictions.eq("voided", false));
+			hql.append("and pp.voided = false ");
 		}
-		criteria.add(Restrictions.or(Restrictions.isNull("dateEnrolled"), Restrictions.le("dateEnrolled", now)));
+		hql.append("and (pp.dateEnrolled is null or pp.dateEnrolled <= :now) ");
 		if (!includePast) {
-			criteria.add(Restrictions.or(Restrictions.isNull("dateCompleted"), Restrictions.ge("dateCompleted", now)));
+			hql.append("and (pp.dateCompleted is null or pp.dateCompleted >= :now) ");
 		}
-		log.debug("criteria: " + criteria);
-		List<PatientProgram> temp = criteria.list();
-		
-		// Finally, construct return list based on input Cohort		
-		for (PatientProgram prog : temp) {
-			Integer patientProgramId = prog.getPatientProgramId();
-			Integer patientId = programIdToPatient.get(patientProgramId);
-			if (ps == null || ps.contains(patientId)) {
-				ret.put(patientId, prog);
-			}
+		if (ps != null) {
+			hql.append("and pp.patient.personId in (:patientIds) ");
+		}
+		log.debug("query: " + hql);
+		
+		Query query = createBulkQuery(hql.toString());
+		query.setParameter("program", program);
+		query.setTimestamp("now", now);
+		if (ps != null) {
+			query.setParameterList("patientIds", ps.getMemberIds());
+		}
+		
+		List<Object[]> rows = query.list();
+		for (Object[] row : rows) {
+			ret.put((Integer) row[1], (PatientProgram) row[0]);
 		}
 		return ret;
 	}
@@ -1590,9 +2184,8 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		
 		Date now = new Date();
 		
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(DrugOrder.class);
+		Criteria criteria = createBulkCriteria(DrugOrder.class, null);
 		criteria.setFetchMode("patient", FetchMode.JOIN);
-		criteria.setCacheMode(CacheMode.IGNORE);
 		
 		// this "where clause" is only necessary if patients were passed in
 		if (patients != null)
@@ -1628,39 +2221,36 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 			return ret;
 		}
 		
-		// First get Map of patientId to orderId for efficiency
-		Map<Integer, Integer> orderIdToPatient = new HashMap<Integer, Integer>();
-		String sql = "select o.order_id, o.patient_id from orders o, drug_order d where o.order_id = d.order_id";
-		Query q = sessionFactory.getCurrentSession().createSQLQuery(sql);
-		q.setCacheMode(CacheMode.IGNORE);
-		List<Object[]> l = q.list();
-		for (Object[] row : l) {
-			orderIdToPatient.put((Integer)row[0], (Integer)row[1]);
+		// the patient id is projected next to the order so the patient never has to be loaded, 
+		// and only the orders of the given cohort are fetched 
+		StringBuilder hql = new StringBuilder();
+		hql.append("select d, d.patient.personId from DrugOrder d where d.voided = false ");
+		if (drugConcepts != null) {
+			hql.append("and d.concept in (:drugConcepts) ");
+		}
+		if (patients != null) {
+			hql.append("and d.patient.personId in (:patientIds) ");
 		}
+		hql.append("order by d.dateActivated asc");
+		log.debug("query: " + hql);
 		
-		// Next get all DrugOrders from the DB
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(DrugOrder.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Query query = createBulkQuery(hql.toString());
 		if (drugConcepts != null) {
-			criteria.add(Restrictions.in("concept", drugConcepts));
+			query.setParameterList("drugConcepts", drugConcepts);
+		}
+		if (patients != null) {
+			query.setParameterList("patientIds", patients.getMemberIds());
 		}
-		criteria.add(Restrictions.eq("voided", false));
-		criteria.addOrder(org.hibernate.criterion.Order.asc("dateActivated"));
-		log.debug("criteria: " + criteria);
-		List<DrugOrder> temp = criteria.list();
 		
-		// Finally, construct return list based on input Cohort		
-		for (DrugOrder regimen : temp) {
-			Integer orderId = regimen.getOrderId();
-			Integer patientId = orderIdToPatient.get(orderId);
-			if (patients == null || patients.contains(patientId)) {
-				List<DrugOrder> list = ret.get(patientId);
-				if (list == null) {
-					list = new ArrayList<DrugOrder>();
-					ret.put(patientId, list);
-				}
-				list.add(regimen);
+		List<Object[]> rows = query.list();
+		for (Object[] row : rows) {
+			Integer patientId = (Integer) row[1];
+			List<DrugOrder> list = ret.get(patientId);
+			if (list == null) {
+				list = new ArrayList<DrugOrder>();
+				ret.put(patientId, list);
 			}
+			list.add((DrugOrder) row[0]);
 		}
 		return ret;
 	}
@@ -1679,7 +2269,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 			if (patients.size() == 0)
 				return ret;
 		
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Relationship.class);
+		Criteria criteria = createBulkCriteria(Relationship.class, null);
 		criteria.add(Restrictions.eq("voided", false));
 		if (patients != null) {
 			if (forwards) {
@@ -1710,8 +2300,7 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 	public Map<Integer, List<Relationship>> getRelationships(Cohort patients, RelationshipType relType) {
 		Map<Integer, List<Relationship>> ret = new HashMap<Integer, List<Relationship>>();
 		
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Relationship.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
+		Criteria criteria = createBulkCriteria(Relationship.class, null);
 		if (relType != null)
 			criteria.add(Restrictions.eq("relationshipType", relType));
 		
@@ -1734,6 +2323,74 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 		return ret;
 	}
 	
+	@SuppressWarnings("unchecked")
+	public RelativeTable getRelativeTable(Cohort patients, RelationshipType relType) {
+		RelativeTable table = new RelativeTable();
+		if (patients != null && patients.size() == 0)
+			return table;
+		
+		// the same relationships as getRelationships(Cohort, RelationshipType)
+		StringBuilder where = new StringBuilder(" where r.voided = false ");
+		if (relType != null)
+			where.append(" and r.relationship = :relType ");
+		if (patients != null)
+			where.append(" and r.person_b in (:patientIds) ");
+		
+		// only scalars are returned, so nothing needs to go through the session's persistence context
+		StatelessSession session = openBulkSession();
+		try {
+			// every relationship with the names of the relative, the preferred one first
+			Query query = session.createSQLQuery("select r.relationship_id, r.person_b, r.person_a, n.given_name,"
+			        + " n.middle_name, n.family_name from relationship r"
+			        + " left join person_name n on n.person_id = r.person_a and n.voided = false" + where
+			        + " order by r.person_b, r.relationship_id, n.preferred desc, n.person_name_id");
+			setRelativeTableParameters(query, patients, relType);
+			
+			Integer lastRelationshipId = null;
+			for (Object[] row : (List<Object[]>) query.list()) {
+				Integer relationshipId = ((Number) row[0]).intValue();
+				if (relationshipId.equals(lastRelationshipId))
+					continue;
+				lastRelationshipId = relationshipId;
+				table.addRow(((Number) row[1]).intValue(), ((Number) row[2]).intValue(), (String) row[3],
+				    (String) row[4], (String) row[5]);
+			}
+			if (table.getRowCount() == 0)
+				return table;
+			
+			// the relatives that are patients, with their identifiers, the preferred one first
+			query = session.createSQLQuery("select r.person_a, i.identifier from relationship r"
+			        + " inner join patient p on p.patient_id = r.person_a"
+			        + " left join patient_identifier i on i.patient_id = p.patient_id and i.voided = false" + where
+			        + " order by r.person_a, i.preferred desc, i.patient_identifier_id");
+			setRelativeTableParameters(query, patients, relType);
+			
+			Map<Integer, String> identifiers = new HashMap<Integer, String>();
+			for (Object[] row : (List<Object[]>) query.list()) {
+				Integer relativeId = ((Number) row[0]).intValue();
+				if (!identifiers.containsKey(relativeId))
+					identifiers.put(relativeId, (String) row[1]);
+			}
+			for (int row = 0; row < table.getRowCount(); row++) {
+				Integer relativeId = table.getRelativeId(row);
+				if (identifiers.containsKey(relativeId))
+					table.setPatientIdentifier(row, identifiers.get(relativeId));
+			}
+			return table;
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	private void setRelativeTableParameters(Query query, Cohort patients, RelationshipType relType) {
+		query.setFetchSize(BULK_FETCH_SIZE);
+		if (relType != null)
+			query.setInteger("relType", relType.getRelationshipTypeId());
+		if (patients != null)
+			query.setParameterList("patientIds", patients.getMemberIds());
+	}
+	
 	public Cohort getPatientsHavingPersonAttribute(PersonAttributeType attribute, String value) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(" select pat.patient_id ");
@@ -1830,39 +2487,49 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 	public Map<Integer, String> getPatientIdentifierByType(Cohort patients, List<PatientIdentifierType> types) {
 		Map<Integer, String> patientIdentifiers = new HashMap<Integer, String>();
 		
-		// default query
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientIdentifier.class);
-		
-		// only get the "identifier" and "patientId" columns
-		ProjectionList projections = Projections.projectionList();
-		projections.add(Projections.property("identifier"));
-		projections.add(Projections.property("patient.personId"));
-		criteria.setProjection(projections);
-		
-		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// Add patient restriction if necessary
-		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		// all identifiers must be non-voided
-		criteria.add(Restrictions.eq("voided", false));
-		
-		// Add identifier type filter
-		if (types != null && types.size() > 0)
-			criteria.add(Restrictions.in("identifierType", types));
-		
-		// Order by ID
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		
-		List<Object[]> rows = criteria.list();
-		
-		// set up the return map
-		for (Object[] row : rows) {
-			String identifier = (String)row[0];
-			Integer patientId = (Integer)row[1];
-			if (!patientIdentifiers.containsKey(patientId))
-				patientIdentifiers.put(patientId, identifier);
+		// only scalars are returned, so nothing needs to go through the session's persistence context
+		StatelessSession session = openBulkSession();
+		try {
+			// default query
+			Criteria criteria = session.createCriteria(PatientIdentifier.class);
+			criteria.setFetchSize(BULK_FETCH_SIZE);
+			
+			// only get the "identifier" and "patientId" columns
+			ProjectionList projections = Projections.projectionList();
+			projections.add(Projections.property("identifier"));
+			projections.add(Projections.property("patient.personId"));
+			criteria.setProjection(projections);
+			
+			// Add patient restriction if necessary
+			if (patients != null)
+				criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
+			
+			// all identifiers must be non-voided
+			criteria.add(Restrictions.eq("voided", false));
+			
+			// Add identifier type filter
+			if (types != null && types.size() > 0)
+				criteria.add(Restrictions.in("identifierType", types));
+			
+			// Order by ID
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			
+			ScrollableResults rows = criteria.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				// set up the return map
+				while (rows.next()) {
+					String identifier = (String) rows.get(0);
+					Integer patientId = (Integer) rows.get(1);
+					if (!patientIdentifiers.containsKey(patientId))
+						patientIdentifiers.put(patientId, identifier);
+				}
+			}
+			finally {
+				rows.close();
+			}
+		}
+		finally {
+			session.close();
 		}
 		
 		return patientIdentifiers;
@@ -1951,23 +2618,213 @@ public class HibernateReportingCompatibilityDAO implements ReportingCompatibilit
 	}
 
 	public Integer getCountOfPatients() {
-		Query query = sessionFactory.getCurrentSession().createQuery("select count(*) from Patient where voided = 0");
-		return new Integer(query.uniqueResult().toString());
+		StatelessSession session = openBulkSession();
+		try {
+			Query query = session.createQuery("select count(*) from Patient where voided = 0");
+			return new Integer(query.uniqueResult().toString());
+		}
+		finally {
+			session.close();
+		}
 	}
 
 	public Cohort getPatients(Integer start, Integer size) {
-		Query query = sessionFactory.getCurrentSession().createQuery("select distinct patientId from Patient p where p.voided = 0");
+		StatelessSession session = openBulkSession();
+		try {
+			Query query = session.createQuery("select distinct patientId from Patient p where p.voided = 0 order by patientId");
+			
+			if (start != null)
+				query.setFirstResult(start);
+			
+			if (size != null)
+				query.setMaxResults(size);
+			
+			return new Cohort("Batch of " + size + " patients starting at " + start, "", query.list());
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	public Cohort getPatientsAfter(Integer lastPatientId, Integer size) {
+		StatelessSession session = openBulkSession();
+		try {
+			// walks the primary key index instead of skipping over all earlier patients like an offset would
+			String hql = "select p.patientId from Patient p where p.voided = false";
+			if (lastPatientId != null)
+				hql += " and p.patientId > :lastPatientId";
+			hql += " order by p.patientId asc";
+			
+			Query query = session.createQuery(hql);
+			query.setFetchSize(BULK_FETCH_SIZE);
+			if (lastPatientId != null)
+				query.setInteger("lastPatientId", lastPatientId);
+			if (size != null)
+				query.setMaxResults(size);
+			
+			return new Cohort("Batch of " + size + " patients after " + lastPatientId, "", query.list());
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	public Cohort getPatientsChangedSince(Date since) {
+		// one select per date column rather than an or of them, so each can use an index on its column
+		StringBuilder sql = new StringBuilder();
+		for (String[] table : CHANGE_TRACKED_TABLES) {
+			for (int i = 2; i < table.length; i++) {
+				if (sql.length() > 0)
+					sql.append(" union ");
+				sql.append("select ").append(table[1]).append(" from ").append(table[0]).append(" where t.").append(
+				    table[i]).append(" >= :since");
+			}
+		}
+		
+		StatelessSession session = openBulkSession();
+		try {
+			Query query = session.createSQLQuery(sql.toString());
+			query.setFetchSize(BULK_FETCH_SIZE);
+			query.setTimestamp("since", since);
+			
+			// the union also returns persons that aren't patients, which never match an export's patients
+			Set<Integer> patientIds = new HashSet<Integer>();
+			for (Object id : query.list()) {
+				if (id != null)
+					patientIds.add(((Number) id).intValue());
+			}
+			
+			return new Cohort("Patients changed since " + since, "", patientIds);
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	public Date getLastDataChange() {
+		Set<String> columns = new LinkedHashSet<String>();
+		for (String[] table : CHANGE_TRACKED_TABLES) {
+			// only the tracked table itself, without the joins to the patient
+			for (int i = 2; i < table.length; i++)
+				columns.add("select max(" + table[i] + ") from " + table[0].substring(0, table[0].indexOf(' ')));
+		}
 		
-		if (start != null)
-			query.setFirstResult(start);
+		StringBuilder sql = new StringBuilder();
+		for (String column : columns) {
+			if (sql.length() > 0)
+				sql.append(" union all ");
+			sql.append(column);
+		}
 		
-		if (size != null)
-			query.setMaxResults(size);
+		StatelessSession session = openBulkSession();
+		try {
+			Date last = null;
+			for (Object date : session.createSQLQuery(sql.toString()).list()) {
+				if (date != null && (last == null || ((Date) date).after(last)))
+					last = (Date) date;
+			}
+			return last;
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	public String getConceptDictionaryVersion() {
+		StringBuilder sql = new StringBuilder("select ");
+		for (int i = 0; i < CONCEPT_DICTIONARY_VERSION.length; i++) {
+			if (i > 0)
+				sql.append(", ");
+			sql.append("(").append(CONCEPT_DICTIONARY_VERSION[i]).append(")");
+		}
 		
-		Set<Integer> ids = new HashSet<Integer>();
-		ids.addAll(query.list());
+		StatelessSession session = openBulkSession();
+		try {
+			Object[] row = (Object[]) session.createSQLQuery(sql.toString()).uniqueResult();
+			StringBuilder version = new StringBuilder();
+			for (Object value : row) {
+				if (version.length() > 0)
+					version.append("|");
+				version.append(value instanceof Date ? ((Date) value).getTime() : value);
+			}
+			return version.toString();
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getNames(Class<?> type, Collection<Integer> ids, Locale locale) {
+		String sql;
+		if (Concept.class.isAssignableFrom(type)) {
+			// the same preference as Concept.getName(locale): an exact locale match, then the
+			// language, then any other locale, the preferred and fully specified names first,
+			// never a short name or an index term
+			sql = "select n.concept_id, n.name from concept_name n where n.concept_id in (:ids) and n.voided = false"
+			        + " and (n.concept_name_type is null or n.concept_name_type not in ('SHORT', 'INDEX_TERM'))"
+			        + " order by n.concept_id, case when n.locale = :locale then 0 when n.locale = :language then 1"
+			        + " when n.locale like :languagePrefix then 2 else 3 end, n.locale_preferred desc,"
+			        + " case when n.concept_name_type = 'FULLY_SPECIFIED' then 0 else 1 end, n.concept_name_id";
+		} else if (Drug.class.isAssignableFrom(type)) {
+			sql = "select d.drug_id, d.name from drug d where d.drug_id in (:ids)";
+		} else if (Location.class.isAssignableFrom(type)) {
+			sql = "select l.location_id, l.name from location l where l.location_id in (:ids)";
+		} else if (Provider.class.isAssignableFrom(type)) {
+			// providers linked to a person have no name of their own, they go by the person's name,
+			// the preferred one first
+			sql = "select p.provider_id, p.name, pn.prefix, pn.given_name, pn.middle_name, pn.family_name_prefix,"
+			        + " pn.family_name, pn.family_name2, pn.family_name_suffix, pn.degree from provider p"
+			        + " left join person_name pn on pn.person_id = p.person_id and pn.voided = false"
+			        + " where p.provider_id in (:ids) order by p.provider_id, pn.preferred desc, pn.person_name_id";
+		} else {
+			throw new IllegalArgumentException("Names of " + type.getName() + " can't be looked up");
+		}
+		
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		if (ids == null || ids.isEmpty())
+			return names;
 		
-		return new Cohort("Batch of " + size + " patients starting at " + start, "", ids);
+		StatelessSession session = openBulkSession();
+		try {
+			Query query = session.createSQLQuery(sql);
+			query.setFetchSize(BULK_FETCH_SIZE);
+			query.setParameterList("ids", ids);
+			if (Concept.class.isAssignableFrom(type)) {
+				if (locale == null)
+					locale = Context.getLocale();
+				query.setString("locale", locale.toString());
+				query.setString("language", locale.getLanguage());
+				query.setString("languagePrefix", locale.getLanguage() + "_%");
+			}
+			
+			for (Object[] row : (List<Object[]>) query.list()) {
+				Integer id = ((Number) row[0]).intValue();
+				if (!names.containsKey(id))
+					names.put(id, row[1] != null ? (String) row[1] : getFullName(row));
+			}
+			return names;
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * @param row a provider id and name followed by the parts of a person name
+	 * @return the parts of the person name joined like {@link org.openmrs.PersonName#getFullName()}, or
+	 *         null if there are none
+	 */
+	private static String getFullName(Object[] row) {
+		StringBuilder name = new StringBuilder();
+		for (int i = 2; i < row.length; i++) {
+			if (row[i] != null && ((String) row[i]).trim().length() > 0) {
+				if (name.length() > 0)
+					name.append(" ");
+				name.append(((String) row[i]).trim());
+			}
+		}
+		return name.length() > 0 ? name.toString() : null;
 	}
 	
 	/**
@@ -34,6 +34,9 @@ import org.openmrs.ProgramWorkflowState;
 import org.openmrs.Relationship;
 import org.openmrs.RelationshipType;
 import org.openmrs.api.db.DAOException;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTableHandler;
+import org.openmrs.module.reportingcompatibility.reporting.RelativeTable;
 import org.openmrs.module.reportingcompatibility.service.ReportService.Modifier;
 import org.openmrs.module.reportingcompatibility.service.ReportService.PatientLocationMethod;
 import org.openmrs.module.reportingcompatibility.service.ReportService.TimeModifier;
@@ -43,6 +46,7 @@ import org.openmrs.reporting.Report;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public interface ReportingCompatibilityDAO {
@@ -87,6 +91,21 @@ public interface ReportingCompatibilityDAO {
 	
 	public Map<Integer, List<List<Object>>> getObservationsValues(Cohort patients, Concept c, List<String> attributes, Integer limit, boolean showMostRecentFirst);
 	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getObservationValueTable(Cohort, Concept, List, Integer, boolean)
+	 */
+	public ObsValueTable getObservationValueTable(Cohort patients, Concept c, List<String> attributes, Integer limit, boolean showMostRecentFirst);
+	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getObservationValueTables(Cohort, List, List, Integer, boolean)
+	 */
+	public Map<Integer, ObsValueTable> getObservationValueTables(Cohort patients, List<Concept> concepts, List<String> attributes, Integer limit, boolean showMostRecentFirst);
+	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#scrollObservationValues(Cohort, Concept, List, boolean, ObsValueTableHandler)
+	 */
+	public void scrollObservationValues(Cohort patients, Concept c, List<String> attributes, boolean showMostRecentFirst, ObsValueTableHandler handler);
+	
 	public Map<Integer, Encounter> getEncountersByType(Cohort patients, List<EncounterType> encType);
 	
 	public Map<Integer, Object> getEncounterAttrsByType(Cohort patients, List<EncounterType> encTypes, String attr,
@@ -120,6 +139,11 @@ public interface ReportingCompatibilityDAO {
 	
 	public Map<Integer, List<Relationship>> getRelationships(Cohort ps, RelationshipType relType) throws DAOException;
 	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getRelativeTable(Cohort, RelationshipType)
+	 */
+	public RelativeTable getRelativeTable(Cohort ps, RelationshipType relType) throws DAOException;
+	
 	public Map<Integer, List<Person>> getRelatives(Cohort ps, RelationshipType relType, boolean forwards)
 	                                                                                                     throws DAOException;
 	
@@ -151,6 +175,31 @@ public interface ReportingCompatibilityDAO {
 
 	public Cohort getPatients(Integer start, Integer size);
 	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getPatientsAfter(Integer, Integer)
+	 */
+	public Cohort getPatientsAfter(Integer lastPatientId, Integer size);
+	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getPatientsChangedSince(Date)
+	 */
+	public Cohort getPatientsChangedSince(Date since);
+	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getLastDataChange()
+	 */
+	public Date getLastDataChange();
+	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getConceptDictionaryVersion()
+	 */
+	public String getConceptDictionaryVersion();
+	
+	/**
+	 * @see org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService#getNames(Class, Collection, Locale)
+	 */
+	public Map<Integer, String> getNames(Class<?> type, Collection<Integer> ids, Locale locale);
+	
 	/**
 	 * Create a new Report
 	 *
@@ -44,19 +44,11 @@ public class CsvReportRenderer extends DelimitedTextReportRenderer {
 		return "\n";
 	}
 	
-	public String escape(String text) {
-		if (text == null) {
-			return null;
-		} else {
-			return text.replaceAll("\"", "\\\"");
-		}
-	}
-	
 	/**
 	 * @see org.openmrs.report.ReportRenderer#getRenderedContentType(ReportSchema, String)
 	 */
 	public String getRenderedContentType(ReportSchema model, String argument) {
-		return "text/csv";
+		return "text/csv; charset=UTF-8";
 	}
 	
 }
@@ -15,7 +15,6 @@ package org.openmrs.report.impl;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.Collection;
 import java.util.Collections;
@@ -24,6 +23,8 @@ import java.util.List;
 import java.util.Map;
 
 import org.openmrs.Cohort;
+import org.openmrs.module.reportingcompatibility.reporting.CellFormatter;
+import org.openmrs.module.reportingcompatibility.reporting.ChannelWriter;
 import org.openmrs.report.CohortDataSet;
 import org.openmrs.report.DataSet;
 import org.openmrs.report.RenderingException;
@@ -44,7 +45,30 @@ public abstract class DelimitedTextReportRenderer implements ReportRenderer {
 	
 	public abstract String getAfterRowDelimiter();
 	
-	public abstract String escape(String text);
+	/**
+	 * Returns the text as it is. The renderers used to replace every quote with the replacement
+	 * <code>\"</code> of a regular expression, which is a quote again, so they never escaped
+	 * anything. Subclasses can override this to escape the text of their cells.
+	 * 
+	 * @param text the text of a cell
+	 * @return the text to write
+	 */
+	public String escape(String text) {
+		return text;
+	}
+	
+	/**
+	 * Writes the given text the same way as {@link #escape(String)} would. Subclasses can override
+	 * this to escape the text while copying it, without making a new string of it.
+	 * 
+	 * @param cells the formatter of the rendering
+	 * @param row the row being built up
+	 * @param text the text to escape
+	 * @since 3.0.0
+	 */
+	protected void appendEscaped(CellFormatter cells, StringBuilder row, String text) throws IOException {
+		cells.appendText(row, escape(text));
+	}
 	
 	/**
 	 * TODO: this appears to be unused. Its not in the super interface or overridden in subclasses.
@@ -75,8 +99,9 @@ public abstract class DelimitedTextReportRenderer implements ReportRenderer {
 	 * @see org.openmrs.report.ReportRenderer#render(ReportData, String, OutputStream)
 	 */
 	public void render(ReportData results, String argument, OutputStream out) throws IOException, RenderingException {
-		PrintWriter pw = new PrintWriter(out);
-		render(results, argument, pw);
+		// the rows are encoded into one large buffer, in UTF-8 whatever the platform default is
+		Writer writer = new ChannelWriter(out, ChannelWriter.UTF8, ChannelWriter.DEFAULT_BUFFER_SIZE);
+		render(results, argument, writer);
 	}
 	
 	/**
@@ -87,32 +112,44 @@ public abstract class DelimitedTextReportRenderer implements ReportRenderer {
 		DataSet dataset = results.getDataSets().values().iterator().next();
 		List<String> colKeys = dataset.getDefinition().getColumnKeys();
 		
+		// every row is built up in the same buffer and then copied to the writer in one go
+		CellFormatter cells = new CellFormatter();
+		StringBuilder row = new StringBuilder();
+		String beforeRow = getBeforeRowDelimiter();
+		String afterRow = getAfterRowDelimiter();
+		String beforeColumn = getBeforeColumnDelimiter();
+		String afterColumn = getAfterColumnDelimiter();
+		
 		// header row
-		writer.write(getBeforeRowDelimiter());
+		row.append(beforeRow);
 		for (String colKey : colKeys) {
-			writer.write(getBeforeColumnDelimiter());
-			writer.write(escape(colKey));
-			writer.write(getAfterColumnDelimiter());
+			row.append(beforeColumn);
+			appendEscaped(cells, row, colKey);
+			row.append(afterColumn);
 		}
-		writer.write(getAfterRowDelimiter());
+		row.append(afterRow);
+		cells.writeRow(row, writer);
 		
 		// data rows
+		boolean cohorts = dataset instanceof CohortDataSet;
 		for (Iterator<Map<String, Object>> i = dataset.iterator(); i.hasNext();) {
-			writer.write(getBeforeRowDelimiter());
+			row.append(beforeRow);
 			Map<String, Object> map = i.next();
 			for (String colKey : colKeys) {
 				Object colValue = map.get(colKey);
-				writer.write(getBeforeColumnDelimiter());
+				row.append(beforeColumn);
 				if (colValue != null) {
-					if (dataset instanceof CohortDataSet) {
-						writer.write(escape(Integer.toString(((Cohort) colValue).size())));
+					if (cohorts) {
+						// digits are never escaped
+						cells.appendInt(row, ((Cohort) colValue).size());
 					} else {
-						writer.write(escape(colValue.toString()));
+						appendEscaped(cells, row, colValue.toString());
 					}
 				}
-				writer.write(getAfterColumnDelimiter());
+				row.append(afterColumn);
 			}
-			writer.write(getAfterRowDelimiter());
+			row.append(afterRow);
+			cells.writeRow(row, writer);
 		}
 		
 		writer.flush();
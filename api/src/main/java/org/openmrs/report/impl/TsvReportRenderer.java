@@ -44,14 +44,6 @@ public class TsvReportRenderer extends DelimitedTextReportRenderer {
 		return "\n";
 	}
 	
-	public String escape(String text) {
-		if (text == null) {
-			return null;
-		} else {
-			return text.replaceAll("\"", "\\\"");
-		}
-	}
-	
 	/**
 	 * @see org.openmrs.report.ReportRenderer#getLabel()
 	 */
@@ -63,7 +55,7 @@ public class TsvReportRenderer extends DelimitedTextReportRenderer {
 	 * @see org.openmrs.report.ReportRenderer#getRenderedContentType(ReportSchema, String)
 	 */
 	public String getRenderedContentType(ReportSchema model, String argument) {
-		return "text/tsv";
+		return "text/tsv; charset=UTF-8";
 	}
 	
 }
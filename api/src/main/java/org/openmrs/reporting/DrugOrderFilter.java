@@ -17,8 +17,8 @@ import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -30,6 +30,7 @@ import org.openmrs.Concept;
 import org.openmrs.Drug;
 import org.openmrs.api.context.Context;
 import org.openmrs.messagesource.MessageSourceService;
+import org.openmrs.module.reportingcompatibility.reporting.ConceptSetCache;
 import org.openmrs.module.reportingcompatibility.service.ReportService;
 import org.openmrs.module.reportingcompatibility.service.ReportService.GroupMethod;
 import org.openmrs.report.EvaluationContext;
@@ -75,9 +76,9 @@ public class DrugOrderFilter extends CachingPatientFilter {
 		sb.append(
 		    OpenmrsUtil.toDateHelper(null, withinLastDays, withinLastMonths, untilDaysAgo, untilMonthsAgo, sinceDate,
 		        untilDate)).append(".");
-		if (getDrugListToUse() != null) {
-			for (Drug d : getDrugListToUse()) {
-				sb.append(d.getDrugId()).append(",");
+		if (getDrugIdsToUse() != null) {
+			for (Integer drugId : getDrugIdsToUse()) {
+				sb.append(drugId).append(",");
 			}
 		}
 		return sb.toString();
@@ -150,10 +151,8 @@ public class DrugOrderFilter extends CachingPatientFilter {
 	@Override
 	public Cohort filterImpl(EvaluationContext context) {
 		List<Integer> drugIds = new ArrayList<Integer>();
-		if (getDrugListToUse() != null) {
-			for (Drug d : getDrugListToUse()) {
-				drugIds.add(d.getDrugId());
-			}
+		if (getDrugIdsToUse() != null) {
+			drugIds.addAll(getDrugIdsToUse());
 		}
 		log.debug("filtering with these ids " + drugIds);
 		Collection<Integer> patientIds = context == null ? null : context.getBaseCohort().getMemberIds();
@@ -182,15 +181,53 @@ public class DrugOrderFilter extends CachingPatientFilter {
 			ret.addAll(drugList);
 		}
 		if (drugSets != null) {
-			Set<Concept> generics = new HashSet<Concept>();
-			for (Concept drugSet : drugSets) {
-				List<Concept> list = Context.getConceptService().getConceptsByConceptSet(drugSet);
-				generics.addAll(list);
+			for (Integer drugId : getDrugIdsInSets(drugSets)) {
+				ret.add(Context.getConceptService().getDrug(drugId));
 			}
-			for (Concept generic : generics) {
-				ret.addAll(Context.getConceptService().getDrugsByConcept(generic));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Same as {@link #getDrugListToUse()}, without loading the drugs of the drug sets
+	 * 
+	 * @return the ids of the drugs to look for, null if there are no drugs or drug sets
+	 */
+	private List<Integer> getDrugIdsToUse() {
+		List<Drug> drugList = getDrugList();
+		List<Concept> drugSets = getDrugSets();
+		if (drugList == null && drugSets == null) {
+			return null;
+		}
+		List<Integer> ret = new ArrayList<Integer>();
+		if (drugList != null) {
+			for (Drug d : drugList) {
+				ret.add(d.getDrugId());
 			}
 		}
+		if (drugSets != null) {
+			ret.addAll(getDrugIdsInSets(drugSets));
+		}
+		return ret;
+	}
+	
+	/**
+	 * @param drugSets
+	 * @return the ids of the drugs of the generics in the given sets, each generic counted once
+	 * @see ConceptSetCache
+	 */
+	private Set<Integer> getDrugIdsInSets(List<Concept> drugSets) {
+		Set<Integer> generics = new LinkedHashSet<Integer>();
+		for (Concept drugSet : drugSets) {
+			List<Integer> members = ConceptSetCache.getSetMemberIds(drugSet.getConceptId());
+			if (members != null) {
+				generics.addAll(members);
+			}
+		}
+		Set<Integer> ret = new LinkedHashSet<Integer>();
+		for (Integer generic : generics) {
+			ret.addAll(ConceptSetCache.getDrugIds(generic));
+		}
 		return ret;
 	}
 	
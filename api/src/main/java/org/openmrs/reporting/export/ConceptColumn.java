@@ -14,12 +14,15 @@
 package org.openmrs.reporting.export;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.openmrs.Concept;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.reporting.ConceptSetCache;
 
 public class ConceptColumn implements ExportColumn, Serializable {
 	
@@ -65,94 +68,92 @@ public class ConceptColumn implements ExportColumn, Serializable {
 			extras = new String[] {};
 		}
 		
-		if (DataExportReportObject.MODIFIER_LAST_NUM.equals(modifier)
-		        || DataExportReportObject.MODIFIER_FIRST_NUM.equals(modifier)) {
-			Integer num = modifierNum == null ? 1 : modifierNum;
-			
-			s.append("#set($arr = [");
-			for (Integer x = 0; x < extras.length; x++) {
-				s.append("'");
-				s.append(extras[x]);
-				s.append("'");
-				if (!x.equals(extras.length - 1)) {
-					s.append(",");
-				}
-			}
-			s.append("])");
-			
-			if (DataExportReportObject.MODIFIER_LAST_NUM.equals(modifier)) {
-				s.append("#set($obsValues = $fn.getLastNObsWithValues(").append(num).append(", '").append(conceptId).append(
-				    "', $arr))");
-			} else if (DataExportReportObject.MODIFIER_FIRST_NUM.equals(modifier)) {
-				s.append("#set($obsValues = $fn.getFirstNObsWithValues(").append(num).append(", '").append(conceptId)
-				        .append("', $arr))");
-			}
-			s.append("#foreach($vals in $obsValues)").append("#if($velocityCount > 1)").append("$!{fn.getSeparator()}")
-			        .append("#end").append("#foreach($val in $vals)").append("#if($velocityCount > 1)").append(
-			            "$!{fn.getSeparator()}").append("#end").append("$!{fn.getValueAsString($val)}").append("#end")
-			        .append("#end\n");
-		} else {
-			String function = " ";
-			if (DataExportReportObject.MODIFIER_ANY.equals(modifier)) {
-				function += "$fn.getLastObs";
-			} else if (DataExportReportObject.MODIFIER_FIRST.equals(modifier)) {
-				function += "$fn.getFirstObs";
-			} else if (DataExportReportObject.MODIFIER_LAST.equals(modifier)) {
-				function += "$fn.getLastObs";
-			} else {
-				throw new APIException("Unknown modifier: " + modifier);
-			}
-			
-			if (extras.length < 1) {
-				function = "$!{fn.getValueAsString(" + function;
-				function += "('" + conceptId + "'))}";
-				s.append(function); // if we don't have extras, just call the normal function and print it
-			} else {
-				
-				s.append("#set($arr = [");
-				for (Integer x = 0; x < extras.length; x++) {
-					s.append("'").append(extras[x]).append("'");
-					if (!x.equals(extras.length - 1)) {
-						s.append(",");
-					}
-				}
-				s.append("])");
-				
-				function += "WithValues('" + conceptId + "', $arr)";
-				
-				s.append("#set($obsRow =" + function + ")").append("#foreach($val in $obsRow)").append(
-				    "#if($velocityCount > 1)").append("$!{fn.getSeparator()}").append("#end").append(
-				    "$!{fn.getValueAsString($val)}").append("#end\n");
+		Integer num = getNumberOfObs();
+		boolean mostRecentFirst = isMostRecentFirst();
+		
+		s.append("#set($arr = [");
+		for (Integer x = 0; x < extras.length; x++) {
+			s.append("'").append(extras[x]).append("'");
+			if (!x.equals(extras.length - 1)) {
+				s.append(",");
 			}
 		}
+		s.append("])");
+		
+		// the functions class writes all of the value and extras cells itself 
+		// instead of looping over a list of objects per obs here
+		s.append("$!{fn.getObsValuesAsString(").append(num).append(", '").append(conceptId).append("', $arr, ").append(
+		    mostRecentFirst).append(")}");
 		
 		return s.toString();
 	}
 	
 	public String toTemplateString() {
-		Concept concept = Context.getConceptService().getConcept(conceptId);
-		StringBuilder toReturn;
-		
-		if (!concept.isSet()) {
-			toReturn = new StringBuilder(toSingleTemplateString(concept.getConceptId()));
-		} else {
-			List<Concept> setMembers = Context.getConceptService().getConceptsByConceptSet(concept);
-			toReturn = new StringBuilder("");
-			boolean firstMember = true;
-			for (Concept setMember : setMembers) {
-				if (firstMember) {
-					toReturn.append(toSingleTemplateString(setMember.getConceptId()));
-					firstMember = false;
-				} else {
-					toReturn.append("$!{fn.getSeparator()}");
-					toReturn.append(toSingleTemplateString(setMember.getConceptId()));
-				}
+		StringBuilder toReturn = new StringBuilder("");
+		boolean firstMember = true;
+		for (Integer id : getConceptIdsToExport()) {
+			if (!firstMember) {
+				toReturn.append("$!{fn.getSeparator()}");
 			}
+			toReturn.append(toSingleTemplateString(id));
+			firstMember = false;
 		}
 		
 		return toReturn.toString();
 	}
 	
+	/**
+	 * @return the concepts this column writes obs for: the concept itself or its set members if
+	 *         the concept is a set
+	 */
+	public List<Concept> getConceptsToExport() {
+		List<Concept> concepts = new ArrayList<Concept>();
+		for (Integer id : getConceptIdsToExport())
+			concepts.add(Context.getConceptService().getConcept(id));
+		return concepts;
+	}
+	
+	/**
+	 * @return the ids of the concepts this column writes obs for, see {@link #getConceptsToExport()}
+	 * @see ConceptSetCache#getSetMemberIds(Integer)
+	 */
+	public List<Integer> getConceptIdsToExport() {
+		List<Integer> memberIds = ConceptSetCache.getSetMemberIds(conceptId);
+		if (memberIds == null)
+			return Collections.singletonList(conceptId);
+		
+		return memberIds;
+	}
+	
+	/**
+	 * @return the number of obs this column writes for each patient, -1 for all of them
+	 */
+	public Integer getNumberOfObs() {
+		if (DataExportReportObject.MODIFIER_LAST_NUM.equals(modifier)
+		        || DataExportReportObject.MODIFIER_FIRST_NUM.equals(modifier)) {
+			return modifierNum == null ? 1 : modifierNum;
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * @return true if this column writes the most recent obs, false if it writes the earliest
+	 * @throws APIException if the modifier is not known
+	 */
+	public boolean isMostRecentFirst() {
+		if (DataExportReportObject.MODIFIER_LAST_NUM.equals(modifier)
+		        || DataExportReportObject.MODIFIER_ANY.equals(modifier)
+		        || DataExportReportObject.MODIFIER_LAST.equals(modifier)) {
+			return true;
+		} else if (DataExportReportObject.MODIFIER_FIRST_NUM.equals(modifier)
+		        || DataExportReportObject.MODIFIER_FIRST.equals(modifier)) {
+			return false;
+		}
+		
+		throw new APIException("Unknown modifier: " + modifier);
+	}
+	
 	public String getColumnType() {
 		return columnType;
 	}
@@ -199,21 +200,19 @@ public class ConceptColumn implements ExportColumn, Serializable {
 	 * @see org.openmrs.reporting.export.ExportColumn#getTemplateColumnName()
 	 */
 	public String getTemplateColumnName() {
-		Concept concept = Context.getConceptService().getConcept(conceptId);
+		List<String> setMemberNames = ConceptSetCache.getSetMemberNames(conceptId, Context.getLocale());
 		StringBuilder toReturn;
-		if (!concept.isSet()) {
+		if (setMemberNames == null) {
 			toReturn = new StringBuilder(getTemplateSingleConceptColumnName(columnName));
 		} else {
-			List<Concept> setMembers = Context.getConceptService().getConceptsByConceptSet(concept);
 			toReturn = new StringBuilder("");
 			boolean firstMember = true;
-			for (Concept setMember : setMembers) {
+			for (String setMemberName : setMemberNames) {
 				if (firstMember) {
-					toReturn.append(getTemplateSingleConceptColumnName(setMember.getName().getName()));
+					toReturn.append(getTemplateSingleConceptColumnName(setMemberName));
 					firstMember = false;
 				} else {
-					toReturn.append("$!{fn.getSeparator()}").append(
-					    getTemplateSingleConceptColumnName(setMember.getName().getName()));
+					toReturn.append("$!{fn.getSeparator()}").append(getTemplateSingleConceptColumnName(setMemberName));
 				}
 			}
 		}
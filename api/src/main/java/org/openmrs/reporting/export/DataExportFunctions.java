@@ -71,8 +71,6 @@ public class DataExportFunctions {
 	
 	protected boolean isAllPatients = false;
 	
-	private Integer patientCounter = 0; // used for garbage collection (Clean up every x patients)
-	
 	protected String separator = "	";
 	
 	protected DateFormat dateFormatLong = null;
@@ -259,21 +257,18 @@ public class DataExportFunctions {
 			}
 		}
 		
-		// reclaim some memory
-		garbageCollect();
-		
 		setPatient(null);
 		this.patientId = patientId;
 	}
 	
 	/**
-	 * Call the system garbage collecter. This method only calls every 500 patients
+	 * Used to call the system garbage collector every 500 patients, which stalled every other
+	 * request on the server while an export was running.
+	 * 
+	 * @deprecated the JVM collects garbage on its own, this does nothing now
 	 */
+	@Deprecated
 	protected void garbageCollect() {
-		if (patientCounter++ % 500 == 0) {
-			System.gc();
-			System.gc();
-		}
 	}
 	
 	/**
@@ -1051,6 +1046,51 @@ public class DataExportFunctions {
 		return getFirstNObsWithValues(n, getConcept(conceptId), (List<String>) attrs);
 	}
 	
+	/**
+	 * Gets the first or last <code>n</code> obs values (and their extra attributes) of the current
+	 * patient as text, with every cell separated by the separator
+	 *
+	 * @param n the number of obs to write. -1 writes all of the patient's obs
+	 * @param conceptId the id or name of the concept
+	 * @param attrs List of extra attributes to write after each value
+	 * @param mostRecentFirst true for the last n obs, false for the first n obs
+	 * @return the delimited values for this patient
+	 * @throws Exception
+	 * @see org.openmrs.module.reportingcompatibility.reporting.export.DataExportFunctions#getObsValuesAsString(Integer,
+	 *      String, Object, boolean)
+	 */
+	@SuppressWarnings("unchecked")
+	public String getObsValuesAsString(Integer n, String conceptId, Object attrs, boolean mostRecentFirst)
+	        throws Exception {
+		if (attrs == null) {
+			attrs = new Vector<String>();
+		}
+		if (n == null) {
+			n = 1;
+		}
+		
+		List<List<Object>> rows;
+		if (mostRecentFirst) {
+			rows = getLastNObsWithValues(n, conceptId, attrs);
+		} else {
+			rows = getFirstNObsWithValues(n, getConcept(conceptId), (List<String>) attrs);
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		boolean firstCell = true;
+		for (List<Object> row : rows) {
+			for (Object val : row) {
+				if (!firstCell) {
+					sb.append(separator);
+				}
+				sb.append(getValueAsString(val));
+				firstCell = false;
+			}
+		}
+		
+		return sb.toString();
+	}
+	
 	/**
 	 * Retrieves a patient identifier based on the given identifier type.
 	 *
@@ -1152,7 +1192,6 @@ public class DataExportFunctions {
 	 * @return The calculated age
 	 */
 	public int calculateAge(Date birthdate) {
-		log.info("Calculating age " + birthdate);
 		return calculateYearsBetween(birthdate, new Date());
 	}
 	
@@ -134,18 +134,7 @@ public class DataExportReportObject extends AbstractReportObject implements Seri
 	 * @return template string to be evaluated
 	 */
 	public String generateTemplate() {
-		StringBuilder sb = new StringBuilder();
-		
-		// print out the columns
-		if (columns.size() >= 1) {
-			sb.append(columns.get(0).getTemplateColumnName());
-			for (int i = 1; i < columns.size(); i++) {
-				sb.append("$!{fn.getSeparator()}");
-				sb.append(columns.get(i).getTemplateColumnName());
-			}
-		}
-		
-		sb.append("\n");
+		StringBuilder sb = new StringBuilder(generateHeaderTemplate());
 		
 		// print out the data
 		
@@ -176,6 +165,28 @@ public class DataExportReportObject extends AbstractReportObject implements Seri
 		return sb.toString();
 	}
 	
+	/**
+	 * Generate the template for the first line of the export, which holds the names of the columns
+	 *
+	 * @return template string to be evaluated, ending with a newline
+	 */
+	public String generateHeaderTemplate() {
+		StringBuilder sb = new StringBuilder();
+		
+		// print out the columns
+		if (columns.size() >= 1) {
+			sb.append(columns.get(0).getTemplateColumnName());
+			for (int i = 1; i < columns.size(); i++) {
+				sb.append("$!{fn.getSeparator()}");
+				sb.append(columns.get(i).getTemplateColumnName());
+			}
+		}
+		
+		sb.append("\n");
+		
+		return sb.toString();
+	}
+	
 	/**
 	 * Generate the patientSet according to this report's characteristics
 	 *
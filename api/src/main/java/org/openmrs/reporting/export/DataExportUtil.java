@@ -225,10 +225,6 @@ public class DataExportUtil {
 			dataExport = null;
 			log.debug("Clearing hibernate session");
 			Context.clearSession();
-			
-			// clear out the excess objects
-			System.gc();
-			System.gc();
 		}
 		
 	}
@@ -125,20 +125,7 @@ public class RowPerObsDataExportReportObject extends DataExportReportObject impl
 	 * @return template string to be evaluated
 	 */
 	public String generateTemplate() {
-		StringBuilder sb = new StringBuilder();
-		
-		// print out the column headers
-		if (columns.size() >= 1) {
-			sb.append(columns.get(0).getTemplateColumnName());
-			for (int i = 1; i < columns.size(); i++) {
-				sb.append("$!{fn.getSeparator()}");
-				sb.append(columns.get(i).getTemplateColumnName());
-			}
-			sb.append("$!{fn.getSeparator()}");
-		}
-		sb.append(rowPerObsColumn.getTemplateColumnName());
-		
-		sb.append("\n");
+		StringBuilder sb = new StringBuilder(generateHeaderTemplate());
 		
 		// print out the data
 		
@@ -192,6 +179,33 @@ public class RowPerObsDataExportReportObject extends DataExportReportObject impl
 		return sb.toString();
 	}
 	
+	/**
+	 * Generate the template of the header line, the names of the simple columns followed by the
+	 * names of the row per obs column
+	 *
+	 * @return template string to be evaluated
+	 * @see org.openmrs.reporting.export.DataExportReportObject#generateHeaderTemplate()
+	 */
+	@Override
+	public String generateHeaderTemplate() {
+		StringBuilder sb = new StringBuilder();
+		
+		// print out the column headers
+		if (columns.size() >= 1) {
+			sb.append(columns.get(0).getTemplateColumnName());
+			for (int i = 1; i < columns.size(); i++) {
+				sb.append("$!{fn.getSeparator()}");
+				sb.append(columns.get(i).getTemplateColumnName());
+			}
+			sb.append("$!{fn.getSeparator()}");
+		}
+		sb.append(rowPerObsColumn.getTemplateColumnName());
+		
+		sb.append("\n");
+		
+		return sb.toString();
+	}
+	
 	/**
 	 * Generate the patientSet according to this report's characteristics
 	 *
@@ -20,14 +20,23 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJob;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
 import org.openmrs.report.EvaluationContext;
 import org.openmrs.reporting.ReportObjectService;
 import org.openmrs.reporting.export.DataExportReportObject;
-import org.openmrs.reporting.export.DataExportUtil;
 import org.openmrs.scheduler.TaskDefinition;
 
 /**
- * Generates a data export
+ * Generates a data export. <br/>
+ * <br/>
+ * With the <code>incremental</code> property set to true only the rows of patients that changed
+ * since the last run are regenerated. All rows are still regenerated every
+ * <code>fullRegenerationDays</code> days (7 by default) so that ages, current drugs and other values
+ * that change with time alone don't go stale. <br/>
+ * <br/>
+ * The exports are queued as jobs with the <code>priority</code> property (0 by default), so they run
+ * alongside exports queued from the export list page, and the task waits until they have all ended.
  */
 public class GenerateDataExportTask extends AbstractTask {
 	
@@ -37,6 +46,12 @@ public class GenerateDataExportTask extends AbstractTask {
 	// Instance of configuration information for task
 	private String idString = "";
 	
+	private boolean incremental = false;
+	
+	private int fullRegenerationDays = 7;
+	
+	private int priority = 0;
+	
 	private EvaluationContext context;
 	
 	/**
@@ -45,6 +60,28 @@ public class GenerateDataExportTask extends AbstractTask {
 	public void initialize(TaskDefinition definition) {
 		super.initialize(definition);
 		this.idString = definition.getProperty("dataExportIds");
+		this.incremental = "true".equalsIgnoreCase(definition.getProperty("incremental"));
+		
+		this.fullRegenerationDays = getIntegerProperty(definition, "fullRegenerationDays", fullRegenerationDays);
+		this.priority = getIntegerProperty(definition, "priority", priority);
+	}
+	
+	/**
+	 * @return the value of the given task property as a number, or the default if it isn't set or
+	 *         isn't a number
+	 */
+	private int getIntegerProperty(TaskDefinition definition, String name, int defaultValue) {
+		String value = definition.getProperty(name);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid " + name + " property: " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
 	}
 	
 	public void setEvaluationContext(EvaluationContext context) {
@@ -68,20 +105,26 @@ public class GenerateDataExportTask extends AbstractTask {
 				
 				String[] ids = idString.split(" ");
 				
-				List<DataExportReportObject> reports = new Vector<DataExportReportObject>();
+				List<DataExportJob> jobs = new Vector<DataExportJob>();
 				ReportObjectService rs = Context.getService(ReportObjectService.class);
+				ReportingCompatibilityService rcs = Context.getService(ReportingCompatibilityService.class);
 				
 				for (String id : ids) {
 					if (id != null) {
 						id = id.trim();
 						if (id.length() > 0) {
 							DataExportReportObject report = (DataExportReportObject) rs.getReportObject(Integer.valueOf(id));
-							reports.add(report);
+							jobs.add(rcs.queueDataExport(report, this.getEvaluationContext(), priority, incremental,
+							    fullRegenerationDays));
 						}
 					}
 				}
 				
-				DataExportUtil.generateExports(reports, this.getEvaluationContext());
+				for (DataExportJob job : jobs) {
+					job.await();
+					if (job.getStatus() == DataExportJob.Status.FAILED)
+						log.warn("Error while generating export: " + job.getDataExportName() + ": " + job.getError());
+				}
 			}
 			
 		}
@@ -0,0 +1,52 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.scheduler.tasks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.reporting.export.ShardedDataExportRunner;
+
+/**
+ * Helps other OpenMRS instances generate their sharded data exports. <br/>
+ * <br/>
+ * Every run writes the shards in the shared directory that no instance is working on. The task
+ * should be scheduled every minute or so on each instance that shares the directory.
+ *
+ * @see ShardedDataExportRunner#workOnPendingShards()
+ * @since 3.0.0
+ */
+public class ProcessDataExportShardsTask extends AbstractTask {
+	
+	private Log log = LogFactory.getLog(ProcessDataExportShardsTask.class);
+	
+	/**
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 */
+	public void execute() {
+		Context.openSession();
+		try {
+			int shards = ShardedDataExportRunner.workOnPendingShards();
+			if (shards > 0)
+				log.info("Wrote " + shards + " data export shards");
+		}
+		catch (Exception e) {
+			log.error("Error while writing data export shards", e);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class CellFormatterTest {
+	
+	/**
+	 * @see {@link CellFormatter#appendValue(Appendable,Object)}
+	 */
+	@Test
+	@Verifies(value = "should write the same text as String.valueOf to builders and writers", method = "appendValue(Appendable,Object)")
+	public void appendValue_shouldWriteTheSameTextAsStringValueOfToBuildersAndWriters() throws Exception {
+		Object[] values = { 42, -7L, 3.5, 1e21, "text", Boolean.TRUE };
+		CellFormatter cells = new CellFormatter(Locale.ENGLISH);
+		StringBuilder expected = new StringBuilder();
+		StringBuilder builder = new StringBuilder();
+		StringWriter writer = new StringWriter();
+		for (Object value : values) {
+			expected.append(String.valueOf(value)).append('|');
+			cells.appendValue(builder, value);
+			builder.append('|');
+			cells.appendValue(writer, value);
+			writer.write('|');
+		}
+		cells.appendValue(builder, null);
+		
+		Assert.assertEquals(expected.toString(), builder.toString());
+		Assert.assertEquals(expected.toString(), writer.toString());
+	}
+	
+	/**
+	 * @see {@link CellFormatter#appendDate(Appendable,String,Date)}
+	 */
+	@Test
+	@Verifies(value = "should format dates like the pattern's date format", method = "appendDate(Appendable,String,Date)")
+	public void appendDate_shouldFormatDatesLikeThePatternsDateFormat() throws Exception {
+		CellFormatter cells = new CellFormatter(Locale.ENGLISH);
+		Date date = new Date(1234567890000L);
+		StringWriter writer = new StringWriter();
+		cells.appendDate(writer, "dd MMM yyyy", date);
+		cells.appendDate(writer, "dd MMM yyyy", null);
+		cells.appendDate(writer, "dd MMM yyyy", date);
+		
+		String formatted = new SimpleDateFormat("dd MMM yyyy", Locale.ENGLISH).format(date);
+		Assert.assertEquals(formatted + formatted, writer.toString());
+		Assert.assertSame(cells.getDateFormat("dd MMM yyyy"), cells.getDateFormat("dd MMM yyyy"));
+	}
+	
+	/**
+	 * @see {@link CellFormatter#appendEscaped(Appendable,CharSequence,char,String)}
+	 */
+	@Test
+	@Verifies(value = "should replace every occurrence of the character", method = "appendEscaped(Appendable,CharSequence,char,String)")
+	public void appendEscaped_shouldReplaceEveryOccurrenceOfTheCharacter() throws Exception {
+		CellFormatter cells = new CellFormatter();
+		StringWriter writer = new StringWriter();
+		cells.appendEscaped(writer, "\"a\"b\"\"", '"', "\"\"");
+		Assert.assertEquals("\"\"a\"\"b\"\"\"\"", writer.toString());
+		
+		StringBuilder row = new StringBuilder("x");
+		cells.appendEscaped(row, "plain", '"', "\"\"");
+		Assert.assertEquals("xplain", row.toString());
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class ChannelWriterTest {
+	
+	/**
+	 * @see {@link ChannelWriter#write(String,int,int)}
+	 */
+	@Test
+	@Verifies(value = "should encode text in utf8 across buffer boundaries", method = "write(String,int,int)")
+	public void write_shouldEncodeTextInUtf8AcrossBufferBoundaries() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append(i).append("\tJos\u00e9 \u0106iri\u0107 \ud83d\ude00\n");
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		// a buffer smaller than a line, so characters and surrogate pairs get split
+		ChannelWriter writer = new ChannelWriter(bytes, ChannelWriter.UTF8, 7);
+		writer.write(text.toString(), 0, 1000);
+		writer.append(text, 1000, 2000);
+		writer.write(text.substring(2000).toCharArray());
+		writer.flush();
+		writer.close();
+		
+		Assert.assertEquals(text.toString(), new String(bytes.toByteArray(), "UTF-8"));
+	}
+	
+	/**
+	 * @see {@link ChannelWriter#flush()}
+	 */
+	@Test
+	@Verifies(value = "should flush the stream the writer was made for", method = "flush()")
+	public void flush_shouldFlushTheStreamTheWriterWasMadeFor() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ChannelWriter writer = new ChannelWriter(new BufferedOutputStream(bytes, 1024), ChannelWriter.UTF8, 1024);
+		writer.write("PATIENT_ID\n2\n");
+		writer.flush();
+		
+		Assert.assertEquals("PATIENT_ID\n2\n", new String(bytes.toByteArray(), "UTF-8"));
+		writer.close();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * The set 90201 has the members 90202 and 90203. The tests change them with plain SQL, which
+ * leaves the change dates as they are.
+ */
+public class ConceptSetCacheTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String CONCEPT_SET_XML = "org/openmrs/module/reportingcompatibility/reporting/include/ConceptSetCacheTest.xml";
+	
+	@Before
+	public void setup() throws Exception {
+		executeDataSet(CONCEPT_SET_XML);
+		ConceptSetCache.clear();
+	}
+	
+	@After
+	public void cleanup() {
+		ConceptSetCache.clear();
+	}
+	
+	/**
+	 * @see {@link ConceptSetCache#refresh()}
+	 */
+	@Test
+	@Verifies(value = "should forget a set once its members are reordered", method = "refresh()")
+	public void refresh_shouldForgetASetOnceItsMembersAreReordered() throws Exception {
+		Assert.assertEquals(Arrays.asList(90202, 90203), ConceptSetCache.getSetMemberIds(90201));
+		
+		// the first member moves behind the second
+		execute("update concept_set set sort_weight = 3.0 where concept_set_id = 90201");
+		Assert.assertEquals("kept until the next check", Arrays.asList(90202, 90203), ConceptSetCache
+		        .getSetMemberIds(90201));
+		
+		ConceptSetCache.refresh();
+		Assert.assertEquals(Arrays.asList(90203, 90202), ConceptSetCache.getSetMemberIds(90201));
+	}
+	
+	/**
+	 * @see {@link ConceptSetCache#refresh()}
+	 */
+	@Test
+	@Verifies(value = "should forget the names of a set once a name is removed", method = "refresh()")
+	public void refresh_shouldForgetTheNamesOfASetOnceANameIsRemoved() throws Exception {
+		Assert.assertEquals(Arrays.asList("FIRST MEMBER", "SECOND MEMBER"), ConceptSetCache.getSetMemberNames(90201,
+		    Locale.ENGLISH));
+		
+		execute("delete from concept_name where concept_name_id = 90203");
+		ConceptSetCache.refresh();
+		Assert.assertEquals(Arrays.asList("FIRST MEMBER", "90203"), ConceptSetCache.getSetMemberNames(90201,
+		    Locale.ENGLISH));
+	}
+	
+	/**
+	 * Runs the given statement and drops the loaded concepts, so they are read again
+	 */
+	private void execute(String sql) {
+		Context.flushSession();
+		Context.getAdministrationService().executeSQL(sql, false);
+		Context.clearSession();
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class ObsValueTableTest {
+	
+	/**
+	 * @see {@link ObsValueTable#addRow(int)}
+	 */
+	@Test
+	@Verifies(value = "should group rows by patient", method = "addRow(int)")
+	public void addRow_shouldGroupRowsByPatient() throws Exception {
+		ObsValueTable table = new ObsValueTable(new byte[] { ObsValueTable.NUMERIC, ObsValueTable.TEXT });
+		
+		// more rows than the initial capacity so the arrays have to grow
+		for (int patientId = 1; patientId <= 200; patientId++) {
+			for (int i = 0; i < 3; i++) {
+				int row = table.addRow(patientId);
+				table.setNumeric(0, row, patientId + i);
+				table.setText(1, row, "Location " + (i % 2));
+			}
+		}
+		table.finish();
+		
+		Assert.assertEquals(600, table.getRowCount());
+		Assert.assertEquals(200, table.getPatientCount());
+		
+		int patientIndex = table.getPatientIndex(150);
+		Assert.assertEquals(3, table.getRowCount(patientIndex));
+		int firstRow = table.getFirstRow(patientIndex);
+		Assert.assertEquals(150.0, table.getNumeric(0, firstRow), 0);
+		Assert.assertEquals(152.0, table.getNumeric(0, firstRow + 2), 0);
+		Assert.assertEquals("Location 1", table.getText(1, firstRow + 1));
+		
+		Assert.assertTrue(table.getPatientIndex(201) < 0);
+	}
+	
+	/**
+	 * @see {@link ObsValueTable#isNull(int,int)}
+	 */
+	@Test
+	@Verifies(value = "should treat unset cells as null", method = "isNull(int,int)")
+	public void isNull_shouldTreatUnsetCellsAsNull() throws Exception {
+		ObsValueTable table = new ObsValueTable(new byte[] { ObsValueTable.CODED, ObsValueTable.DATETIME,
+		        ObsValueTable.TEXT });
+		int row = table.addRow(7);
+		table.setDrug(0, row, 3);
+		table.finish();
+		
+		Assert.assertFalse(table.isNull(0, row));
+		Assert.assertEquals(0, table.getCoded(0, row));
+		Assert.assertEquals(3, table.getDrug(0, row));
+		Assert.assertTrue(table.isNull(1, row));
+		Assert.assertTrue(table.isNull(2, row));
+		Assert.assertNull(table.getText(2, row));
+	}
+	
+	/**
+	 * @see {@link ObsValueTable#getId(int,int)}
+	 */
+	@Test
+	@Verifies(value = "should keep location and provider ids through a resize", method = "getId(int,int)")
+	public void getId_shouldKeepLocationAndProviderIdsThroughAResize() throws Exception {
+		ObsValueTable table = new ObsValueTable(new byte[] { ObsValueTable.NUMERIC, ObsValueTable.LOCATION,
+		        ObsValueTable.PROVIDER });
+		for (int patientId = 1; patientId <= 300; patientId++) {
+			int row = table.addRow(patientId);
+			table.setId(1, row, patientId % 5);
+			if (patientId % 2 == 0)
+				table.setId(2, row, patientId);
+		}
+		table.finish();
+		
+		Assert.assertEquals(300, table.getRowCount());
+		Assert.assertEquals(4, table.getId(1, 298));
+		Assert.assertTrue(table.isNull(1, 4));
+		Assert.assertEquals(300, table.getId(2, 299));
+		Assert.assertTrue(table.isNull(2, 298));
+	}
+	
+	/**
+	 * @see {@link ObsValueTable#addRow(int)}
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	@Verifies(value = "should fail if patients are not in ascending order", method = "addRow(int)")
+	public void addRow_shouldFailIfPatientsAreNotInAscendingOrder() throws Exception {
+		ObsValueTable table = new ObsValueTable(new byte[] { ObsValueTable.NUMERIC });
+		table.addRow(5);
+		table.addRow(4);
+	}
+	
+	/**
+	 * @see {@link ObsValueTable#clear()}
+	 */
+	@Test
+	@Verifies(value = "should let the table be filled again from the first patient", method = "clear()")
+	public void clear_shouldLetTheTableBeFilledAgainFromTheFirstPatient() throws Exception {
+		ObsValueTable table = new ObsValueTable(new byte[] { ObsValueTable.NUMERIC, ObsValueTable.TEXT });
+		table.setText(1, table.addRow(5), "first");
+		table.finish();
+		table.clear();
+		
+		Assert.assertEquals(0, table.getRowCount());
+		Assert.assertEquals(0, table.getPatientCount());
+		
+		for (int i = 0; i < 300; i++) {
+			int row = table.addRow(i < 150 ? 3 : 4);
+			table.setNumeric(0, row, i);
+		}
+		int row = table.addRow(4);
+		table.setText(1, row, "second");
+		
+		Assert.assertEquals(301, table.getRowCount());
+		Assert.assertEquals(2, table.getPatientCount());
+		Assert.assertEquals(3, table.getPatientId(0));
+		Assert.assertEquals(4, table.getPatientId(1));
+		Assert.assertEquals(151, table.getRowCount(1));
+		Assert.assertEquals(299.0, table.getNumeric(0, 299), 0);
+		Assert.assertEquals("second", table.getText(1, row));
+		Assert.assertTrue(table.isNull(1, 0));
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.report.EvaluationContext;
+import org.openmrs.reporting.PatientCharacteristicFilter;
+import org.openmrs.reporting.PatientSearch;
+import org.openmrs.reporting.PatientSearchReportObject;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.CohortColumn;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.ReportingcompatibilityUtil;
+
+/**
+ * Answers the membership of every patient of the export, and one outside it, the way the cohorts
+ * themselves do
+ */
+public class CohortMembershipIndexTest extends BaseModuleContextSensitiveTest {
+	
+	private static final Integer[] PATIENT_IDS = { 2, 6, 7, 8, 999 };
+	
+	private Cohort patientSet;
+	
+	private ReportObjectService reportObjectService;
+	
+	@Before
+	public void setup() throws Exception {
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-patients.xml");
+		patientSet = new Cohort(Arrays.asList(2, 6, 7, 8));
+		reportObjectService = Context.getService(ReportObjectService.class);
+	}
+	
+	/**
+	 * @see {@link CohortMembershipIndex#contains(String,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should answer the same as the cohort of a filter", method = "contains(String,Integer)")
+	public void contains_shouldAnswerTheSameAsTheCohortOfAFilter() throws Exception {
+		PatientCharacteristicFilter filter = new PatientCharacteristicFilter();
+		filter.setName("Females");
+		filter.setGender("F");
+		reportObjectService.saveReportObject(filter);
+		
+		Cohort expected = filter.filter(patientSet, new EvaluationContext());
+		assertSameMembers(expected, new CohortColumn("FEMALE", null, filter.getReportObjectId(), null, "yes", "no"));
+	}
+	
+	/**
+	 * @see {@link CohortMembershipIndex#contains(String,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should answer the same as the cohort of a cohort definition", method = "contains(String,Integer)")
+	public void contains_shouldAnswerTheSameAsTheCohortOfACohortDefinition() throws Exception {
+		PatientSearch search = PatientSearch.createFilterSearch(PatientCharacteristicFilter.class);
+		search.addArgument("gender", "M", String.class);
+		PatientSearchReportObject definition = new PatientSearchReportObject("Males", search);
+		reportObjectService.saveReportObject(definition);
+		
+		Cohort expected = ReportingcompatibilityUtil.toPatientFilter(search, null).filter(patientSet,
+		    new EvaluationContext());
+		assertSameMembers(expected, new CohortColumn("MALE", null, null, definition.getReportObjectId(), "yes", "no"));
+	}
+	
+	/**
+	 * @see {@link CohortMembershipIndex#contains(String,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should answer the same as a saved cohort", method = "contains(String,Integer)")
+	public void contains_shouldAnswerTheSameAsASavedCohort() throws Exception {
+		org.openmrs.Cohort cohort = new org.openmrs.Cohort();
+		cohort.setName("Membership index test");
+		cohort.setDescription("Patients 2 and 7");
+		cohort.addMember(2);
+		cohort.addMember(7);
+		cohort = Context.getCohortService().saveCohort(cohort);
+		
+		Cohort expected = ReportingcompatibilityUtil.convert(cohort);
+		assertSameMembers(expected, new CohortColumn("SAVED", cohort.getCohortId(), null, null, "yes", "no"));
+	}
+	
+	/**
+	 * Checks the index of a new export answers as the given cohort does, which has to have both
+	 * members and non members among the patients of the export
+	 */
+	private void assertSameMembers(Cohort expected, CohortColumn column) {
+		int members = 0;
+		for (Integer patientId : patientSet.getMemberIds())
+			if (expected.contains(patientId))
+				members++;
+		Assert.assertTrue("no members", members > 0);
+		Assert.assertTrue("no non members", members < patientSet.size());
+		
+		CohortMembershipIndex index = new CohortMembershipIndex(patientSet);
+		String key = CohortMembershipIndex.getKey(column);
+		Assert.assertFalse(index.isEvaluated(key));
+		for (Integer patientId : PATIENT_IDS)
+			Assert.assertEquals("patient " + patientId, expected.contains(patientId), index.contains(key, patientId));
+		Assert.assertTrue(index.isEvaluated(key));
+		Assert.assertFalse(index.contains(key, null));
+	}
+}
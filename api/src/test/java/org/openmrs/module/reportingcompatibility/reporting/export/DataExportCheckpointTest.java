@@ -0,0 +1,67 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.test.Verifies;
+
+public class DataExportCheckpointTest {
+	
+	/**
+	 * @see {@link DataExportCheckpoint#open(File,String,boolean)}
+	 */
+	@Test
+	@Verifies(value = "should cut the file back to the last checkpoint of a run with the same fingerprint", method = "open(File,String,boolean)")
+	public void open_shouldCutTheFileBackToTheLastCheckpointOfARunWithTheSameFingerprint() throws Exception {
+		File file = File.createTempFile("dataExport", ".tsv");
+		try {
+			DataExportCheckpoint checkpoint = DataExportCheckpoint.open(file, "abc", true);
+			Assert.assertFalse(checkpoint.isResumed());
+			Writer out = checkpoint.getWriter();
+			out.write("PATIENT_ID\n1\n2\n");
+			checkpoint.batchWritten(0, new Cohort(Arrays.asList(1, 2)));
+			out.write("3\n");
+			checkpoint.batchWritten(1, new Cohort(Arrays.asList(3)));
+			// the run stops halfway through the next batch
+			out.write("4\n5");
+			out.close();
+			
+			checkpoint = DataExportCheckpoint.open(file, "abc", false);
+			Assert.assertTrue(checkpoint.isResumed());
+			Assert.assertEquals(1, checkpoint.getBatchIndex());
+			Assert.assertEquals(Integer.valueOf(3), checkpoint.getLastPatientId());
+			Assert.assertEquals(3, checkpoint.getPatientsDone());
+			Assert.assertEquals("PATIENT_ID\n1\n2\n3\n".length(), file.length());
+			checkpoint.getWriter().write("4\n");
+			checkpoint.getWriter().close();
+			Assert.assertEquals("PATIENT_ID\n1\n2\n3\n4\n".length(), file.length());
+			
+			// a changed export starts over
+			checkpoint = DataExportCheckpoint.open(file, "def", true);
+			Assert.assertFalse(checkpoint.isResumed());
+			checkpoint.getWriter().close();
+			Assert.assertEquals(0, file.length());
+		}
+		finally {
+			DataExportCheckpoint.getCheckpointFile(file).delete();
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class DataExportFunctionsTest extends BaseModuleContextSensitiveTest {
+	
+	/**
+	 * @see {@link DataExportFunctions#nextPatientSetBatch()}
+	 */
+	@Test
+	@Verifies(value = "should leave nothing of the previous batch in the session", method = "nextPatientSetBatch()")
+	public void nextPatientSetBatch_shouldLeaveNothingOfThePreviousBatchInTheSession() throws Exception {
+		// what the caller of the export holds stays in the session
+		Location location = Context.getLocationService().getLocation(1);
+		
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setPatientSet(new Cohort(Arrays.asList(2, 6, 7, 8)));
+		functions.setBatchSize(2);
+		functions.startBatches();
+		
+		Assert.assertTrue(functions.nextPatientSetBatch());
+		List<Object> loaded = new ArrayList<Object>();
+		for (Integer patientId : functions.getPatientSet().getMemberIds()) {
+			functions.setPatientId(patientId);
+			functions.getPatientAttr("Person", "gender");
+			Encounter encounter = functions.getLastEncounter("");
+			if (encounter != null)
+				loaded.add(encounter);
+			loaded.add(functions.getPatient());
+			// the way a template reaches lazy associations
+			loaded.addAll(functions.getPatient().getNames());
+		}
+		for (Object entity : loaded)
+			Assert.assertTrue(getSession().contains(entity));
+		
+		Assert.assertTrue(functions.nextPatientSetBatch());
+		for (Object entity : loaded)
+			Assert.assertFalse(entity.toString(), getSession().contains(entity));
+		Assert.assertTrue(getSession().contains(location));
+		
+		functions.setPatientId(functions.getPatientSet().getMemberIds().iterator().next());
+		Patient patient = functions.getPatient();
+		functions.clear();
+		Assert.assertFalse(getSession().contains(patient));
+		Assert.assertTrue(getSession().contains(location));
+	}
+	
+	/**
+	 * @see {@link DataExportFunctions#startBatchesAfter(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should resume after the checkpoint of a cohort that isn't sorted", method = "startBatchesAfter(Integer)")
+	public void startBatchesAfter_shouldResumeAfterTheCheckpointOfACohortThatIsntSorted() throws Exception {
+		// the way the filters that combine cohorts leave them
+		Set<Integer> memberIds = new HashSet<Integer>(Arrays.asList(2, 6, 7, 8, 20));
+		Assert.assertFalse(Arrays.asList(2, 6, 7, 8, 20).equals(new ArrayList<Integer>(memberIds)));
+		Cohort patients = new Cohort();
+		patients.setMemberIds(memberIds);
+		
+		File file = File.createTempFile("dataExport", ".tsv");
+		try {
+			DataExportCheckpoint checkpoint = DataExportCheckpoint.open(file, "abc", false);
+			DataExportFunctions functions = newBatchingFunctions(patients);
+			functions.startBatches();
+			Assert.assertTrue(functions.nextPatientSetBatch());
+			List<Integer> written = new ArrayList<Integer>(functions.getPatientSet().getMemberIds());
+			checkpoint.batchWritten(0, functions.getPatientSet());
+			// the run stops during the next batch
+			Assert.assertTrue(functions.nextPatientSetBatch());
+			checkpoint.getWriter().close();
+			
+			checkpoint = DataExportCheckpoint.open(file, "abc", false);
+			Assert.assertTrue(checkpoint.isResumed());
+			functions = newBatchingFunctions(patients);
+			functions.startBatchesAfter(checkpoint.getLastPatientId());
+			while (functions.nextPatientSetBatch())
+				written.addAll(functions.getPatientSet().getMemberIds());
+			checkpoint.getWriter().close();
+			
+			Assert.assertEquals(Arrays.asList(2, 6, 7, 8, 20), written);
+		}
+		finally {
+			DataExportCheckpoint.getCheckpointFile(file).delete();
+			file.delete();
+		}
+	}
+	
+	private DataExportFunctions newBatchingFunctions(Cohort patients) {
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setPatientSet(patients);
+		functions.setBatchSize(2);
+		return functions;
+	}
+	
+	private Session getSession() {
+		SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		return sessionFactory.getCurrentSession();
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.report.EvaluationContext;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * The only thread of the pool is kept busy, so the queued jobs stay queued until a test runs them
+ * itself
+ */
+public class DataExportJobManagerTest extends BaseModuleContextSensitiveTest {
+	
+	private CountDownLatch release;
+	
+	@Before
+	public void setup() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(ReportingCompatibilityConstants.MAX_JOBS_GP, "1"));
+		
+		release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		DataExportJobManager.getExecutor().execute(new Runnable() {
+			
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					// the test is over
+				}
+			}
+		});
+		started.await();
+	}
+	
+	@After
+	public void cleanup() {
+		DataExportJobManager.shutdown();
+		release.countDown();
+	}
+	
+	/**
+	 * @see {@link DataExportJobManager#queue(DataExportReportObject,EvaluationContext,int,boolean,int)}
+	 */
+	@Test
+	@Verifies(value = "should return the job already queued for the same export", method = "queue(DataExportReportObject,EvaluationContext,int,boolean,int)")
+	public void queue_shouldReturnTheJobAlreadyQueuedForTheSameExport() throws Exception {
+		DataExportJob job = queue(90001, 1);
+		
+		Assert.assertSame(job, queue(90001, 5));
+		Assert.assertNotSame(job, queue(90002, 1));
+		Assert.assertEquals(DataExportJob.Status.QUEUED, job.getStatus());
+		Assert.assertEquals(2, DataExportJobManager.getExecutor().getQueue().size());
+	}
+	
+	/**
+	 * @see {@link DataExportJobManager#queue(DataExportReportObject,EvaluationContext,int,boolean,int)}
+	 */
+	@Test
+	@Verifies(value = "should start the jobs with the highest priority first", method = "queue(DataExportReportObject,EvaluationContext,int,boolean,int)")
+	public void queue_shouldStartTheJobsWithTheHighestPriorityFirst() throws Exception {
+		DataExportJob low = queue(90001, 1);
+		DataExportJob high = queue(90002, 10);
+		DataExportJob firstMiddle = queue(90003, 5);
+		DataExportJob secondMiddle = queue(90004, 5);
+		
+		// the order the pool takes the jobs in
+		List<Runnable> runners = new ArrayList<Runnable>();
+		DataExportJobManager.getExecutor().getQueue().drainTo(runners);
+		Assert.assertEquals(4, runners.size());
+		
+		DataExportJob[] expected = { high, firstMiddle, secondMiddle, low };
+		for (int i = 0; i < runners.size(); i++) {
+			runners.get(i).run();
+			for (int j = 0; j < expected.length; j++)
+				Assert.assertEquals("job " + j + " after runner " + i, j <= i, expected[j].isEnded());
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportJobManager#cancel(int)}
+	 */
+	@Test
+	@Verifies(value = "should end a queued job without ever starting it", method = "cancel(int)")
+	public void cancel_shouldEndAQueuedJobWithoutEverStartingIt() throws Exception {
+		DataExportJob job = queue(90001, 1);
+		
+		Assert.assertTrue(DataExportJobManager.cancel(job.getJobId()));
+		Assert.assertEquals(DataExportJob.Status.CANCELLED, job.getStatus());
+		Assert.assertFalse(DataExportJobManager.cancel(job.getJobId()));
+		
+		DataExportJobManager.getExecutor().getQueue().poll().run();
+		Assert.assertEquals(DataExportJob.Status.CANCELLED, job.getStatus());
+		Assert.assertNull(job.getStartDate());
+		
+		// the export can be queued again once its job ended
+		Assert.assertNotSame(job, queue(90001, 1));
+	}
+	
+	/**
+	 * @see {@link DataExportJobManager#queueStreamed(DataExportReportObject,EvaluationContext,int,Writer)}
+	 */
+	@Test
+	@Verifies(value = "should only stream a job that hasn't started to a single writer", method = "queueStreamed(DataExportReportObject,EvaluationContext,int,Writer)")
+	public void queueStreamed_shouldOnlyStreamAJobThatHasntStartedToASingleWriter() throws Exception {
+		StringWriter first = new StringWriter();
+		DataExportJob job = DataExportJobManager.queueStreamed(newDataExport(90001), new EvaluationContext(), 1, first);
+		Assert.assertSame(first, job.getStreamWriter());
+		Assert.assertNull(DataExportJobManager.queueStreamed(newDataExport(90001), new EvaluationContext(), 1,
+		    new StringWriter()));
+		
+		// a job queued without a writer streams to the first one that comes along
+		DataExportJob queued = queue(90002, 1);
+		StringWriter second = new StringWriter();
+		Assert.assertSame(queued, DataExportJobManager.queueStreamed(newDataExport(90002), new EvaluationContext(), 1,
+		    second));
+		Assert.assertSame(second, queued.getStreamWriter());
+		
+		// incremental runs merge their rows into the old file, there is nothing to stream
+		DataExportJobManager.queue(newDataExport(90003), new EvaluationContext(), 1, true, -1);
+		Assert.assertNull(DataExportJobManager.queueStreamed(newDataExport(90003), new EvaluationContext(), 1,
+		    new StringWriter()));
+	}
+	
+	private DataExportJob queue(int dataExportId, int priority) {
+		return DataExportJobManager.queue(newDataExport(dataExportId), new EvaluationContext(), priority, false, -1);
+	}
+	
+	private DataExportReportObject newDataExport(int dataExportId) {
+		DataExportReportObject dataExport = new DataExportReportObject();
+		dataExport.setReportObjectId(dataExportId);
+		dataExport.setName("Export " + dataExportId);
+		return dataExport;
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.reporting.export.ConceptColumn;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.reporting.export.SimpleColumn;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Generates the same exports once through the compiled {@link DataExportPipeline} and through the
+ * velocity template of the export, they all have to write the same bytes. The concept columns are
+ * also rendered by the velocity of the concept columns before they had the obs written by the
+ * functions class, so the output can't drift along with the template. Patient 90101 has a name
+ * with quotes, a comma and a tab and no obs at all.
+ */
+public class DataExportPipelineTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String PATIENTS_XML = "org/openmrs/reporting/export/include/DataExportTest-patients.xml";
+	
+	private static final String OBS_XML = "org/openmrs/reporting/export/include/DataExportTest-obs.xml";
+	
+	private static final String PIPELINE_XML = "org/openmrs/module/reportingcompatibility/reporting/export/include/DataExportPipelineTest.xml";
+	
+	private Cohort patients;
+	
+	@Before
+	public void setup() throws Exception {
+		executeDataSet(PATIENTS_XML);
+		executeDataSet(OBS_XML);
+		executeDataSet(PIPELINE_XML);
+		patients = new Cohort(Arrays.asList(2, 7, 90101));
+	}
+	
+	/**
+	 * @see {@link DataExportPipeline#run(DataExportFunctions,java.io.Writer)}
+	 */
+	@Test
+	@Verifies(value = "should write the same tab separated file as the template", method = "run(DataExportFunctions,Writer)")
+	public void run_shouldWriteTheSameTabSeparatedFileAsTheTemplate() throws Exception {
+		assertSameOutput("\t");
+	}
+	
+	/**
+	 * @see {@link DataExportPipeline#run(DataExportFunctions,java.io.Writer)}
+	 */
+	@Test
+	@Verifies(value = "should write the same comma separated file as the template", method = "run(DataExportFunctions,Writer)")
+	public void run_shouldWriteTheSameCommaSeparatedFileAsTheTemplate() throws Exception {
+		assertSameOutput(",");
+	}
+	
+	private void assertSameOutput(String separator) throws Exception {
+		String compiled = generate(addColumns(new DataExportReportObject(), false), separator);
+		String template = generate(addColumns(new TemplateDataExport(), false), separator);
+		String baseline = generate(addColumns(new TemplateDataExport(), true), separator);
+		
+		Assert.assertTrue(compiled, compiled.contains("O'Hara"));
+		Assert.assertTrue(compiled, compiled.contains("Test Location"));
+		Assert.assertEquals(baseline, compiled);
+		Assert.assertEquals(template, compiled);
+	}
+	
+	private String generate(DataExportReportObject export, String separator) throws Exception {
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setSeparator(separator);
+		functions.setPatientSet(patients);
+		
+		StringWriter out = new StringWriter();
+		DataExportUtil.generateExport(export, patients, functions, null, out);
+		Assert.assertNull(functions.getProfile().getError());
+		return out.toString();
+	}
+	
+	/**
+	 * Adds the columns of the tests to the given export: simple columns the pipeline writes itself
+	 * and one it leaves to velocity, and concept columns with several values and extras
+	 * 
+	 * @param baseline whether the concept columns render their obs the way they used to
+	 */
+	private DataExportReportObject addColumns(DataExportReportObject export, boolean baseline) {
+		export.setName("PIPELINE TEST");
+		
+		addSimpleColumn(export, "PATIENT_ID", "$!{fn.patientId}");
+		addSimpleColumn(export, "GIVEN \"NAME\", FIRST", "$!{fn.getPatientAttr('PersonName', 'givenName')}");
+		addSimpleColumn(export, "MIDDLE\tNAME", "$!{fn.getPatientAttr('PersonName', 'middleName')}");
+		addSimpleColumn(export, "FAMILY_NAME", "$!{fn.getPatientAttr('PersonName', 'familyName').toUpperCase()}");
+		addSimpleColumn(export, "BIRTHDATE", "$!{fn.formatDate('short', $fn.getPatientAttr('Person', 'birthdate'))}");
+		addSimpleColumn(export, "AGE", "$!{fn.calculateAge($fn.getPatientAttr('Person', 'birthdate'))}");
+		
+		ConceptColumn first = baseline ? new BaselineConceptColumn() : new ConceptColumn();
+		first.setColumnName("WEIGHT \"KG\", FIRST");
+		first.setColumnType("concept");
+		first.setConceptId(5089);
+		first.setConceptName("Weight (KG)");
+		first.setExtras(new String[] { "location", "obsDatetime" });
+		first.setModifier(DataExportReportObject.MODIFIER_FIRST_NUM);
+		first.setModifierNum(2);
+		export.getColumns().add(first);
+		
+		ConceptColumn last = baseline ? new BaselineConceptColumn() : new ConceptColumn();
+		last.setColumnName("WEIGHT");
+		last.setColumnType("concept");
+		last.setConceptId(5089);
+		last.setConceptName("Weight (KG)");
+		last.setModifier(DataExportReportObject.MODIFIER_LAST_NUM);
+		last.setModifierNum(3);
+		export.getColumns().add(last);
+		
+		return export;
+	}
+	
+	private void addSimpleColumn(DataExportReportObject export, String name, String returnValue) {
+		SimpleColumn column = new SimpleColumn();
+		column.setColumnName(name);
+		column.setReturnValue(returnValue);
+		export.getColumns().add(column);
+	}
+	
+	/**
+	 * Only plain exports are compiled, a subclass is generated through its template
+	 */
+	private static class TemplateDataExport extends DataExportReportObject {
+		
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * The velocity a concept column that isn't a set wrote for its obs before
+	 * {@link DataExportFunctions#getObsValuesAsString} took over, looping over a list of values per
+	 * obs and writing every value with getValueAsString
+	 */
+	private static class BaselineConceptColumn extends ConceptColumn {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public String toTemplateString() {
+			String[] extras = getExtras() == null ? new String[0] : getExtras();
+			StringBuilder arr = new StringBuilder("#set($arr = [");
+			for (int x = 0; x < extras.length; x++) {
+				if (x > 0)
+					arr.append(",");
+				arr.append("'").append(extras[x]).append("'");
+			}
+			arr.append("])");
+			
+			StringBuilder s = new StringBuilder();
+			if (DataExportReportObject.MODIFIER_LAST_NUM.equals(getModifier())
+			        || DataExportReportObject.MODIFIER_FIRST_NUM.equals(getModifier())) {
+				Integer num = getModifierNum() == null ? 1 : getModifierNum();
+				String function = DataExportReportObject.MODIFIER_LAST_NUM.equals(getModifier()) ? "getLastNObsWithValues"
+				        : "getFirstNObsWithValues";
+				s.append(arr).append("#set($obsValues = $fn.").append(function).append("(").append(num).append(", '")
+				        .append(getConceptId()).append("', $arr))");
+				s.append("#foreach($vals in $obsValues)#if($velocityCount > 1)$!{fn.getSeparator()}#end");
+				s.append("#foreach($val in $vals)#if($velocityCount > 1)$!{fn.getSeparator()}#end");
+				s.append("$!{fn.getValueAsString($val)}#end#end\n");
+			} else {
+				String function = DataExportReportObject.MODIFIER_FIRST.equals(getModifier()) ? " $fn.getFirstObs"
+				        : " $fn.getLastObs";
+				if (extras.length < 1) {
+					s.append("$!{fn.getValueAsString(").append(function).append("('").append(getConceptId()).append(
+					    "'))}");
+				} else {
+					s.append(arr).append("#set($obsRow =").append(function).append("WithValues('").append(
+					    getConceptId()).append("', $arr))");
+					s.append("#foreach($val in $obsRow)#if($velocityCount > 1)$!{fn.getSeparator()}#end");
+					s.append("$!{fn.getValueAsString($val)}#end\n");
+				}
+			}
+			return s.toString();
+		}
+	}
+}
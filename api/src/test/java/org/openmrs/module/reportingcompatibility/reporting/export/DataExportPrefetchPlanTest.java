@@ -0,0 +1,59 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportPrefetchPlan.Need;
+import org.openmrs.test.Verifies;
+
+public class DataExportPrefetchPlanTest {
+	
+	/**
+	 * @see {@link DataExportPrefetchPlan#findNeeds(String)}
+	 */
+	@Test
+	@Verifies(value = "should find the calls with literal arguments once", method = "findNeeds(String)")
+	public void findNeeds_shouldFindTheCallsWithLiteralArgumentsOnce() throws Exception {
+		String template = "$!{fn.getPatientAttr('Person', 'gender')}$!{fn.getSeparator()}"
+		        + "$!{fn.formatDate('short', $!{fn.getLastEncounterAttr(['1', 'Adult Initial'], 'encounterDatetime')})}"
+		        + "$!{fn.getRelationshipNames('Mother')}$!{fn.getRelationshipIds('Mother')}"
+		        + "$!{fn.getPersonAttribute('Health Center', 'Location', 'locationId', 'name', false)}"
+		        + "$!{fn.getPatientAttr('Person', 'gender', false)}";
+		
+		List<Need> needs = DataExportPrefetchPlan.findNeeds(template);
+		Assert.assertEquals(4, needs.size());
+		Assert.assertEquals("getPatientAttr:Person,gender,false", needs.get(0).toString());
+		Assert.assertEquals("getLastEncounterAttr:[1, Adult Initial],encounterDatetime", needs.get(1).toString());
+		Assert.assertEquals("getRelativeTable:Mother", needs.get(2).toString());
+		Assert.assertTrue(needs.get(3).isValuesOnly());
+	}
+	
+	/**
+	 * @see {@link DataExportPrefetchPlan#findNeeds(String)}
+	 */
+	@Test
+	@Verifies(value = "should skip calls with velocity references as arguments", method = "findNeeds(String)")
+	public void findNeeds_shouldSkipCallsWithVelocityReferencesAsArguments() throws Exception {
+		String template = "#foreach($var in $!{fn.getPatientAttr('PersonName', 'familyName', true)})$!{var}|#end"
+		        + "$!{fn.getProgram($programId)}$!{fn.getPatientIdentifier(5)}";
+		
+		List<Need> needs = DataExportPrefetchPlan.findNeeds(template);
+		Assert.assertEquals(1, needs.size());
+		Assert.assertEquals("getPatientAttr:PersonName,familyName,true", needs.get(0).toString());
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class DataExportProfileTest {
+	
+	/**
+	 * @see {@link DataExportProfile#load(File)}
+	 */
+	@Test
+	@Verifies(value = "should read the queries, columns and batches of a saved profile", method = "load(File)")
+	public void load_shouldReadTheQueriesColumnsAndBatchesOfASavedProfile() throws Exception {
+		File file = File.createTempFile("dataExport", ".profile");
+		try {
+			DataExportProfile profile = new DataExportProfile();
+			profile.recordQuery("getPatientAttr:Person,gender,false", 10, 100, 2400);
+			profile.recordQuery("getObsWithValues:5089", 30, 250, 8000);
+			profile.recordQuery("getObsWithValues:5089", 20, 150, 4000);
+			profile.recordColumns(Arrays.asList("gender", "weight\t(kg)"), new long[] { 1000000, 5000000 }, new long[] {
+			        100, 400 }, 100);
+			profile.recordBatch(0, 100, 60, 6);
+			profile.finish();
+			profile.save(file);
+			
+			DataExportProfile loaded = DataExportProfile.load(file);
+			Assert.assertEquals(profile.getTotalMillis(), loaded.getTotalMillis());
+			Assert.assertEquals(60, loaded.getQueryMillis());
+			Assert.assertEquals(100, loaded.getPatients());
+			
+			// the slowest first
+			List<DataExportProfile.Entry> queries = loaded.getQueries();
+			Assert.assertEquals(2, queries.size());
+			Assert.assertEquals("getObsWithValues:5089", queries.get(0).getName());
+			Assert.assertEquals(2, queries.get(0).getCount());
+			Assert.assertEquals(50, queries.get(0).getMillis());
+			Assert.assertEquals(400, queries.get(0).getRows());
+			Assert.assertEquals(12000, queries.get(0).getBytes());
+			
+			List<DataExportProfile.Entry> columns = loaded.getColumns();
+			Assert.assertEquals("weight (kg)", columns.get(0).getName());
+			Assert.assertEquals(5, columns.get(0).getMillis());
+			Assert.assertEquals(400, columns.get(0).getBytes());
+			
+			Assert.assertEquals(1, loaded.getBatches().size());
+			Assert.assertEquals(60, loaded.getBatches().get(0).getPrefetchMillis());
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportProfile#load(File)}
+	 */
+	@Test
+	@Verifies(value = "should return null if there is no profile", method = "load(File)")
+	public void load_shouldReturnNullIfThereIsNoProfile() throws Exception {
+		File file = File.createTempFile("dataExport", ".profile");
+		file.delete();
+		Assert.assertNull(DataExportProfile.load(file));
+	}
+}
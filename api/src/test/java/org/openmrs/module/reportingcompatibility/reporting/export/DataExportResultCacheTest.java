@@ -0,0 +1,201 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.reporting.PatientCharacteristicFilter;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.CohortColumn;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * The cache is given one megabyte, room for two of the 400 kilobyte files of the tests
+ */
+public class DataExportResultCacheTest extends BaseModuleContextSensitiveTest {
+	
+	private static final int FILE_BYTES = 400 * 1024;
+	
+	@Before
+	public void setup() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(ReportingCompatibilityConstants.RESULT_CACHE_SIZE_GP, "1"));
+		DataExportResultCache.clear();
+	}
+	
+	@After
+	public void cleanup() {
+		DataExportResultCache.clear();
+	}
+	
+	/**
+	 * @see {@link DataExportResultCache#get(String,File)}
+	 */
+	@Test
+	@Verifies(value = "should copy the result kept for the fingerprint", method = "get(String,File)")
+	public void get_shouldCopyTheResultKeptForTheFingerprint() throws Exception {
+		File generated = createFile((byte) 'a');
+		File copy = File.createTempFile("dataExport", ".copy");
+		try {
+			DataExportResultCache.put("a", generated);
+			
+			Assert.assertTrue(DataExportResultCache.get("a", copy));
+			Assert.assertArrayEquals(Files.readAllBytes(generated.toPath()), Files.readAllBytes(copy.toPath()));
+		}
+		finally {
+			generated.delete();
+			copy.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportResultCache#get(String,File)}
+	 */
+	@Test
+	@Verifies(value = "should return false for an unknown fingerprint", method = "get(String,File)")
+	public void get_shouldReturnFalseForAnUnknownFingerprint() throws Exception {
+		File generated = createFile((byte) 'a');
+		File copy = File.createTempFile("dataExport", ".copy");
+		try {
+			DataExportResultCache.put("a", generated);
+			
+			Assert.assertFalse(DataExportResultCache.get("b", copy));
+			Assert.assertFalse(DataExportResultCache.get(null, copy));
+			Assert.assertEquals(0, copy.length());
+		}
+		finally {
+			generated.delete();
+			copy.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportResultCache#put(String,File)}
+	 */
+	@Test
+	@Verifies(value = "should remove the least recently used results once the cache is full", method = "put(String,File)")
+	public void put_shouldRemoveTheLeastRecentlyUsedResultsOnceTheCacheIsFull() throws Exception {
+		File a = createFile((byte) 'a');
+		File b = createFile((byte) 'b');
+		File c = createFile((byte) 'c');
+		File copy = File.createTempFile("dataExport", ".copy");
+		try {
+			DataExportResultCache.put("a", a);
+			DataExportResultCache.put("c", c);
+			// a is used after c, so c is the one to go
+			Assert.assertTrue(DataExportResultCache.get("a", copy));
+			DataExportResultCache.put("b", b);
+			
+			Assert.assertFalse(DataExportResultCache.get("c", copy));
+			Assert.assertTrue(DataExportResultCache.get("a", copy));
+			Assert.assertTrue(DataExportResultCache.get("b", copy));
+			Assert.assertArrayEquals(Files.readAllBytes(b.toPath()), Files.readAllBytes(copy.toPath()));
+		}
+		finally {
+			a.delete();
+			b.delete();
+			c.delete();
+			copy.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportResultCache#put(String,File)}
+	 */
+	@Test
+	@Verifies(value = "should keep nothing while the cache is turned off", method = "put(String,File)")
+	public void put_shouldKeepNothingWhileTheCacheIsTurnedOff() throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(ReportingCompatibilityConstants.RESULT_CACHE_SIZE_GP, "0"));
+		File generated = createFile((byte) 'a');
+		File copy = File.createTempFile("dataExport", ".copy");
+		try {
+			DataExportResultCache.put("a", generated);
+			
+			Assert.assertFalse(DataExportResultCache.get("a", copy));
+			Assert.assertNull(DataExportResultCache.getFingerprint(new DataExportReportObject(), null, "\t"));
+		}
+		finally {
+			generated.delete();
+			copy.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportResultCache#getFingerprint(DataExportReportObject,Cohort,String)}
+	 */
+	@Test
+	@Verifies(value = "should change when a filter the export refers to changes", method = "getFingerprint(DataExportReportObject,Cohort,String)")
+	public void getFingerprint_shouldChangeWhenAFilterTheExportRefersToChanges() throws Exception {
+		ReportObjectService reportObjectService = Context.getService(ReportObjectService.class);
+		PatientCharacteristicFilter filter = new PatientCharacteristicFilter();
+		filter.setName("Males");
+		filter.setGender("M");
+		reportObjectService.saveReportObject(filter);
+		
+		DataExportReportObject dataExport = new DataExportReportObject();
+		dataExport.setName("Result cache test");
+		CohortColumn column = new CohortColumn();
+		column.setColumnName("MALE");
+		column.setFilterId(filter.getReportObjectId());
+		column.setValueIfTrue("yes");
+		column.setValueIfFalse("no");
+		dataExport.getColumns().add(column);
+		
+		Cohort patients = new Cohort(Arrays.asList(2, 7));
+		String fingerprint = DataExportResultCache.getFingerprint(dataExport, patients, "\t");
+		Assert.assertNotNull(fingerprint);
+		Assert.assertEquals(fingerprint, DataExportResultCache.getFingerprint(dataExport, patients, "\t"));
+		
+		filter.setGender("F");
+		reportObjectService.saveReportObject(filter);
+		Assert.assertFalse(fingerprint.equals(DataExportResultCache.getFingerprint(dataExport, patients, "\t")));
+	}
+	
+	/**
+	 * @see {@link DataExportResultCache#getFingerprint(DataExportReportObject,Cohort,String)}
+	 */
+	@Test
+	@Verifies(value = "should not depend on the order the cohort keeps its members in", method = "getFingerprint(DataExportReportObject,Cohort,String)")
+	public void getFingerprint_shouldNotDependOnTheOrderTheCohortKeepsItsMembersIn() throws Exception {
+		DataExportReportObject dataExport = new DataExportReportObject();
+		dataExport.setName("Result cache test");
+		Cohort unsorted = new Cohort();
+		unsorted.setMemberIds(new LinkedHashSet<Integer>(Arrays.asList(8, 2, 7)));
+		
+		Assert.assertEquals(DataExportResultCache.getFingerprint(dataExport, new Cohort(Arrays.asList(2, 7, 8)), "	"),
+		    DataExportResultCache.getFingerprint(dataExport, unsorted, "	"));
+	}
+	
+	private File createFile(byte content) throws Exception {
+		File file = File.createTempFile("dataExport", ".tsv");
+		byte[] bytes = new byte[FILE_BYTES];
+		Arrays.fill(bytes, content);
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class DataExportRowStoreTest {
+	
+	/**
+	 * @see {@link DataExportRowStore#load(File)}
+	 */
+	@Test
+	@Verifies(value = "should read the rows of a saved store", method = "load(File)")
+	public void load_shouldReadTheRowsOfASavedStore() throws Exception {
+		File exportFile = File.createTempFile("dataExport", ".tsv");
+		File storeFile = DataExportRowStore.getStoreFile(exportFile);
+		try {
+			FileWriter out = new FileWriter(exportFile);
+			out.write("id\n1\n3\n");
+			out.close();
+			
+			// more rows than the initial capacity so the arrays have to grow
+			DataExportRowStore store = new DataExportRowStore("abc", 1000L, 500L);
+			store.setHeaderLength(3);
+			for (int patientId = 1; patientId <= 3000; patientId += 2)
+				store.addRow(patientId, 2);
+			store.setFile(exportFile.length(), exportFile.lastModified());
+			store.save(storeFile);
+			
+			DataExportRowStore loaded = DataExportRowStore.load(storeFile);
+			Assert.assertEquals("abc", loaded.getFingerprint());
+			Assert.assertEquals(1000L, loaded.getWatermark());
+			Assert.assertEquals(500L, loaded.getFullRunDate());
+			Assert.assertEquals(3, loaded.getHeaderLength());
+			Assert.assertEquals(1500, loaded.getRowCount());
+			Assert.assertEquals(2999, loaded.getPatientId(1499));
+			Assert.assertEquals(2, loaded.getRowLength(1499));
+			Assert.assertTrue(loaded.contains(1501));
+			Assert.assertFalse(loaded.contains(1500));
+			Assert.assertTrue(loaded.matches(exportFile));
+		}
+		finally {
+			exportFile.delete();
+			storeFile.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportRowStore#matches(File)}
+	 */
+	@Test
+	@Verifies(value = "should not match a file written since", method = "matches(File)")
+	public void matches_shouldNotMatchAFileWrittenSince() throws Exception {
+		File exportFile = File.createTempFile("dataExport", ".tsv");
+		try {
+			DataExportRowStore store = new DataExportRowStore("abc", 0, 0);
+			store.setFile(exportFile.length(), exportFile.lastModified());
+			
+			FileWriter out = new FileWriter(exportFile);
+			out.write("id\n1\n");
+			out.close();
+			
+			Assert.assertFalse(store.matches(exportFile));
+		}
+		finally {
+			exportFile.delete();
+		}
+	}
+	
+	/**
+	 * @see {@link DataExportRowStore#addRow(int,int)}
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	@Verifies(value = "should fail for rows out of patient id order", method = "addRow(int,int)")
+	public void addRow_shouldFailForRowsOutOfPatientIdOrder() throws Exception {
+		DataExportRowStore store = new DataExportRowStore("abc", 0, 0);
+		store.addRow(5, 10);
+		store.addRow(3, 10);
+	}
+
+}
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class DataExportUtilTest {
+	
+	/**
+	 * @see {@link DataExportUtil#newGeneratedFileReader(File)}
+	 */
+	@Test
+	@Verifies(value = "should read back both gzipped and plain files", method = "newGeneratedFileReader(File)")
+	public void newGeneratedFileReader_shouldReadBackBothGzippedAndPlainFiles() throws Exception {
+		StringBuilder text = new StringBuilder("PATIENT_ID\tNAME\n");
+		for (int patientId = 1; patientId <= 5000; patientId++)
+			text.append(patientId).append("\tJohn\n");
+		
+		for (boolean compress : new boolean[] { true, false }) {
+			File file = File.createTempFile("dataExport", ".tsv");
+			try {
+				Writer out = DataExportUtil.newGeneratedFileWriter(file, compress);
+				out.write(text.toString());
+				out.close();
+				
+				Assert.assertEquals(compress, DataExportUtil.isCompressed(file));
+				if (compress)
+					Assert.assertTrue(file.length() < text.length() / 2);
+				
+				StringWriter read = new StringWriter();
+				Reader in = DataExportUtil.newGeneratedFileReader(file);
+				char[] buffer = new char[1000];
+				for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+					read.write(buffer, 0, n);
+				in.close();
+				Assert.assertEquals(text.toString(), read.toString());
+			}
+			finally {
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.reporting.export.ConceptColumn;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.reporting.export.SimpleColumn;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * The cohorts of these tests keep their members in a hash set that isn't in patient id order, the
+ * way the cohorts built by a compound filter do.
+ */
+public class IncrementalDataExportRunnerTest extends BaseModuleContextSensitiveTest {
+	
+	private File dir;
+	
+	private DataExportReportObject dataExport;
+	
+	@Before
+	public void setup() throws Exception {
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-patients.xml");
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-obs.xml");
+		dir = Files.createTempDirectory("dataExportIncremental").toFile();
+		
+		dataExport = new DataExportReportObject();
+		dataExport.setName("INCREMENTAL TEST");
+		dataExport.getColumns().add(new SimpleColumn("PATIENT_ID", "$!{fn.patientId}"));
+		dataExport.getColumns().add(
+		    new SimpleColumn("FAMILY_NAME", "$!{fn.getPatientAttr('PersonName', 'familyName')}"));
+		ConceptColumn weight = new ConceptColumn();
+		weight.setColumnName("WEIGHT");
+		weight.setColumnType("concept");
+		weight.setConceptId(5089);
+		weight.setConceptName("Weight (KG)");
+		weight.setModifier(DataExportReportObject.MODIFIER_LAST_NUM);
+		weight.setModifierNum(2);
+		dataExport.getColumns().add(weight);
+	}
+	
+	@After
+	public void cleanup() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+	
+	/**
+	 * @see {@link IncrementalDataExportRunner#run(Cohort,int)}
+	 */
+	@Test
+	@Verifies(value = "should write the rows in patient id order whatever the order of the cohort", method = "run(Cohort,int)")
+	public void run_shouldWriteTheRowsInPatientIdOrderWhateverTheOrderOfTheCohort() throws Exception {
+		File file = new File(dir, "export");
+		
+		Assert.assertFalse(newRunner(file, unsortedCohort(8, 2, 7)).run(unsortedCohort(8, 2, 7), -1));
+		Assert.assertEquals(generate(2, 7, 8), read(file));
+		
+		// patient 6 is new to the export, its row is merged in between the kept ones
+		Assert.assertTrue(newRunner(file, unsortedCohort(6, 8, 2, 7)).run(unsortedCohort(6, 8, 2, 7), -1));
+		Assert.assertEquals(generate(2, 6, 7, 8), read(file));
+	}
+	
+	/**
+	 * @return a cohort iterating its members in the given order
+	 */
+	private Cohort unsortedCohort(Integer... patientIds) {
+		Cohort cohort = new Cohort();
+		cohort.setMemberIds(new LinkedHashSet<Integer>(Arrays.asList(patientIds)));
+		return cohort;
+	}
+	
+	private IncrementalDataExportRunner newRunner(File file, Cohort patients) {
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setPatientSet(patients);
+		functions.setBatchSize(2);
+		functions.planPrefetch(dataExport.getColumns());
+		return new IncrementalDataExportRunner(dataExport, functions, DataExportUtil.createVelocityContext(functions,
+		    patients), file);
+	}
+	
+	/**
+	 * @return the export of the given patients generated in full
+	 */
+	private String generate(Integer... patientIds) throws Exception {
+		Cohort patients = new Cohort(Arrays.asList(patientIds));
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setPatientSet(patients);
+		StringWriter out = new StringWriter();
+		DataExportUtil.generateExport(dataExport, patients, functions, null, out);
+		Assert.assertNull(functions.getProfile().getError());
+		return out.toString();
+	}
+	
+	private String read(File file) throws Exception {
+		StringWriter out = new StringWriter();
+		char[] buffer = new char[4096];
+		Reader in = DataExportUtil.newGeneratedFileReader(file);
+		try {
+			for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+				out.write(buffer, 0, read);
+		}
+		finally {
+			in.close();
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class JobStreamWriterTest {
+	
+	/**
+	 * @see {@link JobStreamWriter#write(char[],int,int)}
+	 */
+	@Test
+	@Verifies(value = "should write to the file and the stream writer of the job", method = "write(char[],int,int)")
+	public void write_shouldWriteToTheFileAndTheStreamWriterOfTheJob() throws Exception {
+		DataExportJob job = new DataExportJob(1, "Export", 1, false, -1);
+		StringWriter stream = new StringWriter();
+		job.setStreamWriter(stream);
+		StringWriter file = new StringWriter();
+		
+		Writer out = new JobStreamWriter(file, job);
+		out.write("PATIENT_ID\n");
+		out.write("2\n");
+		out.close();
+		
+		Assert.assertEquals("PATIENT_ID\n2\n", file.toString());
+		Assert.assertEquals("PATIENT_ID\n2\n", stream.toString());
+	}
+	
+	/**
+	 * @see {@link JobStreamWriter#write(char[],int,int)}
+	 */
+	@Test
+	@Verifies(value = "should go on writing the file once the stream writer fails", method = "write(char[],int,int)")
+	public void write_shouldGoOnWritingTheFileOnceTheStreamWriterFails() throws Exception {
+		DataExportJob job = new DataExportJob(1, "Export", 1, false, -1);
+		// like the response of a client that went away
+		job.setStreamWriter(new Writer() {
+			
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+			
+			@Override
+			public void flush() {
+			}
+			
+			@Override
+			public void close() {
+			}
+		});
+		StringWriter file = new StringWriter();
+		
+		Writer out = new JobStreamWriter(file, job);
+		out.write("PATIENT_ID\n");
+		Assert.assertNull(job.getStreamWriter());
+		out.write("2\n");
+		job.batchFinished(1);
+		out.close();
+		
+		Assert.assertEquals("PATIENT_ID\n2\n", file.toString());
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.reporting.export;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.reporting.ReportObjectService;
+import org.openmrs.reporting.export.ConceptColumn;
+import org.openmrs.reporting.export.DataExportReportObject;
+import org.openmrs.reporting.export.SimpleColumn;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Two runners share a temporary directory the way two instances share the shard directory. Both
+ * run in the thread of the test, one step after the other, so they see the same test data.
+ */
+public class ShardedDataExportRunnerTest extends BaseModuleContextSensitiveTest {
+	
+	private static final long ABANDONED = ShardedDataExportRunner.STALE_MILLIS + 60 * 1000;
+	
+	private File sharedDir;
+	
+	private Cohort patients;
+	
+	private DataExportReportObject dataExport;
+	
+	@Before
+	public void setup() throws Exception {
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-patients.xml");
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-obs.xml");
+		sharedDir = Files.createTempDirectory("dataExportShards").toFile();
+		patients = new Cohort(Arrays.asList(2, 6, 7, 8));
+		
+		dataExport = new DataExportReportObject();
+		dataExport.setName("SHARDED TEST");
+		dataExport.getColumns().add(new SimpleColumn("PATIENT_ID", "$!{fn.patientId}"));
+		dataExport.getColumns().add(
+		    new SimpleColumn("FAMILY_NAME", "$!{fn.getPatientAttr('PersonName', 'familyName')}"));
+		ConceptColumn weight = new ConceptColumn();
+		weight.setColumnName("WEIGHT");
+		weight.setColumnType("concept");
+		weight.setConceptId(5089);
+		weight.setConceptName("Weight (KG)");
+		weight.setModifier(DataExportReportObject.MODIFIER_LAST_NUM);
+		weight.setModifierNum(2);
+		dataExport.getColumns().add(weight);
+		// the other instance loads the export by its id
+		Context.getService(ReportObjectService.class).saveReportObject(dataExport);
+		Context.flushSession();
+	}
+	
+	@After
+	public void cleanup() {
+		delete(sharedDir);
+	}
+	
+	/**
+	 * @see {@link ShardedDataExportRunner#run(java.io.Writer)}
+	 */
+	@Test
+	@Verifies(value = "should merge the shards of all instances into the file of a single instance", method = "run(Writer)")
+	public void run_shouldMergeTheShardsOfAllInstancesIntoTheFileOfASingleInstance() throws Exception {
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setSeparator("\t");
+		functions.setPatientSet(patients);
+		StringWriter expected = new StringWriter();
+		DataExportUtil.generateExport(dataExport, patients, functions, null, expected);
+		Assert.assertNull(functions.getProfile().getError());
+		
+		ShardedDataExportRunner coordinator = newCoordinator();
+		File runDir = coordinator.startRun();
+		
+		// a third instance works on the first shard, so the other one takes the second
+		File firstLock = ShardedDataExportRunner.getShardFile(runDir, 0, "lock");
+		Assert.assertTrue(firstLock.createNewFile());
+		Locale locale = Context.getLocale();
+		Context.setLocale(Locale.GERMAN);
+		try {
+			Assert.assertEquals(1, ShardedDataExportRunner.workOnRun(runDir, new File(runDir, "run.properties")));
+			Assert.assertEquals(Locale.GERMAN, Context.getLocale());
+		}
+		finally {
+			Context.setLocale(locale);
+		}
+		Assert.assertFalse(ShardedDataExportRunner.getShardFile(runDir, 0, "done").exists());
+		Assert.assertTrue(ShardedDataExportRunner.getShardFile(runDir, 1, "done").exists());
+		
+		// the third instance goes away, the coordinator takes its shard over
+		firstLock.setLastModified(System.currentTimeMillis() - ABANDONED);
+		StringWriter out = new StringWriter();
+		coordinator.finishRun(runDir, out);
+		Assert.assertEquals(expected.toString(), out.toString());
+	}
+	
+	/**
+	 * @see {@link ShardedDataExportRunner#claim(File,int)}
+	 */
+	@Test
+	@Verifies(value = "should let one instance take over an abandoned lock", method = "claim(File,int)")
+	public void claim_shouldLetOneInstanceTakeOverAnAbandonedLock() throws Exception {
+		Assert.assertTrue(ShardedDataExportRunner.claim(sharedDir, 0));
+		Assert.assertFalse(ShardedDataExportRunner.claim(sharedDir, 0));
+		
+		File lock = ShardedDataExportRunner.getShardFile(sharedDir, 0, "lock");
+		lock.setLastModified(System.currentTimeMillis() - ABANDONED);
+		Assert.assertTrue(ShardedDataExportRunner.claim(sharedDir, 0));
+		Assert.assertFalse(ShardedDataExportRunner.claim(sharedDir, 0));
+		Assert.assertTrue(lock.exists());
+		Assert.assertEquals("only the lock is left", 1, sharedDir.listFiles().length);
+		
+		// a shard that is done is never claimed again
+		lock.setLastModified(System.currentTimeMillis() - ABANDONED);
+		Assert.assertTrue(ShardedDataExportRunner.getShardFile(sharedDir, 0, "done").createNewFile());
+		Assert.assertFalse(ShardedDataExportRunner.claim(sharedDir, 0));
+	}
+	
+	private ShardedDataExportRunner newCoordinator() {
+		DataExportFunctions functions = new DataExportFunctions();
+		functions.setSeparator("\t");
+		functions.setPatientSet(patients);
+		functions.setBatchSize(ReportingCompatibilityConstants.BATCH_SIZE_GP_DEFAULT);
+		functions.planPrefetch(dataExport.getColumns());
+		return new ShardedDataExportRunner(dataExport, functions, DataExportUtil.createVelocityContext(functions,
+		    patients), 2, sharedDir);
+	}
+	
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+}
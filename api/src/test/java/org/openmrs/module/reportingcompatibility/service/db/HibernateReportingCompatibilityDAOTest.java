@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.reportingcompatibility.service.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.cohort.Cohort;
+import org.openmrs.module.reportingcompatibility.reporting.ObsValueTable;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Patient 7 has three obs of concept 90001: the newest without encounter or location, the next
+ * one in an encounter with two providers and the oldest in an encounter with one provider.
+ */
+public class HibernateReportingCompatibilityDAOTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String TOP_OBS_XML = "org/openmrs/module/reportingcompatibility/service/db/include/TopObsPerPatientTest.xml";
+	
+	private static final String GET_NAMES_XML = "org/openmrs/module/reportingcompatibility/service/db/include/GetNamesTest.xml";
+	
+	private ReportingCompatibilityService service;
+	
+	private Concept concept;
+	
+	private Cohort patients;
+	
+	@Before
+	public void setup() throws Exception {
+		executeDataSet(TOP_OBS_XML);
+		service = Context.getService(ReportingCompatibilityService.class);
+		concept = Context.getConceptService().getConcept(90001);
+		patients = new Cohort(Collections.singletonList(7));
+	}
+	
+	/**
+	 * @see {@link HibernateReportingCompatibilityDAO#getObservationValueTables(Cohort,List,List,Integer,boolean)}
+	 */
+	@Test
+	@Verifies(value = "should return the top obs among the obs with a location", method = "getObservationValueTables(Cohort,List,List,Integer,boolean)")
+	public void getObservationValueTables_shouldReturnTheTopObsAmongTheObsWithALocation() throws Exception {
+		ObsValueTable table = service.getObservationValueTables(patients, Collections.singletonList(concept),
+		    Arrays.asList(null, "location"), 2, true).get(90001);
+		
+		Assert.assertEquals(2, table.getRowCount());
+		Assert.assertEquals(2.0, table.getNumeric(0, 0), 0);
+		Assert.assertEquals(1, table.getId(1, 0));
+		Assert.assertEquals(1.0, table.getNumeric(0, 1), 0);
+		Assert.assertEquals(2, table.getId(1, 1));
+	}
+	
+	/**
+	 * @see {@link HibernateReportingCompatibilityDAO#getObservationValueTables(Cohort,List,List,Integer,boolean)}
+	 */
+	@Test
+	@Verifies(value = "should return each obs once when its encounter has several providers", method = "getObservationValueTables(Cohort,List,List,Integer,boolean)")
+	public void getObservationValueTables_shouldReturnEachObsOnceWhenItsEncounterHasSeveralProviders() throws Exception {
+		ObsValueTable table = service.getObservationValueTables(patients, Collections.singletonList(concept),
+		    Arrays.asList(null, "provider"), 2, true).get(90001);
+		
+		Assert.assertEquals(2, table.getRowCount());
+		Assert.assertEquals(2.0, table.getNumeric(0, 0), 0);
+		Assert.assertEquals(90001, table.getId(1, 0));
+		Assert.assertEquals(1.0, table.getNumeric(0, 1), 0);
+		Assert.assertEquals(90002, table.getId(1, 1));
+	}
+	
+	/**
+	 * @see {@link HibernateReportingCompatibilityDAO#getObservationsValues(Cohort,Concept,List,Integer,boolean)}
+	 */
+	@Test
+	@Verifies(value = "should return the top obs once each among the obs with a provider", method = "getObservationsValues(Cohort,Concept,List,Integer,boolean)")
+	public void getObservationsValues_shouldReturnTheTopObsOnceEachAmongTheObsWithAProvider() throws Exception {
+		Map<Integer, List<List<Object>>> values = service.getObservationsValues(patients, concept, Arrays.asList(null,
+		    "provider"), 2, true);
+		
+		List<List<Object>> rows = values.get(7);
+		Assert.assertEquals(2, rows.size());
+		Assert.assertEquals(2.0, ((Number) rows.get(0).get(0)).doubleValue(), 0);
+		Assert.assertEquals(1.0, ((Number) rows.get(1).get(0)).doubleValue(), 0);
+		Assert.assertEquals("Second Provider", rows.get(1).get(1));
+	}
+	
+	/**
+	 * @see {@link HibernateReportingCompatibilityDAO#getObservationsValues(Cohort,Concept,List,Integer,boolean)}
+	 */
+	@Test
+	@Verifies(value = "should return the top obs among the obs with a location", method = "getObservationsValues(Cohort,Concept,List,Integer,boolean)")
+	public void getObservationsValues_shouldReturnTheTopObsAmongTheObsWithALocation() throws Exception {
+		Map<Integer, List<List<Object>>> values = service.getObservationsValues(patients, concept, Arrays.asList(null,
+		    "location"), 2, true);
+		
+		List<List<Object>> rows = values.get(7);
+		Assert.assertEquals(2, rows.size());
+		Assert.assertEquals(2.0, ((Number) rows.get(0).get(0)).doubleValue(), 0);
+		Assert.assertEquals(1.0, ((Number) rows.get(1).get(0)).doubleValue(), 0);
+	}
+	
+	/**
+	 * @see {@link HibernateReportingCompatibilityDAO#getNames(Class,java.util.Collection,Locale)}
+	 */
+	@Test
+	@Verifies(value = "should skip short names and index terms of concepts", method = "getNames(Class,Collection,Locale)")
+	public void getNames_shouldSkipShortNamesAndIndexTermsOfConcepts() throws Exception {
+		executeDataSet(GET_NAMES_XML);
+		
+		Map<Integer, String> names = service.getNames(Concept.class, Collections.singletonList(90101), Locale.FRENCH);
+		Assert.assertEquals("BODY WEIGHT", names.get(90101));
+	}
+	
+	/**
+	 * @see {@link HibernateReportingCompatibilityDAO#getNames(Class,java.util.Collection,Locale)}
+	 */
+	@Test
+	@Verifies(value = "should give providers without a name the preferred name of their person", method = "getNames(Class,Collection,Locale)")
+	public void getNames_shouldGiveProvidersWithoutANameThePreferredNameOfTheirPerson() throws Exception {
+		executeDataSet(GET_NAMES_XML);
+		
+		Map<Integer, String> names = service.getNames(Provider.class, Arrays.asList(90001, 90101, 90102), null);
+		Assert.assertEquals("First Provider", names.get(90001));
+		Assert.assertEquals("Jane Q Public", names.get(90101));
+		Assert.assertEquals("Named Provider", names.get(90102));
+	}
+}
@@ -32,6 +32,9 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reportingcompatibility.ReportingCompatibilityConstants;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJob;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportProfile;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportRowStore;
 import org.openmrs.module.reportingcompatibility.reporting.export.DataExportUtil;
 import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
 import org.openmrs.report.EvaluationContext;
@@ -54,6 +57,9 @@ public class DataExportListController extends SimpleFormController {
 	/** Logger for this class and subclasses */
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/** Exports generated from this page go before the scheduled ones */
+	private static final int INTERACTIVE_PRIORITY = 10;
+	
 	/**
 	 * Allows for Integers to be used as values in input tags. Normally, only strings and lists are
 	 * expected
@@ -118,13 +124,13 @@ public class DataExportListController extends SimpleFormController {
 							try {
 								report = (DataExportReportObject) rs.getReportObject(Integer.valueOf(id));
 								
-								Long start = System.currentTimeMillis();
-								DataExportUtil.generateExport(report, null, evalContext);
-								Long timeToGenerate = (System.currentTimeMillis() - start) / 1000;
+								// exports are generated in the background, the page shows their progress
+								Context.getService(ReportingCompatibilityService.class).queueDataExport(report,
+								    evalContext, INTERACTIVE_PRIORITY, false, -1);
 								
 								if (!success.equals(""))
 									success += "<br/>";
-								success += msa.getMessage("reportingcompatibility.DataExport.generated", new String[] {report.getName(), timeToGenerate.toString()});
+								success += msa.getMessage("reportingcompatibility.DataExport.queued", new String[] {report.getName()});
 							}
 							catch (Exception e) {
 								log.warn("Error generating report object", e);
@@ -137,6 +143,18 @@ public class DataExportListController extends SimpleFormController {
 							}
 						}
 					}
+				} else if (msa.getMessage("reportingcompatibility.DataExport.cancel").equals(action)) {
+					if (reportList != null) {
+						ReportingCompatibilityService rcs = Context.getService(ReportingCompatibilityService.class);
+						for (String id : reportList) {
+							DataExportJob job = rcs.getLatestDataExportJob(Integer.valueOf(id));
+							if (job != null && rcs.cancelDataExportJob(job.getJobId())) {
+								if (!success.equals(""))
+									success += "<br/>";
+								success += msa.getMessage("reportingcompatibility.DataExport.cancelled", new String[] {job.getDataExportName()});
+							}
+						}
+					}
 				} else if (msa.getMessage("reportingcompatibility.DataExport.delete").equals(action)) {
 					
 					if (reportList != null) {
@@ -150,6 +168,8 @@ public class DataExportListController extends SimpleFormController {
 									if (file != null && file.exists()) { 
 										file.delete(); 
 									} 
+									DataExportRowStore.getStoreFile(file).delete();
+									DataExportProfile.getProfileFile(file).delete();
 								} catch (Exception ex) { 
 									// pass 
 									// (if this failed for any reason, we still want to delete the data export if we can) 
@@ -217,9 +237,19 @@ public class DataExportListController extends SimpleFormController {
 		List<AbstractReportObject> reportList = (List<AbstractReportObject>) command;
 		Map<AbstractReportObject, Date> generatedDates = new HashMap<AbstractReportObject, Date>();
 		Map<AbstractReportObject, String> generatedSizes = new HashMap<AbstractReportObject, String>();
+		Map<AbstractReportObject, DataExportJob> jobs = new HashMap<AbstractReportObject, DataExportJob>();
+		Map<AbstractReportObject, DataExportProfile> profiles = new HashMap<AbstractReportObject, DataExportProfile>();
+		boolean jobsActive = false;
 		
 		// add the last modified date of the generated file as reference data
 		for (AbstractReportObject report : reportList) {
+			DataExportJob job = Context.getService(ReportingCompatibilityService.class).getLatestDataExportJob(
+			    report.getReportObjectId());
+			if (job != null) {
+				jobs.put(report, job);
+				jobsActive |= !job.isEnded();
+			}
+			
 			File file = DataExportUtil.getGeneratedFile((DataExportReportObject) report);
 			
 			if (file.exists()) {
@@ -232,11 +262,19 @@ public class DataExportListController extends SimpleFormController {
 					generatedSizes.put(report, size / 1024 + "kB");
 				else
 					generatedSizes.put(report, size + "B");
+				
+				// where the time of the run that generated the file went
+				DataExportProfile profile = DataExportProfile.load(DataExportProfile.getProfileFile(file));
+				if (profile != null)
+					profiles.put(report, profile);
 			}
 		}
 		
 		map.put("generatedDates", generatedDates);
 		map.put("generatedSizes", generatedSizes);
+		map.put("jobs", jobs);
+		map.put("profiles", profiles);
+		map.put("jobsActive", jobsActive);
 		
 		AdministrationService as = Context.getAdministrationService();
 		String batchSize = as.getGlobalProperty(ReportingCompatibilityConstants.BATCH_SIZE_GP);
@@ -13,12 +13,17 @@
  */
 package org.openmrs.web.servlet;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,19 +34,41 @@ import javax.servlet.http.HttpSession;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportJob;
+import org.openmrs.module.reportingcompatibility.reporting.export.DataExportUtil;
+import org.openmrs.module.reportingcompatibility.service.ReportingCompatibilityService;
+import org.openmrs.report.EvaluationContext;
+import org.openmrs.report.Parameter;
 import org.openmrs.reporting.ReportObjectService;
 import org.openmrs.reporting.export.DataExportReportObject;
-import org.openmrs.reporting.export.DataExportUtil;
-import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.util.PrivilegeConstants;
 import org.openmrs.web.WebConstants;
 
+/**
+ * Downloads data exports. <br/>
+ * <br/>
+ * By default the file generated earlier is sent. It is gzipped on the fly if the client accepts
+ * that, otherwise it is sent as is and a client can resume an interrupted download with a
+ * <code>Range</code> header. A file that was stored gzipped is sent as is to clients that accept
+ * gzip, ranges included, and unzipped on the fly for the others. <br/>
+ * <br/>
+ * With <code>stream=true</code> the export is generated while it is being downloaded. It is
+ * generated like any other queued export, on the pool of export jobs and never twice at the same
+ * time. The job writes every batch to the response as well as to the file as soon as the batch is
+ * done (gzipped if the client accepts that), so the response has no length and is sent in chunks.
+ * If the export is running already the request waits for that job and sends the new file.
+ */
 public class DataExportServlet extends HttpServlet {
 	
 	public static final long serialVersionUID = 1231222L;
 	
 	private static Log log = LogFactory.getLog(DataExportServlet.class);
 	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	// the user is waiting for the file, so the export goes before the ones queued in the background
+	private static final int INTERACTIVE_PRIORITY = 10;
+	
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		
 		String reportId = request.getParameter("dataExportId");
@@ -63,30 +90,279 @@ public class DataExportServlet extends HttpServlet {
 		ReportObjectService rs = (ReportObjectService) Context.getService(ReportObjectService.class);
 		DataExportReportObject dataExport = (DataExportReportObject) rs.getReportObject(Integer.valueOf(reportId));
 		
+		if ("true".equals(request.getParameter("stream")) && streamExport(dataExport, request, response))
+			return;
+		sendGeneratedFile(dataExport, request, response);
+	}
+	
+	/**
+	 * Queues the export like any other export job, with the response as the stream writer of the
+	 * job, and waits for the job to end. If the export is being generated already, that job is
+	 * waited for instead and the response is left for the generated file.
+	 * 
+	 * @return true if the export was written to the response, false if the generated file is to be
+	 *         sent
+	 * @throws ServletException if the job failed or was cancelled before anything was sent
+	 */
+	private boolean streamExport(DataExportReportObject dataExport, HttpServletRequest request,
+	                             HttpServletResponse response) throws ServletException, IOException {
+		EvaluationContext evalContext = new EvaluationContext();
+		evalContext.addParameterValue(new Parameter("general.user", "Authenticated User", org.openmrs.User.class, null),
+		    Context.getAuthenticatedUser());
+		
+		setDownloadHeaders(dataExport, new Date(), response);
+		response.setCharacterEncoding("UTF-8");
+		
+		OutputStream outStream = response.getOutputStream();
+		if (acceptsGzip(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			// every flush sends the rows compressed so far, not only once the deflater's buffer is full
+			outStream = new GZIPOutputStream(outStream, BUFFER_SIZE, true);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(outStream, "UTF-8"), BUFFER_SIZE);
+		
+		long start = System.currentTimeMillis();
+		ReportingCompatibilityService rcs = Context.getService(ReportingCompatibilityService.class);
+		DataExportJob job = rcs.queueStreamedDataExport(dataExport, evalContext, INTERACTIVE_PRIORITY, out);
+		boolean streamed = job != null;
+		if (!streamed) {
+			// nothing was sent yet, the gzip header is still in the buffer of the response
+			response.reset();
+			job = rcs.queueDataExport(dataExport, evalContext, INTERACTIVE_PRIORITY, false, -1);
+		}
+		
+		try {
+			job.await();
+		}
+		catch (InterruptedException e) {
+			throw new ServletException("Interrupted while waiting for data export: " + dataExport, e);
+		}
+		
+		if (job.getStatus() != DataExportJob.Status.FINISHED) {
+			String message = "Unable to generate data export: " + dataExport + " (" + job.getStatus()
+			        + (job.getError() != null ? ": " + job.getError() : "") + ")";
+			if (!response.isCommitted()) {
+				response.reset();
+				throw new ServletException(message);
+			}
+			// the client has the rows sent so far, followed by the error if the export wrote one
+			log.warn(message);
+		}
+		
+		if (streamed) {
+			try {
+				// also finishes the gzip stream
+				out.close();
+			}
+			catch (IOException e) {
+				log.info("Unable to finish streaming data export " + dataExport.getReportObjectId() + ": " + e);
+			}
+		}
+		
+		if (log.isDebugEnabled())
+			log.debug((streamed ? "Streamed" : "Generated") + " data export " + dataExport.getReportObjectId()
+			        + " for download in " + (System.currentTimeMillis() - start) + " ms");
+		return streamed;
+	}
+	
+	/**
+	 * Sends the file generated earlier, or the requested range of it
+	 */
+	private void sendGeneratedFile(DataExportReportObject dataExport, HttpServletRequest request,
+	                               HttpServletResponse response) throws ServletException, IOException {
 		File file = DataExportUtil.getGeneratedFile(dataExport);
 		
 		if (!file.exists())
 			throw new ServletException("The data export: " + dataExport + " has not been generated yet");
 		
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+		boolean compressed = DataExportUtil.isCompressed(file);
+		boolean gzip = acceptsGzip(request);
+		
+		setDownloadHeaders(dataExport, new Date(lastModified), response);
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Vary", "Accept-Encoding");
+		response.setDateHeader("Last-Modified", lastModified);
+		
+		if (compressed && !gzip) {
+			// the length of the unzipped file isn't known without unzipping it, so no ranges either
+			response.setHeader("Accept-Ranges", "none");
+			response.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-identity\"");
+			copy(DataExportUtil.openGeneratedFile(file), response.getOutputStream(), 0, Long.MAX_VALUE);
+			return;
+		}
+		
+		// the bytes of a gzipped file are its gzip representation, ranges refer to them
+		response.setHeader("Accept-Ranges", "bytes");
+		if (compressed)
+			response.setHeader("Content-Encoding", "gzip");
+		
+		long[] range = getRequestedRange(request, length, lastModified, etag);
+		if (range != null && range[0] >= length) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+		
+		OutputStream outStream;
+		long start = 0;
+		long count = length;
+		if (range != null) {
+			// ranges always refer to the file as it is stored, so they are never gzipped on the fly
+			start = range[0];
+			count = range[1] - range[0] + 1;
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("ETag", etag);
+			response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+			response.setContentLengthLong(count);
+			outStream = response.getOutputStream();
+		} else if (gzip && !compressed) {
+			// the gzipped file is a different representation, so it gets its own tag
+			response.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-gzip\"");
+			response.setHeader("Content-Encoding", "gzip");
+			outStream = new GZIPOutputStream(response.getOutputStream(), BUFFER_SIZE);
+		} else {
+			response.setHeader("ETag", etag);
+			response.setContentLengthLong(length);
+			outStream = response.getOutputStream();
+		}
+		
+		copy(new FileInputStream(file), outStream, start, count);
+	}
+	
+	/**
+	 * Copies up to <code>count</code> bytes, after skipping the first <code>start</code> bytes, and
+	 * closes both streams
+	 */
+	private void copy(InputStream in, OutputStream out, long start, long count) throws IOException {
+		try {
+			// skipping a file stream seeks
+			while (start > 0) {
+				long skipped = in.skip(start);
+				if (skipped <= 0)
+					return;
+				start -= skipped;
+			}
+			
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (count > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+				if (read == -1)
+					break;
+				out.write(buffer, 0, read);
+				count -= read;
+			}
+		}
+		finally {
+			in.close();
+			out.close();
+		}
+	}
+	
+	/**
+	 * Sets the content type, file name and caching headers of a download
+	 */
+	private void setDownloadHeaders(DataExportReportObject dataExport, Date generated, HttpServletResponse response) {
 		response.setContentType("application/vnd.ms-excel");
-		String s = new SimpleDateFormat("yyyyMMdd_Hm").format(new Date(file.lastModified()));
+		String s = new SimpleDateFormat("yyyyMMdd_Hm").format(generated);
 		String filename = dataExport.getName().replace(" ", "_") + "-" + s + ".xls";
 		response.setHeader("Content-Disposition", "attachment; filename=" + filename);
 		response.setHeader("Pragma", "no-cache");
+	}
+	
+	/**
+	 * @return true if the <code>Accept-Encoding</code> header of the request allows gzip
+	 */
+	private boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null)
+			return false;
 		
-		InputStream inStream = null;
-		try {
-			inStream = new FileInputStream(file);
-			OpenmrsUtil.copyFile(inStream, response.getOutputStream());
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			String name = parts[0].trim();
+			if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name) && !"*".equals(name))
+				continue;
+			
+			// "gzip;q=0" means anything but gzip
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						if (Double.parseDouble(param.substring(2)) <= 0)
+							return false;
+					}
+					catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
 		}
-		finally {
-			if (inStream != null)
+		return false;
+	}
+	
+	/**
+	 * Works out the byte range asked for by the <code>Range</code> header of the request. Only a
+	 * single range is supported, the whole file is sent for anything else. The range is ignored if
+	 * the <code>If-Range</code> header doesn't match the file anymore.
+	 *
+	 * @param request
+	 * @param length the length of the file
+	 * @param lastModified when the file was last modified
+	 * @param etag the entity tag of the file
+	 * @return the first and last byte of the range, or null to send the whole file. The first byte
+	 *         is past the end of the file if the range can't be satisfied.
+	 */
+	private long[] getRequestedRange(HttpServletRequest request, long length, long lastModified, String etag) {
+		String range = request.getHeader("Range");
+		if (range == null || !range.startsWith("bytes="))
+			return null;
+		
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange != null) {
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				if (!ifRange.equals(etag))
+					return null;
+			} else {
 				try {
-					inStream.close();
+					// http dates have no milliseconds
+					if (request.getDateHeader("If-Range") / 1000 != lastModified / 1000)
+						return null;
 				}
-				catch (Exception e) {}
+				catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
 		}
 		
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0)
+			return null;
+		
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.length() == 0) {
+				// the last n bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0)
+					return new long[] { length, length };
+				return new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			
+			long start = Long.parseLong(first);
+			long end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (end < start && start < length)
+				return null;
+			return new long[] { start, end };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
 	}
-	
+
 }
@@ -49,10 +49,69 @@
 				</td>
 				<td valign="top">${dataExport.description}</td>
 				<td>
+					<a href="${pageContext.request.contextPath}/moduleServlet/reportingcompatibility/dataExportServlet?dataExportId=${dataExport.reportObjectId}&stream=true"><spring:message code="reportingcompatibility.DataExport.stream"/></a>
 					<c:if test="${generatedDates[dataExport] != null}">
+						|
 						<a href="${pageContext.request.contextPath}/moduleServlet/reportingcompatibility/dataExportServlet?dataExportId=${dataExport.reportObjectId}"><spring:message code="general.download"/></a>
 						<span class="smallMessage">(${generatedSizes[dataExport]} <spring:message code="reportingcompatibility.DataExport.generatedOn"/> <openmrs:formatDate date="${generatedDates[dataExport]}" type="long" />)</span>
 					</c:if>
+					<c:set var="profile" value="${profiles[dataExport]}"/>
+					<c:if test="${profile != null}">
+						|
+						<a href="#" onclick="var d = document.getElementById('profile${dataExport.reportObjectId}'); d.style.display = d.style.display == 'none' ? '' : 'none'; return false;"><spring:message code="reportingcompatibility.DataExport.profile"/></a>
+						<div id="profile${dataExport.reportObjectId}" style="display: none" class="smallMessage">
+							<spring:message code="reportingcompatibility.DataExport.profile.total" arguments="${profile.totalMillis},${profile.patients},${fn:length(profile.batches)},${profile.queryMillis}"/>
+							<table cellpadding="2" cellspacing="0">
+								<tr>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.query"/></th>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.count"/></th>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.millis"/></th>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.rows"/></th>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.bytes"/></th>
+								</tr>
+								<c:forEach var="query" items="${profile.queries}">
+									<tr>
+										<td><c:out value="${query.name}"/></td>
+										<td>${query.count}</td>
+										<td>${query.millis}</td>
+										<td>${query.rows}</td>
+										<td>${query.bytes}</td>
+									</tr>
+								</c:forEach>
+							</table>
+							<table cellpadding="2" cellspacing="0">
+								<tr>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.column"/></th>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.millis"/></th>
+									<th><spring:message code="reportingcompatibility.DataExport.profile.chars"/></th>
+								</tr>
+								<c:forEach var="column" items="${profile.columns}">
+									<tr>
+										<td><c:out value="${column.name}"/></td>
+										<td>${column.millis}</td>
+										<td>${column.bytes}</td>
+									</tr>
+								</c:forEach>
+							</table>
+						</div>
+					</c:if>
+					<c:set var="job" value="${jobs[dataExport]}"/>
+					<c:if test="${job != null && job.status != 'FINISHED'}">
+						<br/>
+						<span class="smallMessage">
+							<spring:message code="reportingcompatibility.DataExport.job.${job.status}"/>
+							<c:choose>
+								<c:when test="${job.status == 'RUNNING'}">
+									<fmt:formatNumber var="rowsPerSecond" value="${job.rowsPerSecond}" maxFractionDigits="0" groupingUsed="false"/>
+									<spring:message code="reportingcompatibility.DataExport.job.progress" arguments="${job.patientsDone},${job.patientsTotal < 0 ? '?' : job.patientsTotal},${job.batchesDone},${rowsPerSecond}"/>
+									<c:if test="${job.secondsRemaining != null}">
+										<spring:message code="reportingcompatibility.DataExport.job.eta" arguments="${job.secondsRemaining}"/>
+									</c:if>
+								</c:when>
+								<c:when test="${job.status == 'FAILED'}">: <c:out value="${job.error}"/></c:when>
+							</c:choose>
+						</span>
+					</c:if>
 				</td>
 			</tr>
 		</c:forEach>
@@ -60,7 +119,16 @@
 	
 	<input type="submit" value='<spring:message code="reportingcompatibility.DataExport.generate"/>' name="action">
 	&nbsp;
+	<input type="submit" value='<spring:message code="reportingcompatibility.DataExport.cancel"/>' name="action">
+	&nbsp;
 	<input type="submit" value='<spring:message code="reportingcompatibility.DataExport.delete"/>' name="action" onclick="return confirm('Are you sure you want to DELETE these Exports?')">
 </form>
 
+<c:if test="${jobsActive}">
+	<script type="text/javascript">
+		// show the progress of the exports being generated
+		setTimeout(function() { window.location.href = "dataExport.list"; }, 5000);
+	</script>
+</c:if>
+
 <%@ include file="/WEB-INF/template/footer.jsp" %>
\ No newline at end of file